@@ -7,6 +7,7 @@ import com.ociweb.pronghorn.network.config.*;
 import com.ociweb.pronghorn.network.http.HTTP1xRouterStageConfig;
 import com.ociweb.pronghorn.network.http.ModuleConfig;
 import com.ociweb.pronghorn.network.http.RouterStageConfig;
+import com.ociweb.pronghorn.network.module.FileContentCache;
 import com.ociweb.pronghorn.network.module.FileReadModuleStage;
 import com.ociweb.pronghorn.network.module.ResourceModuleStage;
 import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
@@ -24,6 +25,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 public class HTTPServer {
@@ -112,6 +114,9 @@ public class HTTPServer {
 	}
 
 
+	private static final long FILE_CACHE_BYTES = 64L*1024*1024;
+	private static final int FILE_CACHE_MAX_FILE_BYTES = 1024*1024;
+
 	public static ModuleConfig simpleFileServerConfig(final int fileOutgoing, final int fileChunkSize,
 			final String resourcesRoot, final String resourcesDefault, final File pathRoot) {
 		//using the basic no-fills API
@@ -137,26 +142,37 @@ public class HTTPServer {
 					
 					//the file server is stateless therefore we can build 1 instance for every input pipe
 					int instances = inputPipes.length;
+					//each instance writes one output for each ordering shard so responses go straight to their supervisor
+					int shards = ((HTTP1xRouterStageConfig)routerConfig).orderingShards();
+					
+					staticFileOutputs = Pipe.buildPipes(instances*shards, fileServerOutgoingDataConfig);
 					
-					staticFileOutputs = new Pipe[instances];
+					//one cache of hot files shared by all the instances
+					FileContentCache contentCache = new FileContentCache(FILE_CACHE_BYTES, FILE_CACHE_MAX_FILE_BYTES);
 					
 					int i = instances;
 					while (--i>=0) {
-						staticFileOutputs[i] = new Pipe<ServerResponseSchema>(fileServerOutgoingDataConfig); //TODO: old code which will be removed.
+						Pipe<ServerResponseSchema>[] outputs = Arrays.copyOfRange(staticFileOutputs, i*shards, (i+1)*shards);
 						if (null != pathRoot) {
 							//file based site
-							FileReadModuleStage.newInstance(graphManager, inputPipes[i], staticFileOutputs[i], (HTTPSpecification<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults>) ((HTTP1xRouterStageConfig)routerConfig).httpSpec, pathRoot);	
+							FileReadModuleStage.newInstance(graphManager, new Pipe[]{inputPipes[i]}, outputs, (HTTPSpecification<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults>) ((HTTP1xRouterStageConfig)routerConfig).httpSpec, pathRoot)
+							                   .setContentCache(contentCache);	
 						} else {
 							//jar resources based site
-							ResourceModuleStage.newInstance(graphManager, inputPipes[i], staticFileOutputs[i], ((HTTP1xRouterStageConfig)routerConfig).httpSpec, resourcesRoot, resourcesDefault);	
+							ResourceModuleStage.newInstance(graphManager, new Pipe[]{inputPipes[i]}, outputs, ((HTTP1xRouterStageConfig)routerConfig).httpSpec, resourcesRoot, resourcesDefault);	
 						}
 					}
 					
 				}
 				
 				routerConfig.registerRoute(
-	                    (CharSequence) ((fileServerIndex == a) ? "/${path}" : null)
-	                    ); //NOTE: we did not request any headers here
+	                    (CharSequence) ((fileServerIndex == a) ? "/${path}" : null),
+	                    HTTPHeaderDefaults.ACCEPT_ENCODING.rootBytes(),
+	                    HTTPHeaderDefaults.IF_NONE_MATCH.rootBytes(),
+	                    HTTPHeaderDefaults.IF_MODIFIED_SINCE.rootBytes(),
+	                    HTTPHeaderDefaults.RANGE.rootBytes(),
+	                    HTTPHeaderDefaults.IF_RANGE.rootBytes()
+	                    ); //NOTE: only the headers the file module uses for encodings, revalidation and ranges
 	
 				if (fileServerIndex == a) {
 					return staticFileOutputs;
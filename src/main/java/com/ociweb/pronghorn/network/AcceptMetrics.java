@@ -0,0 +1,77 @@
+package com.ociweb.pronghorn.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of new connections shared by all the acceptors of one ServerCoordinator.
+ *
+ * The backlog is the number of connections found waiting each time an acceptor drains
+ * its server socket, a growing backlog means the acceptors are falling behind.
+ */
+public final class AcceptMetrics {
+
+	private static final long RATE_WINDOW_NS = 1_000_000_000L;
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
+
+	private volatile int lastBacklog;
+	private volatile int maxBacklog;
+
+	private long windowStart = System.nanoTime();
+	private long windowAccepted;
+	private volatile long acceptsPerSecond;
+
+	/**
+	 * @param backlog connections accepted in one drain of the server socket
+	 */
+	void recordDrain(int backlog, long now) {
+		accepted.addAndGet(backlog);
+		lastBacklog = backlog;
+		if (backlog > maxBacklog) {
+			maxBacklog = backlog; //lossy under contention but only used for reporting
+		}
+		synchronized(this) {
+			windowAccepted += backlog;
+			long duration = now-windowStart;
+			if (duration >= RATE_WINDOW_NS) {
+				acceptsPerSecond = (windowAccepted*RATE_WINDOW_NS)/duration;
+				windowAccepted = 0;
+				windowStart = now;
+			}
+		}
+	}
+
+	/**
+	 * Connection was waiting but could not be accepted because there was no free slot or no room to notify.
+	 */
+	void recordDeferred() {
+		deferred.incrementAndGet();
+	}
+
+	public long accepted() {
+		return accepted.get();
+	}
+
+	public long deferred() {
+		return deferred.get();
+	}
+
+	public int lastBacklog() {
+		return lastBacklog;
+	}
+
+	public int maxBacklog() {
+		return maxBacklog;
+	}
+
+	public long acceptsPerSecond() {
+		return acceptsPerSecond;
+	}
+
+	@Override
+	public String toString() {
+		return "accepted:"+accepted()+" deferred:"+deferred()+" backlog:"+lastBacklog+" maxBacklog:"+maxBacklog+" perSecond:"+acceptsPerSecond;
+	}
+
+}
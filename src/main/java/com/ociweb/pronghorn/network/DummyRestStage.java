@@ -24,6 +24,7 @@ public class DummyRestStage extends PronghornStage {
 		this.inputPipes = inputPipes;
 		this.outputs = outputs;
 		this.httpSpec = httpSpec;
+		HTTPUtil.validateResponsePipes(inputPipes.length, outputs.length);
 		
 		if (inputPipes.length>1) {
 			GraphManager.addNota(graphManager, GraphManager.LOAD_MERGE, GraphManager.LOAD_MERGE, this);
@@ -35,16 +36,17 @@ public class DummyRestStage extends PronghornStage {
 	public void run() {
 		int i = inputPipes.length;
 		while(--i>=0) {
-			process(inputPipes[i], outputs[i]);
+			process(i);
 		}
 			
 	}
 
-	private void process(Pipe<HTTPRequestSchema> input, 
-			             Pipe<ServerResponseSchema> output) {
+	private void process(int idx) {
 		
+		Pipe<HTTPRequestSchema> input = inputPipes[idx];
 		while (Pipe.hasContentToRead(input)) {
 			
+			Pipe<ServerResponseSchema> output = HTTPUtil.responsePipe(outputs, idx, inputPipes.length, input);
 		    int msgIdx = Pipe.takeMsgIdx(input);
 		    switch(msgIdx) {
 		        case HTTPRequestSchema.MSG_RESTREQUEST_300:
@@ -62,9 +64,13 @@ public class DummyRestStage extends PronghornStage {
 			        Pipe.releaseReadLock(input);
 										
 		            
+		        break;
+		        case HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301:
+		        	//the 501 has already been sent with the head, any streamed body is dropped
+		        	Pipe.skipNextFragment(input, msgIdx);
 		        break;
 		        case -1:
-		        	Pipe.publishEOF(output);
+		        	HTTPUtil.publishEOF(outputs, idx, inputPipes.length);
 		        break;
 		    }
 		    PipeReader.releaseReadLock(input);
@@ -0,0 +1,108 @@
+package com.ociweb.pronghorn.network;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Open files which responses may refer to by id instead of copying their bytes through the pipes.
+ * File modules register their channels and the ServerSocketWriterStage transfers the regions
+ * straight from the file to the socket.
+ *
+ * Each region message pins its channel until the writer releases it, so an id in flight always
+ * refers to the channel it was published with and that channel stays open. Owners hand their
+ * channels to close instead of closing them directly.
+ *
+ * Only for plain connections, TLS must encrypt the bytes so they have to pass through the pipes.
+ */
+public final class FileRegions {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileRegions.class);
+
+	private final FileChannel[] channels;
+	private final int[] pins;               //region messages published but not yet released by the writer
+	private final boolean[] closePending;   //owner is done, closed once the last pin is released
+	private int count;
+
+	public FileRegions(int maxOpenFiles) {
+		this.channels = new FileChannel[maxOpenFiles];
+		this.pins = new int[maxOpenFiles];
+		this.closePending = new boolean[maxOpenFiles];
+	}
+
+	/**
+	 * Pins the channel for one region message, release must be called with the returned id once the
+	 * region is sent or dropped. Slots are only reused once nothing is pinned and the channel is closed.
+	 * @return id of this channel
+	 */
+	public synchronized int acquire(FileChannel channel) {
+		int free = -1;
+		int i = count;
+		while (--i>=0) {
+			FileChannel existing = channels[i];
+			if (existing == channel) {
+				pins[i]++;
+				return i;
+			}
+			if (0 == pins[i] && !existing.isOpen()) {
+				free = i;
+			}
+		}
+		if (free<0) {
+			if (count == channels.length) {
+				throw new UnsupportedOperationException("FileRegions only supports "+channels.length+" open files, increase maxOpenFiles.");
+			}
+			free = count++;
+		}
+		channels[free] = channel;
+		closePending[free] = false;
+		pins[free] = 1;
+		return free;
+	}
+
+	public synchronized FileChannel channel(int id) {
+		return channels[id];
+	}
+
+	/**
+	 * The writer is done with one region of this channel.
+	 */
+	public synchronized void release(int id) {
+		assert(pins[id]>0) : "region "+id+" was not pinned";
+		if (0 == --pins[id] && closePending[id]) {
+			closePending[id] = false;
+			closeQuietly(channels[id]);
+		}
+	}
+
+	/**
+	 * Closes the channel now if no region uses it or else once the last pinned region is released.
+	 * @return false if the close was deferred
+	 */
+	public synchronized boolean close(FileChannel channel) {
+		int i = count;
+		while (--i>=0) {
+			if (channels[i] == channel && pins[i]>0) {
+				closePending[i] = true;
+				return false;
+			}
+		}
+		closeQuietly(channel);
+		return true;
+	}
+
+	public synchronized int pinned(int id) {
+		return pins[id];
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.trace("unable to close file channel", e);
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+package com.ociweb.pronghorn.network;
+
+import com.ociweb.pronghorn.network.http.HPackDecoder;
+
+/**
+ * State of one prior knowledge h2c connection shared between the router reading it
+ * and the ordering supervisor writing to it.
+ *
+ * The router opens streams and applies the client settings and window updates, the
+ * supervisor spends the send windows and closes streams as responses complete.
+ * A response fragment is only sent once both windows cover all of its data so the
+ * response pipes must not hold fragments larger than the client window.
+ */
+public final class HTTP2Connection {
+
+	public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+
+	public static final int FRAME_HEADER_SIZE = 9;
+	public static final int DEFAULT_WINDOW = 65535;
+	public static final int DEFAULT_MAX_FRAME = 16384;
+	public static final int MAX_CONCURRENT_STREAMS = 100;
+	private static final int STREAM_SLOTS = 256; //power of 2 larger than MAX_CONCURRENT_STREAMS
+
+	public static final int TYPE_DATA          = 0x0;
+	public static final int TYPE_HEADERS       = 0x1;
+	public static final int TYPE_PRIORITY      = 0x2;
+	public static final int TYPE_RST_STREAM    = 0x3;
+	public static final int TYPE_SETTINGS      = 0x4;
+	public static final int TYPE_PUSH_PROMISE  = 0x5;
+	public static final int TYPE_PING          = 0x6;
+	public static final int TYPE_GOAWAY        = 0x7;
+	public static final int TYPE_WINDOW_UPDATE = 0x8;
+	public static final int TYPE_CONTINUATION  = 0x9;
+
+	public static final int FLAG_END_STREAM  = 0x1;
+	public static final int FLAG_ACK         = 0x1;
+	public static final int FLAG_END_HEADERS = 0x4;
+	public static final int FLAG_PADDED      = 0x8;
+	public static final int FLAG_PRIORITY    = 0x20;
+
+	public static final int SETTINGS_HEADER_TABLE_SIZE      = 0x1;
+	public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	public static final int SETTINGS_INITIAL_WINDOW_SIZE    = 0x4;
+	public static final int SETTINGS_MAX_FRAME_SIZE         = 0x5;
+
+	public static final int NO_ERROR           = 0x0;
+	public static final int PROTOCOL_ERROR     = 0x1;
+	public static final int INTERNAL_ERROR     = 0x2;
+	public static final int FLOW_CONTROL_ERROR = 0x3;
+	public static final int FRAME_SIZE_ERROR   = 0x6;
+	public static final int REFUSED_STREAM     = 0x7;
+	public static final int COMPRESSION_ERROR  = 0x9;
+	public static final int ENHANCE_YOUR_CALM  = 0xb;
+
+	public static final int SEND    = 1;
+	public static final int WAIT    = 0;
+	public static final int DROPPED = -1;
+
+	public final long channelId;
+	public final HPackDecoder decoder;
+
+	private volatile int peerMaxFrameSize = DEFAULT_MAX_FRAME;
+	private int peerInitialWindow = DEFAULT_WINDOW;
+	private long sendWindow = DEFAULT_WINDOW;
+
+	private final int[] streamIds = new int[STREAM_SLOTS];
+	private final long[] streamWindows = new long[STREAM_SLOTS];
+	private final int[] streamPipes = new int[STREAM_SLOTS];
+	private int openStreams;
+	private int lastStreamId;
+
+	public HTTP2Connection(long channelId, int maxStringLength) {
+		this.channelId = channelId;
+		this.decoder = new HPackDecoder(HPackDecoder.DEFAULT_TABLE_SIZE, maxStringLength);
+	}
+
+	public int peerMaxFrameSize() {
+		return peerMaxFrameSize;
+	}
+
+	public void peerMaxFrameSize(int value) {
+		peerMaxFrameSize = value;
+	}
+
+	public int lastStreamId() {
+		return lastStreamId;
+	}
+
+	private static int slot(int streamId) {
+		return (streamId>>1)&(STREAM_SLOTS-1);
+	}
+
+	/**
+	 * @return false if the stream must be refused
+	 */
+	public synchronized boolean openStream(int streamId) {
+		lastStreamId = streamId;
+		int s = slot(streamId);
+		if (openStreams>=MAX_CONCURRENT_STREAMS || 0!=streamIds[s]) {
+			return false;
+		}
+		streamIds[s] = streamId;
+		streamWindows[s] = peerInitialWindow;
+		streamPipes[s] = -1;
+		openStreams++;
+		return true;
+	}
+
+	public synchronized void closeStream(int streamId) {
+		int s = slot(streamId);
+		if (streamId == streamIds[s]) {
+			streamIds[s] = 0;
+			openStreams--;
+		}
+	}
+
+	public synchronized boolean isOpen(int streamId) {
+		return streamId == streamIds[slot(streamId)];
+	}
+
+	/**
+	 * @return request pipe receiving the body of this stream or -1
+	 */
+	public synchronized int streamPipe(int streamId) {
+		int s = slot(streamId);
+		return streamId == streamIds[s] ? streamPipes[s] : -1;
+	}
+
+	public synchronized void streamPipe(int streamId, int pipeIdx) {
+		int s = slot(streamId);
+		if (streamId == streamIds[s]) {
+			streamPipes[s] = pipeIdx;
+		}
+	}
+
+	/**
+	 * @return false if the window would exceed the protocol maximum
+	 */
+	public synchronized boolean windowUpdate(int streamId, int increment) {
+		if (0 == streamId) {
+			sendWindow += increment;
+			return sendWindow <= Integer.MAX_VALUE;
+		}
+		int s = slot(streamId);
+		if (streamId == streamIds[s]) {
+			streamWindows[s] += increment;
+			return streamWindows[s] <= Integer.MAX_VALUE;
+		}
+		return true;
+	}
+
+	public synchronized void initialWindow(int value) {
+		int delta = value-peerInitialWindow;
+		peerInitialWindow = value;
+		int s = STREAM_SLOTS;
+		while (--s>=0) {
+			if (0!=streamIds[s]) {
+				streamWindows[s] += delta;
+			}
+		}
+	}
+
+	/**
+	 * Takes the room for len bytes of data on this stream from both windows.
+	 *
+	 * @return SEND, WAIT until the client opens the windows or DROPPED if the stream is gone
+	 */
+	public synchronized int reserve(int streamId, int len) {
+		int s = slot(streamId);
+		if (streamId != streamIds[s]) {
+			return DROPPED;
+		}
+		if (len>sendWindow || len>streamWindows[s]) {
+			return WAIT;
+		}
+		sendWindow -= len;
+		streamWindows[s] -= len;
+		return SEND;
+	}
+
+	/**
+	 * Gives back the part of a reservation which was not sent as data, eg the response head.
+	 */
+	public synchronized void release(int streamId, int len) {
+		sendWindow += len;
+		int s = slot(streamId);
+		if (streamId == streamIds[s]) {
+			streamWindows[s] += len;
+		}
+	}
+
+	public static int writeFrameHeader(byte[] target, int pos, int length, int type, int flags, int streamId) {
+		target[pos++] = (byte)(length>>16);
+		target[pos++] = (byte)(length>>8);
+		target[pos++] = (byte)length;
+		target[pos++] = (byte)type;
+		target[pos++] = (byte)flags;
+		return writeInt(target, pos, 0x7FFFFFFF & streamId);
+	}
+
+	public static int writeInt(byte[] target, int pos, int value) {
+		target[pos++] = (byte)(value>>24);
+		target[pos++] = (byte)(value>>16);
+		target[pos++] = (byte)(value>>8);
+		target[pos++] = (byte)value;
+		return pos;
+	}
+
+	public static int readInt(byte[] source, int pos, int mask) {
+		return ((0xFF & source[mask & pos]) << 24) |
+			   ((0xFF & source[mask & (pos+1)]) << 16) |
+			   ((0xFF & source[mask & (pos+2)]) << 8) |
+			    (0xFF & source[mask & (pos+3)]);
+	}
+
+}
@@ -4,6 +4,7 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
@@ -20,17 +21,24 @@ import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
 import com.ociweb.pronghorn.network.http.HTTP1xResponseParserStage;
 import com.ociweb.pronghorn.network.http.HTTP1xRouterStage;
 import com.ociweb.pronghorn.network.http.HTTP1xRouterStageConfig;
+import com.ociweb.pronghorn.network.http.HTTP2RouterStage;
 import com.ociweb.pronghorn.network.http.HTTPClientRequestStage;
 import com.ociweb.pronghorn.network.http.HTTPRequestJSONExtractionStage;
 import com.ociweb.pronghorn.network.http.ModuleConfig;
 import com.ociweb.pronghorn.network.http.RouterStageConfig;
+import com.ociweb.pronghorn.network.module.BottleneckModuleStage;
 import com.ociweb.pronghorn.network.module.DotModuleStage;
+import com.ociweb.pronghorn.network.module.PipeMonitorModuleStage;
 import com.ociweb.pronghorn.network.module.ResourceModuleStage;
+import com.ociweb.pronghorn.network.module.ResponseCache;
+import com.ociweb.pronghorn.network.module.ResponseCacheModuleStage;
+import com.ociweb.pronghorn.network.module.ResponseCacheStage;
 import com.ociweb.pronghorn.network.schema.ClientHTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
 import com.ociweb.pronghorn.network.schema.NetResponseSchema;
 import com.ociweb.pronghorn.network.schema.ReleaseSchema;
+import com.ociweb.pronghorn.network.schema.SSLHandshakeTaskSchema;
 import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
 import com.ociweb.pronghorn.network.schema.TwitterEventSchema;
 import com.ociweb.pronghorn.network.schema.TwitterStreamControlSchema;
@@ -41,6 +49,8 @@ import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeConfig;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.PronghornStageProcessor;
+import com.ociweb.pronghorn.stage.monitor.MonitorConsoleStage;
+import com.ociweb.pronghorn.stage.monitor.PipeMonitorBatchSchema;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 
 public class NetGraphBuilder {
@@ -291,7 +301,8 @@ public class NetGraphBuilder {
         if (coordinator.isTLS) {
         	receivedFromNet = Pipe.buildPipes(serverConfig.maxConcurrentInputs, serverConfig.incomingDataConfig);
         	handshakeIncomingGroup = populateGraphWithUnWrapStages(graphManager, coordinator, serverConfig.serverRequestUnwrapUnits, serverConfig.handshakeDataConfig,
-        			                      encryptedIncomingGroup, receivedFromNet, releaseAfterParse);
+        			                      encryptedIncomingGroup, receivedFromNet, releaseAfterParse,
+        			                      serverConfig.handshakeTaskUnits, serverConfig.handshakeTaskConfig);
         } else {
         	receivedFromNet = encryptedIncomingGroup;
         }
@@ -321,9 +332,12 @@ public class NetGraphBuilder {
 		//logger.info("build modules");
         Pipe<ServerResponseSchema>[][] fromModule = new Pipe[coordinator.moduleParallelism()][];       
         Pipe<HTTPRequestSchema>[][] toModules = new Pipe[coordinator.moduleParallelism()][];
+        //responses already split by the modules for the sharded supervisors, only used with more than 1 ordering shard
+        Pipe<ServerResponseSchema>[][] fromModuleSharded = coordinator.orderingShards()>1 
+        		                   ? new Pipe[coordinator.moduleParallelism()*coordinator.orderingShards()][] : null;
         
         PipeConfig<HTTPRequestSchema> routerToModuleConfig = new PipeConfig<HTTPRequestSchema>(HTTPRequestSchema.instance, serverConfig.fromRouterToModuleCount, serverConfig.fromRouterToModuleBlob);///if payload is smaller than average file size will be slower
-        final HTTP1xRouterStageConfig routerConfig = buildModules(graphManager, modules, coordinator.moduleParallelism(), httpSpec, routerToModuleConfig, fromModule, toModules);
+        final HTTP1xRouterStageConfig routerConfig = buildModules(graphManager, modules, coordinator.moduleParallelism(), httpSpec, routerToModuleConfig, fromModule, fromModuleSharded, toModules);
         
         
         //logger.info("build http stages 3");
@@ -335,7 +349,7 @@ public class NetGraphBuilder {
 		        
         //logger.info("build http ordering supervisors");
         buildOrderingSupers(graphManager, coordinator, coordinator.moduleParallelism(), 
-        		            fromModule, sendingToNet);
+        		            fromModule, fromModuleSharded, sendingToNet);
         
 	}
 
@@ -358,13 +372,86 @@ public class NetGraphBuilder {
 			acks[a] =  new Pipe<ReleaseSchema>(serverConfig.releaseConfig, false);	
 		}
                    
-        //reads from the socket connection
-        ServerSocketReaderStage readerStage = new ServerSocketReaderStage(graphManager, acks, encryptedIncomingGroup, coordinator);
-        GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "SocketReader", readerStage);
-        coordinator.processNota(graphManager, readerStage);
+        final int shards = coordinator.readerShards();
+        if (1 == shards) {
+	        //reads from the socket connection
+	        ServerSocketReaderStage readerStage = new ServerSocketReaderStage(graphManager, acks, encryptedIncomingGroup, coordinator);
+	        GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "SocketReader", readerStage);
+	        coordinator.processNota(graphManager, readerStage);
+        } else {
+        	buildShardedSocketReaderStages(graphManager, coordinator, routerCount, serverConfig, encryptedIncomingGroup, acks);
+        }
 		return acks;
 	}
 
+	private static void buildShardedSocketReaderStages(GraphManager graphManager, ServerCoordinator coordinator, final int routerCount,
+			ServerPipesConfig serverConfig, Pipe<NetPayloadSchema>[] encryptedIncomingGroup, Pipe<ReleaseSchema>[] acks) {
+		
+		final int shards = coordinator.readerShards();
+		
+		//each ack must go back to the shard which reserved the pipe being released
+		int[] ackShard = new int[acks.length];
+		int r = routerCount;
+		while (--r>=0) {
+			ackShard[acks.length-1-r] = coordinator.routerShard(r); //see buildRouters for this ack order
+		}
+		if (coordinator.isTLS) {
+			int units = serverConfig.serverRequestUnwrapUnits;
+			int[] unwrapLookup = Pipe.splitGroups(units, encryptedIncomingGroup.length);
+			Arrays.fill(ackShard, 0, units, -1);
+			int[] pipeShard = pipeShards(coordinator, encryptedIncomingGroup.length);
+			int i = unwrapLookup.length;
+			while (--i>=0) {
+				int u = unwrapLookup[i];
+				if (ackShard[u]>=0 && ackShard[u]!=pipeShard[i]) {
+					throw new UnsupportedOperationException("Unwrap unit "+u+" reads from more than one reader shard, use a multiple of "+shards+" unwrap units which divides the module parallelism.");
+				}
+				ackShard[u] = pipeShard[i];
+			}
+		}
+		
+		for(int s = 0; s<shards; s++) {
+			
+			int[] pipeIdx = coordinator.readerShardPipes(s);
+			Pipe<NetPayloadSchema>[] output = new Pipe[pipeIdx.length];
+			int p = pipeIdx.length;
+			while (--p>=0) {
+				output[p] = encryptedIncomingGroup[pipeIdx[p]];
+			}
+			
+			int count = 0;
+			int a = acks.length;
+			while (--a>=0) {
+				if (ackShard[a]==s) {
+					count++;
+				}
+			}
+			Pipe<ReleaseSchema>[] shardAcks = new Pipe[count];
+			for(a = 0; a<acks.length; a++) {
+				if (ackShard[a]==s) {
+					shardAcks[--count] = acks[a];
+				}
+			}
+			
+	        ServerSocketReaderStage readerStage = new ServerSocketReaderStage(graphManager, shardAcks, output, coordinator, s);
+	        GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "SocketReader", readerStage);
+	        coordinator.processNota(graphManager, readerStage);
+		}
+	}
+
+	private static int[] pipeShards(ServerCoordinator coordinator, int pipeCount) {
+		int[] result = new int[pipeCount];
+		int s = coordinator.readerShards();
+		while (--s>=0) {
+			int[] pipeIdx = coordinator.readerShardPipes(s);
+			int p = pipeIdx.length;
+			while (--p>=0) {
+				result[pipeIdx[p]] = s;
+			}
+		}
+		return result;
+	}
+
 	public static Pipe<NetPayloadSchema>[] buildRemainderOFServerStages(final GraphManager graphManager,
 			ServerCoordinator coordinator, ServerPipesConfig serverConfig,
 			Pipe<NetPayloadSchema>[] handshakeIncomingGroup) {
@@ -380,8 +467,11 @@ public class NetGraphBuilder {
         buildSocketWriters(graphManager, coordinator, serverConfig.serverSocketWriters, toWiterPipes, 
         		           serverConfig.writeBufferMultiplier);
 
-        ServerNewConnectionStage newConStage = new ServerNewConnectionStage(graphManager, coordinator); 
-        coordinator.processNota(graphManager, newConStage);
+        int acceptor = coordinator.acceptors();
+        while (--acceptor>=0) {
+	        ServerNewConnectionStage newConStage = new ServerNewConnectionStage(graphManager, coordinator, acceptor); 
+	        coordinator.processNota(graphManager, newConStage);
+        }
 
 		return fromOrderedContent;
 	}
@@ -475,6 +565,67 @@ public class NetGraphBuilder {
 		}
 	}
 
+	/**
+	 * Builds coordinator.orderingShards() supervisors for each router group. Each one only sees the channels
+	 * where channelId & coordinator.orderingShardMask() is its index so they share no state and scale with cores.
+	 * 
+	 * @param fromModule responses by router group, these are split by channel with a ServerResponseShardStage,
+	 *                   only the router errors when all the modules are sharded
+	 * @param fromModuleSharded responses already split by the modules, index router*shards+shard, null when not sharded
+	 */
+	public static void buildOrderingSupers(GraphManager graphManager, 
+							               ServerCoordinator coordinator, final int routerCount,
+							               Pipe<ServerResponseSchema>[][] fromModule,
+							               Pipe<ServerResponseSchema>[][] fromModuleSharded,
+							               Pipe<NetPayloadSchema>[] fromSupers) {
+		
+		final int shards = coordinator.orderingShards();
+		if (1==shards) {
+			buildOrderingSupers(graphManager, coordinator, routerCount, fromModule, fromSupers);
+			return;
+		}
+		final int superCount = routerCount*shards;
+		if (fromSupers.length < superCount) {
+			throw new UnsupportedOperationException("reduce ordering shards since we only have "+fromSupers.length
+					                               +" pipes for "+superCount+" supervisors");
+		}
+		
+		Pipe<NetPayloadSchema>[][] orderedOutput = Pipe.splitPipes(superCount, fromSupers);
+		int k = routerCount;
+		while (--k>=0) {
+			
+			if (null!=fromModule[k] && fromModule[k].length>0) {
+				//router errors and modules which write all the channels of the router group to the same pipe
+				Pipe<ServerResponseSchema>[] split = Pipe.buildPipes(shards, largestConfig(fromModule[k]));
+				coordinator.processNota(graphManager, new ServerResponseShardStage(graphManager, fromModule[k], split));
+				int s = shards;
+				while (--s>=0) {
+					fromModuleSharded[(k*shards)+s] = PronghornStage.join(fromModuleSharded[(k*shards)+s], split[s]);
+				}
+			}
+			
+			int s = shards;
+			while (--s>=0) {
+				int superIdx = (k*shards)+s;
+				OrderSupervisorStage wrapSuper = new OrderSupervisorStage(graphManager, 
+						                    fromModuleSharded[superIdx], orderedOutput[superIdx], coordinator,
+						                    coordinator.orderingShardBits());//ensure order
+				coordinator.processNota(graphManager, wrapSuper);
+			}
+		}
+	}
+
+	private static PipeConfig<ServerResponseSchema> largestConfig(Pipe<ServerResponseSchema>[] pipes) {
+		Pipe<ServerResponseSchema> largest = pipes[0];
+		int i = pipes.length;
+		while (--i>0) {
+			if (pipes[i].maxVarLen > largest.maxVarLen) {
+				largest = pipes[i];
+			}
+		}
+		return largest.config();
+	}
+
 	private static void buildSocketWriters(GraphManager graphManager, ServerCoordinator coordinator, 
 											int socketWriters, Pipe<NetPayloadSchema>[] toWiterPipes, 
 											int writeBufferMultiplier) {
@@ -549,7 +700,16 @@ public class NetGraphBuilder {
 			////////////////////////////////////
 			////////////////////////////////////
 			
-			HTTP1xRouterStage router = HTTP1xRouterStage.newInstance(
+			HTTP1xRouterStage router = coordinator.isHTTP2() ?
+					HTTP2RouterStage.newInstance(
+					graphManager, 
+					parallelTrack, 
+					plainSplit[parallelTrack], 
+					fromRouter, 
+					errorResponsePipes[parallelTrack], 
+					acks[acksBase-parallelTrack], routerConfig,
+					coordinator,catchAll) :
+					HTTP1xRouterStage.newInstance(
 					graphManager, 
 					parallelTrack, 
 					plainSplit[parallelTrack], 
@@ -570,8 +730,24 @@ public class NetGraphBuilder {
 			HTTPSpecification<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults> httpSpec,
 			PipeConfig<HTTPRequestSchema> routerToModuleConfig, Pipe<ServerResponseSchema>[][] fromModule,
 			Pipe<HTTPRequestSchema>[][] toModules) {
+		return buildModules(graphManager, modules, routerCount, httpSpec, routerToModuleConfig, fromModule, null, toModules);
+	}
+
+	/**
+	 * @param fromModuleSharded when not null modules may return one output for each router and ordering shard,
+	 *                          index router*shards+shard, instead of one for each router
+	 */
+	public static HTTP1xRouterStageConfig buildModules(GraphManager graphManager, ModuleConfig modules,
+			final int routerCount,
+			HTTPSpecification<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults> httpSpec,
+			PipeConfig<HTTPRequestSchema> routerToModuleConfig, Pipe<ServerResponseSchema>[][] fromModule,
+			Pipe<ServerResponseSchema>[][] fromModuleSharded,
+			Pipe<HTTPRequestSchema>[][] toModules) {
 		
 		final HTTP1xRouterStageConfig routerConfig = new HTTP1xRouterStageConfig(httpSpec); 
+		if (null!=fromModuleSharded) {
+			routerConfig.setOrderingShards(fromModuleSharded.length/routerCount);
+		}
 		//create the modules
 
 		for(int r=0; r<routerCount; r++) {
@@ -595,10 +771,17 @@ public class NetGraphBuilder {
 			
 			assert(validateNoNulls(outputPipes));
 		    
-		    for(int r=0; r<routerCount; r++) {
-		    	//accumulate all the from pipes for a given router group
-		    	fromModule[r] = PronghornStage.join(fromModule[r], outputPipes[r]);
-		    }
+			if (null!=fromModuleSharded && outputPipes.length==fromModuleSharded.length) {
+				//module already routes each response by channelId & mask so it goes straight to its supervisor
+				for(int i=0; i<outputPipes.length; i++) {
+					fromModuleSharded[i] = PronghornStage.join(fromModuleSharded[i], outputPipes[i]);
+				}
+			} else {
+			    for(int r=0; r<routerCount; r++) {
+			    	//accumulate all the from pipes for a given router group
+			    	fromModule[r] = PronghornStage.join(fromModule[r], outputPipes[r]);
+			    }
+			}
 		    
 		}
 		
@@ -623,7 +806,25 @@ public class NetGraphBuilder {
 	public static Pipe<NetPayloadSchema>[] populateGraphWithUnWrapStages(GraphManager graphManager, ServerCoordinator coordinator,
 			int requestUnwrapUnits, PipeConfig<NetPayloadSchema> handshakeDataConfig, Pipe[] encryptedIncomingGroup,
 			Pipe[] planIncomingGroup, Pipe[] acks) {
+		return populateGraphWithUnWrapStages(graphManager, coordinator, requestUnwrapUnits, handshakeDataConfig, 
+				                             encryptedIncomingGroup, planIncomingGroup, acks, 0, null);
+	}
+	
+	/**
+	 * @param handshakeTaskUnits when more than zero the delegated handshake tasks of all the unwrap stages
+	 *                           are spread over this many SSLHandshakeTaskStage instances
+	 */
+	public static Pipe<NetPayloadSchema>[] populateGraphWithUnWrapStages(GraphManager graphManager, ServerCoordinator coordinator,
+			int requestUnwrapUnits, PipeConfig<NetPayloadSchema> handshakeDataConfig, Pipe[] encryptedIncomingGroup,
+			Pipe[] planIncomingGroup, Pipe[] acks, int handshakeTaskUnits, PipeConfig<SSLHandshakeTaskSchema> handshakeTaskConfig) {
 		Pipe<NetPayloadSchema>[] handshakeIncomingGroup = new Pipe[requestUnwrapUnits];
+		
+		Pipe<SSLHandshakeTaskSchema>[] tasks = null;
+		Pipe<SSLHandshakeTaskSchema>[] done = null;
+		if (handshakeTaskUnits>0) {
+			tasks = Pipe.buildPipes(requestUnwrapUnits, handshakeTaskConfig);
+			done = Pipe.buildPipes(requestUnwrapUnits, handshakeTaskConfig);
+		}
 		            	
 		int c = requestUnwrapUnits;
 		Pipe[][] in = Pipe.splitPipes(c, encryptedIncomingGroup);
@@ -631,11 +832,23 @@ public class NetGraphBuilder {
 		
 		while (--c>=0) {
 			handshakeIncomingGroup[c] = new Pipe(handshakeDataConfig);
-			SSLEngineUnWrapStage unwrapStage = new SSLEngineUnWrapStage(graphManager, coordinator, in[c], out[c], acks[c], handshakeIncomingGroup[c], true, 0);
+			SSLEngineUnWrapStage unwrapStage = new SSLEngineUnWrapStage(graphManager, coordinator, in[c], out[c], acks[c], handshakeIncomingGroup[c], 
+					                                                    null==tasks ? null : tasks[c], null==done ? null : done[c], true, 0);
 			GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "UnWrap", unwrapStage);
 			coordinator.processNota(graphManager, unwrapStage);
 		}
 		
+		if (null!=tasks) {
+			int t = Math.min(handshakeTaskUnits, requestUnwrapUnits);
+			Pipe<SSLHandshakeTaskSchema>[][] taskGroups = Pipe.splitPipes(t, tasks);
+			Pipe<SSLHandshakeTaskSchema>[][] doneGroups = Pipe.splitPipes(t, done);
+			while (--t>=0) {
+				SSLHandshakeTaskStage taskStage = new SSLHandshakeTaskStage(graphManager, coordinator, taskGroups[t], doneGroups[t]);
+				GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "HandshakeTask", taskStage);
+				coordinator.processNota(graphManager, taskStage);
+			}
+		}
+		
 		return handshakeIncomingGroup;
 	}
 
@@ -826,6 +1039,7 @@ public class NetGraphBuilder {
 		
 		final int outputPipeChunk = 1<<9;//512B
 		final int outputPipeGraphChunk = 1<<19;//512K
+		final int outputPipeReportChunk = 1<<14;//16K
 		
 		ModuleConfig config = new ModuleConfig(){
 
@@ -839,9 +1053,30 @@ public class NetGraphBuilder {
 					,"/histogram/pipeFull?pipeId=#{pipeId}"
 					,"/histogram/stageElapsed?stageId=#{stageId}"
 					,"/WS1/example" //server side websocket example
+					,"/bottleneck"
+					,"/responseCache"
 							
 			};
 			
+			//one set of pipe samplers feeds both the monitor and the data view
+			private Pipe<PipeMonitorBatchSchema>[][] samplerBatches;
+			//one monitor feeds both the graph and the bottleneck report
+			private MonitorConsoleStage monitor;
+			
+			private Pipe<PipeMonitorBatchSchema>[] samplerBatches(GraphManager graphManager, int consumer) {
+				if (null == samplerBatches) {
+					samplerBatches = GraphManager.attachSamplersToGraph(graphManager, Long.valueOf(rate), MonitorConsoleStage.DEFAULT_PIPES_PER_SAMPLER, 2);
+				}
+				return samplerBatches[consumer];
+			}
+			
+			private MonitorConsoleStage monitor(GraphManager graphManager) {
+				if (null == monitor) {
+					monitor = MonitorConsoleStage.attach(graphManager, Long.valueOf(rate), samplerBatches(graphManager, 0));
+				}
+				return monitor;
+			}
+			
 			public CharSequence getPathRoute(int a) {
 				return routes[a];
 			}
@@ -859,6 +1094,8 @@ public class NetGraphBuilder {
 				
 				//the file server is stateless therefore we can build 1 instance for every input pipe
 				int instances = inputPipes.length;
+				//one output for each ordering shard so responses go straight to their supervisor
+				int outputCount = instances*((HTTP1xRouterStageConfig)routerConfig).orderingShards();
 
 				Pipe<ServerResponseSchema>[] staticFileOutputs = new Pipe[instances];
 				
@@ -867,7 +1104,7 @@ public class NetGraphBuilder {
 						case 0:
 						activeStage = ResourceModuleStage.newInstance(graphManager, 
 								inputPipes, 
-								staticFileOutputs = Pipe.buildPipes(instances, 
+								staticFileOutputs = Pipe.buildPipes(outputCount, 
 										 ServerResponseSchema.instance.newPipeConfig(2, outputPipeChunk)), 
 								(HTTPSpecification<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults>) ((HTTP1xRouterStageConfig)routerConfig).httpSpec,
 								"telemetry/","index.html");						
@@ -876,33 +1113,25 @@ public class NetGraphBuilder {
 						case 1:
 						activeStage = DotModuleStage.newInstance(graphManager, 
 								inputPipes, 
-								staticFileOutputs = Pipe.buildPipes(instances, 
+								staticFileOutputs = Pipe.buildPipes(outputCount, 
 										           ServerResponseSchema.instance.newPipeConfig(2, outputPipeGraphChunk)), 
-								((HTTP1xRouterStageConfig)routerConfig).httpSpec);
+								((HTTP1xRouterStageConfig)routerConfig).httpSpec,
+								monitor(graphManager));
 						break;
 						case 2:
-						
-					
-							//One module for each file??
-							//TODO: add monitor to this stream
-							//this will be a permanent output stream...
-							//Pipe<?> results = PipeMonitor.addMonitor(getPipe(graphManager, pipeId));
-							//some stage much stream out this pipe?
-							//must convert to JSON and stream.
-							//how large is the JSON blocks must ensure output is that large.
-							
-							//TODO: replace this code with the actual streaming data from pipe..
-							activeStage = new DummyRestStage(graphManager, 
+							//latest samples of every pipe, read from the columnar batches of the pipe samplers
+							activeStage = PipeMonitorModuleStage.newInstance(graphManager, 
 									                          inputPipes, 
-									                          staticFileOutputs = Pipe.buildPipes(instances, 
+									                          staticFileOutputs = Pipe.buildPipes(outputCount, 
 																           ServerResponseSchema.instance.newPipeConfig(2, outputPipeChunk)), 
-									                          ((HTTP1xRouterStageConfig)routerConfig).httpSpec);
+									                          ((HTTP1xRouterStageConfig)routerConfig).httpSpec,
+									                          samplerBatches(graphManager, 1));
 							break;
 						case 3:
 						//TODO: replace this code with the actual pipe full histogram
 							activeStage = new DummyRestStage(graphManager, 
 			                          inputPipes, 
-			                          staticFileOutputs = Pipe.buildPipes(instances, 
+			                          staticFileOutputs = Pipe.buildPipes(outputCount, 
 									           ServerResponseSchema.instance.newPipeConfig(2, outputPipeChunk)), 
 			                          ((HTTP1xRouterStageConfig)routerConfig).httpSpec);
 							break;
@@ -910,7 +1139,7 @@ public class NetGraphBuilder {
 						//TODO: replace this code with the actual stage elapsed histogram
 							activeStage = new DummyRestStage(graphManager, 
 			                          inputPipes, 
-			                          staticFileOutputs = Pipe.buildPipes(instances, 
+			                          staticFileOutputs = Pipe.buildPipes(outputCount, 
 									           ServerResponseSchema.instance.newPipeConfig(2, outputPipeChunk)), 
 			                          ((HTTP1xRouterStageConfig)routerConfig).httpSpec);
 							break;
@@ -919,11 +1148,28 @@ public class NetGraphBuilder {
 							
 							activeStage = new UpgradeToWebSocketStage(graphManager, 
 			                          inputPipes, 
-			                          staticFileOutputs = Pipe.buildPipes(instances, 
+			                          staticFileOutputs = Pipe.buildPipes(outputCount, 
 									           ServerResponseSchema.instance.newPipeConfig(2, outputPipeChunk)), 
 			                          ((HTTP1xRouterStageConfig)routerConfig).httpSpec);
 							
 							break;
+						case 6:
+							//ranked stages limiting throughput, the same critical path is drawn on graph.dot
+							activeStage = BottleneckModuleStage.newInstance(graphManager, 
+			                          inputPipes, 
+			                          staticFileOutputs = Pipe.buildPipes(outputCount, 
+									           ServerResponseSchema.instance.newPipeConfig(2, outputPipeReportChunk)), 
+			                          ((HTTP1xRouterStageConfig)routerConfig).httpSpec,
+			                          monitor(graphManager));
+							break;
+						case 7:
+							//hits, misses and evictions of every ResponseCache in the graph
+							activeStage = ResponseCacheModuleStage.newInstance(graphManager, 
+			                          inputPipes, 
+			                          staticFileOutputs = Pipe.buildPipes(outputCount, 
+									           ServerResponseSchema.instance.newPipeConfig(2, outputPipeChunk)), 
+			                          ((HTTP1xRouterStageConfig)routerConfig).httpSpec);
+							break;
 							default:
 														
 							throw new RuntimeException("unknown idx "+a);
@@ -958,6 +1204,65 @@ public class NetGraphBuilder {
 		return config;
 	}
 
+	/**
+	 * Wraps each module with a ResponseCacheStage so repeated GET requests are answered from the cache
+	 * without waking the module. The counters are served by the telemetry server at /responseCache.
+	 * 
+	 * @param modules modules to be cached
+	 * @param cache shared by all the cached modules
+	 * @param moduleInstances modules to cache, all of them when none are given
+	 */
+	public static ModuleConfig cacheResponses(final ModuleConfig modules, final ResponseCache cache, final int ... moduleInstances) {
+		return new ModuleConfig() {
+
+			@Override
+			public int moduleCount() {
+				return modules.moduleCount();
+			}
+
+			@Override
+			public Pipe<ServerResponseSchema>[] registerModule(int moduleInstance,
+					GraphManager graphManager,
+					RouterStageConfig routerConfig,
+					Pipe<HTTPRequestSchema>[] inputPipes) {
+				
+				if (!isCached(moduleInstance)) {
+					return modules.registerModule(moduleInstance, graphManager, routerConfig, inputPipes);
+				}
+				
+				Pipe<HTTPRequestSchema>[] toModule = new Pipe[inputPipes.length];
+				int i = inputPipes.length;
+				while (--i>=0) {
+					toModule[i] = new Pipe<HTTPRequestSchema>(inputPipes[i].config());
+				}
+				
+				//may be one for each input and ordering shard, the cache keeps the same layout
+				Pipe<ServerResponseSchema>[] fromModule = modules.registerModule(moduleInstance, graphManager, routerConfig, toModule);
+				Pipe<ServerResponseSchema>[] toSupervisor = new Pipe[fromModule.length];
+				i = fromModule.length;
+				while (--i>=0) {
+					toSupervisor[i] = new Pipe<ServerResponseSchema>(fromModule[i].config());
+				}
+				
+				new ResponseCacheStage(graphManager, cache, inputPipes, toModule, fromModule, toSupervisor);
+				return toSupervisor;
+			}
+
+			private boolean isCached(int moduleInstance) {
+				if (0 == moduleInstances.length) {
+					return true;
+				}
+				int i = moduleInstances.length;
+				while (--i>=0) {
+					if (moduleInstance == moduleInstances[i]) {
+						return true;
+					}
+				}
+				return false;
+			}
+		};
+	}
+
 	/**
 	 * Build HTTP client subgraph.  This is the easiest method to set up the client calls since many default values are already set.
 	 * 
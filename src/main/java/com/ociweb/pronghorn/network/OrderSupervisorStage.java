@@ -5,6 +5,7 @@ import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ociweb.pronghorn.network.http.HPack;
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
 import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
 import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
@@ -35,6 +36,11 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 
     private final ServerCoordinator coordinator;
     
+    //HTTP/2 responses are framed here, one response at a time per input pipe
+    private boolean[]        h2HeadSent;
+    private byte[]           h2Block;
+    private byte[]           h2Frames;
+    
     public final static int UPGRADE_TARGET_PIPE_MASK     = (1<<21)-1;
  
     public final static int UPGRADE_CONNECTION_SHIFT     = 31;    
@@ -50,6 +56,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
     public final static int INCOMPLETE_RESPONSE_MASK     = 1<<INCOMPLETE_RESPONSE_SHIFT;
     
     public final int poolMod;
+    private final int shardBits; //low channel bits which are the same for every channel sent to this instance
     public final int maxOuputSize;
     public final int plainSize = Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_PLAIN_210);
     private int shutdownCount;
@@ -74,8 +81,17 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
     }
     
     public OrderSupervisorStage(GraphManager graphManager, Pipe<ServerResponseSchema>[] inputPipes, Pipe<NetPayloadSchema>[] outgoingPipes, ServerCoordinator coordinator) {
+    	this(graphManager, inputPipes, outgoingPipes, coordinator, 0);
+    }
+    
+    /**
+     * @param shardBits when this instance only receives channels with the same low shardBits, see ServerCoordinator.setOrderingShards,
+     *                  those bits are dropped so the per channel state is smaller and all the outgoing pipes are used
+     */
+    public OrderSupervisorStage(GraphManager graphManager, Pipe<ServerResponseSchema>[] inputPipes, Pipe<NetPayloadSchema>[] outgoingPipes, ServerCoordinator coordinator, int shardBits) {
         super(graphManager, inputPipes, outgoingPipes);      
         this.dataToSend = inputPipes;
+        this.shardBits = shardBits;
         assert(outgoingPipes.length>0);
         
         assert(dataToSend.length<=Short.MAX_VALUE) : "can not support more pipes at this time. This code will need to be modified";
@@ -98,7 +114,8 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
         			+ " than all input<ServerResponseSchema> pipes. out "+minVarLength(outgoingPipes)+" in "+maxVarLength(inputPipes));
         }
         
-        this.maxOuputSize = Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_PLAIN_210) +
+        this.maxOuputSize = Math.max(Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_PLAIN_210),
+        		                     Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_FILEREGION_212)) +
         								Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_UPGRADE_307) +            
         								Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_DISCONNECT_203);
         
@@ -109,7 +126,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 
 	@Override
     public void startup() {                
-		int totalChannels = coordinator.channelBitsSize; //WARNING: this can be large eg 4 million
+		int totalChannels = coordinator.channelBitsSize>>shardBits; //WARNING: this can be large eg 4 million
         expectedSquenceNos = new int[totalChannels];//room for 1 per active channel connection
         
         expectedSquenceNosPipeIdx = new short[totalChannels];
@@ -118,6 +135,12 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
         expectedSquenceNosChannelId = new long[totalChannels];
         Arrays.fill(expectedSquenceNosChannelId, (long)-1);
 
+        if (coordinator.isHTTP2()) {
+        	int maxIn = maxVarLength(dataToSend);
+        	h2HeadSent = new boolean[dataToSend.length];
+        	h2Block = new byte[(2*maxIn)+64];
+        	h2Frames = new byte[(2*maxIn)+1024];
+        }
     }
 	
 	@Override
@@ -201,7 +224,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 		    	&& ServerResponseSchema.MSG_SKIP_300!=peekMsgId 
 		    	&& (channelId=Pipe.peekLong(sourcePipe, 1))>=0) {
 		    			  
-		        myPipeIdx = (int)(channelId % poolMod);
+		        myPipeIdx = (int)((channelId>>shardBits) % poolMod);
 		        outPipe = outgoingPipes[myPipeIdx];
 		        
 		        //logger.trace("sending new content out for channelId {} ", channelId);
@@ -215,12 +238,21 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 		    		break;
 		    	}		    	
 		    	
+		    	HTTP2Connection h2 = coordinator.http2Connection(channelId);
+		    	if (null != h2) {
+		    		//streams are independent so these are not held back by the connection sequence
+		    		if (!publishHTTP2(sourcePipe, pipeIdx, outPipe, channelId, h2)) {
+		    			break;
+		    		}
+		    		continue;
+		    	}
+		    	
 		        sequenceNo = Pipe.peekInt(sourcePipe,  3);	                   
 		    
 		        //read the next non-blocked pipe, sequenceNo is never reset to zero
 		        //every number is used even if there is an exception upon write.
 		      
-		        int idx = (int)(channelId & coordinator.channelBitsMask);
+		        int idx = (int)(channelId & coordinator.channelBitsMask)>>shardBits;
 		        
 		        /////////////////////
 		        //clear when we discover a new connection
@@ -252,6 +284,10 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 		        		if (expectedSquenceNosPipeIdx[idx] !=(short)pipeIdx) {
 		        			//drop the data
 		        			//logger.info("skipped older response B Pipe:{} vs Pipe:{} ",expectedSquenceNosPipeIdx[idx],pipeIdx);
+		        			if (Pipe.peekMsg(sourcePipe, ServerResponseSchema.MSG_TOCHANNELFILE_101)) {
+		        				//the file region was pinned for this message
+		        				coordinator.fileRegions().release(Pipe.peekInt(sourcePipe, 4));
+		        			}
 		        			Pipe.skipNextFragment(sourcePipe);
 				        	continue;
 		        		}
@@ -350,6 +386,10 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 		    	
 		    	 publishDataBlock(input, output, myPipeIdx, sequenceNo, channelId2);
 		    	
+		    } else if (ServerResponseSchema.MSG_TOCHANNELFILE_101 == activeMessageId) {
+		    	
+		    	 publishFileRegion(input, output, sequenceNo, channelId2);
+		    	
 		    } else {
 		    	
 		    	throw new UnsupportedOperationException("not yet implemented "+activeMessageId);
@@ -451,6 +491,188 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 
 	}
 
+
+	/**
+	 * Frames one HTTP/1.x response fragment written by the modules for its HTTP/2 stream.
+	 * The stream id is the sequence, the head becomes a HEADERS frame and the rest DATA frames
+	 * which are only sent once the client windows have room for them.
+	 * 
+	 * @return false if this pipe must wait for room or for a window update
+	 */
+	private boolean publishHTTP2(final Pipe<ServerResponseSchema> input, int pipeIdx,
+			                     final Pipe<NetPayloadSchema> output, long channelId, HTTP2Connection con) {
+		
+		final int streamId = Pipe.peekInt(input, 3);
+		final int len = Pipe.peekInt(input, 5);
+		final int requestContext = Pipe.peekInt(input, 6);
+		final boolean isFrames = 0 != (ServerCoordinator.HTTP2_FRAMES_MASK & requestContext);
+		final boolean isEnd = 0 != (END_RESPONSE_MASK & requestContext);
+		
+		//head encoding and frame headers never grow the fragment to more than twice its size
+		int plainCount = 1+(((2*len)+64)/output.maxVarLen);
+		if (!Pipe.hasRoomForWrite(output, maxOuputSize+(plainCount*plainSize))) {
+			return false;
+		}
+		
+		if (!isFrames) {
+			//the head is also reserved since its length is not known until the fragment is read
+			int state = con.reserve(streamId, len);
+			if (HTTP2Connection.WAIT == state) {
+				return false;
+			}
+			if (HTTP2Connection.DROPPED == state) {
+				//client reset this stream
+				Pipe.skipNextFragment(input);
+				if (isEnd) {
+					h2HeadSent[pipeIdx] = false;
+					coordinator.responseFinished(channelId);
+				}
+				return true;
+			}
+		}
+		
+		int msgIdx = Pipe.takeMsgIdx(input);
+		assert(ServerResponseSchema.MSG_TOCHANNEL_100 == msgIdx);
+		long conId = Pipe.takeLong(input);
+		assert(channelId == conId);
+		Pipe.takeInt(input); //sequence is the stream id
+		int meta = Pipe.takeRingByteMetaData(input);
+		int len2 = Pipe.takeRingByteLen(input);
+		assert(len == len2);
+		Pipe.takeInt(input); //context was peeked above
+		final int blobMask = Pipe.blobMask(input);
+		final byte[] blob = Pipe.byteBackingArray(meta, input);
+		final int bytePosition = Pipe.bytePosition(meta, input, len);
+		
+		if (isFrames) {
+			//control frames from the router are ready to send
+			writePlain(output, channelId, blob, bytePosition, len, blobMask);
+		} else {
+			int p = 0;
+			int dataPos = bytePosition;
+			int dataLen = len;
+			boolean streamEnded = false;
+			final int maxFrame = con.peerMaxFrameSize();
+			
+			if (!h2HeadSent[pipeIdx]) {
+				int headLen = HPack.headLength(blob, bytePosition, len, blobMask);
+				if (headLen < 0) {
+					//modules write the complete head in the first fragment
+					logger.warn("response head for stream {} is not in its first fragment", streamId);
+					headLen = len;
+					p = HTTP2Connection.writeFrameHeader(h2Frames, p, 4, HTTP2Connection.TYPE_RST_STREAM, 0, streamId);
+					p = HTTP2Connection.writeInt(h2Frames, p, HTTP2Connection.INTERNAL_ERROR);
+					con.closeStream(streamId);
+					streamEnded = true;
+				} else {
+					streamEnded = isEnd && (headLen==len);
+					p = writeHeaderFrames(streamId, 
+							              HPack.encodeHTTP1Head(blob, bytePosition, headLen, blobMask, h2Block, 0),
+							              streamEnded, maxFrame, p);
+				}
+				con.release(streamId, headLen);
+				dataPos += headLen;
+				dataLen -= headLen;
+				h2HeadSent[pipeIdx] = true;
+			}
+			
+			if (!streamEnded && (dataLen>0 || isEnd)) {
+				do {
+					int frameLen = Math.min(dataLen, maxFrame);
+					dataLen -= frameLen;
+					int flags = (isEnd && 0==dataLen) ? HTTP2Connection.FLAG_END_STREAM : 0;
+					p = HTTP2Connection.writeFrameHeader(h2Frames, p, frameLen, HTTP2Connection.TYPE_DATA, flags, streamId);
+					for(int i = 0; i<frameLen; i++) {
+						h2Frames[p++] = blob[blobMask & dataPos++];
+					}
+				} while (dataLen>0);
+			}
+			
+			int offset = 0;
+			while (offset<p) {
+				int chunk = Math.min(p-offset, output.maxVarLen);
+				writePlain(output, channelId, h2Frames, offset, chunk, Integer.MAX_VALUE);
+				offset += chunk;
+			}
+			
+			if (isEnd) {
+				con.closeStream(streamId);
+				h2HeadSent[pipeIdx] = false;
+				coordinator.responseFinished(channelId);
+			}
+		}
+		
+		Pipe.confirmLowLevelRead(input, SIZE_OF_TO_CHNL);	 
+		Pipe.releaseReadLock(input);
+		
+		//only the router closes HTTP/2 connections, a single stream never does
+		if (isFrames && 0 != (CLOSE_CONNECTION_MASK & requestContext)) {
+			int disSize = Pipe.addMsgIdx(output, NetPayloadSchema.MSG_DISCONNECT_203);
+			Pipe.addLongValue(channelId, output);
+			Pipe.confirmLowLevelWrite(output, disSize);
+			Pipe.publishWrites(output);
+		}
+		return true;
+	}
+
+	private int writeHeaderFrames(int streamId, int blockLen, boolean endStream, int maxFrame, int p) {
+		int offset = 0;
+		int type = HTTP2Connection.TYPE_HEADERS;
+		int flags = endStream ? HTTP2Connection.FLAG_END_STREAM : 0;
+		do {
+			int frameLen = Math.min(blockLen-offset, maxFrame);
+			if (offset+frameLen == blockLen) {
+				flags |= HTTP2Connection.FLAG_END_HEADERS;
+			}
+			p = HTTP2Connection.writeFrameHeader(h2Frames, p, frameLen, type, flags, streamId);
+			System.arraycopy(h2Block, offset, h2Frames, p, frameLen);
+			p += frameLen;
+			offset += frameLen;
+			type = HTTP2Connection.TYPE_CONTINUATION;
+			flags = 0;
+		} while (offset<blockLen);
+		return p;
+	}
+
+	private static void writePlain(Pipe<NetPayloadSchema> output, long channelId, byte[] source, int pos, int len, int mask) {
+		DataOutputBlobWriter<NetPayloadSchema> outputStream = Pipe.outputStream(output);
+		DataOutputBlobWriter.openField(outputStream);
+		DataOutputBlobWriter.write(outputStream, source, pos, len, mask);
+		
+		int size = Pipe.addMsgIdx(output, NetPayloadSchema.MSG_PLAIN_210);
+		Pipe.addLongValue(channelId, output);
+		Pipe.addLongValue(0, output);
+		Pipe.addLongValue(Pipe.getWorkingTailPosition(output), output);
+		DataOutputBlobWriter.closeLowLevelField(outputStream);
+		Pipe.confirmLowLevelWrite(output, size);
+		Pipe.publishWrites(output);
+	}
+
+	private void publishFileRegion(final Pipe<ServerResponseSchema> input, Pipe<NetPayloadSchema> output, 
+								   int sequenceNo, long channelId) {
+		
+		 int expSeq = Pipe.takeInt(input);
+		 assert(sequenceNo == expSeq);
+		 int fileId = Pipe.takeInt(input);
+		 long position = Pipe.takeLong(input);
+		 long length = Pipe.takeLong(input);
+		 int requestContext = Pipe.takeInt(input);
+		 Pipe.confirmLowLevelRead(input, Pipe.sizeOf(ServerResponseSchema.instance, ServerResponseSchema.MSG_TOCHANNELFILE_101));	 
+		 Pipe.releaseReadLock(input);
+		 
+		 //the head of this response was sent before as plain data, the body goes from the file to the socket
+		 int size = Pipe.addMsgIdx(output, NetPayloadSchema.MSG_FILEREGION_212);
+		 Pipe.addLongValue(channelId, output);
+		 Pipe.addLongValue(0, output);
+		 Pipe.addIntValue(fileId, output);
+		 Pipe.addLongValue(position, output);
+		 Pipe.addLongValue(length, output);
+		 Pipe.confirmLowLevelWrite(output, size);
+		 Pipe.publishWrites(output);
+		 
+		 finishResponse(output, channelId, requestContext);
+	}
+
 	private void writeToNextStage(Pipe<NetPayloadSchema> output, 
 			final long channelId, int len, int requestContext,
 			int blobMask, byte[] blob, int bytePosition, long time) {
@@ -497,13 +719,19 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 		 Pipe.confirmLowLevelWrite(output, plainSize);
 		 Pipe.publishWrites(output);
 		 
+		 finishResponse(output, channelId, requestContext);
+	}
+
+	private void finishResponse(Pipe<NetPayloadSchema> output, final long channelId, int requestContext) {
+		
 		 if (0 != (END_RESPONSE_MASK & requestContext)) {
 		    
 			//we have finished all the chunks for this request so the sequence number will now go up by one	
-		 	int idx = (int)(channelId & coordinator.channelBitsMask);
+		 	int idx = (int)(channelId & coordinator.channelBitsMask)>>shardBits;
 		 	//logger.info("detected end and incremented sequence number {}",expectedSquenceNos[idx]);
 			expectedSquenceNos[idx]++;
 		 	expectedSquenceNosPipeIdx[idx] = (short)-1;//clear the assumed pipe
+		 	coordinator.responseFinished(channelId);
 		 	
 		 	//logger.info("increment expected for chnl {}  to value {} len {}",channelId, expectedSquenceNos[(int)(channelId & coordinator.channelBitsMask)], len);
 		 	
@@ -23,6 +23,9 @@ public class SSLConnection {
 	private int sequenceNo;
 
 	protected boolean isDisconnecting = false;
+	boolean isSessionRecorded = false; //handshake result has been counted by the session cache
+	final long handshakeStart; //a session created before this was resumed by the handshake
+	volatile boolean isHandshakeTaskQueued = false; //delegated task sent to a SSLHandshakeTaskStage, other stages must leave it to that stage
 	protected static boolean isShuttingDown =  false;
 
 		
@@ -30,6 +33,7 @@ public class SSLConnection {
 		this.engine = engine;
 		this.socketChannel = socketChannel;
 		this.id = id;
+		this.handshakeStart = System.currentTimeMillis();
 	}
 	
 	public SSLEngine getEngine() {
@@ -16,4 +16,21 @@ public abstract class SSLConnectionHolder {
 	}
 
 	public abstract SSLConnection connectionForSessionId(long hostId);
+	
+	/**
+	 * @return resumption counters for the TLS sessions of this holder or null if TLS is not used
+	 */
+	public TLSSessionCache sessionCache() {
+		return null==engineFactory ? null : engineFactory.sessions();
+	}
+	
+	/**
+	 * Replaces the default session cache limits, must be called before any connection is made.
+	 */
+	public void setSessionCache(TLSSessionCache cache) {
+		if (null==engineFactory) {
+			throw new UnsupportedOperationException("Session cache is only used with TLS.");
+		}
+		engineFactory.sessions(cache);
+	}
 }
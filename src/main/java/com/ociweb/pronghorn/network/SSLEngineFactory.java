@@ -5,8 +5,9 @@ import java.io.IOException;
 import java.io.InputStream;
 
 class SSLEngineFactory {
-    private TLSService privateService;
+    private volatile TLSService privateService; //built once, acceptors may start in parallel
 	private final TLSCertificates certificates;
+	private TLSSessionCache sessions = new TLSSessionCache();
 
     SSLEngineFactory(TLSCertificates certificates) {
         this.certificates = certificates;
@@ -20,6 +21,17 @@ class SSLEngineFactory {
         return getService().createSSLEngineServer();
     }
 
+    TLSSessionCache sessions() {
+    	return sessions;
+    }
+    
+    void sessions(TLSSessionCache cache) {
+    	if (null!=privateService) {
+    		throw new UnsupportedOperationException("The session cache must be set before the TLS service is started.");
+    	}
+    	sessions = cache;
+    }
+
     int maxEncryptedContentLength() {
         return getService().maxEncryptedContentLength();
     }
@@ -30,6 +42,11 @@ class SSLEngineFactory {
     }
     
     private TLSService getService() {
+        TLSService result = privateService;
+        return null!=result ? result : buildService();
+    }
+
+    private synchronized TLSService buildService() {
         if (privateService==null) {
             InputStream keyInputStream = null;
             InputStream trustInputStream = null;
@@ -52,6 +69,7 @@ class SSLEngineFactory {
                 String keyPassword = certificates.keyPassword();
                 String keyStorePassword = certificates.keyStorePassword();
 
+                sessions.enableSessionTickets();
                 privateService = TLSService.make(keyInputStream, keyStorePassword, 
                 		                         trustInputStream, keyPassword, 
                 		                         certificates.trustAllCerts());
@@ -7,6 +7,7 @@ import org.slf4j.LoggerFactory;
 
 import com.ociweb.pronghorn.network.schema.ReleaseSchema;
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.SSLHandshakeTaskSchema;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
@@ -18,6 +19,8 @@ public class SSLEngineUnWrapStage extends PronghornStage {
 	private final Pipe<NetPayloadSchema>[] outgoingPipeLines;
 	private final Pipe<ReleaseSchema> handshakeRelease; //to allow for the release of the pipe when we do not need it.
 	private final Pipe<NetPayloadSchema>  handshakePipe;
+	private final Pipe<SSLHandshakeTaskSchema> handshakeTasks; //null when delegated tasks are run here
+	private final Pipe<SSLHandshakeTaskSchema> handshakeDone;
 	private ByteBuffer[]                          rollings;
 	private ByteBuffer[]                          workspace;
 	private Logger logger = LoggerFactory.getLogger(SSLEngineUnWrapStage.class);
@@ -36,8 +39,30 @@ public class SSLEngineUnWrapStage extends PronghornStage {
 			                       Pipe<NetPayloadSchema>[] outgoingPipeLines,
 			                       Pipe<ReleaseSchema> relesePipe,
 			                       Pipe<NetPayloadSchema> handshakePipe, boolean isServer, int groupId) {
-		super(graphManager, encryptedContent, join(outgoingPipeLines, handshakePipe, relesePipe));
+		this(graphManager, ccm, encryptedContent, outgoingPipeLines, relesePipe, handshakePipe, null, null, isServer, groupId);
+	}
+	
+	/**
+	 * @param handshakeTasks connections which need delegated handshake tasks are sent to a SSLHandshakeTaskStage here
+	 * @param handshakeDone the same connections come back here once the task has been run
+	 */
+	public SSLEngineUnWrapStage(GraphManager graphManager, SSLConnectionHolder ccm, 
+					            Pipe<NetPayloadSchema>[] encryptedContent, 
+					            Pipe<NetPayloadSchema>[] outgoingPipeLines,
+					            Pipe<ReleaseSchema> relesePipe,
+					            Pipe<NetPayloadSchema> handshakePipe,
+					            Pipe<SSLHandshakeTaskSchema> handshakeTasks,
+					            Pipe<SSLHandshakeTaskSchema> handshakeDone,
+					            boolean isServer, int groupId) {
+		super(graphManager, null==handshakeDone ? encryptedContent : join(encryptedContent, handshakeDone),
+				            null==handshakeTasks ? join(outgoingPipeLines, handshakePipe, relesePipe) 
+				            		             : join(outgoingPipeLines, handshakePipe, relesePipe, handshakeTasks));
 		this.ccm = ccm;
+		this.handshakeTasks = handshakeTasks;
+		this.handshakeDone = handshakeDone;
+		if ((null==handshakeTasks) != (null==handshakeDone)) {
+			throw new UnsupportedOperationException("Handshake tasks and done pipes must be used together");
+		}
 		this.encryptedContent = encryptedContent;
 		this.outgoingPipeLines = outgoingPipeLines;
 		this.handshakeRelease = relesePipe;
@@ -109,6 +134,10 @@ public class SSLEngineUnWrapStage extends PronghornStage {
 		
 		do {
 			didWork=0;
+			
+			if (null!=handshakeDone) {
+				didWork |= continueFinishedHandshakes();
+			}
 
 			int m = 100;//maximum iterations before taking a short break.
 			
@@ -128,7 +157,7 @@ public class SSLEngineUnWrapStage extends PronghornStage {
 //				}
 							
 				
-				int temp = SSLUtil.engineUnWrap(ccm, source, target, rollings[idx], workspace, handshakePipe, handshakeRelease, secureBuffer, groupId, isServer);			
+				int temp = SSLUtil.engineUnWrap(ccm, source, target, rollings[idx], workspace, handshakePipe, handshakeRelease, secureBuffer, groupId, isServer, handshakeTasks, idx);			
 				if (temp<0) {
 					if (--shutdownCount == 0) {
 						requestShutdown();
@@ -157,9 +186,40 @@ public class SSLEngineUnWrapStage extends PronghornStage {
 	}
 	
 
+	private static final int SIZE_OF_TASK = Pipe.sizeOf(SSLHandshakeTaskSchema.instance, SSLHandshakeTaskSchema.MSG_TASK_100);
+	
+	private int continueFinishedHandshakes() {
+		int didWork = 0;
+		//room is needed to continue the handshake and to release the pipe if it then waits on the other side
+		while (Pipe.hasContentToRead(handshakeDone) 
+			   && Pipe.hasRoomForWrite(handshakePipe) 
+			   && Pipe.hasRoomForWrite(handshakeRelease)) {
+			
+			int msgIdx = Pipe.takeMsgIdx(handshakeDone);
+			if (msgIdx<0) {
+				Pipe.confirmLowLevelRead(handshakeDone, Pipe.EOF_SIZE);
+				Pipe.releaseReadLock(handshakeDone);
+				break;
+			}
+			long connectionId = Pipe.takeLong(handshakeDone);
+			int pipeIdx = Pipe.takeInt(handshakeDone);
+			Pipe.confirmLowLevelRead(handshakeDone, SIZE_OF_TASK);
+			Pipe.releaseReadLock(handshakeDone);
+			
+			SSLUtil.continueHandshakeAfterTask(ccm, connectionId, encryptedContent[pipeIdx], rollings[pipeIdx], workspace, 
+					                           handshakePipe, handshakeRelease, secureBuffer, isServer, handshakeTasks, pipeIdx);
+			didWork = 1;
+		}
+		return didWork;
+	}
+
 	@Override
 	public void shutdown() {
 		
+		if (null!=handshakeTasks) {
+			Pipe.publishEOF(handshakeTasks);
+		}
+		
 		if (null==rollings) {
 			//never started up so just exit
 			return;
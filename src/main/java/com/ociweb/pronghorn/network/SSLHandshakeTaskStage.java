@@ -0,0 +1,111 @@
+package com.ociweb.pronghorn.network;
+
+import javax.net.ssl.SSLEngine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.network.schema.SSLHandshakeTaskSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Runs the delegated tasks of TLS handshakes, the key exchange and certificate math, so the
+ * SSLEngineUnWrapStage can keep decrypting established connections while new ones are accepted.
+ *
+ * Each unwrap stage sends the connections which need a task on its own tasks pipe and gets them
+ * back on the matching done pipe when the engine is ready to continue the handshake.
+ */
+public class SSLHandshakeTaskStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(SSLHandshakeTaskStage.class);
+	private static final int SIZE_OF_TASK = Pipe.sizeOf(SSLHandshakeTaskSchema.instance, SSLHandshakeTaskSchema.MSG_TASK_100);
+
+	private final SSLConnectionHolder ccm;
+	private final Pipe<SSLHandshakeTaskSchema>[] tasks;
+	private final Pipe<SSLHandshakeTaskSchema>[] done;
+	private int shutdownCount;
+	private long taskCount;
+
+	/**
+	 * @param tasks connections waiting on a delegated task, one pipe from each unwrap stage
+	 * @param done same connections sent back to the unwrap stage, matching the tasks by index
+	 */
+	public SSLHandshakeTaskStage(GraphManager graphManager, SSLConnectionHolder ccm,
+			                     Pipe<SSLHandshakeTaskSchema>[] tasks, Pipe<SSLHandshakeTaskSchema>[] done) {
+		super(graphManager, tasks, done);
+		this.ccm = ccm;
+		this.tasks = tasks;
+		this.done = done;
+		this.shutdownCount = tasks.length;
+
+		if (tasks.length != done.length) {
+			throw new UnsupportedOperationException("Each tasks pipe must have a done pipe");
+		}
+
+		GraphManager.addNota(graphManager, GraphManager.HEAVY_COMPUTE, GraphManager.HEAVY_COMPUTE, this);
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "bisque2", this);
+	}
+
+	@Override
+	public void run() {
+
+		int i = tasks.length;
+		while (--i >= 0) {
+			final Pipe<SSLHandshakeTaskSchema> source = tasks[i];
+			final Pipe<SSLHandshakeTaskSchema> target = done[i];
+
+			while (Pipe.hasContentToRead(source) && Pipe.hasRoomForWrite(target)) {
+
+				int msgIdx = Pipe.takeMsgIdx(source);
+				if (msgIdx<0) {
+					Pipe.confirmLowLevelRead(source, Pipe.EOF_SIZE);
+					Pipe.releaseReadLock(source);
+					Pipe.publishEOF(target);
+					if (--shutdownCount<=0) {
+						requestShutdown();
+						return;
+					}
+					break;
+				}
+
+				long connectionId = Pipe.takeLong(source);
+				int pipeIdx = Pipe.takeInt(source);
+				Pipe.confirmLowLevelRead(source, SIZE_OF_TASK);
+				Pipe.releaseReadLock(source);
+
+				SSLConnection cc = ccm.connectionForSessionId(connectionId);
+				if (null!=cc && cc.isValid) {
+					runDelegatedTasks(cc.getEngine());
+				}
+
+				//always returned so the unwrap stage stops waiting on this connection
+				int size = Pipe.addMsgIdx(target, SSLHandshakeTaskSchema.MSG_TASK_100);
+				Pipe.addLongValue(connectionId, target);
+				Pipe.addIntValue(pipeIdx, target);
+				Pipe.confirmLowLevelWrite(target, size);
+				Pipe.publishWrites(target);
+			}
+		}
+	}
+
+	private void runDelegatedTasks(SSLEngine engine) {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				//the engine reports the failure on the next unwrap
+				logger.warn("handshake task failed", t);
+			}
+			taskCount++;
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		logger.trace("ran {} handshake tasks", taskCount);
+	}
+
+}
@@ -14,6 +14,7 @@ import org.slf4j.LoggerFactory;
 
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
 import com.ociweb.pronghorn.network.schema.ReleaseSchema;
+import com.ociweb.pronghorn.network.schema.SSLHandshakeTaskSchema;
 import com.ociweb.pronghorn.pipe.Pipe;
 
 public class SSLUtil {
@@ -27,6 +28,7 @@ public class SSLUtil {
 
     public static final long HANDSHAKE_TIMEOUT = 180_000_000_000L; // 120 sec, this is a very large timeout for handshake to complete.
     public static final long HANDSHAKE_POS = -123;
+    public static final int HANDSHAKE_TASK_PENDING = -2; //connection waits for its delegated task, nothing more to do now
     
 	
 	public static boolean handShakeWrapIfNeeded(SSLConnection cc, Pipe<NetPayloadSchema> target, ByteBuffer buffer, boolean isServer, long arrivalTime) {
@@ -52,6 +54,9 @@ public class SSLUtil {
 			 }
 			 
 			 if (HandshakeStatus.NEED_TASK == handshakeStatus) {
+				 if (cc.isHandshakeTaskQueued) {
+					 return true;//done by the SSLHandshakeTaskStage
+				 }
 	             Runnable task;
 	             while ((task = cc.getEngine().getDelegatedTask()) != null) {
 	                	task.run(); //NOTE: could be run in parallel but we only have 1 thread now
@@ -108,6 +113,16 @@ public class SSLUtil {
 	    
 	}
 
+	/**
+	 * Counts each connection once in the session cache after its handshake completes.
+	 */
+	static void recordSessionIfDone(SSLConnectionHolder ccm, SSLConnection cc, boolean isServer) {
+		if (!cc.isSessionRecorded && HandshakeStatus.NOT_HANDSHAKING == cc.getEngine().getHandshakeStatus()) {
+			cc.isSessionRecorded = true;
+			ccm.engineFactory.sessions().recordHandshake(cc.getEngine().getSession(), isServer, cc.handshakeStart);
+		}
+	}
+
 	static void manageException(SSLException sslex, SSLConnection cc, boolean isServer) {
 		try {
 			cc.close();
@@ -306,9 +321,11 @@ public class SSLUtil {
 	 * Consume rolling which must be positioned for reading from position up to limit.
 	 * Resturns rolling setup for appending new data so limit is at capacity and position is where we left off.		
 	 */
-	private static SSLEngineResult unwrapRollingHandshake(ByteBuffer rolling, int maxEncryptedContentLength, final ByteBuffer[] targetBuffer, SSLEngineResult result, SSLConnection cc) throws SSLException {
+	private static SSLEngineResult unwrapRollingHandshake(ByteBuffer rolling, int maxEncryptedContentLength, final ByteBuffer[] targetBuffer, SSLEngineResult result, SSLConnection cc,
+			                                              boolean runTasks) throws SSLException {
+		//when the tasks are not run here this returns on NEED_TASK so the caller can hand them to a SSLHandshakeTaskStage
 		while (cc.getEngine().getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP ||
-			   cc.getEngine().getHandshakeStatus() == HandshakeStatus.NEED_TASK) {				
+			   (runTasks && cc.getEngine().getHandshakeStatus() == HandshakeStatus.NEED_TASK)) {				
 															
 			if (cc.getEngine().getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
 				Runnable task;
@@ -411,6 +428,15 @@ public class SSLUtil {
 	
 
 	public static int handShakeUnWrapIfNeeded(int maxEncryptedContentLength, final Pipe<NetPayloadSchema> source, ByteBuffer rolling, final ByteBuffer[] workspace, Pipe<NetPayloadSchema> handshakePipe, ByteBuffer secureBuffer, boolean isServer, long arrivalTime, final SSLConnection cc) {
+		return handShakeUnWrapIfNeeded(maxEncryptedContentLength, source, rolling, workspace, handshakePipe, secureBuffer, isServer, arrivalTime, cc, null, -1);
+	}
+	
+	/**
+	 * @param taskPipe when not null delegated tasks are sent here to be run by a SSLHandshakeTaskStage
+	 * @param pipeIdx index of source in the unwrap stage, returned with the finished task
+	 */
+	public static int handShakeUnWrapIfNeeded(int maxEncryptedContentLength, final Pipe<NetPayloadSchema> source, ByteBuffer rolling, final ByteBuffer[] workspace, Pipe<NetPayloadSchema> handshakePipe, ByteBuffer secureBuffer, boolean isServer, long arrivalTime, final SSLConnection cc,
+			                                  Pipe<SSLHandshakeTaskSchema> taskPipe, int pipeIdx) {
 		
 		 assert(handshakePipe!=null);
 		 assert(source!=null);  
@@ -424,7 +450,10 @@ public class SSLUtil {
 				handshakeStatus = cc.getEngine().getHandshakeStatus();
 				
 			 } else if (HandshakeStatus.NEED_TASK == handshakeStatus) {
-	                Runnable task;//TODO: there is an opporuntity to have this done by a different stage in the future.
+				 	if (null!=taskPipe) {
+				 		return queueHandshakeTask(taskPipe, pipeIdx, cc);
+				 	}
+	                Runnable task;
 	                while ((task = cc.getEngine().getDelegatedTask()) != null) {
 	                	task.run();
 	                }
@@ -445,7 +474,7 @@ public class SSLUtil {
 				 			SSLEngineResult result;
 							try { 
 								rolling.flip();
-								result = unwrapRollingHandshake(rolling, maxEncryptedContentLength, workspace, null, cc); //when done the wrapper is ready for writing more data to it
+								result = unwrapRollingHandshake(rolling, maxEncryptedContentLength, workspace, null, cc, null==taskPipe); //when done the wrapper is ready for writing more data to it
 								//logger.info("server {} status is now {}  for {} ",isServer, cc.getEngine().getHandshakeStatus(),cc);
 							} catch (SSLException sslex) {
 								rolling.clear();
@@ -539,7 +568,7 @@ public class SSLUtil {
 										
 					
 					try {
-						result = unwrapRollingHandshake(rolling, maxEncryptedContentLength, workspace, result, cc);
+						result = unwrapRollingHandshake(rolling, maxEncryptedContentLength, workspace, result, cc, null==taskPipe);
 						//logger.info("server {} status is now {}  for {} ",isServer, cc.getEngine().getHandshakeStatus(),cc);
 					} catch (SSLException sslex) {
 						rolling.clear();
@@ -583,6 +612,41 @@ public class SSLUtil {
 
 	}
 
+	private static int queueHandshakeTask(Pipe<SSLHandshakeTaskSchema> taskPipe, int pipeIdx, SSLConnection cc) {
+		//if already queued or there is no room the task is left on the engine until we come back
+		if (!cc.isHandshakeTaskQueued && Pipe.hasRoomForWrite(taskPipe)) {
+			int size = Pipe.addMsgIdx(taskPipe, SSLHandshakeTaskSchema.MSG_TASK_100);
+			Pipe.addLongValue(cc.id, taskPipe);
+			Pipe.addIntValue(pipeIdx, taskPipe);
+			Pipe.confirmLowLevelWrite(taskPipe, size);
+			Pipe.publishWrites(taskPipe);
+			cc.isHandshakeTaskQueued = true;
+		}
+		return HANDSHAKE_TASK_PENDING;
+	}
+	
+	/**
+	 * Picks up the handshake of a connection where it stopped once its delegated task has been run.
+	 */
+	public static void continueHandshakeAfterTask(SSLConnectionHolder ccm, long connectionId,
+			                        Pipe<NetPayloadSchema> source, ByteBuffer rolling, ByteBuffer[] workspace,
+			                        Pipe<NetPayloadSchema> handshakePipe, Pipe<ReleaseSchema> releasePipe, ByteBuffer secureBuffer, 
+			                        boolean isServer, Pipe<SSLHandshakeTaskSchema> taskPipe, int pipeIdx) {
+		
+		final SSLConnection cc = ccm.connectionForSessionId(connectionId);
+		if (null==cc || !cc.isValid) {
+			return;
+		}
+		cc.isHandshakeTaskQueued = false;
+		
+		int result = handShakeUnWrapIfNeeded(ccm.engineFactory.maxEncryptedContentLength(), source, rolling, workspace, handshakePipe, secureBuffer, 
+				                             isServer, System.currentTimeMillis(), cc, taskPipe, pipeIdx);
+		if (result<0 && HANDSHAKE_TASK_PENDING!=result && null!=releasePipe && rolling.position()==0) {
+			//waiting on the other side again so the pipe may be released as the unwrap stage does
+			sendRelease(source, releasePipe, cc, isServer);
+		}
+	}
+	
 	/**
 	 * Encrypt as much as possible based on the data available from the two pipes
 	 */
@@ -617,6 +681,7 @@ public class SSLUtil {
 				}
 			}
 			//logger.trace("handshake not needed now continue sending data");
+			recordSessionIfDone(ccm, cc, isServer);
 			
 			int msgIdx = Pipe.takeMsgIdx(source);
 			assert( NetPayloadSchema.MSG_PLAIN_210==msgIdx);
@@ -693,6 +758,12 @@ public class SSLUtil {
 	public static int engineUnWrap(SSLConnectionHolder ccm, Pipe<NetPayloadSchema> source, Pipe<NetPayloadSchema> target,
 			                        ByteBuffer rolling, ByteBuffer[] workspace, Pipe<NetPayloadSchema> handshakePipe, Pipe<ReleaseSchema> releasePipe, 
 			                        ByteBuffer secureBuffer, int groupId, boolean isServer) {
+		return engineUnWrap(ccm, source, target, rolling, workspace, handshakePipe, releasePipe, secureBuffer, groupId, isServer, null, -1);
+	}
+	
+	public static int engineUnWrap(SSLConnectionHolder ccm, Pipe<NetPayloadSchema> source, Pipe<NetPayloadSchema> target,
+						            ByteBuffer rolling, ByteBuffer[] workspace, Pipe<NetPayloadSchema> handshakePipe, Pipe<ReleaseSchema> releasePipe, 
+						            ByteBuffer secureBuffer, int groupId, boolean isServer, Pipe<SSLHandshakeTaskSchema> taskPipe, int pipeIdx) {
 		///TODO: URGENT REWIRTE TO LOW LEVEL API SINCE LARGE SERVER CALLS VERY OFTEN.
 
 		int maxEncryptedContentLength = ccm.engineFactory.maxEncryptedContentLength();
@@ -727,10 +798,14 @@ public class SSLUtil {
 				}
 
 				//need to come back in for needed wrap even without content to read but... we need the content to give use the CC !!!
-				didWork = handShakeUnWrapIfNeeded(maxEncryptedContentLength, source, rolling, workspace, handshakePipe, secureBuffer, isServer, arrivalTime=Pipe.peekLong(source, 3), cc);
+				didWork = handShakeUnWrapIfNeeded(maxEncryptedContentLength, source, rolling, workspace, handshakePipe, secureBuffer, isServer, arrivalTime=Pipe.peekLong(source, 3), cc, taskPipe, pipeIdx);
 				assert(rolling.limit()==rolling.capacity());	
 				
-				if (didWork<0) {
+				if (HANDSHAKE_TASK_PENDING == didWork) {
+					///////////
+					return 0;//this pipe continues when the task comes back on the done pipe
+					///////////
+				} else if (didWork<0) {
 					
 					if (rolling.position()==0) {
 						//send release because handshake is incomplete, waiting on other side or the connection has been closed
@@ -758,6 +833,7 @@ public class SSLUtil {
 					assert(null!=cc);
 					
 				}
+				recordSessionIfDone(ccm, cc, isServer);
 			} else {
 				
 				//this is EOF or the Begin message to be relayed
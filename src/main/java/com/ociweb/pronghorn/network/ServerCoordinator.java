@@ -1,7 +1,14 @@
 package com.ociweb.pronghorn.network;
 
+import java.io.IOException;
 import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.net.ssl.SSLEngine;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,10 +28,12 @@ public class ServerCoordinator extends SSLConnectionHolder {
 	private final static Logger logger = LoggerFactory.getLogger(ServerCoordinator.class);
     
 	private ServiceObjectHolder<ServerConnection> socketHolder;
-    private Selector                              selectors;
+    private Selector[]                            selectors = new Selector[1];
     private MemberHolder                          subscriptions;
     private int[]                                 upgradePipeLookup;
+    private boolean[]                             webSocketDeflate;  //permessage-deflate was agreed for this slot
     private ConnectionContext[]                   connectionContext; //NOTE: ObjectArrays would work very well here!!
+    private AtomicReferenceArray<ServerConnection> connections;      //latest connection of each slot, read by the reaping reader threads
 
     
     public final int                                  channelBits;
@@ -34,6 +43,8 @@ public class ServerCoordinator extends SSLConnectionHolder {
     private final int                                  port;
     private final String                               bindHost;
 
+    public final static int HTTP2_FRAMES_SHIFT           = 25;//payload is already HTTP/2 frames, sent as is
+    public final static int STREAMED_BODY_SHIFT          = 26;//request body follows as RestRequestContinuation fragments
     public final static int BEGIN_RESPONSE_SHIFT         = 27;
     public final static int INCOMPLETE_RESPONSE_SHIFT    = 28;
     public final static int END_RESPONSE_SHIFT           = 29;//for multi message send this high bit marks the end
@@ -42,15 +53,45 @@ public class ServerCoordinator extends SSLConnectionHolder {
     
     public final static int UPGRADE_TARGET_PIPE_MASK     = (1<<21)-1; 
 
+    public final static int HTTP2_FRAMES_MASK            = 1<<HTTP2_FRAMES_SHIFT;
+    public final static int STREAMED_BODY_MASK           = 1<<STREAMED_BODY_SHIFT;
     public final static int BEGIN_RESPONSE_MASK          = 1<<BEGIN_RESPONSE_SHIFT;	
     public final static int INCOMPLETE_RESPONSE_MASK     = 1<<INCOMPLETE_RESPONSE_SHIFT;
 	public final static int END_RESPONSE_MASK            = 1<<END_RESPONSE_SHIFT;
 	public final static int CLOSE_CONNECTION_MASK        = 1<<CLOSE_CONNECTION_SHIFT;
 	public final static int UPGRADE_MASK                 = 1<<UPGRADE_CONNECTION_SHIFT;
 
-	private final PoolIdx responsePipeLinePool;
 	private final int[] processorLookup;
 	private final int moduleParallelism;
+
+	//each reader shard owns its own selector and its own slice of the incoming pipes
+	private int readerShards = 1;
+	private int[][] shardPipes;          //global pipe index by shard and local index
+	private PoolIdx[] responsePipeLinePools;
+	private PipeLineFilter[] isOk;
+	
+	//each acceptor binds the same port with SO_REUSEPORT when more than one is used
+	private int acceptors = 1;
+
+	//responses of each router group are ordered by this many OrderSupervisorStage instances, split by channelId & mask
+	private int orderingShardBits = 0;
+	private final AcceptMetrics acceptMetrics = new AcceptMetrics();
+	
+	//prior knowledge h2c connections by channel slot, null when HTTP/2 is not enabled
+	private HTTP2Connection[] http2Connections;
+	
+	//open files which responses may send with transferTo, null when not enabled
+	private FileRegions fileRegions;
+	
+	//connections with nothing in flight are closed after this many ms without reading, 0 to keep them forever
+	private long idleTimeoutMS = DEFAULT_IDLE_TIMEOUT_MS;
+	public final static long DEFAULT_IDLE_TIMEOUT_MS = 0; //opt in with setIdleTimeout
+	private final static int REAP_SLOTS_PER_CALL = 1024;
+	private long[] lastActivity;          //by channel slot, written only by the acceptor and the owning reader shard
+	private AtomicIntegerArray responsesPending; //by channel slot, requests routed whose last response fragment is not yet ordered
+	private int[] reapCursor;             //by shard, next slot to check
+	private long[] nextReapScan;          //by shard, time when the next full scan may begin
+	private final AtomicLong reapedConnections = new AtomicLong();
 	
 	public final int maxConcurrentInputs;
 	public final int maxConcurrentOutputs;
@@ -125,13 +166,292 @@ public class ServerCoordinator extends SSLConnectionHolder {
 
         this.serviceName       = serviceName;
         this.defaultPath       = defaultPath.startsWith("/") ? defaultPath.substring(1) : defaultPath;
-    	this.responsePipeLinePool = new PoolIdx(maxConcurrentInputs); 
     	
     	this.maxConcurrentInputs = maxConcurrentInputs;
     	this.maxConcurrentOutputs = maxConcurrentOutputs;
 
     	this.moduleParallelism = moduleParallelism;
     	this.processorLookup = Pipe.splitGroups(moduleParallelism, maxConcurrentInputs);
+    	buildReaderShards();
+    }
+    
+    /**
+     * Splits the socket reading across this many ServerSocketReaderStage instances, each with its own
+     * Selector. Connections are assigned to a shard by channelId and each shard writes only to the
+     * incoming pipes of whole router groups so the routers are never shared between shards.
+     * Must be called before the graph is built.
+     */
+    public void setReaderShards(int shards) {
+    	if (shards<1 || shards>moduleParallelism) {
+    		throw new UnsupportedOperationException("Reader shards must be between 1 and the module parallelism of "+moduleParallelism+" but found "+shards);
+    	}
+    	this.readerShards = shards;
+    	buildReaderShards();
+    }
+    
+    public int readerShards() {
+    	return readerShards;
+    }
+    
+    private void buildReaderShards() {
+    	int[] counts = new int[readerShards];
+    	int i = maxConcurrentInputs;
+    	while (--i>=0) {
+    		counts[pipeShard(i)]++;
+    	}
+    	shardPipes = new int[readerShards][];
+    	responsePipeLinePools = new PoolIdx[readerShards];
+    	isOk = new PipeLineFilter[readerShards];
+    	selectors = new Selector[readerShards];
+    	int s = readerShards;
+    	while (--s>=0) {
+    		shardPipes[s] = new int[counts[s]];
+    		responsePipeLinePools[s] = new PoolIdx(counts[s]);
+    		isOk[s] = new PipeLineFilter(shardPipes[s]);
+    		counts[s] = 0;
+    	}
+    	for(i = 0; i<maxConcurrentInputs; i++) {
+    		int shard = pipeShard(i);
+    		shardPipes[shard][counts[shard]++] = i;
+    	}
+    }
+    
+    private int pipeShard(int pipeIdx) {
+    	//whole router groups are kept together in the same shard
+    	return (processorLookup[pipeIdx]*readerShards)/moduleParallelism;
+    }
+    
+    /**
+     * @return shard which owns this router, matching the shard of the pipes feeding it
+     */
+    public int routerShard(int router) {
+    	return (router*readerShards)/moduleParallelism;
+    }
+    
+    /**
+     * @return global indexes of the incoming pipes written by this shard in local index order
+     */
+    public int[] readerShardPipes(int shard) {
+    	return shardPipes[shard];
+    }
+    
+    /**
+     * Accept new connections with this many ServerNewConnectionStage instances, each bound to the
+     * same host and port with SO_REUSEPORT so the kernel spreads the connections between them.
+     * Only supported where SO_REUSEPORT is available, Linux, otherwise the extra acceptors stay idle.
+     * Must be called before the graph is built.
+     */
+    public void setAcceptors(int acceptors) {
+    	if (acceptors<1) {
+    		throw new UnsupportedOperationException("Must have at least 1 acceptor but found "+acceptors);
+    	}
+    	this.acceptors = acceptors;
+    }
+    
+    public int acceptors() {
+    	return acceptors;
+    }
+    
+    public AcceptMetrics acceptMetrics() {
+    	return acceptMetrics;
+    }
+    
+    /**
+     * Splits the response ordering of each router group across this many OrderSupervisorStage instances.
+     * Every response for a channel goes to the supervisor for channelId & orderingShardMask() so no
+     * supervisor needs the sequence state of another. Must be a power of two and called before the graph is built.
+     */
+    public void setOrderingShards(int shards) {
+    	if (shards<1 || Integer.bitCount(shards)!=1) {
+    		throw new UnsupportedOperationException("Ordering shards must be a power of two but found "+shards);
+    	}
+    	if (shards>channelBitsSize) {
+    		throw new UnsupportedOperationException("Ordering shards can not be more than the "+channelBitsSize+" channels");
+    	}
+    	this.orderingShardBits = Integer.numberOfTrailingZeros(shards);
+    }
+    
+    public int orderingShards() {
+    	return 1<<orderingShardBits;
+    }
+    
+    public int orderingShardBits() {
+    	return orderingShardBits;
+    }
+    
+    public int orderingShardMask() {
+    	return (1<<orderingShardBits)-1;
+    }
+    
+    /**
+     * @return index of the supervisor within its router group which must receive the responses for this channel
+     */
+    public static int orderingShard(ServerCoordinator that, long channelId) {
+    	return (int)(channelId & that.orderingShardMask());
+    }
+    
+    /**
+     * Accept prior knowledge h2c on the same port, HTTP/1.1 requests are still routed as before.
+     */
+    public void setHTTP2(boolean enabled) {
+    	if (enabled && isTLS) {
+    		throw new UnsupportedOperationException("HTTP/2 over TLS requires ALPN which is not supported, only h2c may be enabled.");
+    	}
+    	if (enabled && null!=fileRegions) {
+    		throw new UnsupportedOperationException("File regions are sent as is and can not be framed for HTTP/2.");
+    	}
+    	http2Connections = enabled ? new HTTP2Connection[channelBitsSize] : null;
+    }
+    
+    public boolean isHTTP2() {
+    	return null!=http2Connections;
+    }
+    
+    /**
+     * @return the HTTP/2 state of this connection or null if it is not using HTTP/2
+     */
+    public HTTP2Connection http2Connection(long channelId) {
+    	//registered by the router before it publishes anything for this channel so the supervisor always finds it
+    	HTTP2Connection[] local = http2Connections;
+    	if (null!=local) {
+    		HTTP2Connection con = local[(int)(channelBitsMask & channelId)];
+    		if (null!=con && channelId==con.channelId) {
+    			return con;
+    		}
+    	}
+    	return null;
+    }
+    
+    public HTTP2Connection newHTTP2Connection(long channelId, int maxStringLength) {
+    	return http2Connections[(int)(channelBitsMask & channelId)] = new HTTP2Connection(channelId, maxStringLength);
+    }
+    
+    /**
+     * Files registered here may be sent straight from the file to the socket, the same instance
+     * must be given to the file modules. Only plain HTTP/1.x connections can do this.
+     */
+    public void setFileRegions(FileRegions regions) {
+    	if (null!=regions && isTLS) {
+    		throw new UnsupportedOperationException("File regions can not be used with TLS, the data must be encrypted.");
+    	}
+    	if (null!=regions && isHTTP2()) {
+    		throw new UnsupportedOperationException("File regions are sent as is and can not be framed for HTTP/2.");
+    	}
+    	fileRegions = regions;
+    }
+    
+    public FileRegions fileRegions() {
+    	return fileRegions;
+    }
+    
+    /**
+     * Connections which have not sent anything for this long and are not waiting on a response
+     * are closed so their slot can be reused. Upgraded WebSocket connections are never reaped.
+     * Reaping is off by default.
+     * @param millis idle limit, 0 disables reaping
+     */
+    public void setIdleTimeout(long millis) {
+    	if (millis<0) {
+    		throw new UnsupportedOperationException("idle timeout can not be negative");
+    	}
+    	idleTimeoutMS = millis;
+    }
+    
+    public long idleTimeout() {
+    	return idleTimeoutMS;
+    }
+    
+    /**
+     * @return count of connections closed for being idle since this server started
+     */
+    public long reapedConnections() {
+    	return reapedConnections.get();
+    }
+    
+    public void recordActivity(long channelId, long now) {
+    	lastActivity[(int)(channelBitsMask & channelId)] = now;
+    }
+    
+    /**
+     * Called by the router for each request or error response it publishes, the connection
+     * is not idle until the matching END_RESPONSE fragment is ordered.
+     */
+    public void responseStarted(long channelId) {
+    	responsesPending.incrementAndGet((int)(channelBitsMask & channelId));
+    }
+    
+    /**
+     * Called by the OrderSupervisorStage for each END_RESPONSE fragment.
+     */
+    public void responseFinished(long channelId) {
+    	final int slot = (int)(channelBitsMask & channelId);
+    	int pending;
+    	do {
+    		pending = responsesPending.get(slot);
+    		if (pending<=0) {
+    			return; //slot was taken by a new connection while this response was in flight
+    		}
+    	} while (!responsesPending.compareAndSet(slot, pending, pending-1));
+    }
+    
+    public int responsesPending(long channelId) {
+    	return responsesPending.get((int)(channelBitsMask & channelId));
+    }
+    
+    /**
+     * Called by the ServerSocketReaderStage of each shard on every run. Checks a small block of
+     * slots per call so the cost is spread out, once all the slots of the shard are checked the
+     * next pass waits for a quarter of the timeout.
+     * 
+     * @return number of connections closed
+     */
+    public int reapIdleConnections(int shard, long now) {
+    	final long timeout = idleTimeoutMS;
+    	if (timeout<=0 || now<nextReapScan[shard]) {
+    		return 0;
+    	}
+    	int reaped = 0;
+    	int slot = reapCursor[shard];
+    	int limit = Math.min(channelBitsSize, slot+(REAP_SLOTS_PER_CALL*readerShards));
+    	while (slot<limit) {
+    		ServerConnection connection = connections.get(slot);
+    		if (null!=connection && isIdle(connection, slot, now, timeout)) {
+    			reap(connection, slot);
+    			reaped++;
+    		}
+    		slot += readerShards; //slots are assigned to the shards round robin
+    	}
+    	if (slot>=channelBitsSize) {
+    		reapCursor[shard] = shard;
+    		nextReapScan[shard] = now+Math.max(timeout>>2, 1);
+    	} else {
+    		reapCursor[shard] = slot;
+    	}
+    	return reaped;
+    }
+
+	private boolean isIdle(ServerConnection connection, int slot, long now, long timeout) {
+		return connection.isValid
+			   && now-lastActivity[slot] > timeout
+			   && 0 == responsesPending.get(slot) //no request is waiting on a response
+			   && upgradePipeLookup[slot]<0;
+	}
+
+	private void reap(ServerConnection connection, int slot) {
+		long channelId = connection.id;
+		releaseResponsePipeLineIdx(channelId);
+		connection.clearPoolReservation();
+		connection.close(); //also cancels the selection key
+		connectionContext[slot].setChannelId(-1);
+		if (null!=http2Connections) {
+			http2Connections[slot] = null;
+		}
+		reapedConnections.incrementAndGet();
+		logger.trace("closed idle connection {}", channelId);
+	}
+    
+    public static int readerShard(ServerCoordinator that, long channelId) {
+    	return (int)((that.channelBitsMask & channelId) % that.readerShards);
     }
     
     public void setStageNotaProcessor(PronghornStageProcessor p) {
@@ -143,13 +463,15 @@ public class ServerCoordinator extends SSLConnectionHolder {
     	}
     }
             
-    private PronghornStage firstStage;
+    private PronghornStage[] firstStages = new PronghornStage[0];
     
     public void shutdown() {
     	
-    	if (null!=firstStage) {
-    		firstStage.requestShutdown();
-    		firstStage = null;
+    	PronghornStage[] local = firstStages;
+    	firstStages = new PronghornStage[0];
+    	int i = local.length;
+    	while (--i>=0) {
+    		local[i].requestShutdown();
     	}
    
     	
@@ -157,44 +479,55 @@ public class ServerCoordinator extends SSLConnectionHolder {
     	    	
     }
 
-	public void setStart(PronghornStage startStage) {
-		this.firstStage = startStage;
+	public synchronized void setStart(PronghornStage startStage) {
+		//one start stage for each reader shard
+		firstStages = Arrays.copyOf(firstStages, firstStages.length+1);
+		firstStages[firstStages.length-1] = startStage;
 	}
 	
 	
 	public void debugResponsePipeLine() {
-		logger.info(responsePipeLinePool.toString());
+		int s = readerShards;
+		while (--s>=0) {
+			logger.info("shard {} {}", s, responsePipeLinePools[s]);
+		}
 	}
 	
-	private PipeLineFilter isOk = new PipeLineFilter();
-	
-	//NOT thread safe only called by ServerSocketReaderStage
+	//NOT thread safe only called by the ServerSocketReaderStage of this channels shard
+	//returned index is local to the pipes of that shard, see readerShardPipes
 	public int responsePipeLineIdx(final long ccId) {
-	
-		isOk.setId(ccId); //object resuse prevents CG here
-		return responsePipeLinePool.get(ccId, isOk);
+		int shard = readerShard(this, ccId);
+		isOk[shard].setId(ccId); //object resuse prevents CG here
+		return responsePipeLinePools[shard].get(ccId, isOk[shard]);
 
 	}
 	
 	public int checkForResponsePipeLineIdx(long ccId) {
-		return PoolIdx.getIfReserved(responsePipeLinePool,ccId);
+		return PoolIdx.getIfReserved(responsePipeLinePools[readerShard(this, ccId)],ccId);
 	}	
 	
 	public void releaseResponsePipeLineIdx(long ccId) {		
-		responsePipeLinePool.release(ccId);	
+		responsePipeLinePools[readerShard(this, ccId)].release(ccId);	
 		//logger.info("after release we have {} locks",responsePipeLinePool.locks());
 	}
 	
 	public int resposePoolSize() {
-		return responsePipeLinePool.length();
+		return maxConcurrentInputs;
 	}
     
+	//with multiple shards these are called for each shard pool
 	public void setFirstUsage(Runnable run) {
-		responsePipeLinePool.setFirstUsageCallback(run);
+		int s = readerShards;
+		while (--s>=0) {
+			responsePipeLinePools[s].setFirstUsageCallback(run);
+		}
 	}
 	
 	public void setLastUsage(Runnable run) {
-		responsePipeLinePool.setNoLocksCallback(run);
+		int s = readerShards;
+		while (--s>=0) {
+			responsePipeLinePools[s].setNoLocksCallback(run);
+		}
 	}
 
 	@Override
@@ -219,13 +552,50 @@ public class ServerCoordinator extends SSLConnectionHolder {
             that.connectionContext[i] = new ConnectionContext();
         }
         
+        that.connections = new AtomicReferenceArray<ServerConnection>(that.channelBitsSize);
+        
         that.upgradePipeLookup = new int[that.channelBitsSize];
         Arrays.fill(that.upgradePipeLookup, -1);//if not upgraded it remains -1
+        that.webSocketDeflate = new boolean[that.channelBitsSize];
+        
+        that.lastActivity = new long[that.channelBitsSize];
+        that.responsesPending = new AtomicIntegerArray(that.channelBitsSize);
+        that.reapCursor = new int[that.readerShards];
+        i = that.readerShards;
+        while (--i >= 0) {
+        	that.reapCursor[i] = i;
+        }
+        that.nextReapScan = new long[that.readerShards];
         
         return that.socketHolder = new ServiceObjectHolder<ServerConnection>(that.channelBits, ServerConnection.class, new SocketValidator(), false/*Do not grow*/);
         
     }
     
+    /**
+     * New connection for the slot of this channelId, the slot is only handed out by
+     * lookupInsertPosition once the connection it held is no longer valid. Only the per slot
+     * state is reused, the connection itself is new so any stage still holding the old one
+     * keeps seeing the old id and channel.
+     */
+    public static ServerConnection newConnection(ServerCoordinator that, SSLEngine engine, SocketChannel channel, long channelId) {
+    	int slot = (int)(that.channelBitsMask & channelId);
+    	that.lastActivity[slot] = System.currentTimeMillis(); //idle time starts from the accept
+    	that.upgradePipeLookup[slot] = -1; //a new connection is never upgraded
+    	that.webSocketDeflate[slot] = false;
+    	that.responsesPending.set(slot, 0);
+    	ServerConnection old = that.connections.get(slot);
+    	if (null!=old && old.socketChannel.isOpen()) {
+    		try {
+    			old.socketChannel.close(); //was not valid but never closed
+    		} catch (IOException e) {
+    			logger.trace("unable to close stale connection",e);
+    		}
+    	}
+    	ServerConnection connection = new ServerConnection(engine, channel, channelId);
+    	that.connections.set(slot, connection);
+    	return connection;
+    }
+    
     public static ServiceObjectHolder<ServerConnection> getSocketChannelHolder(ServerCoordinator that) {
         return that.socketHolder;
     }
@@ -236,23 +606,24 @@ public class ServerCoordinator extends SSLConnectionHolder {
     
     private final class PipeLineFilter implements PoolIdxPredicate {
 		
+    	private final int[] pipes;
     	private int idx;
 		private int validValue;
 
-		private PipeLineFilter() {
-			
+		private PipeLineFilter(int[] pipes) {
+			this.pipes = pipes;
 		}
 
 		public void setId(long ccId) {
 			assert(maxConcurrentInputs == processorLookup.length);
 			//multiplied by prime number to ensure value jumps arround
-			this.idx = ((int)ccId*191)%maxConcurrentInputs;
-			this.validValue = processorLookup[idx];
+			this.idx = ((int)ccId*191)%pipes.length;
+			this.validValue = processorLookup[pipes[idx]];
 		}
 
 		@Override
 		public boolean isOk(final int i) {
-			return validValue == processorLookup[i]; 
+			return validValue == processorLookup[pipes[i]]; 
 		}
 	}
     
@@ -298,10 +669,28 @@ public class ServerCoordinator extends SSLConnectionHolder {
 		return that.upgradePipeLookup[(int)(that.channelBitsMask & channelId)];
 	}
 	
+	/**
+	 * Set by the upgrade before the 101 response is sent, the frame encoder compresses messages for these channels.
+	 */
+	public static void setWebSocketDeflate(ServerCoordinator that, long channelId, boolean value) {
+		that.webSocketDeflate[(int)(that.channelBitsMask & channelId)] = value;
+	}
+	
+	public static boolean isWebSocketDeflate(ServerCoordinator that, long channelId) {
+		return that.webSocketDeflate[(int)(that.channelBitsMask & channelId)];
+	}
+	
 	
     
     public static Selector getSelector(ServerCoordinator that) {
-        return that.selectors;
+        return that.selectors[0];
+    }
+    
+    /**
+     * @return selector of the reader shard which owns this channel
+     */
+    public static Selector getSelector(ServerCoordinator that, long channelId) {
+    	return that.selectors[readerShard(that, channelId)];
     }
     
     public static ConnectionContext selectorKeyContext(ServerCoordinator that, long channelId) {
@@ -312,8 +701,12 @@ public class ServerCoordinator extends SSLConnectionHolder {
 
 
     public void registerSelector(Selector selector) {
-    	assert(null==selectors) : "Should not already have a value";
-        selectors = selector;
+    	registerSelector(0, selector);
+    }
+    
+    public void registerSelector(int shard, Selector selector) {
+    	assert(null==selectors[shard]) : "Should not already have a value";
+        selectors[shard] = selector;
     }
 
 	public String serviceName() {
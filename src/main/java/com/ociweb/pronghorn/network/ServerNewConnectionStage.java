@@ -11,6 +11,7 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.SSLEngine;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.NetworkChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -29,6 +30,7 @@ import java.util.Iterator;
 public class ServerNewConnectionStage extends PronghornStage{
         
     private static final int CONNECTION_TIMEOUT = 7_000; 
+    private static final int MAX_ACCEPTS_PER_RUN = 256; //drain bursts without starving the rest of the schedule
 
 	private static final Logger logger = LoggerFactory.getLogger(ServerNewConnectionStage.class);
     
@@ -40,6 +42,8 @@ public class ServerNewConnectionStage extends PronghornStage{
     private ServerCoordinator coordinator;
     private Pipe<ServerConnectionSchema> newClientConnections;
     private final String label;
+    private final int acceptor;
+    private SSLEngine pendingEngine; //created before a connection is taken so the holder lock stays short
     
 	public static ServerNewConnectionStage newIntance(GraphManager graphManager, ServerCoordinator coordinator, Pipe<ServerConnectionSchema> newClientConnections, boolean isTLS) {
 		return new ServerNewConnectionStage(graphManager,coordinator,newClientConnections);
@@ -48,6 +52,7 @@ public class ServerNewConnectionStage extends PronghornStage{
     public ServerNewConnectionStage(GraphManager graphManager, ServerCoordinator coordinator, Pipe<ServerConnectionSchema> newClientConnections) {
         super(graphManager, NONE, newClientConnections);
         this.coordinator = coordinator;
+        this.acceptor = 0;
         
         this.label = coordinator.host()+":"+coordinator.port();
         
@@ -61,10 +66,18 @@ public class ServerNewConnectionStage extends PronghornStage{
 	}
 	
     public ServerNewConnectionStage(GraphManager graphManager, ServerCoordinator coordinator) {
+    	this(graphManager, coordinator, 0);
+    }
+    
+    /**
+     * @param acceptor index of this acceptor, only acceptor 0 reports the server details, see ServerCoordinator.setAcceptors
+     */
+    public ServerNewConnectionStage(GraphManager graphManager, ServerCoordinator coordinator, int acceptor) {
         super(graphManager, NONE, NONE);
         this.coordinator = coordinator;
+        this.acceptor = acceptor;
         
-        this.label = coordinator.host()+":"+coordinator.port();
+        this.label = coordinator.host()+":"+coordinator.port()+(coordinator.acceptors()>1 ? " acceptor "+acceptor : "");
         
         this.newClientConnections = null;
         GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
@@ -83,6 +96,7 @@ public class ServerNewConnectionStage extends PronghornStage{
     	/////////////////////////////////////////////////////////////////////////////////////
     	//The trust manager MUST be established before any TLS connection work begins
     	//If this is not done there can be race conditions as to which certs are trusted...
+    	//Every acceptor waits here since they may start in parallel, the service is only built once.
     	if (coordinator.isTLS) {
     		coordinator.engineFactory.initTLSService();
     	}
@@ -101,6 +115,15 @@ public class ServerNewConnectionStage extends PronghornStage{
     		
     		//to ensure that this port can be re-used quickly for testing and other reasons
     		server.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+    		if (coordinator.acceptors()>1 && !enableReusePort(server)) {
+    			if (0 == acceptor) {
+    				logger.warn("SO_REUSEPORT is not supported here so only one of the {} acceptors will be used", coordinator.acceptors());
+    			} else {
+    				server.close();
+    				server = null;
+    				return;
+    			}
+    		}
     		server.socket().setPerformancePreferences(1, 2, 0);
     		server.socket().setSoTimeout(0);
     		    		
@@ -129,14 +152,17 @@ public class ServerNewConnectionStage extends PronghornStage{
             }
             
             //ensure reporting is done together
-            synchronized(logger) {
-            	System.out.println();
-	            System.out.println(coordinator.serviceName()+" is now ready on http"+(coordinator.isTLS?"s":"")+"://"+host+"/"+coordinator.defaultPath());
-	            System.out.println(coordinator.serviceName()+" max connections: "+coordinator.channelBitsSize);
-	            System.out.println(coordinator.serviceName()+" max concurrent inputs: "+coordinator.maxConcurrentInputs);
-	            System.out.println(coordinator.serviceName()+" concurrent tracks: "+coordinator.moduleParallelism());
-	            System.out.println(coordinator.serviceName()+" max concurrent outputs: "+coordinator.maxConcurrentOutputs);
-	            System.out.println();
+            if (0 == acceptor) {
+	            synchronized(logger) {
+	            	System.out.println();
+		            System.out.println(coordinator.serviceName()+" is now ready on http"+(coordinator.isTLS?"s":"")+"://"+host+"/"+coordinator.defaultPath());
+		            System.out.println(coordinator.serviceName()+" max connections: "+coordinator.channelBitsSize);
+		            System.out.println(coordinator.serviceName()+" max concurrent inputs: "+coordinator.maxConcurrentInputs);
+		            System.out.println(coordinator.serviceName()+" concurrent tracks: "+coordinator.moduleParallelism());
+		            System.out.println(coordinator.serviceName()+" max concurrent outputs: "+coordinator.maxConcurrentOutputs);
+		            System.out.println(coordinator.serviceName()+" acceptors: "+coordinator.acceptors());
+		            System.out.println();
+	            }
             }
             
         } catch (SocketException se) {
@@ -222,57 +248,13 @@ public class ServerNewConnectionStage extends PronghornStage{
                   if (0 != (SelectionKey.OP_ACCEPT & readyOps)) {
                      
                 	  //ServerCoordinator.acceptConnectionStart = now;
-                	  
-                      if (null!=newClientConnections && !Pipe.hasRoomForWrite(newClientConnections, ServerNewConnectionStage.connectMessageSize)) {
-                          return;
-                      }
-
-                      ServiceObjectHolder<ServerConnection> holder = ServerCoordinator.getSocketChannelHolder(coordinator);
-                                            
-                      final long channelId = holder.lookupInsertPosition();
-                      if (channelId<0) {
-                    	  return;//try again later if the client is still waiting.
-                      }
-                      
-                      int targetPipeIdx = 0;//NOTE: this will be needed for rolling out new sites and features atomicly
-                                            
-                      SocketChannel channel = server.accept();
-                      
-                      try {                          
-                          channel.configureBlocking(false);
-                          
-                          //TCP_NODELAY is requried for HTTP/2 get used to it being on now.
-                          channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);  
-                          channel.socket().setPerformancePreferences(0, 2, 1);
-                 
-                          SSLEngine sslEngine = null;
-                          if (coordinator.isTLS) {
-							  sslEngine = coordinator.engineFactory.createSSLEngine();//// not needed for server? host, port);
-							  sslEngine.setUseClientMode(false); //here just to be complete and clear
-							  // sslEngine.setNeedClientAuth(true); //only if the auth is required to have a connection
-							  // sslEngine.setWantClientAuth(true); //the auth is optional
-							  sslEngine.setNeedClientAuth(coordinator.requireClientAuth); //required for openSSL/boringSSL
-							  
-							  sslEngine.beginHandshake();
-                          }
-						  
-						  
-						  //logger.debug("server new connection attached for new id {} ",channelId);
-						  
-						  holder.setValue(channelId, new ServerConnection(sslEngine, channel, channelId));
-                                                                                                                            
-                         // logger.info("register new data to selector for pipe {}",targetPipeIdx);
-                          Selector selector2 = ServerCoordinator.getSelector(coordinator);
-						  channel.register(selector2, SelectionKey.OP_READ, ServerCoordinator.selectorKeyContext(coordinator, channelId));
-    						
-						  if (null!=newClientConnections) {
-	                          publishNotificationOFNewConnection(targetPipeIdx, channelId);
-						  }
-						  
-                          
-                      } catch (IOException e) {
-                    	  logger.trace("Unable to accept connection",e);
-                      } 
+                	  int backlog = 0;
+                	  while (backlog < MAX_ACCEPTS_PER_RUN && acceptConnection()) {
+                		  backlog++;
+                	  }
+                	  if (backlog>0) {
+                		  coordinator.acceptMetrics().recordDrain(backlog, System.nanoTime());
+                	  }
 
                   } else {
                 	  logger.error("should this be run at all?");
@@ -287,6 +269,85 @@ public class ServerNewConnectionStage extends PronghornStage{
         }
     }
 
+	/**
+	 * @return true if a connection was accepted, false if none are waiting or there is no place for it yet
+	 */
+	private boolean acceptConnection() throws IOException {
+		
+		if (null!=newClientConnections && !Pipe.hasRoomForWrite(newClientConnections, ServerNewConnectionStage.connectMessageSize)) {
+			coordinator.acceptMetrics().recordDeferred();
+			return false;
+		}
+		
+		if (coordinator.isTLS && null==pendingEngine) {
+			pendingEngine = coordinator.engineFactory.createSSLEngine();//// not needed for server? host, port);
+			pendingEngine.setUseClientMode(false); //here just to be complete and clear
+			// sslEngine.setNeedClientAuth(true); //only if the auth is required to have a connection
+			// sslEngine.setWantClientAuth(true); //the auth is optional
+			pendingEngine.setNeedClientAuth(coordinator.requireClientAuth); //required for openSSL/boringSSL
+		}
+		
+		ServiceObjectHolder<ServerConnection> holder = ServerCoordinator.getSocketChannelHolder(coordinator);
+		
+		final long channelId;
+		final SocketChannel channel;
+		final SSLEngine sslEngine = pendingEngine;
+		//acceptors share the holder so the slot is reserved and filled together
+		synchronized(holder) {
+			channelId = holder.lookupInsertPosition();
+			if (channelId<0) {
+				coordinator.acceptMetrics().recordDeferred();
+				return false;//try again later if the client is still waiting.
+			}
+			channel = server.accept();
+			if (null==channel) {
+				return false;//another acceptor took it
+			}
+			//logger.debug("server new connection attached for new id {} ",channelId);
+			holder.setValue(channelId, ServerCoordinator.newConnection(coordinator, sslEngine, channel, channelId));
+		}
+		pendingEngine = null;
+		
+		int targetPipeIdx = 0;//NOTE: this will be needed for rolling out new sites and features atomicly
+		
+		try {                          
+			channel.configureBlocking(false);
+			
+			//TCP_NODELAY is requried for HTTP/2 get used to it being on now.
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);  
+			channel.socket().setPerformancePreferences(0, 2, 1);
+			
+			if (null!=sslEngine) {
+				sslEngine.beginHandshake();
+			}
+			
+			// logger.info("register new data to selector for pipe {}",targetPipeIdx);
+			//each reader shard has its own selector, the channelId picks the shard
+			Selector selector2 = ServerCoordinator.getSelector(coordinator, channelId);
+			channel.register(selector2, SelectionKey.OP_READ, ServerCoordinator.selectorKeyContext(coordinator, channelId));
+			
+			if (null!=newClientConnections) {
+				publishNotificationOFNewConnection(targetPipeIdx, channelId);
+			}
+			
+		} catch (IOException e) {
+			logger.trace("Unable to accept connection",e);
+			channel.close(); //no longer valid so the slot can be reused
+		} 
+		return true;
+	}
+	
+	private static boolean enableReusePort(NetworkChannel channel) throws IOException {
+		//looked up by name since the constant is only found in newer JDKs
+		for(SocketOption<?> option: channel.supportedOptions()) {
+			if ("SO_REUSEPORT".equals(option.name())) {
+				channel.setOption((SocketOption<Boolean>)option, Boolean.TRUE);
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private void publishNotificationOFNewConnection(int targetPipeIdx, final long channelId) {
 		//the pipe selected has already been checked to ensure room for the connect message                      
 		  Pipe<ServerConnectionSchema> targetPipe = newClientConnections;
@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
 import com.ociweb.pronghorn.network.schema.ReleaseSchema;
+import com.ociweb.pronghorn.network.schema.SSLHandshakeTaskSchema;
 import com.ociweb.pronghorn.network.schema.ServerConnectionSchema;
 import com.ociweb.pronghorn.pipe.PipeConfig;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
@@ -48,6 +49,9 @@ public class ServerPipesConfig {
     public final PipeConfig<NetPayloadSchema> handshakeDataConfig;
 	
 	public int writeBufferMultiplier;
+	
+	public int handshakeTaskUnits; //stages running delegated TLS handshake tasks, 0 runs them on the unwrap stages
+	public final PipeConfig<SSLHandshakeTaskSchema> handshakeTaskConfig;
   
 	
 	public ServerPipesConfig(boolean isTLS, 
@@ -115,6 +119,10 @@ public class ServerPipesConfig {
 
 	    handshakeDataConfig = new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 
 	    		Math.max(maxConcurrentInputs>>1,4), 1<<15); //must be 1<<15 at a minimum for handshake
+	    
+	    //new connections must not wait behind the key exchange math of other new connections
+	    handshakeTaskUnits = isTLS ? Math.max(1, serverRequestUnwrapUnits>>1) : 0;
+	    handshakeTaskConfig = new PipeConfig<SSLHandshakeTaskSchema>(SSLHandshakeTaskSchema.instance, Math.max(concurrentChannelsPerDecryptUnit, 4));
 	    	    
 	}
 
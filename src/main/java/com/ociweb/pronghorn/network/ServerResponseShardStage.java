@@ -0,0 +1,116 @@
+package com.ociweb.pronghorn.network;
+
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Splits the responses of pipes which carry every channel of a router group across the sharded
+ * OrderSupervisorStage instances of that group, see ServerCoordinator.setOrderingShards.
+ *
+ * Each response is copied as is to the output at channelId & mask. The built-in modules return one
+ * pipe for each shard and are connected directly, so this only carries the router error responses
+ * and modules which still return one pipe per router group.
+ */
+public class ServerResponseShardStage extends PronghornStage {
+
+	private final Pipe<ServerResponseSchema>[] inputs;
+	private final Pipe<ServerResponseSchema>[] outputs;
+	private final int shardMask;
+	private int shutdownCount;
+
+	/**
+	 * @param outputs one pipe for each ordering shard, indexed by channelId & (outputs.length-1)
+	 */
+	public ServerResponseShardStage(GraphManager graphManager,
+			                        Pipe<ServerResponseSchema>[] inputs,
+			                        Pipe<ServerResponseSchema>[] outputs) {
+		super(graphManager, inputs, outputs);
+		this.inputs = inputs;
+		this.outputs = outputs;
+		this.shardMask = outputs.length-1;
+		this.shutdownCount = inputs.length;
+
+		if (Integer.bitCount(outputs.length)!=1) {
+			throw new UnsupportedOperationException("Must have a power of two outputs but found "+outputs.length);
+		}
+		if (minVarLength(outputs) < maxVarLength(inputs)) {
+			throw new UnsupportedOperationException("outputs must hold payloads as large as the inputs");
+		}
+
+		GraphManager.addNota(graphManager, GraphManager.LOAD_MERGE, GraphManager.LOAD_MERGE, this);
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
+	}
+
+	@Override
+	public void run() {
+		int i = inputs.length;
+		while (--i>=0) {
+			if (!process(inputs[i])) {
+				return;
+			}
+		}
+	}
+
+	private boolean process(Pipe<ServerResponseSchema> input) {
+
+		while (Pipe.hasContentToRead(input)) {
+
+			int msgIdx = Pipe.peekInt(input, 0);
+			if (msgIdx<0) {
+				Pipe.takeMsgIdx(input);
+				Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
+				Pipe.releaseReadLock(input);
+				if (--shutdownCount<=0) {
+					int s = outputs.length;
+					while (--s>=0) {
+						Pipe.publishEOF(outputs[s]);
+					}
+					requestShutdown();
+					return false;
+				}
+				return true;
+			}
+			if (ServerResponseSchema.MSG_SKIP_300 == msgIdx) {
+				//only hides bytes in the module output, the supervisors drop these anyway
+				Pipe.skipNextFragment(input, Pipe.takeMsgIdx(input));
+				continue;
+			}
+
+			//every other response starts with the channel id
+			Pipe<ServerResponseSchema> output = outputs[(int)(Pipe.peekLong(input, 1) & shardMask)];
+			if (!Pipe.hasRoomForWrite(output)) {
+				return true; //this output is full, the other inputs may still have work
+			}
+
+			Pipe.takeMsgIdx(input);
+			int size = Pipe.addMsgIdx(output, msgIdx);
+			Pipe.addLongValue(Pipe.takeLong(input), output);
+			Pipe.addIntValue(Pipe.takeInt(input), output); //sequence
+
+			if (ServerResponseSchema.MSG_TOCHANNELFILE_101 == msgIdx) {
+				Pipe.addIntValue(Pipe.takeInt(input), output);   //file id
+				Pipe.addLongValue(Pipe.takeLong(input), output); //position
+				Pipe.addLongValue(Pipe.takeLong(input), output); //length
+			} else {
+				int meta = Pipe.takeRingByteMetaData(input);
+				int len = Pipe.takeRingByteLen(input);
+				int pos = Pipe.bytePosition(meta, input, len);
+				DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.openOutputStream(output);
+				writer.write(Pipe.byteBackingArray(meta, input), pos, len, Pipe.blobMask(input));
+				DataOutputBlobWriter.closeLowLevelField(writer);
+			}
+			Pipe.addIntValue(Pipe.takeInt(input), output); //request context
+
+			Pipe.confirmLowLevelWrite(output, size);
+			Pipe.publishWrites(output);
+
+			Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+			Pipe.releaseReadLock(input);
+		}
+		return true;
+	}
+
+}
@@ -32,6 +32,7 @@ public class ServerSocketReaderStage extends PronghornStage {
     private final Pipe<NetPayloadSchema>[] output;
     private final Pipe<ReleaseSchema>[] releasePipes;
     private final ServerCoordinator coordinator;
+    private final int shard;
 
     private Selector selector;
 
@@ -50,10 +51,20 @@ public class ServerSocketReaderStage extends PronghornStage {
     }
     
     public ServerSocketReaderStage(GraphManager graphManager, Pipe<ReleaseSchema>[] ack, Pipe<NetPayloadSchema>[] output, ServerCoordinator coordinator) {
+    	this(graphManager, ack, output, coordinator, 0);
+    }
+    
+    /**
+     * @param output only the incoming pipes of this shard, see ServerCoordinator.readerShardPipes
+     * @param shard reads only the connections assigned to this shard by ServerCoordinator.readerShard
+     */
+    public ServerSocketReaderStage(GraphManager graphManager, Pipe<ReleaseSchema>[] ack, Pipe<NetPayloadSchema>[] output, ServerCoordinator coordinator, int shard) {
         super(graphManager, ack, output);
         this.coordinator = coordinator;
+        this.shard = shard;
+        assert(output.length == coordinator.readerShardPipes(shard).length) : "output must be the pipes of this shard";
 
-        this.label = "\n"+coordinator.host()+":"+coordinator.port()+"\n";
+        this.label = "\n"+coordinator.host()+":"+coordinator.port()+(coordinator.readerShards()>1 ? " shard "+shard : "")+"\n";
         
         this.output = output;
         this.releasePipes = ack;
@@ -85,10 +96,13 @@ public class ServerSocketReaderStage extends PronghornStage {
 			}
     	}
 		
-        ServerCoordinator.newSocketChannelHolder(coordinator);
+    	if (0 == shard) {
+    		//one holder is shared by all the shards
+    		ServerCoordinator.newSocketChannelHolder(coordinator);
+    	}
                 
         try {
-            coordinator.registerSelector(selector = Selector.open());
+            coordinator.registerSelector(shard, selector = Selector.open());
         } catch (IOException e) {
            throw new RuntimeException(e);
         }
@@ -100,6 +114,9 @@ public class ServerSocketReaderStage extends PronghornStage {
     public void shutdown() {
     	Pipe.publishEOF(output);  
        
+    	if (0 == shard && coordinator.reapedConnections()>0) {
+    		logger.info("{} idle connections were closed{}", coordinator.reapedConnections(), label);
+    	}
         logger.trace("server reader has shut down");
     }
     
@@ -148,6 +165,9 @@ public class ServerSocketReaderStage extends PronghornStage {
 		   removeDoneKeys(selectedKeys);
 		        	 
         }	        
+        
+        //close connections which have been quiet too long so their slots can be used again
+        coordinator.reapIdleConnections(shard, System.currentTimeMillis());
     	
     }
 
@@ -183,10 +203,12 @@ public class ServerSocketReaderStage extends PronghornStage {
 				HandshakeStatus handshakeStatus = cc.getEngine().getHandshakeStatus();
 
 				 if (HandshakeStatus.NEED_TASK == handshakeStatus) {
-		                Runnable task;//TODO: there is an opportunity to have this done by a different stage in the future.
-		                while ((task = cc.getEngine().getDelegatedTask()) != null) {
-		                	task.run();
-		                }
+					 if (!cc.isHandshakeTaskQueued) { //else it is run by the SSLHandshakeTaskStage
+						 Runnable task;
+						 while ((task = cc.getEngine().getDelegatedTask()) != null) {
+							 task.run();
+						 }
+					 }
 		                //TODO: delete this does not appear to be needed
 		                //handshakeStatus = cc.getEngine().getHandshakeStatus();
 				 } else if (HandshakeStatus.NEED_WRAP == handshakeStatus) {
@@ -316,6 +338,7 @@ public class ServerSocketReaderStage extends PronghornStage {
 		if (idToClear<0) {
 			throw new UnsupportedOperationException();
 		}
+		assert(ServerCoordinator.readerShard(coordinator, idToClear) == shard) : "release must come back to the shard which reserved the pipe";
 				
 		int pipeIdx = coordinator.checkForResponsePipeLineIdx(idToClear);
 		//if we can not look it  up then we can not release it?
@@ -490,9 +513,12 @@ public class ServerSocketReaderStage extends PronghornStage {
 
     	assert(len<Integer.MAX_VALUE) : "Error: blocks larger than 2GB are not yet supported";
         
+        long now = System.currentTimeMillis();
+        coordinator.recordActivity(channelId, now);
+        
         int size = Pipe.addMsgIdx(targetPipe, messageType);               
         Pipe.addLongValue(channelId, targetPipe);  
-        Pipe.addLongValue(System.currentTimeMillis(), targetPipe);
+        Pipe.addLongValue(now, targetPipe);
         
         if (NetPayloadSchema.MSG_PLAIN_210 == messageType) {
         	Pipe.addLongValue(-1, targetPipe);
@@ -3,8 +3,11 @@ package com.ociweb.pronghorn.network;
 import java.io.IOException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 import org.slf4j.Logger;
@@ -46,6 +49,19 @@ public class ServerSocketWriterStage extends PronghornStage {
     
     
     private ByteBuffer workingBuffers[];
+    
+    //zero copy path, the blob ring of the pipe is written directly while the read locks are held
+    private boolean       gather[];
+    private boolean       gathering[];       //false once a batch has fallen back to the copy path
+    private ByteBuffer    gatherBuffers[][]; //duplicates of the blob ring, first segment then the wrapped segment
+    private int           gatherPos[];       //unmasked blob position of the next byte to write
+    private int           gatherLen[];       //bytes not yet accepted by the channel
+    
+    //file regions go from the file to the socket with transferTo, nothing passes through the heap
+    private FileChannel   regionChannel[];
+    private int           regionId[];        //pinned in FileRegions until the transfer is done
+    private long          regionPos[];
+    private long          regionLen[];
     private SocketChannel writeToChannel[];
     private long          writeToChannelId[];
     private int           writeToChannelMsg[];
@@ -149,16 +165,40 @@ public class ServerSocketWriterStage extends PronghornStage {
     	activeTails = new long[c];
     	activeIds = new long[c];
     	activeMessageIds = new int[c];
+    	gather = new boolean[c];
+    	gathering = new boolean[c];
+    	gatherBuffers = new ByteBuffer[c][];
+    	gatherPos = new int[c];
+    	gatherLen = new int[c];
+    	regionChannel = new FileChannel[c];
+    	regionId = new int[c];
+    	regionPos = new long[c];
+    	regionLen = new long[c];
     	int capacity = bufferMultiplier*maxVarLength(input);
     	//System.err.println("allocating "+capacity+" for "+c);
     	
-    	while (--c>=0) {    	
-			workingBuffers[c] = ByteBuffer.allocateDirect(capacity);    		
+    	while (--c>=0) {
+    		//heap backed rings would be copied again by the JDK so they keep using the direct working buffer
+    		ByteBuffer ring = Pipe.wrappedBlobRingA(input[c]);
+    		gather[c] = isGatherable(ring);
+    		if (gather[c]) {
+    			gatherBuffers[c] = new ByteBuffer[] {ring.duplicate(), ring.duplicate()};
+    		} else {
+    			workingBuffers[c] = ByteBuffer.allocateDirect(capacity);
+    		}
     	}
     	Arrays.fill(activeTails, -1);
     	
     }
     
+    /**
+     * @return true if payloads in this blob ring are written to the socket without a copy, when false
+     *         this pipe uses a working buffer. File regions use neither.
+     */
+    protected boolean isGatherable(ByteBuffer ring) {
+    	return ring.isDirect() && !ServerCoordinator.TEST_RECORDS && !debugWithSlowWrites;
+    }
+    
     @Override
     public void shutdown() {
 
@@ -188,11 +228,18 @@ public class ServerSocketWriterStage extends PronghornStage {
 	    				//all the old data has been writen so the writeChannel is null	    		
 	    			}
 	    			
+	    		} else if (null != regionChannel[x]) {
+	    			//file regions are never merged and hold nothing in the blob ring or working buffer
+	    			writeToChannelMsg[x] = -1;
+	    			didWork = true;
+	    			writeToChannel(x);
+	    			
 	    		} else {
 	    			//logger.info("write the channel");
 	    			ByteBuffer localWorkingBuffer = workingBuffers[x];
 	    			
-	    			boolean hasRoomToWrite = localWorkingBuffer.capacity()-localWorkingBuffer.limit() > localInput.maxVarLen;
+	    			//the gathered write is bounded by the pipe itself
+	    			boolean hasRoomToWrite = gathering[x] || localWorkingBuffer.capacity()-localWorkingBuffer.limit() > localInput.maxVarLen;
 	    			//note writeToChannelBatchCountDown is set to zero when nothing else can be combined...
 	    			if (--writeToChannelBatchCountDown[x]<=0 
 	    				|| !hasRoomToWrite
@@ -202,6 +249,21 @@ public class ServerSocketWriterStage extends PronghornStage {
 		    			didWork = true;
 		    			writeToChannel(x); 
 		   		    			
+	    			} else if (gathering[x]) {
+	    				
+	    				while (	isNextMessageMergeable(localInput, writeToChannelMsg[x], x, writeToChannelId[x], false) ) {
+	    					mergeNextMessage(writeToChannelMsg[x], x, localInput, writeToChannelId[x]);
+	    				}
+	    				if (Pipe.hasContentToRead(localInput)) {
+	    					writeToChannelBatchCountDown[x] = 0;//send now nothing else is mergable
+	    				}
+	    				if (!gathering[x]) {
+	    					//a merge found the blob data out of order and copied it, nothing left to hold
+	    					Pipe.releaseAllPendingReadLock(localInput);
+	    					workingBuffers[x].flip();
+	    				}
+	    				//otherwise read locks are held until the channel has accepted all the bytes
+	    				
 	    			} else {
 	    				
 	    				//unflip
@@ -249,6 +311,10 @@ public class ServerSocketWriterStage extends PronghornStage {
 			            		
 			loadPayloadForXmit(activeMessageId, idx);
 
+		} else if (NetPayloadSchema.MSG_FILEREGION_212 == activeMessageId) {
+			
+			loadFileRegionForXmit(idx);
+			
 		} else if (NetPayloadSchema.MSG_DISCONNECT_203 == activeMessageId) {
 					
 			final long channelId = Pipe.takeLong(input[idx]);
@@ -261,9 +327,11 @@ public class ServerSocketWriterStage extends PronghornStage {
 		    ServiceObjectHolder<ServerConnection> socketHolder = ServerCoordinator.getSocketChannelHolder(coordinator);
 		    if (null!=socketHolder) {
 		    	//we are disconnecting so we will remove the connection from the holder.
-		        ServerConnection serverConnection = socketHolder.remove(channelId);	          
+		    	//closed before removal so the pooled connection is not handed out again while still in use
+		        ServerConnection serverConnection = socketHolder.get(channelId);	          
 		        if (null!=serverConnection) {
 		        	serverConnection.close();
+		        	socketHolder.remove(channelId);
 		        }
 		    }	                    
 		    
@@ -355,7 +423,28 @@ public class ServerSocketWriterStage extends PronghornStage {
 	        	
 		        //logger.debug("write {} to socket for id {}",len,channelId);
 		        
-	        	
+	        	gathering[idx] = gather[idx];
+	        	if (gathering[idx]) {
+	        		gatherPos[idx] = Pipe.convertToPosition(meta, pipe);
+	        		gatherLen[idx] = len;
+	        		
+			        Pipe.confirmLowLevelRead(input[idx], msgSize);
+			        Pipe.readNextWithoutReleasingReadLock(input[idx]);
+			        
+			        while (enableWriteBatching && isNextMessageMergeable(pipe, msgIdx, idx, channelId, false) ) {
+			        	mergeNextMessage(msgIdx, idx, pipe, channelId);
+			        }
+					if (Pipe.hasContentToRead(pipe)) {
+						writeToChannelBatchCountDown[idx] = 0;//send now nothing else is mergable
+					}
+					if (!gathering[idx]) {
+						//a merge found the blob data out of order and copied it, nothing left to hold
+						Pipe.releaseAllPendingReadLock(input[idx]);
+						workingBuffers[idx].flip();
+					}
+					//NOTE: otherwise read locks are not released until the bytes are written, see markDoneAndRelease
+					return;
+	        	}
 	        	
 		        ByteBuffer[] writeBuffs = Pipe.wrappedReadingBuffers(pipe, meta, len);
 		        
@@ -411,6 +500,46 @@ public class ServerSocketWriterStage extends PronghornStage {
                 
     }
 
+    private void loadFileRegionForXmit(final int idx) {
+    	
+    	Pipe<NetPayloadSchema> pipe = input[idx];
+    	final long channelId = Pipe.takeLong(pipe);
+    	final long arrivalTime = Pipe.takeLong(pipe);
+    	final int fileId = Pipe.takeInt(pipe);
+    	final long position = Pipe.takeLong(pipe);
+    	final long length = Pipe.takeLong(pipe);
+    	//nothing is held in the blob ring so the message can be released now
+    	Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_FILEREGION_212));
+    	Pipe.releaseReadLock(pipe);
+    	
+    	activeIds[idx] = channelId;
+    	activeTails[idx] = -1;
+    	
+    	ServiceObjectHolder<ServerConnection> socketHolder = ServerCoordinator.getSocketChannelHolder(coordinator);
+    	FileRegions regions = coordinator.fileRegions();
+    	if (null!=socketHolder && null!=regions) {
+    		ServerConnection serverConnection = socketHolder.get(channelId);
+    		//only write if this connection is still valid
+    		if (null != serverConnection) {
+    			writeToChannel[idx] = serverConnection.getSocketChannel();
+    			writeToChannelId[idx] = channelId;
+    			writeToChannelMsg[idx] = NetPayloadSchema.MSG_FILEREGION_212;
+    			writeToChannelBatchCountDown[idx] = 0; //never merged, transfer now
+    			regionChannel[idx] = regions.channel(fileId);
+    			regionId[idx] = fileId;
+    			regionPos[idx] = position;
+    			regionLen[idx] = length;
+    		} else {
+    			regions.release(fileId);
+    		}
+    	} else {
+    		logger.error("Can not transfer file region, SocketChannelHolder or FileRegions is missing");
+    		if (null!=regions) {
+    			regions.release(fileId);
+    		}
+    	}
+    }
+
 	private void mergeNextMessage(final int msgIdx, final int idx, Pipe<NetPayloadSchema> pipe, final long channelId) {
 		
 		final boolean takeTail = NetPayloadSchema.MSG_PLAIN_210 == msgIdx;
@@ -430,6 +559,26 @@ public class ServerSocketWriterStage extends PronghornStage {
 		}
 		int meta2 = Pipe.takeRingByteMetaData(pipe); //for string and byte array
 		int len2 = Pipe.takeRingByteLen(pipe);
+		
+		if (gathering[idx]) {
+			//messages for the same channel normally follow one another in the blob ring so the span just grows
+			if (Pipe.convertToPosition(meta2, pipe) == gatherPos[idx]+gatherLen[idx]) {
+				gatherLen[idx] += len2;
+				Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(NetPayloadSchema.instance, msgIdx));
+				Pipe.readNextWithoutReleasingReadLock(input[idx]);
+				return;
+			}
+			//not contiguous, copy what was gathered so far and finish this batch on the copy path
+			if (null == workingBuffers[idx]) {
+				//the gathered span can be as large as the blob ring
+				workingBuffers[idx] = ByteBuffer.allocateDirect(Pipe.blobMask(pipe)+1+pipe.maxVarLen);
+			}
+			workingBuffers[idx].clear();
+			copySpan(workingBuffers[idx], gatherBuffers[idx], Pipe.blobMask(pipe), gatherPos[idx], gatherLen[idx]);
+			gatherLen[idx] = 0;
+			gathering[idx] = false;
+		}
+		
 		ByteBuffer[] writeBuffs2 = Pipe.wrappedReadingBuffers(pipe, meta2, len2);
 		
 		workingBuffers[idx].put(writeBuffs2[0]);
@@ -448,14 +597,14 @@ public class ServerSocketWriterStage extends PronghornStage {
 		    logger.info("Data {} {} {} {} ",
 		    		    Pipe.hasContentToRead(pipe),
 		    		    Pipe.peekInt(pipe)==msgIdx,
-		    		    workingBuffers[idx].remaining()>pipe.maxVarLen,
+		    		    gathering[idx] || workingBuffers[idx].remaining()>pipe.maxVarLen,
 		    		    Pipe.peekLong(pipe, 1)==channelId	    		
 		    		);
 		}
 		
 		return  Pipe.hasContentToRead(pipe) && 
 				Pipe.peekInt(pipe)==msgIdx && 
-				workingBuffers[idx].remaining()>pipe.maxVarLen && 
+				(gathering[idx] || workingBuffers[idx].remaining()>pipe.maxVarLen) && 
 				Pipe.peekLong(pipe, 1)==channelId;
 	}
 
@@ -532,8 +681,11 @@ public class ServerSocketWriterStage extends PronghornStage {
 
     private void writeToChannel(int idx) {
 
-    		
-    		if (!debugWithSlowWrites) {
+    		if (null != regionChannel[idx]) {
+    			transferToChannel(idx);
+    		} else if (gathering[idx]) {
+    			gatherToChannel(idx);
+    		} else if (!debugWithSlowWrites) {
 		        try {
 		        	
 		        	int bytesWritten = writeToChannel[idx].write(workingBuffers[idx]);	  
@@ -608,6 +760,86 @@ public class ServerSocketWriterStage extends PronghornStage {
 
     }
 
+    /**
+     * Single gathering write of the blob ring segments holding all the merged messages.
+     */
+    private void gatherToChannel(int idx) {
+    	try {
+    		long bytesWritten = gatherWrite((GatheringByteChannel)writeToChannel[idx], gatherBuffers[idx],
+    				                        Pipe.blobMask(input[idx]), gatherPos[idx], gatherLen[idx]);
+    		if (bytesWritten>0) {
+    			totalBytesWritten += bytesWritten;
+    			gatherPos[idx] += bytesWritten;
+    			gatherLen[idx] -= bytesWritten;
+    		}
+    		if (0 == gatherLen[idx]) {
+    			markDoneAndRelease(idx);
+    		}
+    	} catch (IOException e) {
+    		closeChannel(writeToChannel[idx]);
+    		//unable to write to this socket, treat as closed
+    		markDoneAndRelease(idx);
+    	}
+    }
+
+    /**
+     * Points the two segments at the span of the blob ring, the second one is only used when the span wraps.
+     */
+    public static void spanSegments(ByteBuffer[] segments, int mask, int position, int length) {
+    	int pos = position & mask;
+    	int firstLen = Math.min(length, (mask+1)-pos);
+
+    	segments[0].clear();
+    	segments[0].position(pos);
+    	segments[0].limit(pos+firstLen);
+    	segments[1].clear();
+    	segments[1].limit(length-firstLen); //wrapped around to the start of the ring
+    }
+
+    public static long gatherWrite(GatheringByteChannel channel, ByteBuffer[] segments, int mask, int position, int length) throws IOException {
+    	spanSegments(segments, mask, position, length);
+    	return channel.write(segments);
+    }
+
+    public static void copySpan(ByteBuffer target, ByteBuffer[] segments, int mask, int position, int length) {
+    	spanSegments(segments, mask, position, length);
+    	target.put(segments[0]);
+    	target.put(segments[1]);
+    }
+
+    /**
+     * Sends as much of the file region as the socket will take, the rest is sent on the next call.
+     */
+    private void transferToChannel(int idx) {
+    	try {
+    		long bytesWritten = transferRegion(regionChannel[idx], regionPos[idx], regionLen[idx], writeToChannel[idx]);
+    		if (bytesWritten>0) {
+    			totalBytesWritten += bytesWritten;
+    			regionPos[idx] += bytesWritten;
+    			regionLen[idx] -= bytesWritten;
+    		}
+    		if (0 == regionLen[idx]) {
+    			markDoneAndRelease(idx);
+    		}
+    	} catch (IOException e) {
+    		closeChannel(writeToChannel[idx]);
+    		//unable to write to this socket, treat as closed
+    		markDoneAndRelease(idx);
+    	}
+    }
+
+    /**
+     * @return bytes the target accepted, zero when it is full
+     * @throws IOException if the file was truncated after the head was sent so the response can not be completed
+     */
+    public static long transferRegion(FileChannel file, long position, long length, WritableByteChannel target) throws IOException {
+    	long bytesWritten = file.transferTo(position, length, target);
+    	if (bytesWritten<=0 && position >= file.size()) {
+    		throw new IOException("file region is past the end of the file");
+    	}
+    	return bytesWritten;
+    }
+
     private void closeChannel(SocketChannel channel) {
         try {
         	if (channel.isOpen()) {
@@ -621,7 +853,17 @@ public class ServerSocketWriterStage extends PronghornStage {
     private void markDoneAndRelease(int idx) {
        
     	//System.err.println("done with connection");
-    	workingBuffers[idx].clear();
+    	if (null != regionChannel[idx]) {
+    		regionChannel[idx] = null;
+    		coordinator.fileRegions().release(regionId[idx]);
+    		//the message was released when the region was loaded, no buffer was used
+    	} else if (gathering[idx]) {
+    		//the kernel has the bytes so the blob space can now be reused
+    		gatherLen[idx] = 0;
+    		Pipe.releaseAllPendingReadLock(input[idx]);
+    	} else {
+    		workingBuffers[idx].clear();
+    	}
     	
     	writeToChannel[idx]=null;
         int sequenceNo = 0;//not available here
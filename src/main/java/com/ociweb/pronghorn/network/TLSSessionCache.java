@@ -0,0 +1,123 @@
+package com.ociweb.pronghorn.network;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Bounded, expiring TLS session cache settings and resumption counters for one SSLEngineFactory.
+ *
+ * The sessions themselves are held by the SSLSessionContext of the server or client, this class
+ * limits its size and lifetime and turns on session tickets so a returning client can skip the
+ * full handshake. Clients pass host and port when the engine is built so the session cached for
+ * that host:port is offered again on reconnect.
+ *
+ * A handshake resumed a cached session when that session was created before the connection
+ * began its handshake, a full handshake always creates a new session. This works for both
+ * session ids and tickets since a ticket carries the creation time of its session.
+ */
+public final class TLSSessionCache {
+
+	public final static int DEFAULT_MAX_SESSIONS = 10_000;
+	public final static int DEFAULT_TIMEOUT_SECONDS = 3600;
+
+	private final static String SERVER_TICKETS = "jdk.tls.server.enableSessionTicketExtension";
+	private final static String CLIENT_TICKETS = "jdk.tls.client.enableSessionTicketExtension";
+
+	private final int maxSessions;
+	private final int timeoutSeconds;
+	private final boolean sessionTickets;
+
+	private SSLSessionContext configuredServer;
+	private SSLSessionContext configuredClient;
+
+	private long fullHandshakes;
+	private long resumedHandshakes;
+
+	public TLSSessionCache() {
+		this(DEFAULT_MAX_SESSIONS, DEFAULT_TIMEOUT_SECONDS, true);
+	}
+
+	/**
+	 * @param maxSessions limit for the sessions held, older ones are dropped first
+	 * @param timeoutSeconds sessions older than this must do a full handshake
+	 * @param sessionTickets when true the session state is also offered as a ticket
+	 */
+	public TLSSessionCache(int maxSessions, int timeoutSeconds, boolean sessionTickets) {
+		if (maxSessions<=0 || timeoutSeconds<=0) {
+			throw new UnsupportedOperationException("maxSessions and timeoutSeconds must be positive");
+		}
+		this.maxSessions = maxSessions;
+		this.timeoutSeconds = timeoutSeconds;
+		this.sessionTickets = sessionTickets;
+	}
+
+	/**
+	 * Ticket support is controlled by JVM wide system properties which the JDK reads only once, when
+	 * its TLS classes are first initialized. Setting them here only takes effect if nothing in this
+	 * process has used TLS yet and it also changes every other TLS user of the JVM. Values already set
+	 * on the command line are left as they are, operators who need control should set
+	 * -Djdk.tls.server.enableSessionTicketExtension and -Djdk.tls.client.enableSessionTicketExtension
+	 * themselves and build this cache with sessionTickets false.
+	 */
+	void enableSessionTickets() {
+		if (sessionTickets) {
+			if (null==System.getProperty(SERVER_TICKETS)) {
+				System.setProperty(SERVER_TICKETS, "true");
+			}
+			if (null==System.getProperty(CLIENT_TICKETS)) {
+				System.setProperty(CLIENT_TICKETS, "true");
+			}
+		}
+	}
+
+	/**
+	 * Called once for each connection when its handshake has completed.
+	 * @param handshakeStart time in ms when this connection began its handshake
+	 */
+	public synchronized void recordHandshake(SSLSession session, boolean isServer, long handshakeStart) {
+
+		SSLSessionContext context = session.getSessionContext();
+		if (null!=context) {
+			//the context only becomes reachable from a session so it is limited on the first completed handshake
+			if (isServer && context!=configuredServer) {
+				configure(context);
+				configuredServer = context;
+			} else if (!isServer && context!=configuredClient) {
+				configure(context);
+				configuredClient = context;
+			}
+		}
+
+		if (session.getCreationTime() < handshakeStart) {
+			resumedHandshakes++;
+		} else {
+			fullHandshakes++;
+		}
+	}
+
+	private void configure(SSLSessionContext context) {
+		context.setSessionCacheSize(maxSessions);
+		context.setSessionTimeout(timeoutSeconds);
+	}
+
+	public synchronized long fullHandshakes() {
+		return fullHandshakes;
+	}
+
+	public synchronized long resumedHandshakes() {
+		return resumedHandshakes;
+	}
+
+	/**
+	 * @return fraction of completed handshakes which resumed a cached session
+	 */
+	public synchronized float hitRate() {
+		long total = fullHandshakes+resumedHandshakes;
+		return 0==total ? 0f : resumedHandshakes/(float)total;
+	}
+
+	public String toString() {
+		return "TLS sessions resumed:"+resumedHandshakes()+" full:"+fullHandshakes()+" hit rate:"+hitRate();
+	}
+
+}
@@ -1,5 +1,9 @@
 package com.ociweb.pronghorn.network;
 
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,7 +19,6 @@ import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
 import com.ociweb.pronghorn.pipe.DataInputBlobReader;
 import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
-import com.ociweb.pronghorn.pipe.PipeReader;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 import com.ociweb.pronghorn.util.Appendables;
@@ -25,17 +28,31 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 	private static final byte[] WS_WEBSOCKET = "websocket".getBytes();
 	private static final byte[] WS_UPGRADE = "Upgrade".getBytes();
 	private static final byte[] WS_VERSION_SUPPORTED = "13".getBytes();
+	private static final byte[] WS_KEY_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes();
+	private static final byte[] WS_PERMESSAGE_DEFLATE = "permessage-deflate".getBytes();
+	//no context takeover so each message can be inflated or deflated on its own, see RFC 7692
+	private static final byte[] WS_DEFLATE_RESPONSE = "permessage-deflate; server_no_context_takeover; client_no_context_takeover".getBytes();
+	private static final int MAX_HEADER_VALUE = 256;
+	private static final int SHA1_LENGTH = 20;
+
 	private final Pipe<HTTPRequestSchema>[] inputPipes;
 	private final Pipe<ServerResponseSchema>[] outputs;
+	private final Pipe<HTTPRequestSchema>[] frames;
+	private final ServerCoordinator coordinator;
 	private final HTTPSpecification<?,?,?,?> httpSpec;
+
+	private MessageDigest sha1;
+	private final byte[] keyWork = new byte[MAX_HEADER_VALUE+WS_KEY_GUID.length];
+	private final byte[] acceptHash = new byte[SHA1_LENGTH];
+	private final byte[] extensionsWork = new byte[MAX_HEADER_VALUE];
 	
 	private static final int ID_UPGRADE = 1;
 	private static final int ID_CONNECTION = 2;
 	private static final int ID_SEC_WEBSOCKET_KEY = 21;
 	private static final int ID_SEC_WEBSOCKET_PROTOCOL = 22;
 	private static final int ID_SEC_WEBSOCKET_VERSION = 23;
-	private static final int ID_SEC_WEBSOCKET_EXTENSIONS = 24;
-	private static final int ID_ORIGIN = 25;
+	private static final int ID_SEC_WEBSOCKET_EXTENSIONS = 25;
+	private static final int ID_ORIGIN = 26;
 	
 	private static final Logger logger = LoggerFactory.getLogger(UpgradeToWebSocketStage.class);
 		
@@ -44,11 +61,32 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 			Pipe<HTTPRequestSchema>[] inputPipes,
 			Pipe<ServerResponseSchema>[] outputs,
 			HTTPSpecification<?,?,?,?> httpSpec) {
-		super(graphManager,inputPipes, outputs);
+		this(graphManager, null, inputPipes, outputs, null, httpSpec);
+	}
+
+	/**
+	 * @param coordinator records which connections agreed to permessage-deflate, may be null to never offer it
+	 * @param frames WebSocket frames arriving after the upgrade are passed on to the WebSocketFrameDecoderStage
+	 *               using the same index as the input, may be null if frames are routed to the decoder directly
+	 */
+	public UpgradeToWebSocketStage(GraphManager graphManager,
+			ServerCoordinator coordinator,
+			Pipe<HTTPRequestSchema>[] inputPipes,
+			Pipe<ServerResponseSchema>[] outputs,
+			Pipe<HTTPRequestSchema>[] frames,
+			HTTPSpecification<?,?,?,?> httpSpec) {
+		super(graphManager,inputPipes, null==frames ? outputs : join(outputs, frames));
 		this.inputPipes = inputPipes;
 		this.outputs = outputs;
+		this.frames = frames;
+		this.coordinator = coordinator;
 		this.httpSpec = httpSpec;
 		
+		HTTPUtil.validateResponsePipes(inputPipes.length, outputs.length);
+		if (null!=frames && frames.length!=inputPipes.length) {
+			throw new UnsupportedOperationException("Each input pipe must have a frames pipe");
+		}
+		
 		if (inputPipes.length>1) {
 			GraphManager.addNota(graphManager, GraphManager.LOAD_MERGE, GraphManager.LOAD_MERGE, this);
 		}
@@ -58,16 +96,25 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 		assert(httpSpec.headerMatches(ID_SEC_WEBSOCKET_KEY, HTTPHeaderDefaults.SEC_WEBSOCKET_KEY.writingRoot()));
 		assert(httpSpec.headerMatches(ID_SEC_WEBSOCKET_PROTOCOL, HTTPHeaderDefaults.SEC_WEBSOCKET_PROTOCOL.writingRoot()));
 		assert(httpSpec.headerMatches(ID_SEC_WEBSOCKET_VERSION, HTTPHeaderDefaults.SEC_WEBSOCKET_VERSION.writingRoot()));
-		//assert(httpSpec.headerMatches(ID_SEC_WEBSOCKET_EXTENSIONS, HTTPHeaderDefaults.SEC_WEBSOCKET_EXTENSIONS.writingRoot()));
-		//assert(httpSpec.headerMatches(ID_ORIGIN, HTTPHeaderDefaults.ORIGIN.writingRoot()));
+		assert(httpSpec.headerMatches(ID_SEC_WEBSOCKET_EXTENSIONS, HTTPHeaderDefaults.SEC_WEBSOCKET_EXTENSIONS.writingRoot()));
+		assert(httpSpec.headerMatches(ID_ORIGIN, HTTPHeaderDefaults.ORIGIN.writingRoot()));
         GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
 	}
 
+	@Override
+	public void startup() {
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	@Override
 	public void run() {
 		int i = inputPipes.length;
 		while(--i>=0) {
-			process(inputPipes[i], outputs[i]);
+			process(i, null==frames ? null : frames[i]);
 		}
 			
 	}
@@ -83,8 +130,7 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 ////*  %xA denotes a pong //send in response to ping with same payload from the ping...
 ////*  %xB-F are reserved for further control frames
 	
-	private void process(Pipe<HTTPRequestSchema> input, 
-			             Pipe<ServerResponseSchema> output) {
+	private void process(int idx, Pipe<HTTPRequestSchema> framesOutput) {
 
 		//TODO: this stage is going to get websocket inputs after upgrade
 		//TODO; this websocket upgrade logic should be in a common utility class.
@@ -93,31 +139,21 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 		//TODO: need a simple stage which talks to MQTT from here??
 		
 
-		while (Pipe.hasContentToRead(input)) {
-			
+		Pipe<HTTPRequestSchema> input = inputPipes[idx];
+		Pipe<ServerResponseSchema> output;
+		while (Pipe.hasContentToRead(input)
+			   && Pipe.hasRoomForWrite(output = HTTPUtil.responsePipe(outputs, idx, inputPipes.length, input))
+			   && (null==framesOutput || Pipe.hasRoomForWrite(framesOutput))) {
+
 		    int msgIdx = Pipe.takeMsgIdx(input);
 		    switch(msgIdx) {
 		    	case HTTPRequestSchema.MSG_WEBSOCKETFRAME_100:
-		    	    //Read the frame and do something with it
-		    		
-		    		//if operation is ping must reply
-		    	    //public static final int MSG_WEBSOCKETFRAME_100_FIELD_CHANNELID_21 = 0x00800001; //LongUnsigned/Delta/0
-		    	    //public static final int MSG_WEBSOCKETFRAME_100_FIELD_SEQUENCE_26 = 0x00400003; //IntegerSigned/None/0
-		    	    //public static final int MSG_WEBSOCKETFRAME_100_FIELD_FINOPP_11 = 0x00400004; //IntegerSigned/None/4
-		    	    //public static final int MSG_WEBSOCKETFRAME_100_FIELD_MASK_10 = 0x00400005; //IntegerSigned/None/5
-		    	    //public static final int MSG_WEBSOCKETFRAME_100_FIELD_BINARYPAYLOAD_12 = 0x01c00006; //ByteVector/None/1
-
-		    		long channelId = Pipe.takeLong(input);
-		    		int sequenceId = Pipe.takeInt(input);
-		    		int finOppId = Pipe.takeInt(input);
-		    		int wsMask = Pipe.takeInt(input);
-		    		DataInputBlobReader<HTTPRequestSchema> inputStream = Pipe.openInputStream(input);
-		    		
-		    		
-		    		
-		    		
-		    		
-		    		
+		    		//frames are decoded by the WebSocketFrameDecoderStage, this stage only does the upgrade
+		    		if (null!=framesOutput) {
+		    			forwardFrame(input, framesOutput);
+		    		} else {
+		    			Pipe.skipNextFragment(input, msgIdx);
+		    		}
 		    		break;
 		    
 		        case HTTPRequestSchema.MSG_RESTREQUEST_300:
@@ -168,6 +204,7 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 					boolean isUpgradeWebsocket = false;
 					boolean isConnectionUpgrade = false;
 					boolean isValidVersion = true;//this is an optional field
+					boolean isDeflate = false;
 					int id = data.readShort();
 					while (id > 0) {
 						switch(id) {
@@ -185,8 +222,6 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 								break;
 							case ID_SEC_WEBSOCKET_KEY: //optional used here for signature
 								
-								//what to do with the key? append etc and hash...
-								
 								//  If the response lacks a |Sec-WebSocket-Accept| header field or
 							    //     the |Sec-WebSocket-Accept| contains a value other than the
 							    //   base64-encoded SHA-1 of the concatenation of the |Sec-WebSocket-
@@ -194,22 +229,13 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 							    //   E914-47DA-95CA-C5AB0DC85B11" but ignoring any leading and
 							    //   trailing whitespace, the client MUST _Fail the WebSocket
 							    //   Connection_.
-								
-								
-								//data.readBase64(target arrays)
-								
-								//1. un base64 encode this field
-								//2. append "258EAFA5-E914-47DA-95CA-C5AB0DC85B11"
-								//3. sha-1 
-								//4. base64 encode 
-								//   bytes to encode for step 4
-								//   Appendables.appendBase64Encoded(target, backing, pos, len, mask)
-								
-								//5. return as accept
-								
-								
-								data.skipBytes(data.readShort());
-								//data.readUTF(target);
+
+								acceptLength = acceptHash(data, data.readShort());
+								acceptBacking = acceptHash;
+								acceptMask = Integer.MAX_VALUE;
+								break;
+							case ID_SEC_WEBSOCKET_EXTENSIONS: //optional, only permessage-deflate is supported
+								isDeflate = null!=coordinator && offersDeflate(data, data.readShort());
 								break;
 							case ID_SEC_WEBSOCKET_PROTOCOL: //optional for the feed
 								
@@ -255,9 +281,13 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 	    	    		) {
 	    	    		HTTPUtil.publishStatus(fieldChannelId, fieldSequence, 404, output);
 	    	    	} else {
+	    	    		if (isDeflate) {
+	    	    			ServerCoordinator.setWebSocketDeflate(coordinator, fieldChannelId, true);
+	    	    		}
 	    	    		writeResponse(output, fieldChannelId, fieldSequence, routeId
 	    	    				     , acceptBacking, acceptPosition, acceptLength, acceptMask
-	    	    				     , protocolBacking, protocolPosition, protocolLength, protocolMask);
+	    	    				     , protocolBacking, protocolPosition, protocolLength, protocolMask
+	    	    				     , isDeflate);
 	    	    	}
 	    	    	
 	    	    	//only mark as read after we have written the response.
@@ -266,20 +296,103 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 										
 		            
 		        break;
-		        case -1:
-		        	Pipe.publishEOF(output);
+		        case HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301:
+		        	//an upgrade request carries no body, anything streamed after the head is dropped
+		        	Pipe.skipNextFragment(input, msgIdx);
 		        break;
+		        case -1:
+		        	Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
+		        	Pipe.releaseReadLock(input);
+		        	HTTPUtil.publishEOF(outputs, idx, inputPipes.length);
+		        	if (null!=framesOutput) {
+		        		Pipe.publishEOF(framesOutput);
+		        	}
+		        	return;
+		        default:
+		        	Pipe.skipNextFragment(input, msgIdx);
 		    }
-		    PipeReader.releaseReadLock(input);
 		}
 	}
 
+	private void forwardFrame(Pipe<HTTPRequestSchema> input, Pipe<HTTPRequestSchema> target) {
+		long channelId = Pipe.takeLong(input);
+		int sequence = Pipe.takeInt(input);
+		int finOpp = Pipe.takeInt(input);
+		int mask = Pipe.takeInt(input);
+		int meta = Pipe.takeRingByteMetaData(input);
+		int len = Pipe.takeRingByteLen(input);
+		int pos = Pipe.bytePosition(meta, input, len);
+
+		int size = Pipe.addMsgIdx(target, HTTPRequestSchema.MSG_WEBSOCKETFRAME_100);
+		Pipe.addLongValue(channelId, target);
+		Pipe.addIntValue(sequence, target);
+		Pipe.addIntValue(finOpp, target);
+		Pipe.addIntValue(mask, target);
+		DataOutputBlobWriter<HTTPRequestSchema> writer = Pipe.openOutputStream(target);
+		writer.write(Pipe.byteBackingArray(meta, input), pos, len, Pipe.blobMask(input));
+		DataOutputBlobWriter.closeLowLevelField(writer);
+		Pipe.confirmLowLevelWrite(target, size);
+		Pipe.publishWrites(target);
+
+		Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, HTTPRequestSchema.MSG_WEBSOCKETFRAME_100));
+		Pipe.releaseReadLock(input);
+	}
+
+	/**
+	 * Only the 20 byte SHA-1 is kept here, writeResponse sends it base64 encoded.
+	 * @return length of the hash or -1 if the key was too long to use
+	 */
+	private int acceptHash(DataInputBlobReader<HTTPRequestSchema> data, int length) {
+		if (length>MAX_HEADER_VALUE) {
+			data.skipBytes(length);
+			return -1;
+		}
+		data.read(keyWork, 0, length);
+		int start = 0;
+		while (start<length && keyWork[start]<=' ') {
+			start++;
+		}
+		int stop = length;
+		while (stop>start && keyWork[stop-1]<=' ') {
+			stop--;
+		}
+		System.arraycopy(WS_KEY_GUID, 0, keyWork, stop, WS_KEY_GUID.length);
+		sha1.reset();
+		sha1.update(keyWork, start, (stop-start)+WS_KEY_GUID.length);
+		try {
+			return sha1.digest(acceptHash, 0, SHA1_LENGTH);
+		} catch (DigestException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private boolean offersDeflate(DataInputBlobReader<HTTPRequestSchema> data, int length) {
+		if (length>MAX_HEADER_VALUE) {
+			data.skipBytes(length);
+			return false;
+		}
+		data.read(extensionsWork, 0, length);
+		//parameters offered by the client are ignored, the reply always asks for no context takeover
+		int last = length-WS_PERMESSAGE_DEFLATE.length;
+		for (int i = 0; i<=last; i++) {
+			int j = 0;
+			while (j<WS_PERMESSAGE_DEFLATE.length && extensionsWork[i+j]==WS_PERMESSAGE_DEFLATE[j]) {
+				j++;
+			}
+			if (j==WS_PERMESSAGE_DEFLATE.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private void writeResponse(Pipe<ServerResponseSchema> output
 			                  , long fieldChannelId
 			                  , int fieldSequence
 			                  , int routeId
 			                  , byte[] acceptBacking, int acceptPosition, int acceptLength, int acceptMask
-			                  , byte[] protocolBacking, int protocolPosition, int protocolLength, int protocolMask) {
+			                  , byte[] protocolBacking, int protocolPosition, int protocolLength, int protocolMask
+			                  , boolean isDeflate) {
 							///response ///////////////////////
 							//			        HTTP/1.1 101 Switching Protocols
 							//			        Upgrade: websocket
@@ -316,7 +429,7 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 							
 							if (acceptLength>=0) {
 								writer.write(HTTPHeaderDefaults.SEC_WEBSOCKET_ACCEPT.rootBytes());
-								writer.write(acceptBacking, acceptPosition, acceptLength, acceptMask);
+								Appendables.appendBase64Encoded(writer, acceptBacking, acceptPosition, acceptLength, acceptMask);
 								writer.write(AbstractRestStage.RETURN_NEWLINE);
 							}
 							
@@ -326,13 +439,13 @@ public class UpgradeToWebSocketStage extends PronghornStage {
 								writer.write(protocolBacking, protocolPosition, protocolLength, protocolMask);
 								writer.write(AbstractRestStage.RETURN_NEWLINE);
 							}
-							
-							
-							
-							//TODO: write these...
-							//			        Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=
-							//			        Sec-WebSocket-Protocol: chat
-							
+
+							if (isDeflate) {
+								writer.write(HTTPHeaderDefaults.SEC_WEBSOCKET_EXTENSIONS.rootBytes());
+								writer.write(WS_DEFLATE_RESPONSE);
+								writer.write(AbstractRestStage.RETURN_NEWLINE);
+							}
+
 							writer.write(AbstractRestStage.RETURN_NEWLINE);
 							
 							writer.closeLowLevelField();          
@@ -0,0 +1,403 @@
+package com.ociweb.pronghorn.network;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.WebSocketSchema;
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Turns the WebSocket frames the router sends to an upgraded pipe into whole messages.
+ *
+ * Payloads arrive still masked and are unmasked 8 bytes at a time into buffers allocated at startup.
+ * Continuation frames are joined, permessage-deflate messages are inflated and each text, binary or
+ * close message is published on the matching output. Pings are answered and protocol errors close
+ * the connection by sending messages on the control pipe to the WebSocketFrameEncoderStage.
+ */
+public class WebSocketFrameDecoderStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(WebSocketFrameDecoderStage.class);
+
+	private static final int FIN         = 0x80;
+	private static final int RSV1        = 0x40; //message is compressed when permessage-deflate is used
+	private static final int RSV_MASK    = 0x70;
+	private static final int OPCODE_MASK = 0x0F;
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int MAX_CONTROL_PAYLOAD = 125;
+
+	public static final int CLOSE_PROTOCOL_ERROR = 1002;
+	public static final int CLOSE_INVALID_DATA   = 1007;
+	public static final int CLOSE_TOO_BIG        = 1009;
+
+	//added to the end of each compressed message before it is inflated, see RFC 7692
+	private static final byte[] DEFLATE_TAIL = new byte[]{0x00, 0x00, (byte)0xFF, (byte)0xFF};
+
+	private final ServerCoordinator coordinator;
+	private final Pipe<HTTPRequestSchema>[] frames;
+	private final Pipe<WebSocketSchema>[] messages;
+	private final Pipe<WebSocketSchema> control;
+	private final int maxMessageSize;
+	private final int maxPartialMessages;
+
+	private byte[] scratch;
+	private ByteBuffer scratchView;
+	private byte[] inflated;
+	private Inflater inflater;
+	private final byte[] closeReply = new byte[2];
+
+	//messages sent as more than one frame, only a few connections are expected to be doing this at once
+	private long[]       partialChannel;
+	private byte[][]     partialData;
+	private ByteBuffer[] partialView;
+	private int[]        partialLength;
+	private int[]        partialOpcode;
+	private boolean[]    partialDeflated;
+
+	private int shutdownCount;
+
+	/**
+	 * @param frames upgraded pipes from the router, only WebSocketFrame messages are used
+	 * @param messages whole messages for the application, one for each frames pipe
+	 * @param control pong and close replies for the WebSocketFrameEncoderStage
+	 * @param maxMessageSize largest message after joining and inflating
+	 * @param maxPartialMessages connections which may be part way through a fragmented message at once,
+	 *                           the slots of connections which closed are reused when all are taken
+	 */
+	public WebSocketFrameDecoderStage(GraphManager graphManager, ServerCoordinator coordinator,
+			                          Pipe<HTTPRequestSchema>[] frames,
+			                          Pipe<WebSocketSchema>[] messages,
+			                          Pipe<WebSocketSchema> control,
+			                          int maxMessageSize, int maxPartialMessages) {
+		super(graphManager, frames, join(messages, control));
+		this.coordinator = coordinator;
+		this.frames = frames;
+		this.messages = messages;
+		this.control = control;
+		this.maxMessageSize = maxMessageSize;
+		this.maxPartialMessages = maxPartialMessages;
+		this.shutdownCount = frames.length;
+
+		if (frames.length != messages.length) {
+			throw new UnsupportedOperationException("Each frames pipe must have a messages pipe");
+		}
+		int i = messages.length;
+		while (--i>=0) {
+			if (messages[i].maxVarLen < maxMessageSize) {
+				throw new UnsupportedOperationException("messages pipes must hold at least "+maxMessageSize+" bytes but found "+messages[i].maxVarLen);
+			}
+		}
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
+	}
+
+	@Override
+	public void startup() {
+		scratch = new byte[maxMessageSize];
+		scratchView = ByteBuffer.wrap(scratch);
+		inflated = new byte[maxMessageSize];
+		inflater = new Inflater(true);
+
+		partialChannel = new long[maxPartialMessages];
+		Arrays.fill(partialChannel, -1);
+		partialData = new byte[maxPartialMessages][];
+		partialView = new ByteBuffer[maxPartialMessages];
+		int i = maxPartialMessages;
+		while (--i>=0) {
+			partialData[i] = new byte[maxMessageSize];
+			partialView[i] = ByteBuffer.wrap(partialData[i]);
+		}
+		partialLength = new int[maxPartialMessages];
+		partialOpcode = new int[maxPartialMessages];
+		partialDeflated = new boolean[maxPartialMessages];
+	}
+
+	@Override
+	public void run() {
+		int i = frames.length;
+		while (--i>=0) {
+			if (!process(frames[i], messages[i])) {
+				return;
+			}
+		}
+	}
+
+	private boolean process(Pipe<HTTPRequestSchema> input, Pipe<WebSocketSchema> output) {
+
+		//control may be needed for any frame so room is checked for both
+		while (Pipe.hasContentToRead(input)
+			   && Pipe.hasRoomForWrite(output)
+			   && Pipe.hasRoomForWrite(control)) {
+
+			int msgIdx = Pipe.takeMsgIdx(input);
+			if (msgIdx<0) {
+				Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
+				Pipe.releaseReadLock(input);
+				Pipe.publishEOF(output);
+				if (--shutdownCount<=0) {
+					Pipe.publishEOF(control);
+					requestShutdown();
+					return false;
+				}
+				return true;
+			}
+			if (HTTPRequestSchema.MSG_WEBSOCKETFRAME_100 != msgIdx) {
+				Pipe.skipNextFragment(input, msgIdx);
+				continue;
+			}
+
+			long channelId = Pipe.takeLong(input);
+			int sequence = Pipe.takeInt(input);
+			int finOpp = Pipe.takeInt(input);
+			int maskValue = Pipe.takeInt(input);
+
+			int meta = Pipe.takeRingByteMetaData(input);
+			int len = Pipe.takeRingByteLen(input);
+			int blobMask = Pipe.blobMask(input);
+			int pos = Pipe.bytePosition(meta, input, len);
+			byte[] blob = Pipe.byteBackingArray(meta, input);
+
+			decodeFrame(output, channelId, finOpp, maskValue, blob, pos, blobMask, len);
+
+			Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+			Pipe.releaseReadLock(input);
+		}
+		return true;
+	}
+
+	private void decodeFrame(Pipe<WebSocketSchema> output, long channelId, int finOpp, int maskValue,
+			                 byte[] blob, int pos, int blobMask, int len) {
+
+		final int opcode = OPCODE_MASK & finOpp;
+		final boolean isFin = 0 != (FIN & finOpp);
+		final boolean isDeflated = 0 != (RSV1 & finOpp);
+
+		if (0 != ((RSV_MASK & ~RSV1) & finOpp)
+			|| (isDeflated && (opcode>=WebSocketSchema.OPCODE_CLOSE 
+			                   || OPCODE_CONTINUATION==opcode //only the first frame is marked
+			                   || !ServerCoordinator.isWebSocketDeflate(coordinator, channelId)))) {
+			closeWithError(channelId, CLOSE_PROTOCOL_ERROR);
+			return;
+		}
+
+		if (opcode >= WebSocketSchema.OPCODE_CLOSE) {
+			if (!isFin || len > MAX_CONTROL_PAYLOAD) {
+				closeWithError(channelId, CLOSE_PROTOCOL_ERROR);
+				return;
+			}
+			unmaskInto(blob, pos, blobMask, len, maskValue, scratch, scratchView, 0);
+			decodeControl(output, channelId, opcode, len);
+			return;
+		}
+
+		int partialIdx = findPartial(channelId);
+		if (OPCODE_CONTINUATION == opcode) {
+			if (partialIdx<0) {
+				closeWithError(channelId, CLOSE_PROTOCOL_ERROR); //nothing to continue
+				return;
+			}
+			if (partialLength[partialIdx]+len > maxMessageSize) {
+				partialChannel[partialIdx] = -1;
+				closeWithError(channelId, CLOSE_TOO_BIG);
+				return;
+			}
+			unmaskInto(blob, pos, blobMask, len, maskValue, partialData[partialIdx], partialView[partialIdx], partialLength[partialIdx]);
+			partialLength[partialIdx] += len;
+			if (isFin) {
+				partialChannel[partialIdx] = -1; //free for reuse, the data is still read below
+				publishMessage(output, channelId, partialOpcode[partialIdx], partialDeflated[partialIdx],
+						       partialData[partialIdx], partialLength[partialIdx]);
+			}
+			return;
+		}
+
+		if (opcode != WebSocketSchema.OPCODE_TEXT && opcode != WebSocketSchema.OPCODE_BINARY) {
+			closeWithError(channelId, CLOSE_PROTOCOL_ERROR); //reserved opcode
+			return;
+		}
+		if (partialIdx>=0) {
+			partialChannel[partialIdx] = -1;
+			closeWithError(channelId, CLOSE_PROTOCOL_ERROR); //new message before the last one was finished
+			return;
+		}
+		if (len > maxMessageSize) {
+			closeWithError(channelId, CLOSE_TOO_BIG);
+			return;
+		}
+
+		if (isFin) {
+			//the usual case, the whole message is in one frame
+			unmaskInto(blob, pos, blobMask, len, maskValue, scratch, scratchView, 0);
+			publishMessage(output, channelId, opcode, isDeflated, scratch, len);
+		} else {
+			partialIdx = claimPartial();
+			if (partialIdx<0) {
+				logger.warn("more than {} fragmented messages at once, closing {}", maxPartialMessages, channelId);
+				closeWithError(channelId, CLOSE_TOO_BIG);
+				return;
+			}
+			partialChannel[partialIdx] = channelId;
+			partialOpcode[partialIdx] = opcode;
+			partialDeflated[partialIdx] = isDeflated;
+			unmaskInto(blob, pos, blobMask, len, maskValue, partialData[partialIdx], partialView[partialIdx], 0);
+			partialLength[partialIdx] = len;
+		}
+	}
+
+	private void decodeControl(Pipe<WebSocketSchema> output, long channelId, int opcode, int len) {
+		switch (opcode) {
+			case WebSocketSchema.OPCODE_PING:
+				//pong must carry the same application data
+				publish(control, channelId, WebSocketSchema.OPCODE_PONG, scratch, 0, len);
+				break;
+			case WebSocketSchema.OPCODE_PONG:
+				//unsolicited pongs are allowed and ignored
+				break;
+			case WebSocketSchema.OPCODE_CLOSE:
+				if (1==len) {
+					closeWithError(channelId, CLOSE_PROTOCOL_ERROR);
+					return;
+				}
+				//the application is told first, then the close is echoed and the connection closed
+				dropPartial(channelId);
+				publish(output, channelId, WebSocketSchema.OPCODE_CLOSE, scratch, 0, len);
+				publish(control, channelId, WebSocketSchema.OPCODE_CLOSE, scratch, 0, Math.min(2, len));
+				break;
+			default:
+				closeWithError(channelId, CLOSE_PROTOCOL_ERROR); //reserved control opcode
+		}
+	}
+
+	private void publishMessage(Pipe<WebSocketSchema> output, long channelId, int opcode, boolean isDeflated, byte[] data, int len) {
+		if (!isDeflated) {
+			publish(output, channelId, opcode, data, 0, len);
+		} else {
+			int inflatedLength = inflate(data, len);
+			if (inflatedLength>=0) {
+				publish(output, channelId, opcode, inflated, 0, inflatedLength);
+			} else {
+				closeWithError(channelId, -inflatedLength);
+			}
+		}
+	}
+
+	/**
+	 * No context takeover was agreed so every message starts from a reset inflater.
+	 * @return length inflated or the negative close code
+	 */
+	private int inflate(byte[] data, int len) {
+		inflater.reset();
+		int total = 0;
+		try {
+			inflater.setInput(data, 0, len);
+			total = inflateAll(total);
+			inflater.setInput(DEFLATE_TAIL, 0, DEFLATE_TAIL.length);
+			total = inflateAll(total);
+		} catch (DataFormatException e) {
+			return -CLOSE_INVALID_DATA;
+		}
+		if (total==maxMessageSize && !inflater.needsInput()) {
+			return -CLOSE_TOO_BIG;
+		}
+		return total;
+	}
+
+	private int inflateAll(int total) throws DataFormatException {
+		int count;
+		while (total<maxMessageSize && (count = inflater.inflate(inflated, total, maxMessageSize-total)) > 0) {
+			total += count;
+		}
+		return total;
+	}
+
+	private void publish(Pipe<WebSocketSchema> target, long channelId, int opcode, byte[] data, int pos, int len) {
+		int size = Pipe.addMsgIdx(target, WebSocketSchema.MSG_MESSAGE_100);
+		Pipe.addLongValue(channelId, target);
+		Pipe.addIntValue(opcode, target);
+		DataOutputBlobWriter<WebSocketSchema> writer = Pipe.openOutputStream(target);
+		writer.write(data, pos, len);
+		DataOutputBlobWriter.closeLowLevelField(writer);
+		Pipe.confirmLowLevelWrite(target, size);
+		Pipe.publishWrites(target);
+	}
+
+	private void closeWithError(long channelId, int code) {
+		dropPartial(channelId);
+		closeReply[0] = (byte)(code>>8);
+		closeReply[1] = (byte)code;
+		publish(control, channelId, WebSocketSchema.OPCODE_CLOSE, closeReply, 0, 2);
+	}
+
+	private int findPartial(long channelId) {
+		int i = maxPartialMessages;
+		while (--i>=0) {
+			if (channelId == partialChannel[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return free partial slot, slots held by connections which closed part way through a message are reclaimed
+	 */
+	private int claimPartial() {
+		int idx = findPartial(-1);
+		if (idx<0) {
+			int i = maxPartialMessages;
+			while (--i>=0) {
+				if (isClosed(partialChannel[i])) {
+					partialChannel[i] = -1;
+					idx = i;
+				}
+			}
+		}
+		return idx;
+	}
+
+	//the slot of a closed connection may already hold a new one with a different id, so both are checked
+	private boolean isClosed(long channelId) {
+		SSLConnection con = coordinator.connectionForSessionId(channelId);
+		return null==con || !con.isValid || !ServerCoordinator.isWebSocketUpgraded(coordinator, channelId);
+	}
+
+	private void dropPartial(long channelId) {
+		int idx = findPartial(channelId);
+		if (idx>=0) {
+			partialChannel[idx] = -1;
+		}
+	}
+
+	/**
+	 * Copies the masked payload out of the ring and unmasks it in place using 8 byte words.
+	 * The mask restarts with each frame so its phase is always zero at the frame start.
+	 */
+	public static void unmaskInto(byte[] blob, int pos, int blobMask, int len, int maskValue,
+			               byte[] target, ByteBuffer targetView, int targetPos) {
+		Pipe.copyBytesFromToRing(blob, pos, blobMask, target, targetPos, Integer.MAX_VALUE, len);
+		if (0 == maskValue) {
+			return;
+		}
+		final long wordMask = (((long)maskValue)<<32) | (0xFFFFFFFFL & maskValue);
+		final int words = len & ~0x7;
+		int i = 0;
+		while (i<words) {
+			int p = targetPos+i;
+			targetView.putLong(p, targetView.getLong(p) ^ wordMask);
+			i += 8;
+		}
+		while (i<len) {
+			target[targetPos+i] ^= (byte)(maskValue >>> (24-((i&0x3)<<3)));
+			i++;
+		}
+	}
+
+}
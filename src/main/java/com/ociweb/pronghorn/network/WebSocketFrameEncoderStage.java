@@ -0,0 +1,250 @@
+package com.ociweb.pronghorn.network;
+
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.network.schema.WebSocketSchema;
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Turns WebSocket messages from the application, and the pong and close replies from the
+ * WebSocketFrameDecoderStage, into frames for the OrderSupervisorStage.
+ *
+ * Server frames are never masked. Messages larger than the output pipes are split into continuation
+ * frames and data messages are compressed when permessage-deflate was agreed for the connection.
+ * Frames for one connection always go to the same output so they can not be reordered.
+ */
+public class WebSocketFrameEncoderStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(WebSocketFrameEncoderStage.class);
+
+	private static final int FIN  = 0x80;
+	private static final int RSV1 = 0x40;
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int MAX_CONTROL_PAYLOAD = 125;
+	private static final int MAX_HEADER = 10; //server frames have no mask key
+
+	//frames are not held back waiting for a request, see OrderSupervisorStage
+	public static final int FRAME_SEQUENCE = 0;
+
+	//smaller messages are sent as they are, compression would only make them larger
+	private static final int MIN_DEFLATE_SIZE = 64;
+
+	private final ServerCoordinator coordinator;
+	private final Pipe<WebSocketSchema>[] inputs;
+	private final Pipe<ServerResponseSchema>[] outputs;
+	private final int maxMessageSize;
+	private final int maxFramePayload;
+
+	private byte[] payload;
+	private byte[] deflated;
+	private Deflater deflater;
+	private final byte[] header = new byte[MAX_HEADER];
+
+	//message being sent, it may need more than one call to run when the output fills
+	private long activeChannel = -1;
+	private int activeOpcode;
+	private boolean activeDeflated;
+	private byte[] activeData;
+	private int activeLength;
+	private int activeSent;
+	private boolean activeStarted;
+
+	private int shutdownCount;
+
+	/**
+	 * @param inputs application messages and the control pipe of the decoder
+	 * @param outputs pipes to the OrderSupervisorStage, chosen by connection
+	 * @param maxMessageSize largest message accepted from the inputs
+	 */
+	public WebSocketFrameEncoderStage(GraphManager graphManager, ServerCoordinator coordinator,
+			                          Pipe<WebSocketSchema>[] inputs,
+			                          Pipe<ServerResponseSchema>[] outputs,
+			                          int maxMessageSize) {
+		super(graphManager, inputs, outputs);
+		this.coordinator = coordinator;
+		this.inputs = inputs;
+		this.outputs = outputs;
+		this.maxMessageSize = maxMessageSize;
+		this.shutdownCount = inputs.length;
+
+		int maxVarLen = Integer.MAX_VALUE;
+		int i = outputs.length;
+		while (--i>=0) {
+			maxVarLen = Math.min(maxVarLen, outputs[i].maxVarLen);
+		}
+		this.maxFramePayload = maxVarLen-MAX_HEADER;
+		if (maxFramePayload < MAX_CONTROL_PAYLOAD) {
+			throw new UnsupportedOperationException("outputs must hold at least "+(MAX_CONTROL_PAYLOAD+MAX_HEADER)+" bytes but found "+maxVarLen);
+		}
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
+	}
+
+	@Override
+	public void startup() {
+		payload = new byte[maxMessageSize];
+		//deflate may grow data which does not compress, it is only used when smaller
+		deflated = new byte[maxMessageSize];
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	}
+
+	@Override
+	public void run() {
+		int i = inputs.length;
+		while (--i>=0) {
+			Pipe<WebSocketSchema> input = inputs[i];
+			do {
+				if (activeChannel>=0 && !sendFrames()) {
+					return; //output is full, try again later
+				}
+			} while (Pipe.hasContentToRead(input) && takeMessage(input));
+		}
+	}
+
+	/**
+	 * @return false when the last input has ended
+	 */
+	private boolean takeMessage(Pipe<WebSocketSchema> input) {
+
+		int msgIdx = Pipe.takeMsgIdx(input);
+		if (msgIdx<0) {
+			Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
+			Pipe.releaseReadLock(input);
+			if (--shutdownCount<=0) {
+				int i = outputs.length;
+				while (--i>=0) {
+					Pipe.publishEOF(outputs[i]);
+				}
+				requestShutdown();
+			}
+			return false;
+		}
+
+		long channelId = Pipe.takeLong(input);
+		int opcode = Pipe.takeInt(input);
+		int meta = Pipe.takeRingByteMetaData(input);
+		int len = Pipe.takeRingByteLen(input);
+		int blobMask = Pipe.blobMask(input);
+		int pos = Pipe.bytePosition(meta, input, len);
+		byte[] blob = Pipe.byteBackingArray(meta, input);
+
+		boolean isControl = opcode >= WebSocketSchema.OPCODE_CLOSE;
+		if (len > maxMessageSize || (isControl && len > MAX_CONTROL_PAYLOAD)) {
+			logger.warn("dropped websocket message of {} bytes for {}", len, channelId);
+		} else {
+			//copied out so the input is released while the frames are sent
+			Pipe.copyBytesFromToRing(blob, pos, blobMask, payload, 0, Integer.MAX_VALUE, len);
+			activeChannel = channelId;
+			activeOpcode = opcode;
+			activeData = payload;
+			activeLength = len;
+			activeSent = 0;
+			activeStarted = false;
+			activeDeflated = false;
+
+			if (!isControl && len >= MIN_DEFLATE_SIZE
+				&& ServerCoordinator.isWebSocketDeflate(coordinator, channelId)) {
+				int deflatedLength = deflate(len);
+				if (deflatedLength>=0) {
+					activeData = deflated;
+					activeLength = deflatedLength;
+					activeDeflated = true;
+				}
+			}
+		}
+
+		Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+		Pipe.releaseReadLock(input);
+		return true;
+	}
+
+	/**
+	 * No context takeover was agreed so every message starts from a reset deflater.
+	 * @return compressed length without the trailing 00 00 FF FF or -1 if it would not be smaller
+	 */
+	private int deflate(int len) {
+		deflater.reset();
+		deflater.setInput(payload, 0, len);
+		int total = 0;
+		int count;
+		while (total<maxMessageSize
+			   && (count = deflater.deflate(deflated, total, maxMessageSize-total, Deflater.SYNC_FLUSH)) > 0) {
+			total += count;
+		}
+		if (!deflater.needsInput() || total>=len) {
+			return -1;
+		}
+		return total-4; //RFC 7692 removes the empty block ending each message
+	}
+
+	/**
+	 * @return true when the whole active message has been written
+	 */
+	private boolean sendFrames() {
+		final Pipe<ServerResponseSchema> output = outputs[(int)(activeChannel % outputs.length)];
+		final boolean isClose = WebSocketSchema.OPCODE_CLOSE == activeOpcode;
+
+		while (!activeStarted || activeSent < activeLength) {
+			if (!Pipe.hasRoomForWrite(output)) {
+				return false;
+			}
+			int chunk = Math.min(maxFramePayload, activeLength-activeSent);
+			boolean isLast = activeSent+chunk == activeLength;
+
+			int b0 = isLast ? FIN : 0;
+			if (!activeStarted) {
+				b0 |= activeOpcode | (activeDeflated ? RSV1 : 0);
+			} else {
+				b0 |= OPCODE_CONTINUATION;
+			}
+
+			int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNEL_100);
+			Pipe.addLongValue(activeChannel, output);
+			Pipe.addIntValue(FRAME_SEQUENCE, output);
+			DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.openOutputStream(output);
+			writer.write(header, 0, writeHeader(b0, chunk));
+			writer.write(activeData, activeSent, chunk);
+			DataOutputBlobWriter.closeLowLevelField(writer);
+			Pipe.addIntValue(isClose && isLast
+					         ? ServerCoordinator.END_RESPONSE_MASK | ServerCoordinator.CLOSE_CONNECTION_MASK
+					         : 0, output);
+			Pipe.confirmLowLevelWrite(output, size);
+			Pipe.publishWrites(output);
+
+			activeStarted = true;
+			activeSent += chunk;
+		}
+		activeChannel = -1;
+		return true;
+	}
+
+	private int writeHeader(int b0, int len) {
+		header[0] = (byte)b0;
+		if (len < 126) {
+			header[1] = (byte)len;
+			return 2;
+		} else if (len < 65536) {
+			header[1] = 126;
+			header[2] = (byte)(len>>8);
+			header[3] = (byte)len;
+			return 4;
+		} else {
+			header[1] = 127;
+			long value = len;
+			int i = 8;
+			while (--i>=0) {
+				header[2+i] = (byte)value;
+				value >>= 8;
+			}
+			return 10;
+		}
+	}
+
+}
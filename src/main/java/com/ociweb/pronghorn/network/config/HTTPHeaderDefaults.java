@@ -195,7 +195,9 @@ public enum HTTPHeaderDefaults implements HTTPHeader {
     X_ONLINE_HOST("x-Online-Host: %b"),
     X_FRONT_END_HTTPS("Front-End-Https: %b"),
     X_ATT_DEVICEID("x-ATT-DeviceId: %b"),
-    X_WAP_PROFILE("x-Wap-Profile: %b");
+    X_WAP_PROFILE("x-Wap-Profile: %b"),
+    RANGE("Range: %b"),
+    CONTENT_RANGE("Content-Range: %b");
             
     private CharSequence readingTemplate; //used for reading headers, must be lower case to do all case insinsitve matching
     private CharSequence writingRoot; //used for writing headers.
@@ -36,8 +36,11 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
 
 	public static final byte[] Switching_Protocols_101 = " 101 Switching Protocols\r\n".getBytes();
     protected static final byte[] OK_200                  = " 200 OK\r\n".getBytes();
+    protected static final byte[] Partial_Content_206     = " 206 Partial Content\r\n".getBytes();
+    protected static final byte[] Not_Modified_304        = " 304 Not Modified\r\n".getBytes();
     protected static final byte[] X_400                   = " 400 Bad Request\r\n".getBytes();
     protected static final byte[] Not_Found_404           = " 404 Not Found\r\n".getBytes();   
+    protected static final byte[] Range_Not_Satisfiable_416 = " 416 Range Not Satisfiable\r\n".getBytes();
     protected static final byte[] X_500                   = " 500 OK\r\n".getBytes();
     protected static final byte[] Service_Unavailable_503 = " 503 Service Unavailable\r\n".getBytes();
     
@@ -107,8 +110,8 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
                                         HTTPSpecification<T,R,V,H> httpSpec, byte[] revision, byte[] contentType, 
                                         int length, boolean chunked, 
                                         byte[] localETagBytes, boolean reportServer,
-                                        byte[] contLocBytes, int contLocBytesPos, int contLocBytesLen, int contLocBytesMask
-                                            		
+                                        byte[] contLocBytes, int contLocBytesPos, int contLocBytesLen, int contLocBytesMask,
+                                        byte[] otherHeaders
     		) {
         
         int headerSize = Pipe.addMsgIdx(localOutput, ServerResponseSchema.MSG_TOCHANNEL_100); //channel, sequence, context, payload 
@@ -125,7 +128,7 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
         		    status, originalRequestContext, localETagBytes,  
         		    contentType, length, chunked, reportServer,
         		    contLocBytes, contLocBytesPos, contLocBytesLen,  contLocBytesMask,
-        		    writer, 1&(originalRequestContext>>ServerCoordinator.CLOSE_CONNECTION_SHIFT));
+        		    otherHeaders, writer, 1&(originalRequestContext>>ServerCoordinator.CLOSE_CONNECTION_SHIFT));
         int bytesLength = writer.closeLowLevelField();
         
         Pipe.addIntValue( thisRequestContext , localOutput); //empty request context, set the full value last. 
@@ -144,6 +147,19 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
     		                       int length, boolean chunked, boolean server,
     		                       byte[] contLocBytes, int contLocBytesPos, int contLocBytesLen, int contLocBytesMask,
     		                       DataOutputBlobWriter<ServerResponseSchema> writer, int conStateIdx) {
+    	writeHeader(revisionBytes, status, requestContext, etagBytes, typeBytes, length, chunked, server,
+    			    contLocBytes, contLocBytesPos, contLocBytesLen, contLocBytesMask, null, writer, conStateIdx);
+    }
+    
+    /**
+     * @param otherHeaders complete header lines each ending with \r\n, eg Content-Encoding, or null
+     */
+    public static void writeHeader(byte[] revisionBytes, int status, int requestContext,
+    		                       byte[] etagBytes, byte[] typeBytes, 
+    		                       int length, boolean chunked, boolean server,
+    		                       byte[] contLocBytes, int contLocBytesPos, int contLocBytesLen, int contLocBytesMask,
+    		                       byte[] otherHeaders,
+    		                       DataOutputBlobWriter<ServerResponseSchema> writer, int conStateIdx) {
 
     	//TODO: expose this for web developers...
         boolean developerMode = false;
@@ -157,6 +173,12 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
             		writer.write(Not_Found_404);
             	} else if (101==status) {
             		writer.write(Switching_Protocols_101);            		
+            	} else if (206==status) {
+            		writer.write(Partial_Content_206);
+            	} else if (304==status) {
+            		writer.write(Not_Modified_304);
+            	} else if (416==status) {
+            		writer.write(Range_Not_Satisfiable_416);
             	} else if (400==status) {
                     writer.write(X_400);
                 } else if (500==status) {
@@ -199,6 +221,10 @@ public abstract class AbstractRestStage< T extends Enum<T> & HTTPContentType,
                 writer.write(typeBytes);
                 writer.write(RETURN_NEWLINE);
             }
+            
+            if (null!=otherHeaders) {
+            	writer.write(otherHeaders);
+            }
 
             //line four
             if (!chunked) {
@@ -0,0 +1,288 @@
+package com.ociweb.pronghorn.network.http;
+
+/**
+ * Static parts of HPACK (RFC 7541) shared by the HTTP/2 router and the ordering supervisor.
+ *
+ * Responses are encoded with literals only, never added to the dynamic table and never Huffman
+ * coded, so the encoding side keeps no per connection state.
+ */
+public final class HPack {
+
+	static final int STATIC_TABLE_LENGTH = 61;
+
+	static final byte[][] STATIC_NAMES = names(
+			null,
+			":authority", ":method", ":method", ":path", ":path", ":scheme", ":scheme",
+			":status", ":status", ":status", ":status", ":status", ":status", ":status",
+			"accept-charset", "accept-encoding", "accept-language", "accept-ranges", "accept",
+			"access-control-allow-origin", "age", "allow", "authorization", "cache-control",
+			"content-disposition", "content-encoding", "content-language", "content-length",
+			"content-location", "content-range", "content-type", "cookie", "date", "etag", "expect",
+			"expires", "from", "host", "if-match", "if-modified-since", "if-none-match", "if-range",
+			"if-unmodified-since", "last-modified", "link", "location", "max-forwards",
+			"proxy-authenticate", "proxy-authorization", "range", "referer", "refresh", "retry-after",
+			"server", "set-cookie", "strict-transport-security", "transfer-encoding", "user-agent",
+			"vary", "via", "www-authenticate");
+
+	static final byte[][] STATIC_VALUES = names(
+			null,
+			"", "GET", "POST", "/", "/index.html", "http", "https",
+			"200", "204", "206", "304", "400", "404", "500",
+			"", "gzip, deflate", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "",
+			"", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "",
+			"", "", "", "", "", "");
+
+	//bit length of each symbol, codes are canonical so they are rebuilt from these
+	private static final byte[] HUFFMAN_LENGTHS = {
+			13,23,28,28,28,28,28,28,28,24,30,28,28,30,28,28,28,28,28,28,28,28,30,28,28,28,28,28,28,28,28,28,
+			6,10,10,12,13,6,8,11,10,10,8,11,8,6,6,6,5,5,5,6,6,6,6,6,6,6,7,8,15,6,12,10,
+			13,6,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,8,7,8,13,19,13,14,6,
+			15,5,6,5,6,5,6,6,6,5,7,7,6,6,6,5,6,7,6,5,5,6,7,7,7,7,7,15,11,14,13,28,
+			20,22,20,20,22,22,22,23,22,23,23,23,23,23,24,23,24,24,22,23,24,23,23,23,23,21,22,23,22,23,23,24,
+			22,21,20,22,22,23,23,21,23,22,22,24,21,22,23,23,21,21,22,21,23,22,23,23,20,22,22,22,23,22,22,23,
+			26,26,20,19,22,23,22,25,26,26,26,27,27,26,24,25,19,21,26,27,27,26,27,24,21,21,26,26,28,27,27,27,
+			20,24,20,21,22,21,21,23,22,22,25,25,24,24,26,23,26,27,26,26,27,27,27,27,27,28,27,27,27,27,27,26,
+			30};
+
+	private static final int EOS = 256;
+
+	//two children per internal node, positive values are the next node and negative values are -(symbol+1)
+	private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+	private HPack() {
+	}
+
+	private static byte[][] names(String ... values) {
+		byte[][] result = new byte[values.length][];
+		int i = values.length;
+		while (--i>=0) {
+			result[i] = null==values[i] ? null : values[i].getBytes();
+		}
+		return result;
+	}
+
+	private static int[] buildHuffmanTree() {
+		int[] tree = new int[2*EOS];
+		int nodes = 1;
+
+		int code = 0;
+		int prevLength = 0;
+		for(int length = 1; length<=30; length++) {
+			for(int symbol = 0; symbol<=EOS; symbol++) {
+				if (HUFFMAN_LENGTHS[symbol]==length) {
+					code <<= (length-prevLength);
+					prevLength = length;
+
+					int node = 0;
+					for(int bit = length-1; bit>0; bit--) {
+						int slot = (node<<1) | (1&(code>>bit));
+						if (0==tree[slot]) {
+							tree[slot] = nodes++;
+						}
+						node = tree[slot];
+					}
+					tree[(node<<1) | (1&code)] = -(symbol+1);
+					code++;
+				}
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * @return count of bytes written to target or -1 if the data is not valid Huffman or does not fit
+	 */
+	public static int huffmanDecode(byte[] source, int pos, int len, int mask, byte[] target, int targetPos) {
+		int t = targetPos;
+		int node = 0;
+		int bitsSinceSymbol = 0;
+		boolean allOnes = true;
+		for(int i = 0; i<len; i++) {
+			int b = source[mask & (pos+i)];
+			for(int bit = 7; bit>=0; bit--) {
+				int value = 1&(b>>bit);
+				int next = HUFFMAN_TREE[(node<<1) | value];
+				bitsSinceSymbol++;
+				allOnes &= (1==value);
+				if (next<0) {
+					int symbol = -next-1;
+					if (EOS==symbol || t>=target.length) {
+						return -1;
+					}
+					target[t++] = (byte)symbol;
+					node = 0;
+					bitsSinceSymbol = 0;
+					allOnes = true;
+				} else if (0==next) {
+					return -1;
+				} else {
+					node = next;
+				}
+			}
+		}
+		//only a prefix of EOS shorter than a byte may be left as padding
+		if (bitsSinceSymbol>7 || !allOnes) {
+			return -1;
+		}
+		return t-targetPos;
+	}
+
+	public static int writeInteger(byte[] target, int pos, int prefixBits, int flags, int value) {
+		int max = (1<<prefixBits)-1;
+		if (value<max) {
+			target[pos++] = (byte)(flags | value);
+			return pos;
+		}
+		target[pos++] = (byte)(flags | max);
+		value -= max;
+		while (value>=0x80) {
+			target[pos++] = (byte)(0x80 | (value&0x7F));
+			value >>>= 7;
+		}
+		target[pos++] = (byte)value;
+		return pos;
+	}
+
+	public static int writeString(byte[] target, int pos, byte[] source, int sourcePos, int len, int mask, boolean lowerCase) {
+		pos = writeInteger(target, pos, 7, 0, len);
+		for(int i = 0; i<len; i++) {
+			byte b = source[mask & (sourcePos+i)];
+			target[pos++] = (lowerCase && b>='A' && b<='Z') ? (byte)(b+('a'-'A')) : b;
+		}
+		return pos;
+	}
+
+	/**
+	 * @return static table index of this header name ignoring case or 0 if it is not in the table
+	 */
+	public static int staticNameIndex(byte[] source, int pos, int len, int mask) {
+		for(int i = 15; i<=STATIC_TABLE_LENGTH; i++) {
+			if (equalsIgnoreCase(STATIC_NAMES[i], source, pos, len, mask)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	private static boolean equalsIgnoreCase(byte[] lower, byte[] source, int pos, int len, int mask) {
+		if (lower.length!=len) {
+			return false;
+		}
+		int i = len;
+		while (--i>=0) {
+			int b = source[mask & (pos+i)];
+			if (b>='A' && b<='Z') {
+				b += ('a'-'A');
+			}
+			if (b!=lower[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int statusIndex(int status) {
+		switch (status) {
+			case 200: return 8;
+			case 204: return 9;
+			case 206: return 10;
+			case 304: return 11;
+			case 400: return 12;
+			case 404: return 13;
+			case 500: return 14;
+			default: return 0;
+		}
+	}
+
+	/**
+	 * @return length of the HTTP/1.x response head including the blank line or -1 if it is not all here
+	 */
+	public static int headLength(byte[] source, int pos, int len, int mask) {
+		for(int i = 3; i<len; i++) {
+			if ('\n'==source[mask & (pos+i)] && '\n'==source[mask & (pos+i-2)]
+				&& '\r'==source[mask & (pos+i-1)] && '\r'==source[mask & (pos+i-3)]) {
+				return i+1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Translates the HTTP/1.x response head written by the modules into an HPACK header block.
+	 * Connection specific headers are dropped since they are not allowed in HTTP/2.
+	 *
+	 * @return position in target after the header block
+	 */
+	public static int encodeHTTP1Head(byte[] source, int pos, int headLen, int mask, byte[] target, int targetPos) {
+		final int end = pos+headLen-2; //the blank line is not needed
+
+		//status line, HTTP/1.1 200 OK
+		int p = pos;
+		while (p<end && ' '!=source[mask & p]) {
+			p++;
+		}
+		int status = 0;
+		for(int i = 1; i<=3; i++) {
+			status = (status*10) + (source[mask & (p+i)]-'0');
+		}
+		int idx = statusIndex(status);
+		if (idx>0) {
+			targetPos = writeInteger(target, targetPos, 7, 0x80, idx);
+		} else {
+			targetPos = writeInteger(target, targetPos, 4, 0, 8);
+			targetPos = writeString(target, targetPos, source, p+1, 3, mask, false);
+		}
+		p = nextLine(source, p, end, mask);
+
+		while (p<end) {
+			int nameStart = p;
+			while (p<end && ':'!=source[mask & p]) {
+				p++;
+			}
+			int nameLen = p-nameStart;
+			p++;
+			while (p<end && ' '==source[mask & p]) {
+				p++;
+			}
+			int valueStart = p;
+			int lineEnd = nextLine(source, p, end, mask);
+			int valueLen = lineEnd-valueStart;
+			while (valueLen>0 && ('\r'==source[mask & (valueStart+valueLen-1)] || '\n'==source[mask & (valueStart+valueLen-1)])) {
+				valueLen--;
+			}
+
+			if (!isConnectionSpecific(source, nameStart, nameLen, mask)) {
+				int nameIdx = staticNameIndex(source, nameStart, nameLen, mask);
+				if (nameIdx>0) {
+					targetPos = writeInteger(target, targetPos, 4, 0, nameIdx); //literal without indexing
+				} else {
+					target[targetPos++] = 0;
+					targetPos = writeString(target, targetPos, source, nameStart, nameLen, mask, true);
+				}
+				targetPos = writeString(target, targetPos, source, valueStart, valueLen, mask, false);
+			}
+			p = lineEnd;
+		}
+		return targetPos;
+	}
+
+	private static int nextLine(byte[] source, int p, int end, int mask) {
+		while (p<end && '\n'!=source[mask & p]) {
+			p++;
+		}
+		return p+1;
+	}
+
+	private static final byte[][] CONNECTION_SPECIFIC = names("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+	private static boolean isConnectionSpecific(byte[] source, int pos, int len, int mask) {
+		int i = CONNECTION_SPECIFIC.length;
+		while (--i>=0) {
+			if (equalsIgnoreCase(CONNECTION_SPECIFIC[i], source, pos, len, mask)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
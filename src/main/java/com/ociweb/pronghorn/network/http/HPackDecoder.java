@@ -0,0 +1,216 @@
+package com.ociweb.pronghorn.network.http;
+
+/**
+ * HPACK header block decoder holding the dynamic table of one HTTP/2 connection.
+ * Only the router reading that connection may use it.
+ */
+public final class HPackDecoder {
+
+	public interface HeaderSink {
+		void header(byte[] name, int nameLen, byte[] value, int valueLen);
+	}
+
+	public static final int DEFAULT_TABLE_SIZE = 4096;
+	private static final int ENTRY_OVERHEAD = 32;
+
+	private final int maxTableSize;
+	private int tableLimit;
+	private int tableSize;
+
+	//ring of entries, newest first
+	private final byte[][] names;
+	private final byte[][] values;
+	private final int[] nameLens;
+	private final int[] valueLens;
+	private int first;
+	private int count;
+
+	private final byte[] name;
+	private final byte[] value;
+	private int nameLen;
+	private int valueLen;
+
+	private byte[] source;
+	private int mask;
+	private int pos;
+	private int end;
+
+	public HPackDecoder(int maxTableSize, int maxStringLength) {
+		this.maxTableSize = maxTableSize;
+		this.tableLimit = maxTableSize;
+		int slots = (maxTableSize/ENTRY_OVERHEAD)+1;
+		this.names = new byte[slots][];
+		this.values = new byte[slots][];
+		this.nameLens = new int[slots];
+		this.valueLens = new int[slots];
+		this.name = new byte[maxStringLength];
+		this.value = new byte[maxStringLength];
+	}
+
+	/**
+	 * @return false if the block is not valid, the connection must then be closed since the table is no longer in sync
+	 */
+	public boolean decode(byte[] source, int start, int len, int mask, HeaderSink sink) {
+		this.source = source;
+		this.mask = mask;
+		this.pos = start;
+		this.end = start+len;
+
+		while (pos<end) {
+			int b = 0xFF & source[mask & pos];
+			if (0 != (b&0x80)) {
+				//indexed field
+				int idx = readInteger(7);
+				if (idx<=0 || !lookup(idx, true)) {
+					return false;
+				}
+			} else if (0x40 == (b&0xC0)) {
+				//literal with incremental indexing
+				if (!readLiteral(6)) {
+					return false;
+				}
+				add();
+			} else if (0x20 == (b&0xE0)) {
+				//dynamic table size update
+				int limit = readInteger(5);
+				if (limit<0 || limit>maxTableSize) {
+					return false;
+				}
+				tableLimit = limit;
+				evict(0);
+				continue;
+			} else {
+				//literal without indexing or never indexed
+				if (!readLiteral(4)) {
+					return false;
+				}
+			}
+			sink.header(name, nameLen, value, valueLen);
+		}
+		return pos==end;
+	}
+
+	private boolean readLiteral(int prefixBits) {
+		int idx = readInteger(prefixBits);
+		if (idx<0) {
+			return false;
+		}
+		if (idx>0) {
+			if (!lookup(idx, false)) {
+				return false;
+			}
+		} else {
+			nameLen = readString(name);
+			if (nameLen<0) {
+				return false;
+			}
+		}
+		valueLen = readString(value);
+		return valueLen>=0;
+	}
+
+	private int readInteger(int prefixBits) {
+		if (pos>=end) {
+			return -1;
+		}
+		int max = (1<<prefixBits)-1;
+		int result = max & source[mask & pos++];
+		if (result<max) {
+			return result;
+		}
+		int shift = 0;
+		int b;
+		do {
+			if (pos>=end || shift>21) {
+				return -1;
+			}
+			b = source[mask & pos++];
+			result += (b&0x7F)<<shift;
+			shift += 7;
+		} while (0 != (b&0x80));
+		return result;
+	}
+
+	private int readString(byte[] target) {
+		if (pos>=end) {
+			return -1;
+		}
+		boolean huffman = 0 != (0x80&source[mask & pos]);
+		int len = readInteger(7);
+		if (len<0 || len>end-pos) {
+			return -1;
+		}
+		int result;
+		if (huffman) {
+			result = HPack.huffmanDecode(source, pos, len, mask, target, 0);
+		} else if (len<=target.length) {
+			int i = len;
+			while (--i>=0) {
+				target[i] = source[mask & (pos+i)];
+			}
+			result = len;
+		} else {
+			result = -1;
+		}
+		pos += len;
+		return result;
+	}
+
+	private boolean lookup(int idx, boolean withValue) {
+		if (idx<=HPack.STATIC_TABLE_LENGTH) {
+			nameLen = copy(HPack.STATIC_NAMES[idx], HPack.STATIC_NAMES[idx].length, name);
+			if (withValue) {
+				valueLen = copy(HPack.STATIC_VALUES[idx], HPack.STATIC_VALUES[idx].length, value);
+			}
+			return true;
+		}
+		int i = idx-HPack.STATIC_TABLE_LENGTH-1;
+		if (i>=count) {
+			return false;
+		}
+		int slot = (first+i)%names.length;
+		nameLen = copy(names[slot], nameLens[slot], name);
+		if (withValue) {
+			valueLen = copy(values[slot], valueLens[slot], value);
+		}
+		return true;
+	}
+
+	private static int copy(byte[] source, int len, byte[] target) {
+		System.arraycopy(source, 0, target, 0, len);
+		return len;
+	}
+
+	private void add() {
+		int entrySize = ENTRY_OVERHEAD+nameLen+valueLen;
+		if (entrySize>tableLimit) {
+			//larger than the whole table, this empties it
+			count = 0;
+			tableSize = 0;
+			return;
+		}
+		evict(entrySize);
+		first = (first+names.length-1)%names.length;
+		names[first] = keep(names[first], name, nameLen);
+		values[first] = keep(values[first], value, valueLen);
+		nameLens[first] = nameLen;
+		valueLens[first] = valueLen;
+		count++;
+		tableSize += entrySize;
+	}
+
+	private static byte[] keep(byte[] existing, byte[] source, int len) {
+		byte[] target = (null!=existing && existing.length>=len) ? existing : new byte[len];
+		System.arraycopy(source, 0, target, 0, len);
+		return target;
+	}
+
+	private void evict(int room) {
+		while (count>0 && tableSize+room>tableLimit) {
+			int slot = (first+count-1)%names.length;
+			tableSize -= (ENTRY_OVERHEAD+nameLens[slot]+valueLens[slot]);
+			count--;
+		}
+	}
+
+}
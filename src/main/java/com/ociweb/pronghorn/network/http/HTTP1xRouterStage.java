@@ -59,7 +59,7 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
      };
      
     
-    private final Pipe<NetPayloadSchema>[] inputs;
+    final Pipe<NetPayloadSchema>[] inputs;
     private       long[]                   inputChannels;
     private       int[]                    inputBlobPos;
     private       int[]                    inputBlobPosLimit;
@@ -70,25 +70,43 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
         
     private final Pipe<ReleaseSchema> releasePipe;
     
-    private final Pipe<HTTPRequestSchema>[] outputs;
+    final Pipe<HTTPRequestSchema>[] outputs;
     
     private int   waitForOutputOn = -1;
 
     private long[] inputSlabPos;
-    private int[] sequences;
+    int[] sequences;
     private int[] sequencesSent;
         
     public static int MAX_HEADER = 1<<15; //universal maximum header size.
     
     private int[] inputCounts;
     
+    //request bodies too large for one message or chunked are streamed after the request, see ServerCoordinator.STREAMED_BODY_MASK
+    private static final int BODY_NONE    = 0;
+    private static final int BODY_LENGTH  = 1;
+    private static final int BODY_CHUNKED = 2;
+    
+    private static final int CHUNK_SIZE_LINE = 0;
+    private static final int CHUNK_DATA      = 1;
+    private static final int CHUNK_DATA_END  = 2;
+    private static final int CHUNK_TRAILER   = 3;
+    private static final int MAX_CHUNK_LINE  = 1024;
+    
+    private int[]  bodyMode;
+    private long[] bodyRemaining;
+    private int[]  chunkState;
+    private int[]  bodyPipe;
+    private int[]  bodySequence;
+    private final long[] bodyLength = new long[1]; //set by parseHeaderFields for streamed bodies, -1 for chunked
+    
     private int totalShortestRequest;
     private int shutdownCount;
     
     private int idx;
-    private final HTTP1xRouterStageConfig<T,R,V,H> config;
-    private final ServerCoordinator coordinator;
-    private final Pipe<ServerResponseSchema> errorResponsePipe;
+    final HTTP1xRouterStageConfig<T,R,V,H> config;
+    final ServerCoordinator coordinator;
+    final Pipe<ServerResponseSchema> errorResponsePipe;
 	private boolean catchAll;
     private final int parallelId;
 
@@ -202,6 +220,12 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
         sequences = new int[inputs.length];
         sequencesSent = new int[inputs.length];
         
+        bodyMode = new int[inputs.length];
+        bodyRemaining = new long[inputs.length];
+        chunkState = new int[inputs.length];
+        bodyPipe = new int[inputs.length];
+        bodySequence = new int[inputs.length];
+        
         final int sizeOfVarField = 2;
  
         int h = config.totalPathsCount();
@@ -271,9 +295,10 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
     @Override
     public void run() {
     	
-        if (waitForOutputOn>=0 && waitForOutputOn<outputs.length) {
+        if (waitForOutputOn>=0) {
         	
-        	if (Pipe.hasRoomForWrite(outputs[waitForOutputOn])) {
+        	//outputs.length is used for the errorResponsePipe
+        	if (Pipe.hasRoomForWrite(waitForOutputOn<outputs.length ? outputs[waitForOutputOn] : errorResponsePipe)) {
         		waitForOutputOn=-1;
         	} else {
         		//logger.trace("wait for output on {}",waitForOutputOn);
@@ -404,13 +429,13 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
             
             int pos = inputBlobPos[idx];
             
-            int finOpp = backing[mask & pos++];
+            int finOpp = 0xFF & backing[mask & pos++];
             int b2 = backing[mask & pos++];
 
             int headerSize = 2;
 
-            int msk = b2&1;
-            long length = (b2>>1);
+            int msk = (b2>>7)&1; //clients must always mask
+            long length = (b2&0x7F);
             
             if (length<126) {
             	//small 7 bits
@@ -418,11 +443,21 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
             
             } else if (length==126){
             	//med 16 bits
-            	length = ((       backing[mask & pos++] << 8) |
-                        (0xFF & backing[mask & pos++])); 
+            	if (totalAvail < 4) {
+            		return markBlockConsumed(idx, selectedInput, channel, 
+            				inputBlobPos[idx], 
+            				totalAvail, NEED_MORE_DATA, 0, totalAvail);
+            	}
+            	length = ((0xFF & backing[mask & pos++]) << 8) |
+                         (0xFF & backing[mask & pos++]); 
             	headerSize += 2;
             } else {
             	//large 64 bits
+            	if (totalAvail < 10) {
+            		return markBlockConsumed(idx, selectedInput, channel, 
+            				inputBlobPos[idx], 
+            				totalAvail, NEED_MORE_DATA, 0, totalAvail);
+            	}
             	length =
             	( ( (  (long)backing[mask & pos++]) << 56) |              
                         ( (0xFFl & backing[mask & pos++]) << 48) |
@@ -434,7 +469,7 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
                           (0xFFl & backing[mask & pos++]) ); 
             	headerSize += 8;
             }
-            if (totalAvail < (2+length+(msk<<2))) {
+            if (totalAvail < (headerSize+length+(msk<<2))) {
             	return markBlockConsumed(idx, selectedInput, channel, 
 		                   inputBlobPos[idx], 
 		                   totalAvail, NEED_MORE_DATA, 0, totalAvail);
@@ -452,31 +487,19 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
 
         	assert(length<=Integer.MAX_VALUE);
         	
-            int maskPosition = 0; 
-            DataOutputBlobWriter<HTTPRequestSchema> stream;
             if (1==msk) {//masking is the normal condition for almost all calls
-            	maskPosition = pos;//keep for use later
-            	
-            	//make this value available, as well to the caller
             	int maskValue =	 ( ( (            backing[mask & pos++]) << 24) |
 				            			( (0xFF & backing[mask & pos++]) << 16) |
 				            			( (0xFF & backing[mask & pos++]) << 8) |
 				            			  (0xFF & backing[mask & pos++]) );
             	headerSize += 4;
             	Pipe.addIntValue(maskValue, outputPipe);
-            	//un-mask the data into the next pipe for use
-            	
-            	stream = Pipe.openOutputStream(outputPipe);
-            	
-            	for(int i = 0; i<length; i++) {            		
-            		stream.writeByte(backing[mask & ((maskPosition+i) & 0x3)] ^ backing[mask & pos++] );
-            	}            	
             } else {
-            	Pipe.addIntValue(0, outputPipe);      	//no mask discoverd so directly copy the data
-            	
-            	stream = Pipe.openOutputStream(outputPipe);
-            	stream.write(backing, pos, (int)length, mask);
+            	Pipe.addIntValue(0, outputPipe); //no mask, XOR with zero leaves the payload as is
             }
+            //payload is passed on still masked, WebSocketFrameDecoderStage unmasks it a word at a time
+            DataOutputBlobWriter<HTTPRequestSchema> stream = Pipe.openOutputStream(outputPipe);
+            stream.write(backing, pos, (int)length, mask);
 
             DataOutputBlobWriter.closeLowLevelField(stream);
             	
@@ -516,7 +539,7 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
 			            
 			if (toParseLength>0) {
 				
-				int state = parseHTTP(trieReader, channel, idx);				
+				int state = parseRequest(trieReader, channel, idx);				
 				int totalConsumed = (int)(toParseLength - TrieParserReader.parseHasContentLength(trieReader));           
 				int remainingBytes = trieReader.sourceLen;
 				
@@ -559,7 +582,9 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
 		    	                        //next read will start with new postion.
 		    		//send release if appropriate
        
+		    		//the pipe stays reserved for this channel until the streamed body is complete
 		    		if ((remainingBytes<=0) 
+		    			&& BODY_NONE == bodyMode[idx]
 		    			&& consumedAllOfActiveFragment(selectedInput, p)) { 
 		    	
 		    				assert(0==Pipe.releasePendingByteCount(selectedInput));
@@ -603,8 +628,8 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
 	}
 
     
- private final static int NEED_MORE_DATA = 2;
- private final static int SUCCESS = 1;
+ final static int NEED_MORE_DATA = 2;
+ final static int SUCCESS = 1;
  
 // -1 no room on output pipe (do not call again until the pipe is clear, send back pipe to watch)
 //  2 need more data to parse (do not call again until data to parse arrives)
@@ -612,7 +637,12 @@ public class HTTP1xRouterStage<T extends Enum<T> & HTTPContentType,
 // <=0 for wating on this output pipe to have room (the pipe idx is negative)
  
  
-private int parseHTTP(TrieParserReader trieReader, final long channel, final int idx) {    
+//other protocols read from the same inputs override this, see HTTP2RouterStage
+int parseRequest(TrieParserReader trieReader, final long channel, final int idx) {
+	return (BODY_NONE == bodyMode[idx]) ? parseHTTP(trieReader, channel, idx) : parseBody(trieReader, channel, idx);
+}
+
+int parseHTTP(TrieParserReader trieReader, final long channel, final int idx) {    
 
     if (showHeader) {
     	System.out.println("///////////////// ROUTE HEADER "+channel+"///////////////////");
@@ -784,7 +814,8 @@ private int parseHTTP(TrieParserReader trieReader, final long channel, final int
 											 keepAliveOrNotContext(httpRevisionId),
 											 trieReader,
 											 config.headerMap,
-											 config.END_OF_HEADER_ID);  // Write 2   10 //if header is presen
+											 config.END_OF_HEADER_ID,
+											 bodyLength);  // Write 2   10 //if header is presen
        
         
         if (ServerCoordinator.INCOMPLETE_RESPONSE_MASK == requestContext) {  
@@ -792,11 +823,19 @@ private int parseHTTP(TrieParserReader trieReader, final long channel, final int
             //try again later, not complete.
             Pipe.resetHead(outputPipe);
             return NEED_MORE_DATA;
-        } 
-        
-   
-        ////////TODO: URGENT: re-think this as we still need to add the chunked post payload??
-        
+        }
+
+        if (0 != (ServerCoordinator.STREAMED_BODY_MASK & requestContext)
+        	&& null != config.JSONExtractor(pathId)) {
+        	//JSON is extracted from a single message so routes with an extractor can not take streamed bodies
+        	DataOutputBlobWriter.closeLowLevelField(writer);
+        	Pipe.resetHead(outputPipe);
+        	sendError(trieReader, channel, idx, tempLen, tempPos, 413);
+        	return SUCCESS;
+        }
+
+        //large and chunked bodies are not in this message, they follow as RestRequestContinuation fragments
+
     	DataOutputBlobWriter.commitBackData(writer);
     	DataOutputBlobWriter.closeLowLevelField(writer);
         
@@ -815,12 +854,16 @@ private int parseHTTP(TrieParserReader trieReader, final long channel, final int
         assert(consumed>=0);        
         Pipe.confirmLowLevelWrite(outputPipe, size); 
   
+        if (0 != (ServerCoordinator.STREAMED_BODY_MASK & requestContext)) {
+        	beginStreamedBody(idx, pathId<outputs.length ? pathId : 0, bodyLength[0]);
+        }
         sequences[idx]++; //increment the sequence since we have now published the route.
+        coordinator.responseStarted(channel);
         
     } else {
     	//logger.info("No room, waiting for {} {}",channel, outputPipe);
         //no room try again later
-        return -pathId;
+        return -(pathId<outputs.length ? pathId : 0);
     }
     
    inputCounts[idx]++; 
@@ -828,6 +871,168 @@ private int parseHTTP(TrieParserReader trieReader, final long channel, final int
    return SUCCESS;
 }
 
+void beginStreamedBody(final int idx, int pipeIdx, long length) {
+	bodyMode[idx]      = length<0 ? BODY_CHUNKED : BODY_LENGTH;
+	bodyRemaining[idx] = length<0 ? 0 : length;
+	chunkState[idx]    = CHUNK_SIZE_LINE;
+	bodyPipe[idx]      = pipeIdx;
+	bodySequence[idx]  = sequences[idx]; //same sequence as the request it belongs to
+}
+
+/**
+ * Forwards the next part of a streamed body, never more than one output fragment at a time so
+ * the memory used is bounded by the pipes and a full output pipe stops the reading.
+ * Returns the same states as parseHTTP.
+ */
+private int parseBody(TrieParserReader trieReader, final long channel, final int idx) {
+	
+	if (trieReader.sourceLen<=0) {
+		return NEED_MORE_DATA;
+	}
+	
+	if (BODY_LENGTH == bodyMode[idx]) {
+		return publishBodyData(trieReader, channel, idx, true);
+	}
+	
+	final byte[] backing = Pipe.blob(inputs[idx]);
+	final int mask = Pipe.blobMask(inputs[idx]);
+	
+	switch (chunkState[idx]) {
+		case CHUNK_SIZE_LINE:
+		{
+			int lineLen = lineLength(trieReader, backing, mask);
+			if (lineLen<0) {
+				return needMoreChunkData(trieReader, channel, idx);
+			}
+			long chunkSize = 0;
+			int i = 0;
+			int digit;
+			while (i<lineLen && chunkSize<=Integer.MAX_VALUE && (digit = Character.digit(backing[mask & (trieReader.sourcePos+i)], 16))>=0) {
+				chunkSize = (chunkSize<<4) | digit;
+				i++;
+			}
+			if (0==i || chunkSize>Integer.MAX_VALUE) {
+				return badChunk(trieReader, channel, idx);
+			}
+			skipBytes(trieReader, lineLen+2); //extensions after ; are ignored
+			if (0 == chunkSize) {
+				chunkState[idx] = CHUNK_TRAILER;
+			} else {
+				bodyRemaining[idx] = chunkSize;
+				chunkState[idx] = CHUNK_DATA;
+			}
+			return SUCCESS;
+		}
+		case CHUNK_DATA:
+			return publishBodyData(trieReader, channel, idx, false);
+		case CHUNK_DATA_END:
+			if (trieReader.sourceLen<2) {
+				return NEED_MORE_DATA;
+			}
+			if ('\r'!=backing[mask & trieReader.sourcePos] || '\n'!=backing[mask & (trieReader.sourcePos+1)]) {
+				return badChunk(trieReader, channel, idx);
+			}
+			skipBytes(trieReader, 2);
+			chunkState[idx] = CHUNK_SIZE_LINE;
+			return SUCCESS;
+		case CHUNK_TRAILER:
+		{
+			int lineLen = lineLength(trieReader, backing, mask);
+			if (lineLen<0) {
+				return needMoreChunkData(trieReader, channel, idx);
+			}
+			if (lineLen>0) {
+				skipBytes(trieReader, lineLen+2); //trailer headers are not captured
+				return SUCCESS;
+			}
+			//empty line, the body is complete
+			Pipe<HTTPRequestSchema> outputPipe = outputs[bodyPipe[idx]];
+			if (!Pipe.hasRoomForWrite(outputPipe)) {
+				return -bodyPipe[idx];
+			}
+			skipBytes(trieReader, 2);
+			publishContinuation(trieReader, outputPipe, channel, idx, 0, HTTPRequestSchema.CONTINUATION_END_OF_BODY);
+			bodyMode[idx] = BODY_NONE;
+			return SUCCESS;
+		}
+		default:
+			throw new UnsupportedOperationException("unknown chunk state "+chunkState[idx]);
+	}
+}
+
+private int publishBodyData(TrieParserReader trieReader, final long channel, final int idx, boolean endsBody) {
+	Pipe<HTTPRequestSchema> outputPipe = outputs[bodyPipe[idx]];
+	if (!Pipe.hasRoomForWrite(outputPipe)) {
+		return -bodyPipe[idx];
+	}
+	int len = (int)Math.min(Math.min(trieReader.sourceLen, outputPipe.maxVarLen), bodyRemaining[idx]);
+	bodyRemaining[idx] -= len;
+	
+	int flags = 0;
+	if (0 == bodyRemaining[idx]) {
+		if (endsBody) {
+			flags = HTTPRequestSchema.CONTINUATION_END_OF_BODY;
+			bodyMode[idx] = BODY_NONE;
+		} else {
+			chunkState[idx] = CHUNK_DATA_END;
+		}
+	}
+	publishContinuation(trieReader, outputPipe, channel, idx, len, flags);
+	return SUCCESS;
+}
+
+private void publishContinuation(TrieParserReader trieReader, Pipe<HTTPRequestSchema> outputPipe, final long channel, final int idx, int len, int flags) {
+	
+	final int size = Pipe.addMsgIdx(outputPipe, HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301);
+	Pipe.addLongValue(channel, outputPipe);
+	Pipe.addIntValue(bodySequence[idx], outputPipe);
+	Pipe.addIntValue(flags, outputPipe);
+	
+	DataOutputBlobWriter<HTTPRequestSchema> writer = Pipe.outputStream(outputPipe);
+	DataOutputBlobWriter.openField(writer);
+	if (len>0) {
+		int copied = TrieParserReader.parseCopy(trieReader, len, writer);
+		assert(copied==len) : "only the available bytes are copied";
+	}
+	DataOutputBlobWriter.closeLowLevelField(writer);
+	
+	Pipe.confirmLowLevelWrite(outputPipe, size);
+	Pipe.publishWrites(outputPipe);
+}
+
+/**
+ * @return length of the line before CRLF or -1 if the CRLF has not yet arrived
+ */
+private static int lineLength(TrieParserReader trieReader, byte[] backing, int mask) {
+	final int limit = trieReader.sourceLen-1;
+	final int pos = trieReader.sourcePos;
+	for(int i = 0; i<limit; i++) {
+		if ('\r'==backing[mask & (pos+i)] && '\n'==backing[mask & (pos+i+1)]) {
+			return i;
+		}
+	}
+	return -1;
+}
+
+private static void skipBytes(TrieParserReader trieReader, int count) {
+	trieReader.sourcePos += count;
+	trieReader.sourceLen -= count;
+}
+
+private int needMoreChunkData(TrieParserReader trieReader, final long channel, final int idx) {
+	if (trieReader.sourceLen > MAX_CHUNK_LINE) {
+		return badChunk(trieReader, channel, idx);
+	}
+	return NEED_MORE_DATA;
+}
+
+private int badChunk(TrieParserReader trieReader, final long channel, final int idx) {
+	logger.info("bad chunked body recieved by server, channel will be closed.");
+	bodyMode[idx] = BODY_NONE;
+	sendError(trieReader, channel, idx, trieReader.sourceLen, trieReader.sourcePos, 400);
+	return SUCCESS;
+}
+
  void sendError(TrieParserReader trieReader, final long channel, final int idx, int tempLen, int tempPos,
 		int errorCode) {
 	boolean sent = sendError(channel, idx, errorCode); 			
@@ -864,6 +1069,7 @@ private boolean sendError(final long channel, final int idx, int errorCode) {
 		//will close connection as soon as error is returned.
 		HTTPUtil.publishStatus(channel, sequences[idx], 
 				              errorCode, errorResponsePipe);		
+		coordinator.responseStarted(channel);
 		sent = true;				
 	}
 	return sent;
@@ -1079,9 +1285,11 @@ private void processBegin(final int idx, Pipe<NetPayloadSchema> selectedInput) {
 									int requestContext,
 									final TrieParserReader trieReader, //read data from here
 									final TrieParser trieParser,
-									final int endId) {       //context is returned with extra bits as needed
+									final int endId,
+									final long[] bodyLength) {       //context is returned with extra bits as needed
 				
 		DataOutputBlobWriter.tryClearIntBackData(writer, headerCount); 
+		bodyLength[0] = 0;
 		
         long postLength = -2;
 
@@ -1094,7 +1302,7 @@ private void processBegin(final int idx, Pipe<NetPayloadSchema> selectedInput) {
             if (endId == headerId) { 
                 return endOfHeadersLogic(writer, errorReporter, 
                 		writeIndex, requestContext, trieReader,
-						postLength, iteration);
+						postLength, iteration, bodyLength);
             } else if (-1 == headerId) {            	
             	if (remainingLen>MAX_HEADER) {   
             		//client has sent very bad data.
@@ -1120,7 +1328,7 @@ private void processBegin(final int idx, Pipe<NetPayloadSchema> selectedInput) {
 
 	private static int endOfHeadersLogic(DataOutputBlobWriter<HTTPRequestSchema> writer, ErrorReporter errorReporter,
 			final boolean writeIndex, int requestContext, final TrieParserReader trieReader, long postLength,
-			int iteration) {
+			int iteration, final long[] bodyLength) {
 		if (iteration==0) {
 			//needs more data 
 			requestContext = ServerCoordinator.INCOMPLETE_RESPONSE_MASK;                	
@@ -1134,36 +1342,46 @@ private void processBegin(final int idx, Pipe<NetPayloadSchema> selectedInput) {
 				logger.warn("pipes are too small for this many headers, max total header size is "+writer.getPipe().maxVarLen);	
 				requestContext = errorReporter.sendError(503) ? (requestContext | ServerCoordinator.CLOSE_CONNECTION_MASK) : ServerCoordinator.INCOMPLETE_RESPONSE_MASK;
 			} else if (postLength>0) {
-		   		//full length is done here as a single call, the pipe must be large enough to hold the entire payload
-		   		
-		   		assert(postLength<Integer.MAX_VALUE);
-		   		
 		   		//read data directly
 				final int writePosition = writer.position();  
 				
 				if (DataOutputBlobWriter.lastBackPositionOfIndex(writer)<(writePosition+postLength)) {
-					logger.warn("unable to take large post at this time");	
-					requestContext = errorReporter.sendError(503) ? (requestContext | ServerCoordinator.CLOSE_CONNECTION_MASK) : ServerCoordinator.INCOMPLETE_RESPONSE_MASK;
-				}
-				
-				int cpyLen = TrieParserReader.parseCopy(trieReader, postLength, writer);
-				if (cpyLen<postLength) {
-				   //needs more data 
-					requestContext = ServerCoordinator.INCOMPLETE_RESPONSE_MASK;
-				} else {	           			
-		   			if (writeIndex) {
-		   				//logger.info("write the position of the body to {} ",writePosition);
-		   				//NOTE: record position of the body in the new way, at beginning of the index
-		   				DataOutputBlobWriter.setIntBackData(writer, writePosition, 1);
-						
+					//too large for this message, the body will follow as continuation fragments
+					requestContext = streamedBody(writer, writeIndex, requestContext, postLength, bodyLength);
+				} else {
+			   		//full length is done here as a single call
+					int cpyLen = TrieParserReader.parseCopy(trieReader, postLength, writer);
+					if (cpyLen<postLength) {
+					   //needs more data 
+						requestContext = ServerCoordinator.INCOMPLETE_RESPONSE_MASK;
+					} else {	           			
+			   			if (writeIndex) {
+			   				//logger.info("write the position of the body to {} ",writePosition);
+			   				//NOTE: record position of the body in the new way, at beginning of the index
+			   				DataOutputBlobWriter.setIntBackData(writer, writePosition, 1);
+							
+						}
 					}
 				}
+		   	} else if (-1 == postLength) {
+		   		//Transfer-Encoding: chunked, the body will follow as continuation fragments
+		   		requestContext = streamedBody(writer, writeIndex, requestContext, postLength, bodyLength);
 		   	}     
 		}
 		return requestContext;
 	}
 
 
+	private static int streamedBody(DataOutputBlobWriter<HTTPRequestSchema> writer, final boolean writeIndex, int requestContext,
+			long postLength, final long[] bodyLength) {
+		if (writeIndex) {
+			//the body in this message is empty
+			DataOutputBlobWriter.setIntBackData(writer, writer.position(), 1);
+		}
+		bodyLength[0] = postLength;
+		return requestContext | ServerCoordinator.STREAMED_BODY_MASK;
+	}
+
 	private static int applyKeepAliveOrCloseToContext(int requestContext, TrieParserReader trieReader) {
 		//LOOK FOR ONE OF THE FOLLOWING, GRAB SECOND CHAR
 		//close            SET CLOSE FOR ALL
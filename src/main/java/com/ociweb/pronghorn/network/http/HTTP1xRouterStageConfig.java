@@ -54,6 +54,8 @@ public class HTTP1xRouterStageConfig<T extends Enum<T> & HTTPContentType,
 	private IntHashTable allHeadersTable;
 	private FieldExtractionDefinitions allHeadersExtraction;
 	
+	private int orderingShards = 1;
+	
 
 	public HTTP1xRouterStageConfig(HTTPSpecification<T,R,V,H> httpSpec) {
 		this.httpSpec = httpSpec;
@@ -197,6 +199,18 @@ public class HTTP1xRouterStageConfig<T extends Enum<T> & HTTPContentType,
 		return httpSpec;
 	}
 
+	/**
+	 * Set while the modules are built, a module may return this many outputs for each input pipe
+	 * so its responses go straight to the ordering supervisor of each channel, see HTTPUtil.responsePipe.
+	 */
+	public void setOrderingShards(int orderingShards) {
+		this.orderingShards = orderingShards;
+	}
+	
+	public int orderingShards() {
+		return orderingShards;
+	}
+
     public int headerId(byte[] h) {
     	return httpSpec.headerId(h, localReader);
     }
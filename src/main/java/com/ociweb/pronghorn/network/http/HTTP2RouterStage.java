@@ -0,0 +1,575 @@
+package com.ociweb.pronghorn.network.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.network.HTTP2Connection;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.config.HTTPContentType;
+import com.ociweb.pronghorn.network.config.HTTPHeader;
+import com.ociweb.pronghorn.network.config.HTTPRevision;
+import com.ociweb.pronghorn.network.config.HTTPVerb;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.ReleaseSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.util.TrieParserReader;
+
+/**
+ * Router for prior knowledge h2c. Connections which begin with the HTTP/2 preface are read as
+ * frames, all others are routed as HTTP/1.x by the parent.
+ *
+ * The header block of each stream is rewritten as an HTTP/1.1 request head so the same route, parameter
+ * and header extraction is used and the modules receive the same HTTPRequestSchema messages.
+ * The stream id is used as the sequence so the OrderSupervisorStage orders per stream, request bodies
+ * follow as RestRequestContinuation fragments.
+ */
+public class HTTP2RouterStage<T extends Enum<T> & HTTPContentType,
+							  R extends Enum<R> & HTTPRevision,
+							  V extends Enum<V> & HTTPVerb,
+							  H extends Enum<H> & HTTPHeader
+                             > extends HTTP1xRouterStage<T,R,V,H> {
+
+	private static final Logger logger = LoggerFactory.getLogger(HTTP2RouterStage.class);
+
+	private static final int MAX_HEAD = 1<<14; //rewritten request head and largest header block
+	private static final int FRAME_HEADER_SIZE = HTTP2Connection.FRAME_HEADER_SIZE;
+
+	private static final byte[] REVISION = " HTTP/1.1\r\n".getBytes();
+	private static final byte[] HOST = "Host: ".getBytes();
+	private static final byte[] CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes();
+	private static final byte[] COLON = ": ".getBytes();
+
+	private TrieParserReader headReader;
+	private final byte[] block = new byte[MAX_HEAD];
+	private final byte[] head = new byte[MAX_HEAD];
+	private final byte[] fields = new byte[MAX_HEAD];
+	private final byte[] method = new byte[64];
+	private final byte[] path = new byte[4096];
+	private final byte[] authority = new byte[256];
+	private final byte[] frame = new byte[64];
+	private byte[][] headerRoots;
+
+	private int fieldsLen;
+	private int methodLen;
+	private int pathLen;
+	private int authorityLen;
+	private boolean tooLarge;
+
+	private HTTP2Connection activeConnection;
+	private int activeStreamId;
+
+	private final HPackDecoder.HeaderSink sink = new HPackDecoder.HeaderSink() {
+		@Override
+		public void header(byte[] name, int nameLen, byte[] value, int valueLen) {
+			collectHeader(name, nameLen, value, valueLen);
+		}
+	};
+
+	public static <	T extends Enum<T> & HTTPContentType,
+					R extends Enum<R> & HTTPRevision,
+					V extends Enum<V> & HTTPVerb,
+					H extends Enum<H> & HTTPHeader>
+
+		HTTP2RouterStage<T,R,V,H> newInstance(GraphManager gm,
+		                           int parallelId,
+		                           Pipe<NetPayloadSchema>[] input,
+		                           Pipe<HTTPRequestSchema>[] outputs,
+		                           Pipe<ServerResponseSchema> errorResponsePipe,
+		                           Pipe<ReleaseSchema> ackStop,
+		                           HTTP1xRouterStageConfig<T,R,V,H> config,
+		                           ServerCoordinator coordinator, boolean catchAll) {
+
+		return new HTTP2RouterStage<T,R,V,H>(gm,parallelId,input,outputs, errorResponsePipe, ackStop, config, coordinator, catchAll);
+	}
+
+	public HTTP2RouterStage(GraphManager gm,
+			                int parallelId,
+			                Pipe<NetPayloadSchema>[] input,
+			                Pipe<HTTPRequestSchema>[] outputs,
+			                Pipe<ServerResponseSchema> errorResponsePipe, Pipe<ReleaseSchema> ackStop,
+			                HTTP1xRouterStageConfig<T,R,V,H> config, ServerCoordinator coordinator, boolean catchAll) {
+
+		super(gm, parallelId, input, outputs, errorResponsePipe, ackStop, config, coordinator, catchAll);
+
+		int i = outputs.length;
+		while (--i>=0) {
+			if (outputs[i].maxVarLen < HTTP2Connection.DEFAULT_MAX_FRAME) {
+				throw new UnsupportedOperationException("HTTP/2 frames may carry "+HTTP2Connection.DEFAULT_MAX_FRAME+" bytes, output pipe only holds "+outputs[i].maxVarLen);
+			}
+		}
+	}
+
+	@Override
+	public void startup() {
+		super.startup();
+
+		int i = inputs.length;
+		while (--i>=0) {
+			if (Pipe.blobMask(inputs[i]) < (FRAME_HEADER_SIZE+HTTP2Connection.DEFAULT_MAX_FRAME)) {
+				throw new UnsupportedOperationException("Input pipes must hold a full HTTP/2 frame of "+(FRAME_HEADER_SIZE+HTTP2Connection.DEFAULT_MAX_FRAME)+" bytes");
+			}
+		}
+
+		headReader = new TrieParserReader(16);
+
+		//known headers are written with the same case the header parser expects
+		H[] headers = config.httpSpec.headers;
+		headerRoots = new byte[null==headers ? 0 : headers.length][];
+		i = headerRoots.length;
+		while (--i>=0) {
+			headerRoots[i] = headers[i].rootBytes();
+		}
+	}
+
+	@Override
+	int parseRequest(TrieParserReader trieReader, final long channel, final int idx) {
+
+		HTTP2Connection con = coordinator.http2Connection(channel);
+		if (null == con) {
+			int preface = matchPreface(trieReader, idx);
+			if (preface<0) {
+				return super.parseRequest(trieReader, channel, idx);
+			}
+			if (0 == preface) {
+				return NEED_MORE_DATA;
+			}
+			if (!Pipe.hasRoomForWrite(errorResponsePipe)) {
+				return -outputs.length;
+			}
+			con = coordinator.newHTTP2Connection(channel, MAX_HEAD);
+			skip(trieReader, HTTP2Connection.PREFACE.length);
+
+			int p = HTTP2Connection.writeFrameHeader(frame, 0, 6, HTTP2Connection.TYPE_SETTINGS, 0, 0);
+			p = writeSetting(frame, p, HTTP2Connection.SETTINGS_MAX_CONCURRENT_STREAMS, HTTP2Connection.MAX_CONCURRENT_STREAMS);
+			publishFrames(channel, p, 0);
+			return SUCCESS;
+		}
+
+		return parseFrame(trieReader, channel, idx, con);
+	}
+
+	/**
+	 * @return 1 if the preface is here, 0 if what is here matches so far or -1 if this is not HTTP/2
+	 */
+	private int matchPreface(TrieParserReader trieReader, int idx) {
+		final byte[] backing = Pipe.blob(inputs[idx]);
+		final int mask = Pipe.blobMask(inputs[idx]);
+		int len = Math.min(trieReader.sourceLen, HTTP2Connection.PREFACE.length);
+		for(int i = 0; i<len; i++) {
+			if (HTTP2Connection.PREFACE[i] != backing[mask & (trieReader.sourcePos+i)]) {
+				return -1;
+			}
+		}
+		return len==HTTP2Connection.PREFACE.length ? 1 : 0;
+	}
+
+	private int parseFrame(TrieParserReader trieReader, final long channel, final int idx, HTTP2Connection con) {
+
+		if (trieReader.sourceLen < FRAME_HEADER_SIZE) {
+			return NEED_MORE_DATA;
+		}
+		//every frame may need to answer with a frame of its own
+		if (!Pipe.hasRoomForWrite(errorResponsePipe)) {
+			return -outputs.length;
+		}
+
+		final byte[] backing = Pipe.blob(inputs[idx]);
+		final int mask = Pipe.blobMask(inputs[idx]);
+		final int pos = trieReader.sourcePos;
+
+		final int length = ((0xFF & backing[mask & pos]) << 16) | ((0xFF & backing[mask & (pos+1)]) << 8) | (0xFF & backing[mask & (pos+2)]);
+		final int type = 0xFF & backing[mask & (pos+3)];
+		final int flags = 0xFF & backing[mask & (pos+4)];
+		final int streamId = 0x7FFFFFFF & HTTP2Connection.readInt(backing, pos+5, mask);
+
+		if (length > HTTP2Connection.DEFAULT_MAX_FRAME) {
+			return goAway(trieReader, channel, con, HTTP2Connection.FRAME_SIZE_ERROR);
+		}
+		if (trieReader.sourceLen < FRAME_HEADER_SIZE+length) {
+			return NEED_MORE_DATA;
+		}
+		final int payload = pos+FRAME_HEADER_SIZE;
+
+		switch (type) {
+			case HTTP2Connection.TYPE_DATA:
+				return data(trieReader, channel, con, backing, mask, payload, length, flags, streamId);
+			case HTTP2Connection.TYPE_HEADERS:
+				return headers(trieReader, channel, idx, con, backing, mask, payload, length, flags, streamId);
+			case HTTP2Connection.TYPE_RST_STREAM:
+				con.closeStream(streamId);
+				break;
+			case HTTP2Connection.TYPE_SETTINGS:
+				if (0 == (flags&HTTP2Connection.FLAG_ACK)) {
+					if (0 != (length%6) || 0 != streamId) {
+						return goAway(trieReader, channel, con, HTTP2Connection.FRAME_SIZE_ERROR);
+					}
+					for(int s = 0; s<length; s += 6) {
+						int id = ((0xFF & backing[mask & (payload+s)]) << 8) | (0xFF & backing[mask & (payload+s+1)]);
+						int value = HTTP2Connection.readInt(backing, payload+s+2, mask);
+						if (HTTP2Connection.SETTINGS_INITIAL_WINDOW_SIZE == id) {
+							if (value<0) {
+								return goAway(trieReader, channel, con, HTTP2Connection.FLOW_CONTROL_ERROR);
+							}
+							con.initialWindow(value);
+						} else if (HTTP2Connection.SETTINGS_MAX_FRAME_SIZE == id) {
+							if (value<HTTP2Connection.DEFAULT_MAX_FRAME || value>0xFFFFFF) {
+								return goAway(trieReader, channel, con, HTTP2Connection.PROTOCOL_ERROR);
+							}
+							con.peerMaxFrameSize(value);
+						}
+						//responses never use the dynamic table so the header table size is not needed
+					}
+					publishFrames(channel, HTTP2Connection.writeFrameHeader(frame, 0, 0, HTTP2Connection.TYPE_SETTINGS, HTTP2Connection.FLAG_ACK, 0), 0);
+				}
+				break;
+			case HTTP2Connection.TYPE_PING:
+				if (8 != length) {
+					return goAway(trieReader, channel, con, HTTP2Connection.FRAME_SIZE_ERROR);
+				}
+				if (0 == (flags&HTTP2Connection.FLAG_ACK)) {
+					int p = HTTP2Connection.writeFrameHeader(frame, 0, 8, HTTP2Connection.TYPE_PING, HTTP2Connection.FLAG_ACK, 0);
+					for(int i = 0; i<8; i++) {
+						frame[p++] = backing[mask & (payload+i)];
+					}
+					publishFrames(channel, p, 0);
+				}
+				break;
+			case HTTP2Connection.TYPE_WINDOW_UPDATE:
+			{
+				if (4 != length) {
+					return goAway(trieReader, channel, con, HTTP2Connection.FRAME_SIZE_ERROR);
+				}
+				int increment = 0x7FFFFFFF & HTTP2Connection.readInt(backing, payload, mask);
+				if (0 == increment) {
+					return goAway(trieReader, channel, con, HTTP2Connection.PROTOCOL_ERROR);
+				}
+				if (!con.windowUpdate(streamId, increment)) {
+					return goAway(trieReader, channel, con, HTTP2Connection.FLOW_CONTROL_ERROR);
+				}
+			}
+				break;
+			case HTTP2Connection.TYPE_PUSH_PROMISE:
+			case HTTP2Connection.TYPE_CONTINUATION:
+				//clients never push and continuations are consumed with their headers
+				return goAway(trieReader, channel, con, HTTP2Connection.PROTOCOL_ERROR);
+			default:
+				//priority, goaway and unknown frame types need no action
+		}
+		skip(trieReader, FRAME_HEADER_SIZE+length);
+		return SUCCESS;
+	}
+
+	private int data(TrieParserReader trieReader, final long channel, HTTP2Connection con,
+			         byte[] backing, int mask, int payload, int length, int flags, int streamId) {
+
+		int start = payload;
+		int dataLen = length;
+		if (0 != (flags&HTTP2Connection.FLAG_PADDED)) {
+			dataLen = length-1-(0xFF & backing[mask & payload]);
+			start++;
+			if (dataLen<0) {
+				return goAway(trieReader, channel, con, HTTP2Connection.PROTOCOL_ERROR);
+			}
+		}
+		final boolean endStream = 0 != (flags&HTTP2Connection.FLAG_END_STREAM);
+
+		//streams which were reset or never expected a body drop their data
+		final int pipeIdx = con.streamPipe(streamId);
+		if (pipeIdx>=0) {
+			Pipe<HTTPRequestSchema> outputPipe = outputs[pipeIdx];
+			if (!Pipe.hasRoomForWrite(outputPipe)) {
+				return -pipeIdx;
+			}
+			int size = Pipe.addMsgIdx(outputPipe, HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301);
+			Pipe.addLongValue(channel, outputPipe);
+			Pipe.addIntValue(streamId, outputPipe);
+			Pipe.addIntValue(endStream ? HTTPRequestSchema.CONTINUATION_END_OF_BODY : 0, outputPipe);
+			DataOutputBlobWriter<HTTPRequestSchema> writer = Pipe.outputStream(outputPipe);
+			DataOutputBlobWriter.openField(writer);
+			DataOutputBlobWriter.write(writer, backing, start, dataLen, mask);
+			DataOutputBlobWriter.closeLowLevelField(writer);
+			Pipe.confirmLowLevelWrite(outputPipe, size);
+			Pipe.publishWrites(outputPipe);
+
+			if (endStream) {
+				con.streamPipe(streamId, -1);
+			}
+		}
+
+		//the data has been passed on so the client may send more
+		if (length>0) {
+			int p = writeWindowUpdate(frame, 0, 0, length);
+			if (pipeIdx>=0 && !endStream) {
+				p = writeWindowUpdate(frame, p, streamId, length);
+			}
+			publishFrames(channel, p, 0);
+		}
+		skip(trieReader, FRAME_HEADER_SIZE+length);
+		return SUCCESS;
+	}
+
+	private int headers(TrieParserReader trieReader, final long channel, final int idx, HTTP2Connection con,
+			            byte[] backing, int mask, int payload, int length, int flags, int streamId) {
+
+		if (0 == (streamId&1) || streamId <= con.lastStreamId()) {
+			return goAway(trieReader, channel, con, HTTP2Connection.PROTOCOL_ERROR);
+		}
+
+		//the header block may continue in CONTINUATION frames which must all be here before it is decoded
+		int start = payload;
+		int len = length;
+		if (0 != (flags&HTTP2Connection.FLAG_PADDED)) {
+			len -= (1+(0xFF & backing[mask & payload]));
+			start++;
+		}
+		if (0 != (flags&HTTP2Connection.FLAG_PRIORITY)) {
+			len -= 5;
+			start += 5;
+		}
+		if (len<0) {
+			return goAway(trieReader, channel, con, HTTP2Connection.PROTOCOL_ERROR);
+		}
+		int blockLen = 0;
+		int consumed = FRAME_HEADER_SIZE+length;
+		int frameFlags = flags;
+		while (true) {
+			if (blockLen+len > block.length) {
+				return goAway(trieReader, channel, con, HTTP2Connection.ENHANCE_YOUR_CALM);
+			}
+			for(int i = 0; i<len; i++) {
+				block[blockLen++] = backing[mask & (start+i)];
+			}
+			if (0 != (frameFlags&HTTP2Connection.FLAG_END_HEADERS)) {
+				break;
+			}
+			if (trieReader.sourceLen < consumed+FRAME_HEADER_SIZE) {
+				return NEED_MORE_DATA;
+			}
+			int pos = trieReader.sourcePos+consumed;
+			len = ((0xFF & backing[mask & pos]) << 16) | ((0xFF & backing[mask & (pos+1)]) << 8) | (0xFF & backing[mask & (pos+2)]);
+			if (HTTP2Connection.TYPE_CONTINUATION != (0xFF & backing[mask & (pos+3)])
+				|| streamId != (0x7FFFFFFF & HTTP2Connection.readInt(backing, pos+5, mask))) {
+				return goAway(trieReader, channel, con, HTTP2Connection.PROTOCOL_ERROR);
+			}
+			if (trieReader.sourceLen < consumed+FRAME_HEADER_SIZE+len) {
+				return NEED_MORE_DATA;
+			}
+			frameFlags = 0xFF & backing[mask & (pos+4)];
+			start = pos+FRAME_HEADER_SIZE;
+			consumed += FRAME_HEADER_SIZE+len;
+		}
+
+		//the dynamic table changes as the block is decoded so the request must be routed without waiting
+		int o = outputs.length;
+		while (--o>=0) {
+			if (!Pipe.hasRoomForWrite(outputs[o])) {
+				return -o;
+			}
+		}
+
+		fieldsLen = 0;
+		methodLen = 0;
+		pathLen = 0;
+		authorityLen = 0;
+		tooLarge = false;
+		if (!con.decoder.decode(block, 0, blockLen, Integer.MAX_VALUE, sink)) {
+			return goAway(trieReader, channel, con, HTTP2Connection.COMPRESSION_ERROR);
+		}
+		skip(trieReader, consumed);
+
+		final boolean endStream = 0 != (flags&HTTP2Connection.FLAG_END_STREAM);
+		if (!con.openStream(streamId)) {
+			publishFrames(channel, writeReset(frame, 0, streamId, HTTP2Connection.REFUSED_STREAM), 0);
+			return SUCCESS;
+		}
+
+		int headLen = buildHead(endStream);
+		if (headLen<0) {
+			con.closeStream(streamId);
+			publishFrames(channel, writeReset(frame, 0, streamId, HTTP2Connection.PROTOCOL_ERROR), 0);
+			return SUCCESS;
+		}
+
+		//route with the same parser used for HTTP/1.x, the stream id is used as the sequence
+		sequences[idx] = streamId;
+		activeConnection = con;
+		activeStreamId = streamId;
+		TrieParserReader.parseSetup(headReader, head, 0, headLen, head.length-1);
+		int result = parseHTTP(headReader, channel, idx);
+		activeConnection = null;
+
+		if (SUCCESS != result) {
+			assert(NEED_MORE_DATA == result) : "room was checked before decoding";
+			logger.info("unable to parse HTTP/2 request on stream {}", streamId);
+			con.closeStream(streamId);
+			publishFrames(channel, writeReset(frame, 0, streamId, HTTP2Connection.PROTOCOL_ERROR), 0);
+		}
+		return SUCCESS;
+	}
+
+	@Override
+	void beginStreamedBody(final int idx, int pipeIdx, long length) {
+		if (null != activeConnection) {
+			//the body arrives in the DATA frames of this stream
+			activeConnection.streamPipe(activeStreamId, pipeIdx);
+		} else {
+			super.beginStreamedBody(idx, pipeIdx, length);
+		}
+	}
+
+	private void collectHeader(byte[] name, int nameLen, byte[] value, int valueLen) {
+		if (nameLen>0 && ':'==name[0]) {
+			if (matches(name, nameLen, HPack.STATIC_NAMES[2])) {
+				methodLen = keep(value, valueLen, method);
+			} else if (matches(name, nameLen, HPack.STATIC_NAMES[4])) {
+				pathLen = keep(value, valueLen, path);
+			} else if (matches(name, nameLen, HPack.STATIC_NAMES[1])) {
+				authorityLen = keep(value, valueLen, authority);
+			}
+			//scheme is not needed for routing
+			return;
+		}
+		if (matches(name, nameLen, HPack.STATIC_NAMES[57]) || matches(name, nameLen, HPack.STATIC_NAMES[28])) {
+			//transfer-encoding and content-length are replaced by the streamed body of this stream
+			return;
+		}
+
+		int root = rootIndex(name, nameLen);
+		int needed = (root>=0 ? headerRoots[root].length : nameLen+COLON.length)+valueLen+2;
+		if (fieldsLen+needed > fields.length) {
+			tooLarge = true;
+			return;
+		}
+		if (root>=0) {
+			fieldsLen = append(fields, fieldsLen, headerRoots[root], headerRoots[root].length);
+		} else {
+			fieldsLen = append(fields, fieldsLen, name, nameLen);
+			fieldsLen = append(fields, fieldsLen, COLON, COLON.length);
+		}
+		fieldsLen = append(fields, fieldsLen, value, valueLen);
+		fields[fieldsLen++] = '\r';
+		fields[fieldsLen++] = '\n';
+	}
+
+	private int rootIndex(byte[] name, int nameLen) {
+		int i = headerRoots.length;
+		while (--i>=0) {
+			byte[] root = headerRoots[i];
+			if (null!=root && root.length == nameLen+COLON.length) {
+				int j = nameLen;
+				while (--j>=0 && (name[j]|0x20) == (root[j]|0x20)) {
+				}
+				if (j<0) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return length of the HTTP/1.1 request head or -1 if the stream did not send a valid request
+	 */
+	private int buildHead(boolean endStream) {
+		if (tooLarge || 0==methodLen || 0==pathLen) {
+			return -1;
+		}
+		int needed = methodLen+1+pathLen+REVISION.length+HOST.length+authorityLen+2+fieldsLen+CHUNKED.length+2;
+		if (needed > head.length) {
+			return -1;
+		}
+		int p = append(head, 0, method, methodLen);
+		head[p++] = ' ';
+		p = append(head, p, path, pathLen);
+		p = append(head, p, REVISION, REVISION.length);
+		if (authorityLen>0) {
+			p = append(head, p, HOST, HOST.length);
+			p = append(head, p, authority, authorityLen);
+			head[p++] = '\r';
+			head[p++] = '\n';
+		}
+		p = append(head, p, fields, fieldsLen);
+		if (!endStream) {
+			p = append(head, p, CHUNKED, CHUNKED.length);
+		}
+		head[p++] = '\r';
+		head[p++] = '\n';
+		return p;
+	}
+
+	private static boolean matches(byte[] name, int nameLen, byte[] expected) {
+		if (nameLen != expected.length) {
+			return false;
+		}
+		int i = nameLen;
+		while (--i>=0) {
+			if (name[i]!=expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int keep(byte[] value, int valueLen, byte[] target) {
+		if (valueLen > target.length) {
+			tooLarge = true;
+			return 0;
+		}
+		System.arraycopy(value, 0, target, 0, valueLen);
+		return valueLen;
+	}
+
+	private static int append(byte[] target, int pos, byte[] source, int len) {
+		System.arraycopy(source, 0, target, pos, len);
+		return pos+len;
+	}
+
+	private static void skip(TrieParserReader trieReader, int count) {
+		trieReader.sourcePos += count;
+		trieReader.sourceLen -= count;
+	}
+
+	private int goAway(TrieParserReader trieReader, final long channel, HTTP2Connection con, int errorCode) {
+		logger.info("HTTP/2 connection error {} on channel {}, connection will be closed.", errorCode, channel);
+		int p = HTTP2Connection.writeFrameHeader(frame, 0, 8, HTTP2Connection.TYPE_GOAWAY, 0, 0);
+		p = HTTP2Connection.writeInt(frame, p, con.lastStreamId());
+		p = HTTP2Connection.writeInt(frame, p, errorCode);
+		publishFrames(channel, p, ServerCoordinator.CLOSE_CONNECTION_MASK);
+
+		//nothing more will be read from this connection
+		trieReader.sourceLen = 0;
+		trieReader.sourcePos = 0;
+		return SUCCESS;
+	}
+
+	private void publishFrames(final long channel, int len, int context) {
+		int size = Pipe.addMsgIdx(errorResponsePipe, ServerResponseSchema.MSG_TOCHANNEL_100);
+		Pipe.addLongValue(channel, errorResponsePipe);
+		Pipe.addIntValue(0, errorResponsePipe); //frames are not ordered by sequence
+		Pipe.addByteArray(frame, 0, len, errorResponsePipe);
+		Pipe.addIntValue(ServerCoordinator.HTTP2_FRAMES_MASK | ServerCoordinator.END_RESPONSE_MASK | context, errorResponsePipe);
+		Pipe.confirmLowLevelWrite(errorResponsePipe, size);
+		Pipe.publishWrites(errorResponsePipe);
+	}
+
+	private static int writeSetting(byte[] target, int pos, int id, int value) {
+		target[pos++] = (byte)(id>>8);
+		target[pos++] = (byte)id;
+		return HTTP2Connection.writeInt(target, pos, value);
+	}
+
+	private static int writeWindowUpdate(byte[] target, int pos, int streamId, int increment) {
+		pos = HTTP2Connection.writeFrameHeader(target, pos, 4, HTTP2Connection.TYPE_WINDOW_UPDATE, 0, streamId);
+		return HTTP2Connection.writeInt(target, pos, increment);
+	}
+
+	private static int writeReset(byte[] target, int pos, int streamId, int errorCode) {
+		pos = HTTP2Connection.writeFrameHeader(target, pos, 4, HTTP2Connection.TYPE_RST_STREAM, 0, streamId);
+		return HTTP2Connection.writeInt(target, pos, errorCode);
+	}
+
+}
@@ -148,6 +148,22 @@ public class HTTPRequestJSONExtractionStage extends PronghornStage {
 				    Pipe.publishWrites(output);
 		        }
 		        break;
+		        case HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301:
+		        {
+		        	//streamed body fragments are passed along as is, the router rejects them with 413 on
+		        	//routes with a JSON extractor so these only belong to requests without JSON
+		        	int size = Pipe.addMsgIdx(output, msgIdx);
+		        	Pipe.addLongValue(Pipe.takeLong(input), output); //channel
+		        	Pipe.addIntValue(Pipe.takeInt(input), output); //sequence
+		        	Pipe.addIntValue(Pipe.takeInt(input), output); //flags
+		        	DataOutputBlobWriter<HTTPRequestSchema> outputStream = Pipe.openOutputStream(output);
+		        	DataInputBlobReader<HTTPRequestSchema> inputStream = Pipe.openInputStream(input);
+		        	inputStream.readInto(outputStream, inputStream.available());
+		        	DataOutputBlobWriter.closeLowLevelField(outputStream);
+		        	Pipe.confirmLowLevelWrite(output,size);
+		        	Pipe.publishWrites(output);
+		        }
+		        break;
 		        case -1:
 		           requestShutdown();
 		        break;
@@ -7,6 +7,7 @@ import com.ociweb.pronghorn.network.ServerCoordinator;
 import com.ociweb.pronghorn.network.config.HTTPRevision;
 import com.ociweb.pronghorn.network.config.HTTPRevisionDefaults;
 import com.ociweb.pronghorn.network.config.HTTPSpecification;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
 import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
@@ -91,6 +92,40 @@ public class HTTPUtil {
 	    //logger.info("published error {} ",status);
 	}
 
+	/**
+	 * Modules may be given one output for each input and ordering shard, index input*shards+(channelId & (shards-1)),
+	 * so each response goes straight to the OrderSupervisorStage of its channel, see ServerCoordinator.setOrderingShards.
+	 * With one output for each input this is always outputs[inputIdx]. Input must have content to read.
+	 * @return output for the response to the next message on input
+	 */
+	public static Pipe<ServerResponseSchema> responsePipe(Pipe<ServerResponseSchema>[] outputs, int inputIdx, int inputCount,
+			                                              Pipe<HTTPRequestSchema> input) {
+		final int shards = outputs.length/inputCount;
+		if (1==shards || Pipe.peekInt(input, 0)<0) {
+			return outputs[inputIdx*shards]; //EOF has no channel
+		}
+		//every request message starts with the channel id
+		return outputs[(inputIdx*shards) + (int)(Pipe.peekLong(input, 1) & (shards-1))];
+	}
+
+	/**
+	 * Sends EOF on every shard output of this input.
+	 */
+	public static void publishEOF(Pipe<ServerResponseSchema>[] outputs, int inputIdx, int inputCount) {
+		final int shards = outputs.length/inputCount;
+		int s = shards;
+		while (--s>=0) {
+			Pipe.publishEOF(outputs[(inputIdx*shards)+s]);
+		}
+	}
+
+	public static void validateResponsePipes(int inputCount, int outputCount) {
+		if (0!=(outputCount%inputCount) || 1!=Integer.bitCount(outputCount/inputCount)) {
+			throw new UnsupportedOperationException("Must have one output for each input or for each input and ordering shard but found "
+		                                            +outputCount+" outputs for "+inputCount+" inputs");
+		}
+	}
+
 	public final static String expectedGet = "GET /groovySum.json HTTP/1.1\r\n"+
 	 "Host: 127.0.0.1\r\n"+
 	 "Connection: keep-alive\r\n"+
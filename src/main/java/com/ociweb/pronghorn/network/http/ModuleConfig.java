@@ -9,6 +9,12 @@ public interface ModuleConfig {
 
 	int moduleCount(); 
 
+	/**
+	 * @return one response pipe for each input pipe, or when ServerCoordinator.setOrderingShards is used
+	 *         optionally one for each input pipe and shard, index input*shards+(channelId & mask), so the
+	 *         responses go directly to their supervisor. The shard count is HTTP1xRouterStageConfig.orderingShards()
+	 *         and the built-in modules pick the output with HTTPUtil.responsePipe.
+	 */
 	Pipe<ServerResponseSchema>[] registerModule(int moduleInstance, 
 			                                    GraphManager graphManager,
 			                                    RouterStageConfig routerConfig,
@@ -53,7 +53,7 @@ public abstract class AbstractAppendablePayloadResponseStage <
 			this.outputs = outputs;		
 			this.graphManager = graphManager;
 			
-			assert(inputs.length == inputs.length);
+			HTTPUtil.validateResponsePipes(inputs.length, outputs.length);
 			
 			this.supportsBatchedPublish = false;
 			this.supportsBatchedRelease = false;
@@ -69,7 +69,7 @@ public abstract class AbstractAppendablePayloadResponseStage <
 		this.outputs = outputs;		
 		this.graphManager = graphManager;
 		
-		assert(inputs.length == inputs.length);
+		HTTPUtil.validateResponsePipes(inputs.length, outputs.length);
 	}
 
 	@Override
@@ -98,7 +98,7 @@ public abstract class AbstractAppendablePayloadResponseStage <
 		if (null == activeOutput) {
 			int i = this.inputs.length;
 			while ((--i >= 0) && (activeChannelId == -1)) {			
-				process(inputs[i], outputs[i]);			
+				process(i);			
 			}
 		}
 		
@@ -106,14 +106,16 @@ public abstract class AbstractAppendablePayloadResponseStage <
 
 
 	
-	private boolean process(Pipe<HTTPRequestSchema> input, 
-			             Pipe<ServerResponseSchema> output) {
+	private boolean process(int idx) {
+		
+		Pipe<HTTPRequestSchema> input = inputs[idx];
+		Pipe<ServerResponseSchema> output;
 		
 		boolean didWork = false;
 		//NOTE: the output writer is the high level while input is the low level.
 		while ( (activeChannelId == -1)
-				&& Pipe.hasRoomForWrite(output) 
-				&& Pipe.hasContentToRead(input)) {
+				&& Pipe.hasContentToRead(input)
+				&& Pipe.hasRoomForWrite(output = HTTPUtil.responsePipe(outputs, idx, inputs.length, input))) {
 			
 			didWork = true;
 			//logger.trace("has room and has data to write out from "+input);
@@ -149,6 +151,10 @@ public abstract class AbstractAppendablePayloadResponseStage <
 		        	
 		        	
 				break;
+		        case HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301:
+		        	//the response is built from the route params only, streamed bodies are dropped
+		        	Pipe.skipNextFragment(input, msgIdx);
+		        continue; //already confirmed and released
 		        case -1:
 		           //requestShutdown();
 		        break;
@@ -0,0 +1,61 @@
+package com.ociweb.pronghorn.network.module;
+
+import com.ociweb.pronghorn.network.config.HTTPContentType;
+import com.ociweb.pronghorn.network.config.HTTPContentTypeDefaults;
+import com.ociweb.pronghorn.network.config.HTTPHeader;
+import com.ociweb.pronghorn.network.config.HTTPRevision;
+import com.ociweb.pronghorn.network.config.HTTPSpecification;
+import com.ociweb.pronghorn.network.config.HTTPVerb;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.monitor.MonitorConsoleStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.util.AppendableBuilder;
+
+/**
+ * Responds with the stages limiting throughput, ranked, and the saturated pipes as JSON.
+ * The same critical path is drawn in purple on the graph.dot served by DotModuleStage.
+ */
+public class BottleneckModuleStage<T extends Enum<T> & HTTPContentType,
+									R extends Enum<R> & HTTPRevision,
+									V extends Enum<V> & HTTPVerb,
+									H extends Enum<H> & HTTPHeader> extends AbstractAppendablePayloadResponseStage<T,R,V,H> {
+
+	public static BottleneckModuleStage<?, ?, ?, ?> newInstance(GraphManager graphManager, Pipe<HTTPRequestSchema>[] inputs, Pipe<ServerResponseSchema>[] outputs, HTTPSpecification<?, ?, ?, ?> httpSpec, MonitorConsoleStage monitor) {
+		return new BottleneckModuleStage(graphManager, inputs, outputs, httpSpec, monitor);
+	}
+
+	private final MonitorConsoleStage monitor;
+
+	private BottleneckModuleStage(GraphManager graphManager,
+			Pipe<HTTPRequestSchema>[] inputs,
+			Pipe<ServerResponseSchema>[] outputs,
+			HTTPSpecification httpSpec, MonitorConsoleStage monitor) {
+		super(graphManager, inputs, outputs, httpSpec);
+		this.monitor = monitor;
+
+		if (inputs.length>1) {
+			GraphManager.addNota(graphManager, GraphManager.LOAD_MERGE, GraphManager.LOAD_MERGE, this);
+		}
+	}
+
+	@Override
+	protected byte[] payload(AppendableBuilder payload,
+			                 GraphManager gm,
+			                 DataInputBlobReader<HTTPRequestSchema> params,
+			                 HTTPVerbDefaults verb) {
+
+		monitor.writeBottlenecks(gm, payload);
+
+		return null; //never cache this so we return null.
+	}
+
+	@Override
+	protected byte[] contentType() {
+		return HTTPContentTypeDefaults.JSON.getBytes();
+	}
+
+}
@@ -52,7 +52,7 @@ public abstract class ByteArrayPayloadResponseStage <
 			this.outputs = outputs;		
 			this.graphManager = graphManager;
 			
-			assert(inputs.length == inputs.length);
+			HTTPUtil.validateResponsePipes(inputs.length, outputs.length);
 			
 			this.supportsBatchedPublish = false;
 			this.supportsBatchedRelease = false;
@@ -68,7 +68,7 @@ public abstract class ByteArrayPayloadResponseStage <
 		this.outputs = outputs;		
 		this.graphManager = graphManager;
 		
-		assert(inputs.length == inputs.length);
+		HTTPUtil.validateResponsePipes(inputs.length, outputs.length);
 	}
 
 	@Override
@@ -97,7 +97,7 @@ public abstract class ByteArrayPayloadResponseStage <
 		if (null == activeOutput) {
 			int i = this.inputs.length;
 			while ((--i >= 0) && (activeChannelId == -1)) {			
-				process(inputs[i], outputs[i]);			
+				process(i);			
 			}
 		}
 		
@@ -105,13 +105,15 @@ public abstract class ByteArrayPayloadResponseStage <
 
 
 	
-	private void process(Pipe<HTTPRequestSchema> input, 
-			             Pipe<ServerResponseSchema> output) {
+	private void process(int idx) {
+		
+		Pipe<HTTPRequestSchema> input = inputs[idx];
+		Pipe<ServerResponseSchema> output;
 		
 		//output is using the high level and input is the low level
 		while ( (activeChannelId == -1)//only call if we finished the previous run
-				 && PipeWriter.hasRoomForWrite(output) 
-				 && Pipe.hasContentToRead(input)) {
+				 && Pipe.hasContentToRead(input)
+				 && PipeWriter.hasRoomForWrite(output = HTTPUtil.responsePipe(outputs, idx, inputs.length, input))) {
 			
 			//logger.trace("has room and has data to write out from "+input);
 		    
@@ -143,6 +145,10 @@ public abstract class ByteArrayPayloadResponseStage <
 		        	
 		        	
 				break;
+		        case HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301:
+		        	//the response is built from the route params only, streamed bodies are dropped
+		        	Pipe.skipNextFragment(input, msgIdx);
+		        continue; //already confirmed and released
 		        case -1:
 		           //requestShutdown();
 		        break;
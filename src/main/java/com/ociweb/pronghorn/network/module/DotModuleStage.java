@@ -31,6 +31,10 @@ public class DotModuleStage<   T extends Enum<T> & HTTPContentType,
     	return new DotModuleStage(graphManager, inputs, outputs, httpSpec, monitor);
     }
     
+    public static DotModuleStage<?, ?, ?, ?> newInstance(GraphManager graphManager, Pipe<HTTPRequestSchema>[] inputs, Pipe<ServerResponseSchema>[] outputs, HTTPSpecification<?, ?, ?, ?> httpSpec, MonitorConsoleStage monitor) {
+    	return new DotModuleStage(graphManager, inputs, outputs, httpSpec, monitor);
+    }
+    
     public static DotModuleStage<?, ?, ?, ?> newInstance(GraphManager graphManager, Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output, HTTPSpecification<?, ?, ?, ?> httpSpec) {
     	MonitorConsoleStage monitor = MonitorConsoleStage.attach(graphManager);		
         return new DotModuleStage(graphManager, new Pipe[]{input}, new Pipe[]{output}, httpSpec, monitor);
@@ -0,0 +1,110 @@
+package com.ociweb.pronghorn.network.module;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded cache of whole file contents which may be shared by many FileReadModuleStage instances.
+ * Unlike the in flight copy this does not depend on the file still being in the output pipe.
+ *
+ * Entries are evicted least recently used first. Each entry remembers the modification time of the
+ * file it was read from so a stage which has seen a newer file never gets the old bytes.
+ */
+public final class FileContentCache {
+
+	private static final class Entry {
+		final byte[] bytes;
+		final long lastModified;
+
+		Entry(byte[] bytes, long lastModified) {
+			this.bytes = bytes;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final long maxTotalBytes;
+	private final int maxFileBytes;
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(64, .75f, true); //access order
+
+	private long totalBytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param maxTotalBytes limit for the sum of all cached files
+	 * @param maxFileBytes larger files are never cached
+	 */
+	public FileContentCache(long maxTotalBytes, int maxFileBytes) {
+		if (maxFileBytes>maxTotalBytes) {
+			throw new UnsupportedOperationException("maxFileBytes "+maxFileBytes+" can not be larger than maxTotalBytes "+maxTotalBytes);
+		}
+		this.maxTotalBytes = maxTotalBytes;
+		this.maxFileBytes = maxFileBytes;
+	}
+
+	public int maxFileBytes() {
+		return maxFileBytes;
+	}
+
+	/**
+	 * @return cached contents or null if missing or read from a different version of the file
+	 */
+	public synchronized byte[] get(Path path, long lastModified) {
+		Entry entry = entries.get(path);
+		if (null!=entry && entry.lastModified == lastModified) {
+			hits++;
+			return entry.bytes;
+		}
+		misses++;
+		return null;
+	}
+
+	public synchronized void put(Path path, byte[] bytes, long lastModified) {
+		if (bytes.length>maxFileBytes) {
+			return;
+		}
+		Entry old = entries.put(path, new Entry(bytes, lastModified));
+		if (null!=old) {
+			totalBytes -= old.bytes.length;
+		}
+		totalBytes += bytes.length;
+
+		Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+		while (totalBytes>maxTotalBytes && iterator.hasNext()) {
+			Map.Entry<Path, Entry> eldest = iterator.next();
+			if (eldest.getKey().equals(path)) {
+				continue; //the newest entry is last but never evict the one just added
+			}
+			totalBytes -= eldest.getValue().bytes.length;
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void invalidate(Path path) {
+		Entry old = entries.remove(path);
+		if (null!=old) {
+			totalBytes -= old.bytes.length;
+		}
+	}
+
+	public synchronized long totalBytes() {
+		return totalBytes;
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+}
@@ -3,22 +3,34 @@ package com.ociweb.pronghorn.network.module;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ociweb.pronghorn.network.FileRegions;
 import com.ociweb.pronghorn.network.ServerCoordinator;
 import com.ociweb.pronghorn.network.config.HTTPContentType;
 import com.ociweb.pronghorn.network.config.HTTPHeader;
+import com.ociweb.pronghorn.network.config.HTTPHeaderDefaults;
 import com.ociweb.pronghorn.network.config.HTTPRevision;
 import com.ociweb.pronghorn.network.config.HTTPRevisionDefaults;
 import com.ociweb.pronghorn.network.config.HTTPSpecification;
@@ -27,6 +39,7 @@ import com.ociweb.pronghorn.network.http.AbstractRestStage;
 import com.ociweb.pronghorn.network.http.HTTPUtil;
 import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeConfig;
 import com.ociweb.pronghorn.pipe.RawDataSchema;
@@ -47,6 +60,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 
     
     private static final int SIZE_OF_RESTREQUEST = Pipe.sizeOf(HTTPRequestSchema.instance, HTTPRequestSchema.MSG_RESTREQUEST_300);
+    private static final int SIZE_OF_FILE_REGION = Pipe.sizeOf(ServerResponseSchema.instance, ServerResponseSchema.MSG_TOCHANNELFILE_101);
 
 
 	public static class FileReadModuleStageData {
@@ -57,6 +71,11 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 		private long[] fileSizes;
 		private byte[][] etagBytes;
 		private int[] type;
+		private int[] gzipIds;
+		private int[] deflateIds;
+		private byte[][] responseHeaders;
+		private long[] lastModified;
+		private byte[][] lastModifiedBytes;
 		public final FileSystem fileSystem = FileSystems.getDefault();
 		
 		//move to external utility
@@ -72,6 +91,11 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 	        setFileSizes(new long[maxFileCount]);
 	        setEtagBytes(new byte[maxFileCount][]);
 	        setType(new int[maxFileCount]); 
+	        setGzipIds(new int[maxFileCount]);
+	        setDeflateIds(new int[maxFileCount]);
+	        setResponseHeaders(new byte[maxFileCount][]);
+	        setLastModified(new long[maxFileCount]);
+	        setLastModifiedBytes(new byte[maxFileCount][]);
 				        
 	        setReadOptions(new HashSet<OpenOption>());
 	        getReadOptions().add(StandardOpenOption.READ);
@@ -135,6 +159,58 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 		public void setType(int[] type) {
 			this.type = type;
 		}
+
+		/**
+		 * @return path id of the gzip variant of each file, zero when there is none
+		 */
+		public int[] getGzipIds() {
+			return gzipIds;
+		}
+
+		public void setGzipIds(int[] gzipIds) {
+			this.gzipIds = gzipIds;
+		}
+
+		/**
+		 * @return path id of the deflate variant of each file, zero when there is none
+		 */
+		public int[] getDeflateIds() {
+			return deflateIds;
+		}
+
+		public void setDeflateIds(int[] deflateIds) {
+			this.deflateIds = deflateIds;
+		}
+
+		/**
+		 * @return extra response header lines of each file, eg Content-Encoding, Vary and Last-Modified
+		 */
+		public byte[][] getResponseHeaders() {
+			return responseHeaders;
+		}
+
+		public void setResponseHeaders(byte[][] responseHeaders) {
+			this.responseHeaders = responseHeaders;
+		}
+
+		public long[] getLastModified() {
+			return lastModified;
+		}
+
+		public void setLastModified(long[] lastModified) {
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @return Last-Modified of each file as an HTTP date
+		 */
+		public byte[][] getLastModifiedBytes() {
+			return lastModifiedBytes;
+		}
+
+		public void setLastModifiedBytes(byte[][] lastModifiedBytes) {
+			this.lastModifiedBytes = lastModifiedBytes;
+		}
 	}
 
 
@@ -149,6 +225,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     private ServiceObjectHolder<FileChannel> channelHolder;
     
     private FileChannel activeFileChannel = null;
+    private Pipe<ServerResponseSchema> activeOutput; //shard output for the channel of the active file
 
     private int         activeChannelHigh;
     private int         activeChannelLow;
@@ -181,6 +258,66 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     private int shutdownCount;
     
     private FileReadModuleStageData data;
+    
+    //when set, files larger than one fragment are sent by the socket writer straight from the file
+    private FileRegions fileRegions;
+    private int           activeRegionId = -1;
+    
+    //compressible files get pre-encoded sibling entries picked by the Accept-Encoding header
+    private boolean encodeGzip = true;
+    private boolean encodeDeflate = false;
+    private Path    encodedFolder;
+    private static final int MIN_ENCODED_SIZE = 256; //smaller files rarely gain enough to pay for the header
+    private static final byte[] GZIP = "gzip".getBytes();
+    private static final byte[] DEFLATE = "deflate".getBytes();
+    private static final byte[] VARY_ACCEPT_ENCODING = "Vary: Accept-Encoding\r\n".getBytes();
+    private static final byte[] GZIP_HEADERS = "Content-Encoding: gzip\r\nVary: Accept-Encoding\r\n".getBytes();
+    private static final byte[] DEFLATE_HEADERS = "Content-Encoding: deflate\r\nVary: Accept-Encoding\r\n".getBytes();
+    
+    //conditional and range requests
+    private static final byte[] LAST_MODIFIED = "Last-Modified: ".getBytes();
+    private static final byte[] ACCEPT_RANGES_BYTES = "Accept-Ranges: bytes\r\n".getBytes();
+    private static final byte[] BYTES_UNIT = "bytes=".getBytes();
+    private static final String CONTENT_RANGE = "Content-Range: bytes ";
+    private static final String BOUNDARY = "PronghornByteRanges";
+    private static final byte[] MULTIPART_TYPE = ("multipart/byteranges; boundary="+BOUNDARY).getBytes();
+    private static final byte[] PART_START = ("\r\n--"+BOUNDARY+"\r\nContent-Type: ").getBytes();
+    private static final byte[] PART_RANGE = ("\r\n"+CONTENT_RANGE).getBytes();
+    private static final byte[] PART_END = "\r\n\r\n".getBytes();
+    private static final byte[] CLOSE_DELIMITER = ("\r\n--"+BOUNDARY+"--\r\n").getBytes();
+    private static final int MAX_RANGES = 16;
+    private SimpleDateFormat httpDateFormat;
+    
+    //positions of the captured request headers, length is -1 when absent
+    private byte[] requestBacking;
+    private int    requestMask;
+    private int    acceptEncodingPos;
+    private int    acceptEncodingLen;
+    private int    ifNoneMatchPos;
+    private int    ifNoneMatchLen;
+    private int    ifModifiedSincePos;
+    private int    ifModifiedSinceLen;
+    private int    rangePos;
+    private int    rangeLen;
+    private int    ifRangePos;
+    private int    ifRangeLen;
+    
+    //zero part count sends the whole file, more than one sends multipart/byteranges
+    private final long[] partStarts = new long[MAX_RANGES];
+    private final long[] partLengths = new long[MAX_RANGES];
+    private int     activePartCount;
+    private int     activePart;
+    private boolean activePartHeaderPending;
+    
+    //when set, whole files are kept in memory so hot files are not read from disk again
+    private FileContentCache contentCache;
+    private byte[] activeCachedBytes;
+    
+    //files are checked for changes on disk a few at a time while the stage is idle
+    private static final long HOT_REPLACE_CHECK_MS = 1000;
+    private static final int HOT_REPLACE_FILES_PER_CHECK = 64;
+    private long nextHotReplaceCheck;
+    private int hotReplaceCursor;
  
 	private static final boolean supportInFlightCopy = true;
 	private static final boolean supportInFlightCopyByRef = false;  //TODO:still not working,  why do we only find a few of these?
@@ -229,7 +366,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         assert( httpSpec.verbMatches(VERB_GET, "GET") );
         assert( httpSpec.verbMatches(VERB_HEAD, "HEAD") );      
         this.inIdx = inputs.length;
-        
+        HTTPUtil.validateResponsePipes(inputs.length, outputs.length);
         
         this.folderRootFile = rootPath.isFile()? rootPath.getParentFile() : rootPath;       
         this.folderRootString = folderRootFile.toString();
@@ -260,6 +397,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 		assert( httpSpec.verbMatches(VERB_GET, "GET") );
 		assert( httpSpec.verbMatches(VERB_HEAD, "HEAD") );      
 		this.inIdx = inputs.length;
+		HTTPUtil.validateResponsePipes(inputs.length, outputs.length);
 				
 		this.folderRootFile = null;//when this value is null we can only check the resources....  
 		this.folderRootString = resourceRootFolder;
@@ -293,6 +431,12 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     
     private static class FileChannelValidator implements ServiceObjectValidator<FileChannel> {
         
+        private final FileRegions regions;
+        
+        FileChannelValidator(FileRegions regions) {
+        	this.regions = regions;
+        }
+        
         @Override
         public boolean isValid(FileChannel t) {
             return t!=null && t.isOpen();
@@ -300,6 +444,11 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 
         @Override
         public void dispose(FileChannel t) {
+           if (null != regions) {
+        	   //regions still waiting on the writer keep the channel open
+        	   regions.close(t);
+        	   return;
+           }
            try {
                t.close();
             } catch (IOException e) {
@@ -309,14 +458,42 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     }
 
     
+    /**
+     * Large files are sent as regions of the open file instead of being copied through the pipes.
+     * Must be the same instance given to ServerCoordinator.setFileRegions, plain connections only.
+     */
+    public void setFileRegions(FileRegions regions) {
+    	this.fileRegions = regions;
+    }
+    
+    /**
+     * Files no larger than the cache limit are kept in this cache after the first read.
+     * One instance may be shared by all the file stages serving the same folder.
+     */
+    public void setContentCache(FileContentCache cache) {
+    	this.contentCache = cache;
+    }
+    
+    /**
+     * Selects which pre-compressed variants are built for compressible files at startup, gzip only by default.
+     * Variants are only sent when the route captures the Accept-Encoding header.
+     */
+    public void setEncodings(boolean gzip, boolean deflate) {
+    	this.encodeGzip = gzip;
+    	this.encodeDeflate = deflate;
+    }
+    
     @Override
     public void startup() {
 
     	//local state
         this.pathCacheReader = new TrieParserReader();
-        this.channelHolder = new ServiceObjectHolder<FileChannel>(OPEN_FILECHANNEL_BITS, FileChannel.class, new FileChannelValidator() , false);
+        this.channelHolder = new ServiceObjectHolder<FileChannel>(OPEN_FILECHANNEL_BITS, FileChannel.class, new FileChannelValidator(fileRegions) , false);
         
         this.digitBuffer.initBuffers();
+        
+        this.httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        this.httpDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
 
         File[] children = null==folderRootFile ? null : folderRootFile.listFiles();
         
@@ -324,12 +501,14 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         
         int maxFileCount = 4;
 		if (null!=children && children.length>0) {
-			int counts = countAllKnownFiles(children)+1;//IDs start at 1 so we need extra room
+			int counts = countAllKnownFiles(children);
+			//each file may have an encoded sibling per encoding
+			counts = (counts * (1 + (encodeGzip ? 1 : 0) + (encodeDeflate ? 1 : 0))) + 1;//IDs start at 1 so we need extra room
 			maxFileCount = 1<<(int)Math.ceil(Math.log(counts)/Math.log(2));	//convert to next power of 2
 		}
 
         this.data = new FileReadModuleStageData(httpSpec, maxFileCount);
-                
+        
         //TODO: pull out as common object for all instances
 		TrieParser pc = new TrieParser(initialMaxTotalPathLength, 2, false, false);
 		
@@ -411,6 +590,8 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 				    storeNewFileData(trie, rootSize, builder, 
 				    		path, newPathId, asBytes, bytesLength, typeId,
 							activeFileChannel);
+				    
+				    storeEncodedVariants(builder, path, newPathId, typeId);
 					
 				    return newPathId;
 				
@@ -430,9 +611,130 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 		builder.setLength(0);
 		data.getType()[newPathId] = typeId;
 		data.getFcId()[newPathId] = channelHolder.add(activeFileChannel);
-		data.getEtagBytes()[newPathId] = Appendables.appendHexDigits(builder, data.getFcId()[newPathId]).toString().getBytes();		                
 		data.getFileSizes()[newPathId] = fileSize;   
 		builder.setLength(0);
+		data.getLastModified()[newPathId] = path.toFile().lastModified();
+		data.getEtagBytes()[newPathId] = etagBytes(builder, fileSize, data.getLastModified()[newPathId], null);
+		data.getLastModifiedBytes()[newPathId] = httpDateFormat.format(new Date(data.getLastModified()[newPathId])).getBytes();
+		data.getResponseHeaders()[newPathId] = responseHeaders(null, newPathId);
+	}
+
+	/**
+	 * Built from the size and modification time so the tag only changes with the content and is
+	 * the same after a restart or on another server holding the same file.
+	 */
+	public static byte[] etagBytes(StringBuilder builder, long fileSize, long lastModified, String suffix) {
+		builder.setLength(0);
+		builder.append('"');
+		Appendables.appendHexDigits(builder, fileSize).append('-');
+		Appendables.appendHexDigits(builder, lastModified);
+		if (null!=suffix) {
+			builder.append('-').append(suffix);
+		}
+		byte[] result = builder.append('"').toString().getBytes();
+		builder.setLength(0);
+		return result;
+	}
+
+	/**
+	 * Header lines sent with every response for this entry, built once so no work is done per request.
+	 */
+	private byte[] responseHeaders(byte[] encodingHeaders, int pathId) {
+		byte[] date = data.getLastModifiedBytes()[pathId];
+		int encodingLength = null==encodingHeaders ? 0 : encodingHeaders.length;
+		byte[] result = new byte[encodingLength+LAST_MODIFIED.length+date.length+RETURN_NEWLINE.length+ACCEPT_RANGES_BYTES.length];
+		int pos = 0;
+		if (null!=encodingHeaders) {
+			System.arraycopy(encodingHeaders, 0, result, pos, encodingLength);
+			pos += encodingLength;
+		}
+		System.arraycopy(LAST_MODIFIED, 0, result, pos, LAST_MODIFIED.length);
+		pos += LAST_MODIFIED.length;
+		System.arraycopy(date, 0, result, pos, date.length);
+		pos += date.length;
+		System.arraycopy(RETURN_NEWLINE, 0, result, pos, RETURN_NEWLINE.length);
+		pos += RETURN_NEWLINE.length;
+		System.arraycopy(ACCEPT_RANGES_BYTES, 0, result, pos, ACCEPT_RANGES_BYTES.length);
+		return result;
+	}
+
+	private void storeEncodedVariants(StringBuilder builder, Path path, int pathId, int typeId) throws IOException {
+		
+		if ((!encodeGzip && !encodeDeflate) 
+			|| data.getFileSizes()[pathId] < MIN_ENCODED_SIZE
+			|| !isCompressible(httpSpec.contentTypes[typeId].contentType())) {
+			return;
+		}
+		if (encodeGzip) {
+			data.getGzipIds()[pathId] = storeEncodedVariant(builder, path, pathId, typeId, GZIP, GZIP_HEADERS);
+		}
+		if (encodeDeflate) {
+			data.getDeflateIds()[pathId] = storeEncodedVariant(builder, path, pathId, typeId, DEFLATE, DEFLATE_HEADERS);
+		}
+		if (0!=data.getGzipIds()[pathId] || 0!=data.getDeflateIds()[pathId]) {
+			//caches must keep the raw and encoded responses apart
+			data.getResponseHeaders()[pathId] = responseHeaders(VARY_ACCEPT_ENCODING, pathId);
+		}
+	}
+
+	private static boolean isCompressible(CharSequence contentType) {
+		String type = contentType.toString();
+		return type.startsWith("text/")
+			|| type.contains("json")
+			|| type.contains("javascript")
+			|| type.contains("xml");
+	}
+
+	/**
+	 * Compresses the file into a sibling entry which is not in the path trie so it is only
+	 * reachable through the file it was made from.
+	 * 
+	 * @return new path id or zero if the encoded file would not be smaller
+	 */
+	private int storeEncodedVariant(StringBuilder builder, Path path, int pathId, int typeId, 
+			                        byte[] coding, byte[] headers) throws IOException {
+		
+		if (null == encodedFolder) {
+			encodedFolder = Files.createTempDirectory("pronghornEncoded");
+			encodedFolder.toFile().deleteOnExit();
+		}
+		String suffix = new String(coding);
+		Path encodedPath = encodedFolder.resolve(Integer.toString(pathId)+"."+suffix);
+		encodedPath.toFile().deleteOnExit();
+		
+		OutputStream out = Files.newOutputStream(encodedPath);
+		try {
+			OutputStream encoder = (GZIP == coding) ? new GZIPOutputStream(out) : new DeflaterOutputStream(out);
+			Files.copy(path, encoder);
+			encoder.close();
+		} finally {
+			out.close();
+		}
+		
+		if (Files.size(encodedPath) >= data.getFileSizes()[pathId]) {
+			Files.delete(encodedPath);
+			return 0;
+		}
+		
+		final int encodedId = ++pathCount;
+		if (encodedId>=data.getType().length) {
+			throw new UnsupportedOperationException("FileReader only supports "+data.getType().length+" files, attempted to add more than this.");
+		}		
+		FileChannel encodedChannel = data.fileSystem.provider().newFileChannel(encodedPath, data.getReadOptions());
+		
+		builder.setLength(0);
+		data.getPaths()[encodedId] = encodedPath;
+		data.getType()[encodedId] = typeId;
+		data.getFcId()[encodedId] = channelHolder.add(encodedChannel);
+		//the variant changes only when the file does so its tag is derived from the original
+		data.getEtagBytes()[encodedId] = etagBytes(builder, data.getFileSizes()[pathId], data.getLastModified()[pathId], suffix);
+		data.getFileSizes()[encodedId] = encodedChannel.size();
+		//the variant changes only when the file does
+		data.getLastModified()[encodedId] = data.getLastModified()[pathId];
+		data.getLastModifiedBytes()[encodedId] = data.getLastModifiedBytes()[pathId];
+		data.getResponseHeaders()[encodedId] = responseHeaders(headers, encodedId);
+		builder.setLength(0);
+		return encodedId;
 	}
 
 	private void storeNewFileData(TrieParser trie, final int rootSize, StringBuilder builder, int newPathId,
@@ -443,7 +745,8 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 		builder.setLength(0);
 		data.getType()[newPathId] = typeId;
 		data.getFcId()[newPathId] = channelHolder.add(activeFileChannel);
-		data.getEtagBytes()[newPathId] = Appendables.appendHexDigits(builder, data.getFcId()[newPathId]).toString().getBytes();		                
+		builder.append('"');
+		data.getEtagBytes()[newPathId] = Appendables.appendHexDigits(builder, data.getFcId()[newPathId]).append('"').toString().getBytes();		                
 		data.getFileSizes()[newPathId] = fileSize;   
 		builder.setLength(0);
 	}
@@ -469,7 +772,8 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 	    			}
 	    			
 	    			Pipe<HTTPRequestSchema> input = inputs[inIdx];
-	    			Pipe<ServerResponseSchema> output = outputs[inIdx];
+	    			Pipe<ServerResponseSchema> output = null!=activeFileChannel ? activeOutput 
+	    					                            : outputs[inIdx*(outputs.length/inputs.length)];
 	    			
 			        try {		            
 			            if (writeBodiesWhileRoom(activeChannelHigh, activeChannelLow, activeSequenceId, activeFileChannel, activePathId, input, output)) {
@@ -483,14 +787,19 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 			        assert(recordOutgoingState(!Pipe.hasRoomForWrite(output)));
 			        
 			        int filesDone = 0;
-			        while (null==activeFileChannel && Pipe.hasContentToRead(input) && Pipe.hasRoomForWrite(output)) {
+			        while (null==activeFileChannel && Pipe.hasContentToRead(input) 
+			        	   && Pipe.hasRoomForWrite(output = HTTPUtil.responsePipe(outputs, inIdx, inputs.length, input))) {
 			            filesDone++;
+			            activeOutput = output;
 			        	int msgIdx = Pipe.takeMsgIdx(input); 
 			            if (msgIdx == HTTPRequestSchema.MSG_RESTREQUEST_300) {
 			            	didWork++;
 			            	
 			                activeReadMessageSize = SIZE_OF_RESTREQUEST;
 			                beginReadingNextRequest(input, output);                    
+			            } else if (msgIdx == HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301) {
+			            	//request bodies are not used when reading files
+			            	Pipe.skipNextFragment(input, msgIdx);
 			            } else {
 			                if (-1 != msgIdx) {
 			                    throw new UnsupportedOperationException("Unexpected message "+msgIdx);
@@ -498,7 +807,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 			                Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
 			                Pipe.releaseReadLock(input);
 			                
-			                Pipe.publishEOF(output);
+			                HTTPUtil.publishEOF(outputs, inIdx, inputs.length);
 			                
 			                if (--shutdownCount<=0) {
 			                	requestShutdown(); //NOTE: since we have multiple inputs now we must do a countdown before shutdown.
@@ -523,11 +832,52 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     
     
     private void checkForHotReplace() {
-        //TODO: before return check for file drop of files to be replaced atomically
-        
-        //TODO: while the change over is in place only use strict checks of the trie.
-        
-        
+    	//only existing files are checked, new files dropped into the folder are not picked up.
+    	long now = System.currentTimeMillis();
+    	if (now < nextHotReplaceCheck || 0 == pathCount) {
+    		return;
+    	}
+    	nextHotReplaceCheck = now + HOT_REPLACE_CHECK_MS;
+    	
+    	int i = Math.min(HOT_REPLACE_FILES_PER_CHECK, pathCount);
+    	while (--i>=0) {
+    		if (++hotReplaceCursor > pathCount) {
+    			hotReplaceCursor = 1;
+    		}
+    		Path path = data.getPaths()[hotReplaceCursor];
+    		if (null==path || (null!=encodedFolder && path.startsWith(encodedFolder))) {
+    			continue; //encoded variants are replaced along with their file
+    		}
+    		long modified = path.toFile().lastModified();
+    		if (0!=modified && modified!=data.getLastModified()[hotReplaceCursor]) {
+    			refreshChangedFile(hotReplaceCursor, modified);
+    		}
+    	}
+    }
+
+    /**
+     * Opens the new file so the size and etag describe it. Any encoded variants hold the old
+     * content so they are no longer offered for this file.
+     */
+    private void refreshChangedFile(int pathId, long modified) {
+    	
+    	if (null!=contentCache) {
+    		contentCache.invalidate(data.getPaths()[pathId]);
+    	}
+    	try {
+    		FileChannel channel = data.fileSystem.provider().newFileChannel(data.getPaths()[pathId], data.getReadOptions());
+    		data.getFcId()[pathId] = channelHolder.add(channel);
+    		data.getFileSizes()[pathId] = channel.size();
+    		data.getLastModified()[pathId] = modified;
+    		data.getEtagBytes()[pathId] = etagBytes(new StringBuilder(), data.getFileSizes()[pathId], modified, null);
+    		data.getLastModifiedBytes()[pathId] = httpDateFormat.format(new Date(modified)).getBytes();
+    		data.getGzipIds()[pathId] = 0;
+    		data.getDeflateIds()[pathId] = 0;
+    		data.getResponseHeaders()[pathId] = responseHeaders(null, pathId);
+    		logger.info("file {} changed on disk and was reloaded", data.getPaths()[pathId]);
+    	} catch (IOException e) {
+    		logger.warn("unable to reload changed file {}", data.getPaths()[pathId], e);
+    	}
     }
 
     private void beginReadingNextRequest(Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) {
@@ -559,8 +909,10 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
                 
         assert(httpRevision <= HTTPRevisionDefaults.values().length) : "revision is too large found "+httpRevision;
         
+        //requested headers follow the path so its length is taken from the leading short
+        int pathLength = ((0xFF&bytesBackingArray[bytesMask&bytesPosition])<<8) | (0xFF&bytesBackingArray[bytesMask&(bytesPosition+1)]);
         int pathId = selectActiveFileChannel(pathCacheReader, data.getPathCache(), 
-        		                             bytesLength-2, bytesBackingArray, bytesPosition+2, bytesMask);
+        		                             pathLength, bytesBackingArray, bytesPosition+2, bytesMask);
                 
        // logger.info("pathId for file request {}", pathId);
 
@@ -575,7 +927,13 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         //	throw new UnsupportedOperationException("File not found: "+ Appendables.appendUTF8(new StringBuilder(), bytesBackingArray, bytesPosition, bytesLength, bytesMask).toString());
         } else {
 	        
-	        activePathId = pathId;
+        	captureRequestHeaders(bytesBackingArray, bytesPosition+2+pathLength, bytesLength-(2+pathLength), bytesMask);
+        	int sendId = selectEncodedVariant(pathId);
+        	if (sendId != pathId) {
+        		activateFileChannel(sendId);
+        	}
+        	
+	        activePathId = sendId;
 	        //This value is ONLY sent on the last message that makes up this response, all others get a zero.
 	        activeRequestContext = context | ServerCoordinator.END_RESPONSE_MASK; 
   
@@ -583,7 +941,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 	        //ready to read the file from fileChannel and use type in type[pathId]
 	        //////////////////////////
 	        if (pathId>=0) {
-	            beginSendingFile(httpRevision, activeRequestContext, pathId, verb, activeSequenceId, input, output);
+	            beginSendingFile(httpRevision, activeRequestContext, pathId, sendId, verb, activeSequenceId, input, output);
 	        } else {
 	            publishErrorHeader(activeRequestContext, 0, activeSequenceId, null, output);
 	        }
@@ -609,10 +967,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         }
         
         if (pathId >= 0) {
-            if (null!=(activeFileChannel = channelHolder.getValid(data.getFcId()[pathId]))) {
-            } else {
-                findAgainFileChannel(pathId);
-            }
+            activateFileChannel(pathId);
         } else {
         	//if bytesLength is 0 then use the defaultPathFile
         	System.err.println("default: "+	defaultPathFile);
@@ -651,6 +1006,282 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         
     }
 
+    private void activateFileChannel(int pathId) {
+    	if (null!=(activeFileChannel = channelHolder.getValid(data.getFcId()[pathId]))) {
+    	} else {
+    		findAgainFileChannel(pathId);
+    	}
+    }
+
+    /**
+     * Walks the requested headers which follow the path, each is a short header id then the
+     * captured value as a short length and the bytes. Only the positions are kept, the values
+     * are read in place while the request is still held.
+     */
+    private void captureRequestHeaders(byte[] backing, int position, int length, int mask) {
+    	
+    	requestBacking = backing;
+    	requestMask = mask;
+    	acceptEncodingLen = -1;
+    	ifNoneMatchLen = -1;
+    	ifModifiedSinceLen = -1;
+    	rangeLen = -1;
+    	ifRangeLen = -1;
+    	
+    	while (length>=4) {
+    		int headerId = ((0xFF&backing[mask&position])<<8) | (0xFF&backing[mask&(position+1)]);
+    		int valueLength = ((0xFF&backing[mask&(position+2)])<<8) | (0xFF&backing[mask&(position+3)]);
+    		position += 4;
+    		length -= 4;
+    		if (valueLength>length) {
+    			break;
+    		}
+    		if (HTTPHeaderDefaults.ACCEPT_ENCODING.ordinal() == headerId) {
+    			acceptEncodingPos = position;
+    			acceptEncodingLen = valueLength;
+    		} else if (HTTPHeaderDefaults.IF_NONE_MATCH.ordinal() == headerId) {
+    			ifNoneMatchPos = position;
+    			ifNoneMatchLen = valueLength;
+    		} else if (HTTPHeaderDefaults.IF_MODIFIED_SINCE.ordinal() == headerId) {
+    			ifModifiedSincePos = position;
+    			ifModifiedSinceLen = valueLength;
+    		} else if (HTTPHeaderDefaults.RANGE.ordinal() == headerId) {
+    			rangePos = position;
+    			rangeLen = valueLength;
+    		} else if (HTTPHeaderDefaults.IF_RANGE.ordinal() == headerId) {
+    			ifRangePos = position;
+    			ifRangeLen = valueLength;
+    		}
+    		position += valueLength;
+    		length -= valueLength;
+    	}
+    }
+    
+    /**
+     * @return path id of the encoded variant the client accepts or pathId for the raw file
+     */
+    private int selectEncodedVariant(int pathId) {
+    	
+    	final int gzipId = data.getGzipIds()[pathId];
+    	final int deflateId = data.getDeflateIds()[pathId];
+    	if ((0==gzipId && 0==deflateId) || acceptEncodingLen<0) {
+    		return pathId;
+    	}
+		if (0!=gzipId && acceptsEncoding(requestBacking, acceptEncodingPos, acceptEncodingLen, requestMask, GZIP)) {
+			return gzipId;
+		}
+		if (0!=deflateId && acceptsEncoding(requestBacking, acceptEncodingPos, acceptEncodingLen, requestMask, DEFLATE)) {
+			return deflateId;
+		}
+    	return pathId;
+    }
+    
+    /**
+     * If-None-Match wins over If-Modified-Since as required by RFC 7232.
+     */
+    private boolean isNotModified(int pathId) {
+    	if (ifNoneMatchLen>=0) {
+    		return matchesETag(requestBacking, ifNoneMatchPos, ifNoneMatchLen, requestMask, data.getEtagBytes()[pathId], true);
+    	}
+    	if (ifModifiedSinceLen>=0) {
+    		//clients echo our own Last-Modified so the byte compare is the common case
+    		if (equalBytes(requestBacking, ifModifiedSincePos, ifModifiedSinceLen, requestMask, data.getLastModifiedBytes()[pathId])) {
+    			return true;
+    		}
+    		long since = parseHTTPDate(requestBacking, ifModifiedSincePos, ifModifiedSinceLen, requestMask);
+    		return since>=0 && (data.getLastModified()[pathId]/1000) <= (since/1000);
+    	}
+    	return false;
+    }
+    
+    /**
+     * A Range is only honored when If-Range is absent or still names this exact representation.
+     */
+    private boolean isRangeApplicable(int pathId) {
+    	if (rangeLen<0) {
+    		return false;
+    	}
+    	if (ifRangeLen<0) {
+    		return true;
+    	}
+    	return matchesETag(requestBacking, ifRangePos, ifRangeLen, requestMask, data.getEtagBytes()[pathId], false)
+    		|| equalBytes(requestBacking, ifRangePos, ifRangeLen, requestMask, data.getLastModifiedBytes()[pathId]);
+    }
+    
+    private long parseHTTPDate(byte[] backing, int position, int length, int mask) {
+    	try {
+    		return httpDateFormat.parse(Appendables.appendUTF8(new StringBuilder(), backing, position, length, mask).toString()).getTime();
+    	} catch (ParseException e) {
+    		return -1;
+    	}
+    }
+    
+    private static boolean equalBytes(byte[] backing, int position, int length, int mask, byte[] expected) {
+    	if (length != expected.length) {
+    		return false;
+    	}
+    	int i = length;
+    	while (--i>=0) {
+    		if (backing[mask&(position+i)] != expected[i]) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * @param weak when true W/ tags compare equal to the quoted etag, as If-None-Match allows
+     * @return true if the comma separated list holds * or this etag
+     */
+    public static boolean matchesETag(byte[] backing, int position, int length, int mask, byte[] etag, boolean weak) {
+    	final int limit = position+length;
+    	int pos = position;
+    	while (pos<limit) {
+    		while (pos<limit && (' '==backing[mask&pos] || ','==backing[mask&pos])) {
+    			pos++;
+    		}
+    		int start = pos;
+    		while (pos<limit && ','!=backing[mask&pos] && ' '!=backing[mask&pos]) {
+    			pos++;
+    		}
+    		if (1==pos-start && '*'==backing[mask&start]) {
+    			return weak;
+    		}
+    		if (pos-start>2 && 'W'==backing[mask&start] && '/'==backing[mask&(start+1)]) {
+    			if (!weak) {
+    				continue;
+    			}
+    			start += 2;
+    		}
+    		if (equalBytes(backing, start, pos-start, mask, etag)) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    /**
+     * Parses a bytes Range value, each satisfiable range is clipped to the file.
+     * 
+     * @return count of ranges, 0 if none can be satisfied or -1 if the header must be ignored and the full file sent
+     */
+    public static int parseRanges(byte[] backing, int position, int length, int mask, long fileSize, long[] starts, long[] lengths) {
+    	final int limit = position+length;
+    	int pos = position;
+    	if (!equalBytes(backing, pos, Math.min(BYTES_UNIT.length, length), mask, BYTES_UNIT)) {
+    		return -1;
+    	}
+    	pos += BYTES_UNIT.length;
+    	
+    	int count = 0;
+    	int specs = 0;
+    	while (pos<limit) {
+    		while (pos<limit && ' '==backing[mask&pos]) {
+    			pos++;
+    		}
+    		long first = -1;
+    		int digits = 0;
+    		while (pos<limit && backing[mask&pos]>='0' && backing[mask&pos]<='9') {
+    			first = (digits++ == 0 ? 0 : first*10) + (backing[mask&pos++]-'0');
+    		}
+    		if (pos>=limit || '-'!=backing[mask&pos++] || digits>18) {
+    			return -1;
+    		}
+    		long last = -1;
+    		digits = 0;
+    		while (pos<limit && backing[mask&pos]>='0' && backing[mask&pos]<='9') {
+    			last = (digits++ == 0 ? 0 : last*10) + (backing[mask&pos++]-'0');
+    		}
+    		while (pos<limit && ' '==backing[mask&pos]) {
+    			pos++;
+    		}
+    		if (digits>18 || (pos<limit && ','!=backing[mask&pos++])) {
+    			return -1;
+    		}
+    		specs++;
+    		
+    		long start;
+    		long end;
+    		if (first<0) {
+    			if (last<0) {
+    				return -1;
+    			}
+    			if (0==last || 0==fileSize) {
+    				continue; //unsatisfiable suffix
+    			}
+    			start = Math.max(0, fileSize-last);
+    			end = fileSize-1;
+    		} else {
+    			if (last>=0 && last<first) {
+    				return -1;
+    			}
+    			if (first>=fileSize) {
+    				continue; //unsatisfiable
+    			}
+    			start = first;
+    			end = (last<0 || last>=fileSize) ? fileSize-1 : last;
+    		}
+    		if (count == starts.length) {
+    			return -1; //too many parts, the full file is cheaper for everyone
+    		}
+    		starts[count] = start;
+    		lengths[count] = end-start+1;
+    		count++;
+    	}
+    	return 0==specs ? -1 : count;
+    }
+
+    /**
+     * @return true if the comma separated Accept-Encoding list names this coding or * without q=0
+     */
+    public static boolean acceptsEncoding(byte[] backing, int position, int length, int mask, byte[] coding) {
+    	final int limit = position+length;
+    	int pos = position;
+    	while (pos<limit) {
+    		while (pos<limit && (' '==backing[mask&pos] || ','==backing[mask&pos])) {
+    			pos++;
+    		}
+    		int start = pos;
+    		while (pos<limit && ','!=backing[mask&pos] && ';'!=backing[mask&pos] && ' '!=backing[mask&pos]) {
+    			pos++;
+    		}
+    		boolean match = ((1==pos-start) && '*'==backing[mask&start]) || matchesIgnoreCase(backing, start, pos-start, mask, coding);
+    		
+    		//any parameters, only q is of interest
+    		boolean zeroQuality = false;
+    		while (pos<limit && ','!=backing[mask&pos]) {
+    			if ('='==backing[mask&pos] && ('q'==(0x20|backing[mask&(pos-1)]))) {
+    				zeroQuality = true;
+    				int q = pos+1;
+    				while (q<limit && ','!=backing[mask&q] && ';'!=backing[mask&q]) {
+    					byte b = backing[mask&q++];
+    					if (b>='1' && b<='9') {
+    						zeroQuality = false;
+    					}
+    				}
+    			}
+    			pos++;
+    		}
+    		if (match) {
+    			return !zeroQuality;
+    		}
+    	}
+    	return false;
+    }
+
+    private static boolean matchesIgnoreCase(byte[] backing, int position, int length, int mask, byte[] lowerCase) {
+    	if (length != lowerCase.length) {
+    		return false;
+    	}
+    	int i = length;
+    	while (--i>=0) {
+    		if ((0x20|backing[mask&(position+i)]) != lowerCase[i]) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
     private void findAgainFileChannel(int pathId) {
         ///////////////
         //we lost our file channel and need to request a new one.
@@ -670,7 +1301,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         }
     }
 
-    private void beginSendingFile(int httpRevision, int requestContext, int pathId, int verb, int sequence, Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) {
+    private void beginSendingFile(int httpRevision, int requestContext, int requestedId, int pathId, int verb, int sequence, Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) {
         try {                                               
             //reposition to beginning of the file to be loaded and sent.
             activePayloadSizeRemaining = data.getFileSizes()[pathId];
@@ -682,7 +1313,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
                         
             byte[] contLoc = null;
             int    contLocLen = 0;            
-            if (pathId==defaultPathId) {
+            if (requestedId==defaultPathId) {
             	contLoc = defaultPathBytes;
             	contLocLen = defaultPathBytes.length;
             }
@@ -695,12 +1326,50 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
             
             assert(data.getFileSizes()[pathId]<Integer.MAX_VALUE) : "Can not support files larger than 2G at this time.";
             boolean chunked = false;
+            
+            if (isNotModified(pathId)) {
+            	//the client copy is current, only the validators are sent
+            	publishHeaderMessage(requestContext, sequence, requestContext, 304, output, activeChannelHigh, activeChannelLow,
+            			             httpSpec, revision, null, (int)data.getFileSizes()[pathId], chunked,
+            			             data.getEtagBytes()[pathId], reportServer, contLoc, 0, contLocLen, Integer.MAX_VALUE,
+            			             data.getResponseHeaders()[pathId]);
+            	publishNoBodyMessage(this, VERB_HEAD, input);
+            	return;
+            }
+            
+            byte[] otherHeaders = data.getResponseHeaders()[pathId];
+            int length = (int)data.getFileSizes()[pathId];
+            activePartCount = 0;
+            if (VERB_GET==verb && isRangeApplicable(pathId)) {
+            	int parts = parseRanges(requestBacking, rangePos, rangeLen, requestMask, data.getFileSizes()[pathId], partStarts, partLengths);
+            	if (0 == parts) {
+            		publishHeaderMessage(requestContext, sequence, requestContext, 416, output, activeChannelHigh, activeChannelLow,
+            				             httpSpec, revision, null, 0, chunked,
+            				             null, reportServer, null, 0, 0, Integer.MAX_VALUE,
+            				             (CONTENT_RANGE+"*/"+data.getFileSizes()[pathId]+"\r\n").getBytes());
+            		publishNoBodyMessage(this, VERB_HEAD, input);
+            		return;
+            	}
+            	if (parts > 0) {
+            		status = 206;
+            		activePartCount = parts;
+            		if (1 == parts) {
+            			length = (int)partLengths[0];
+            			otherHeaders = singleRangeHeaders(otherHeaders, partStarts[0], partLengths[0], data.getFileSizes()[pathId]);
+            		} else {
+            			length = multipartLength(contentType, data.getFileSizes()[pathId]);
+            			contentType = MULTIPART_TYPE;
+            		}
+            	}
+            }
+            
             int bytesConsumed = publishHeaderMessage(requestContext, sequence, VERB_GET==verb ? 0 : requestContext, 
             		                           status, output, activeChannelHigh, activeChannelLow,  
                                                httpSpec, revision, contentType, 
-                                               (int)data.getFileSizes()[pathId], chunked, 
+                                               length, chunked, 
                                                data.getEtagBytes()[pathId],
-                                               reportServer, contLoc, 0,contLocLen,Integer.MAX_VALUE                           
+                                               reportServer, contLoc, 0,contLocLen,Integer.MAX_VALUE,
+                                               otherHeaders
             		); 
 
             totalBytesWritten = totalBytesWritten + bytesConsumed;
@@ -723,6 +1392,38 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         }        
     }
 
+	private static byte[] singleRangeHeaders(byte[] responseHeaders, long start, long length, long fileSize) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(CONTENT_RANGE).append(start).append('-').append(start+length-1).append('/').append(fileSize).append("\r\n");
+		byte[] range = builder.toString().getBytes();
+		byte[] result = Arrays.copyOf(responseHeaders, responseHeaders.length+range.length);
+		System.arraycopy(range, 0, result, responseHeaders.length, range.length);
+		return result;
+	}
+
+	/**
+	 * @return Content-Length of the multipart/byteranges body, must match what publishPartHeader writes
+	 */
+	private int multipartLength(byte[] contentType, long fileSize) {
+		long total = CLOSE_DELIMITER.length;
+		int i = activePartCount;
+		while (--i>=0) {
+			long end = partStarts[i]+partLengths[i]-1;
+			total += PART_START.length + contentType.length + PART_RANGE.length
+					+ decimalDigits(partStarts[i]) + 1 + decimalDigits(end) + 1 + decimalDigits(fileSize)
+					+ PART_END.length + partLengths[i];
+		}
+		return (int)total;
+	}
+
+	private static int decimalDigits(long value) {
+		int digits = 1;
+		while ((value /= 10) > 0) {
+			digits++;
+		}
+		return digits;
+	}
+
 	private long positionOfFileDataBegin(Pipe<ServerResponseSchema> output) {
 		return PipeHashTable.getLowerBounds(outputHash)+output.blobMask;
 	}
@@ -761,12 +1462,31 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         Pipe.releaseReadLock(input);
         
         that.activeFileChannel = null;
+        if (that.activeRegionId >= 0) {
+        	that.fileRegions.release(that.activeRegionId); //never published
+        	that.activeRegionId = -1;
+        }
+        that.activePartCount = 0;
+        that.activeCachedBytes = null;
     }
     
     private static void publishBodiesMessage(FileReadModuleStage that, int verb, int sequence, int pathId, Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) throws IOException {
             if (VERB_GET == verb) { //head does not get body
 
-                that.activePosition = 0; 
+            	if (that.activePartCount > 0) {
+            		that.activePart = 0;
+            		that.activePosition = that.partStarts[0];
+            		that.activePayloadSizeRemaining = that.partLengths[0];
+            		that.activePartHeaderPending = that.activePartCount > 1;
+            	} else {
+            		that.activePosition = 0; 
+            	}
+            	if (null != that.fileRegions && that.activePartCount <= 1 && that.activePayloadSizeRemaining > output.maxVarLen) {
+            		//pinned until the writer has sent it, see FileRegions
+            		that.activeRegionId = that.fileRegions.acquire(that.activeFileChannel);
+            	} else if (null != that.contentCache) {
+            		that.activeCachedBytes = that.cachedContent(pathId);
+            	}
                 that.activeNeedsStartReposition = true;
                
                 that.writeBodiesWhileRoom(that.activeChannelHigh, that.activeChannelLow, sequence, that.activeFileChannel, pathId, input, output);                             
@@ -776,6 +1496,28 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
             }
     }
 
+	/**
+	 * @return the whole file from the cache, read and added on a miss, or null if it is too large
+	 */
+	private byte[] cachedContent(int pathId) throws IOException {
+		final Path path = data.getPaths()[pathId];
+		final long lastModified = data.getLastModified()[pathId];
+		final long fileSize = data.getFileSizes()[pathId];
+		
+		byte[] bytes = contentCache.get(path, lastModified);
+		if (null == bytes && fileSize <= contentCache.maxFileBytes()) {
+			bytes = new byte[(int)fileSize];
+			ByteBuffer target = ByteBuffer.wrap(bytes);
+			while (target.hasRemaining()) {
+				if (activeFileChannel.read(target, target.position()) < 0) {
+					return null; //file is shorter than expected, it is being replaced
+				}
+			}
+			contentCache.put(path, bytes, lastModified);
+		}
+		return (null != bytes && bytes.length == fileSize) ? bytes : null;
+	}
+
 	private static void publishNoBodyMessage(FileReadModuleStage that, int verb, Pipe<HTTPRequestSchema> input) {
 		if (VERB_HEAD == verb){
 			
@@ -807,6 +1549,9 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     	boolean didWork = false;
     	
        if (null != localFileChannel) {
+    	 if (activeRegionId >= 0) {
+    		 return publishFileRegion(channelHigh, channelLow, sequence, pathId, input, output);
+    	 }
          long localPos = activePosition;
        //  logger.info("write body {} {}",Pipe.hasRoomForWrite(localOutput), localOutput);
          
@@ -818,6 +1563,18 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
                            
         	 didWork = true;
         	 
+        	 if (activePartHeaderPending) {
+        		 publishPartHeader(channelHigh, channelLow, sequence, pathId, output);
+        		 activePartHeaderPending = false;
+        		 continue;
+        	 }
+        	 if (activePartCount > 1 && activePayloadSizeRemaining <= 0) {
+        		 //all the parts are sent, the closing delimiter carries the end of the response
+        		 publishPartBytes(channelHigh, channelLow, sequence, output, CLOSE_DELIMITER, activeRequestContext);
+        		 finishFile(input, output, pathId);
+        		 return didWork;
+        	 }
+        	 
              final long fcId = data.getFcId()[pathId];
              
              final int oldBlobPosition = (int)PipeHashTable.getItem(outputHash, fcId);
@@ -825,7 +1582,14 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
             int headBlobPosInPipe = Pipe.storeBlobWorkingHeadPosition(output);
             int blobMask = Pipe.blobMask(output);
 			final long fileSize = data.getFileSizes()[pathId];
-			if (supportInFlightCopy && 
+			if (null != activeCachedBytes) {
+				
+				int len = (int)Math.min(activePayloadSizeRemaining, output.maxVarLen);
+				Pipe.copyBytesFromToRing(activeCachedBytes, (int)localPos, Integer.MAX_VALUE, Pipe.blob(output), headBlobPosInPipe, blobMask, len);
+				activeMessageStart = publishBodyPart(channelHigh, channelLow, sequence, output, len, fcId);
+				localPos += len;
+				
+			} else if (supportInFlightCopy && 
 					/*Only use if the file was written previously*/ oldBlobPosition>0 && 
 					/*Only use if the full file can be found */fileSize<blobMask) { 
             
@@ -926,7 +1690,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 				localPos += len;
             } else {
             	if (activeNeedsStartReposition) {
-            		activeFileChannel.position(0); //NOTE: we are careful to only do this when we are reading from disk.
+            		activeFileChannel.position(localPos); //NOTE: we are careful to only do this when we are reading from disk.
             		activeNeedsStartReposition = false;
             	}
             	fromDisk++;
@@ -936,7 +1700,11 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
             	
             	//must read from file system
                 long len;
-                if ((len=localFileChannel.read(Pipe.wrappedWritingBuffers(headBlobPosInPipe, output))) >= 0) {
+                ByteBuffer[] target = Pipe.wrappedWritingBuffers(headBlobPosInPipe, output);
+                if (activePartCount > 0) {
+                	limitToRemaining(target, activePayloadSizeRemaining);
+                }
+                if ((len=localFileChannel.read(target)) >= 0) {
                     
                 	//logger.info("FileReadStage wrote out {} total file size {} curpos {} ",len,localFileChannel.size(),localFileChannel.position());
                                     	
@@ -952,22 +1720,11 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         			////////////////////////////////////
         			//finish the end of file send
         			//////////////////////////////////
-                    Pipe.confirmLowLevelRead(input, activeReadMessageSize);
-                                        
-                    Pipe.releaseReadLock(input);//returns count of bytes used by this fragment                 
-                                                          
-                    activeFileChannel = null;
                     //now store the location of this new data.
                     Pipe.unstoreBlobWorkingHeadPosition(output);
                                         
                     //this is a file write because the data is no where to be found on the pipe previously
-                    assert(activeMessageStart>=0);
-                   
-                    long dataPos = positionOfFileDataBegin(output);
-                    PipeHashTable.replaceItem(outputHash, data.getFcId()[pathId], dataPos);
-
-                    //clear value
-                    activeMessageStart=-1;
+                    finishFile(input, output, pathId);
                     
                     return didWork;
                 }
@@ -978,21 +1735,17 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 			//////////////////////////////////
             if (activePayloadSizeRemaining<=0) {
             	
-                Pipe.confirmLowLevelRead(input, activeReadMessageSize);
-                                
-                Pipe.releaseReadLock(input);//returns count of bytes used by this fragment    
-                                
-                activeFileChannel = null;
-         
-                //now store the location of this new data so we can use it as the cache later   
-                assert(activeMessageStart>=0);
-                
-                long dataPos = positionOfFileDataBegin(output);
-                
-                PipeHashTable.replaceItem(outputHash, data.getFcId()[pathId], dataPos);
-
-                //clear value
-                activeMessageStart=-1;
+            	if (activePartCount > 1) {
+            		if (++activePart < activePartCount) {
+            			localPos = partStarts[activePart];
+            			activePayloadSizeRemaining = partLengths[activePart];
+            			activeNeedsStartReposition = true;
+            			activePartHeaderPending = true;
+            		}
+            		continue; //next part or the closing delimiter
+            	}
+            	
+            	finishFile(input, output, pathId);
                 
                 return didWork;
             } else {            	
@@ -1006,6 +1759,105 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
        return didWork;
     }
 
+	private void finishFile(Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output, int pathId) {
+		
+        Pipe.confirmLowLevelRead(input, activeReadMessageSize);
+        
+        Pipe.releaseReadLock(input);//returns count of bytes used by this fragment    
+                        
+        activeFileChannel = null;
+ 
+        if (0 == activePartCount) {
+        	//now store the location of this new data so we can use it as the cache later, ranges are not the full file
+        	assert(activeMessageStart>=0);
+        	
+        	long dataPos = positionOfFileDataBegin(output);
+        	
+        	PipeHashTable.replaceItem(outputHash, data.getFcId()[pathId], dataPos);
+        }
+        
+        //clear value
+        activeMessageStart=-1;
+        activePartCount = 0;
+        activeCachedBytes = null;
+	}
+
+	private static void limitToRemaining(ByteBuffer[] target, long remaining) {
+		int first = target[0].remaining();
+		if (first >= remaining) {
+			target[0].limit(target[0].position()+(int)remaining);
+			target[1].limit(target[1].position());
+		} else if (first+target[1].remaining() > remaining) {
+			target[1].limit(target[1].position()+(int)(remaining-first));
+		}
+	}
+
+	private void publishPartHeader(int channelHigh, int channelLow, int sequence, int pathId, Pipe<ServerResponseSchema> output) {
+		
+		int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNEL_100);
+		Pipe.addIntValue(channelHigh, output);
+		Pipe.addIntValue(channelLow, output);
+		Pipe.addIntValue(sequence, output);
+		
+		long start = partStarts[activePart];
+		DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.outputStream(output);
+		writer.openField();
+		writer.write(PART_START);
+		writer.write(httpSpec.contentTypes[data.getType()[pathId]].getBytes());
+		writer.write(PART_RANGE);
+		Appendables.appendValue(writer, start);
+		writer.writeByte('-');
+		Appendables.appendValue(writer, start+partLengths[activePart]-1);
+		writer.writeByte('/');
+		Appendables.appendValue(writer, data.getFileSizes()[pathId]);
+		writer.write(PART_END);
+		writer.closeLowLevelField();
+		
+		Pipe.addIntValue(0, output);
+		Pipe.confirmLowLevelWrite(output, size);
+		totalBytesWritten = totalBytesWritten + Pipe.publishWrites(output);
+	}
+
+	private void publishPartBytes(int channelHigh, int channelLow, int sequence, Pipe<ServerResponseSchema> output, byte[] bytes, int context) {
+		
+		int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNEL_100);
+		Pipe.addIntValue(channelHigh, output);
+		Pipe.addIntValue(channelLow, output);
+		Pipe.addIntValue(sequence, output);
+		Pipe.addByteArray(bytes, 0, bytes.length, output);
+		Pipe.addIntValue(context, output);
+		Pipe.confirmLowLevelWrite(output, size);
+		totalBytesWritten = totalBytesWritten + Pipe.publishWrites(output);
+	}
+
+	private boolean publishFileRegion(int channelHigh, int channelLow, int sequence, int pathId,
+									  Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) {
+		
+		if (!Pipe.hasRoomForWrite(output, SIZE_OF_FILE_REGION)) {
+			return false;
+		}
+		
+		int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNELFILE_101);
+		Pipe.addIntValue(channelHigh, output);
+		Pipe.addIntValue(channelLow, output);
+		Pipe.addIntValue(sequence, output);
+		Pipe.addIntValue(activeRegionId, output);
+		Pipe.addLongValue(activePosition, output);
+		Pipe.addLongValue(activePayloadSizeRemaining, output);
+		Pipe.addIntValue(activeRequestContext, output);
+		Pipe.confirmLowLevelWrite(output, size);
+		Pipe.publishWrites(output);
+		
+		Pipe.confirmLowLevelRead(input, activeReadMessageSize);
+		Pipe.releaseReadLock(input);
+		
+		//nothing was written to the blob ring so the in flight copy is not updated
+		activeFileChannel = null;
+		activeRegionId = -1;
+		activePartCount = 0;
+		return true;
+	}
+
 	private void useInFlightData(Pipe<ServerResponseSchema> output, int headBlobPosInPipe, int blobMask, int len,
 			int prevBlobPos, final byte[] blob, boolean foundFile, int countOfBytesToSkip) {
 		
@@ -1090,7 +1942,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         Pipe.moveBlobPointerAndRecordPosAndLength(Pipe.unstoreBlobWorkingHeadPosition(output), len, output);
 
         //NOTE: this field is last so we can return failure and close connection.
-        if (  (activePayloadSizeRemaining -= len) > 0) {
+        if (  ((activePayloadSizeRemaining -= len) > 0) || (activePartCount > 1)) {
             Pipe.addIntValue(0, output); //empty request context, set the full value on the last call.
         } else {
             Pipe.addIntValue(activeRequestContext, output);  
@@ -1146,6 +1998,9 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     	if (totalRunCalls!=0) {
     		logger.trace("total calls to run: {} avgFilesPerRun: {}",totalRunCalls,(totalFiles/totalRunCalls));
     		logger.trace("total bytes out {} inFlightRef {} inFlightCopy {} fromDisk {} ",totalBytesWritten, inFlightRef, inFlightCopy, fromDisk);
+    		if (null!=contentCache) {
+    			logger.trace("content cache hits {} misses {} evictions {} bytes {}",contentCache.hits(), contentCache.misses(), contentCache.evictions(), contentCache.totalBytes());
+    		}
     	}
     }
 
@@ -1,115 +1,181 @@
 package com.ociweb.pronghorn.network.module;
 
 import com.ociweb.pronghorn.network.config.HTTPContentType;
+import com.ociweb.pronghorn.network.config.HTTPContentTypeDefaults;
 import com.ociweb.pronghorn.network.config.HTTPHeader;
 import com.ociweb.pronghorn.network.config.HTTPRevision;
 import com.ociweb.pronghorn.network.config.HTTPSpecification;
 import com.ociweb.pronghorn.network.config.HTTPVerb;
-import com.ociweb.pronghorn.network.http.AbstractRestStage;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
 import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
-import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
 import com.ociweb.pronghorn.pipe.Pipe;
-import com.ociweb.pronghorn.pipe.stream.StreamingReadVisitorToJSON;
-import com.ociweb.pronghorn.pipe.stream.StreamingVisitorReader;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.monitor.PipeMonitorBatchSchema;
+import com.ociweb.pronghorn.stage.monitor.PipeMonitorSamplerStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
-import com.ociweb.pronghorn.util.AppendableReplicator;
+import com.ociweb.pronghorn.util.AppendableBuilder;
+import com.ociweb.pronghorn.util.Appendables;
 
+/**
+ * Responds with the most recent fill and consumed counts of the observed pipes as JSON.
+ * The samples are read directly from the columnar batches of the PipeMonitorSamplerStages.
+ */
 public class PipeMonitorModuleStage<T extends Enum<T> & HTTPContentType,
 									R extends Enum<R> & HTTPRevision,
 									V extends Enum<V> & HTTPVerb,
-									H extends Enum<H> & HTTPHeader> extends AbstractRestStage<T,R,V,H> {
+									H extends Enum<H> & HTTPHeader> extends AbstractAppendablePayloadResponseStage<T,R,V,H> {
 
-	private StreamingVisitorReader reader;
-	
-	private final Pipe<HTTPRequestSchema>[] inputs; 
-	private final Pipe<ServerResponseSchema> output; 
-	private final Pipe<?> monitorInput;
-	private final boolean showBytesAsUTF = false;
+	private static final int SIZE_OF_BATCH = Pipe.sizeOf(PipeMonitorBatchSchema.instance, PipeMonitorBatchSchema.MSG_PIPESAMPLEBATCH_200);
+	private static final int PIPES_PER_SAMPLER = 1024;
 
-	//each request may be a pipe? may have multiple requests for same pipe...
+	private final Pipe<PipeMonitorBatchSchema>[] monitorInputs;
+	private final GraphManager graphManager;
 
-	protected PipeMonitorModuleStage(GraphManager graphManager, 
-			Pipe<HTTPRequestSchema>[] inputs, 
-			Pipe<?> monitorInput,
-			Pipe<ServerResponseSchema> output, 
+	//latest values, one slot for each observed pipe
+	private int[] slotBase;
+	private int[] observedPipeId;
+	private int[] observedRingSize;
+	private long[] fill;
+	private long[] consumed;
+	private long lastSampleMS;
+
+	public static PipeMonitorModuleStage<?, ?, ?, ?> newInstance(GraphManager graphManager, Pipe<HTTPRequestSchema>[] inputs, Pipe<ServerResponseSchema>[] outputs, HTTPSpecification<?, ?, ?, ?> httpSpec, long monitorRate) {
+		Pipe<PipeMonitorBatchSchema>[] batches = GraphManager.attachSamplersToGraph(graphManager, monitorRate, PIPES_PER_SAMPLER);
+		return new PipeMonitorModuleStage(graphManager, inputs, batches, outputs, httpSpec);
+	}
+
+	/**
+	 * @param batches one pipe from each sampler already attached to the graph, see GraphManager.attachSamplersToGraph
+	 */
+	public static PipeMonitorModuleStage<?, ?, ?, ?> newInstance(GraphManager graphManager, Pipe<HTTPRequestSchema>[] inputs, Pipe<ServerResponseSchema>[] outputs, HTTPSpecification<?, ?, ?, ?> httpSpec, Pipe<PipeMonitorBatchSchema>[] batches) {
+		return new PipeMonitorModuleStage(graphManager, inputs, batches, outputs, httpSpec);
+	}
+
+	protected PipeMonitorModuleStage(GraphManager graphManager,
+			Pipe<HTTPRequestSchema>[] inputs,
+			Pipe<PipeMonitorBatchSchema>[] monitorInputs,
+			Pipe<ServerResponseSchema>[] outputs,
 			HTTPSpecification<T, R, V, H> httpSpec) {
-		super(graphManager, inputs, output, httpSpec);
-		
-		this.inputs = inputs;
-		this.monitorInput = monitorInput;
-		this.output = output;
-		
+		super(graphManager, inputs, outputs, httpSpec, monitorInputs);
+
+		this.monitorInputs = monitorInputs;
+		this.graphManager = graphManager;
+
 	}
-	
+
 	@Override
 	public void startup() {
+		super.startup();
 
-		//how to write out to multiples???
-		
-        //create single output upon request..
-		//what about multiple users asking for the same data??
-		DataOutputBlobWriter out = null; //Data output, HTTP response...
-				
-		StreamingVisitorReader readerLocal
-		              = buildJSONVisitor(out, monitorInput);
-		
-		reader = readerLocal;
-		reader.startup();
-	}
+		slotBase = new int[monitorInputs.length];
+		int slots = 0;
+		int i = 0;
+		while (i<monitorInputs.length) {
+			slotBase[i] = slots;
+			slots += sampler(i).getObservedPipeCount();
+			i++;
+		}
 
-	private StreamingVisitorReader buildJSONVisitor(DataOutputBlobWriter out, Pipe<?> input) {
-		StreamingVisitorReader readerLocal;
-		try{
-			
-			
-            final StreamingReadVisitorToJSON visitor =
-            		new StreamingReadVisitorToJSON(out, showBytesAsUTF) {
-
-            	@Override
-            	public void visitTemplateOpen(String name, long id) {
-            		//out.openField(); //writes to all
-            		//any callers need to have the rest wrapped
-            		
-            		super.visitTemplateOpen(name,id);
-            	}
-            	
-            	@Override
-            	public void visitTemplateClose(String name, long id) {
-            		super.visitTemplateClose(name, id);
-            		
-            		//out.closeLowLevelField();
-            		
-            	}
-            	
-            	@Override
-				public void shutdown() {
-					super.shutdown();
-					PipeMonitorModuleStage.this.requestShutdown();
-				}
-			};
+		observedPipeId = new int[slots];
+		observedRingSize = new int[slots];
+		fill = new long[slots];
+		consumed = new long[slots];
 
-			readerLocal = new StreamingVisitorReader(input, visitor );
+		i = monitorInputs.length;
+		while (--i>=0) {
+			PipeMonitorSamplerStage sampler = sampler(i);
+			int k = sampler.getObservedPipeCount();
+			while (--k>=0) {
+				Pipe<?> observed = sampler.getObservedPipe(k);
+				observedPipeId[slotBase[i]+k] = observed.id;
+				observedRingSize[slotBase[i]+k] = observed.sizeOfSlabRing;
+			}
+		}
+	}
 
-		} catch (Throwable t) {
-			throw new RuntimeException(t);
+	private PipeMonitorSamplerStage sampler(int inputIdx) {
+		int stageId = GraphManager.getRingProducerStageId(graphManager, monitorInputs[inputIdx].id);
+		PronghornStage producer = GraphManager.getStage(graphManager, stageId);
+		if (!(producer instanceof PipeMonitorSamplerStage)) {
+			throw new UnsupportedOperationException("Monitor inputs must be produced by PipeMonitorSamplerStage, found "+producer);
 		}
-		return readerLocal;
+		return (PipeMonitorSamplerStage)producer;
 	}
 
 	@Override
 	public void run() {
-		reader.run();
+		int i = monitorInputs.length;
+		while (--i>=0) {
+			consumeBatches(monitorInputs[i], slotBase[i]);
+		}
+		super.run();
+	}
+
+	private void consumeBatches(Pipe<PipeMonitorBatchSchema> pipe, int base) {
+		while (Pipe.hasContentToRead(pipe)) {
+			int msgIdx = Pipe.takeMsgIdx(pipe);
+			assert(PipeMonitorBatchSchema.MSG_PIPESAMPLEBATCH_200 == msgIdx);
+			lastSampleMS = Pipe.takeLong(pipe);
+			int count = Pipe.takeInt(pipe);
+
+			//columns are copied as is, only the latest values are kept
+			DataInputBlobReader<PipeMonitorBatchSchema> columns = Pipe.openInputStream(pipe);
+			int j = 0;
+			while (j<count) {
+				fill[base+j++] = columns.readPackedLong();
+			}
+			j = 0;
+			while (j<count) {
+				consumed[base+j++] = columns.readPackedLong();
+			}
+
+			Pipe.confirmLowLevelRead(pipe, SIZE_OF_BATCH);
+			Pipe.releaseReadLock(pipe);
+		}
 	}
 
 	@Override
-	public void shutdown() {
+	protected byte[] payload(AppendableBuilder payload,
+			                 GraphManager gm,
+			                 DataInputBlobReader<HTTPRequestSchema> params,
+			                 HTTPVerbDefaults verb) {
 
-		try{
-			reader.shutdown();
-		} catch (Throwable t) {
-			throw new RuntimeException(t);
+		//optional pipeId limits the response to a single pipe
+		long pipeId = params.available()>0 ? params.readPackedLong() : -1;
+
+		payload.append("{\"ms\":");
+		Appendables.appendValue(payload, lastSampleMS);
+		payload.append(",\"pipes\":[");
+		boolean first = true;
+		int i = 0;
+		while (i<observedPipeId.length) {
+			if (pipeId<0 || pipeId==observedPipeId[i]) {
+				if (!first) {
+					payload.append(',');
+				}
+				first = false;
+				payload.append("{\"pipeId\":");
+				Appendables.appendValue(payload, observedPipeId[i]);
+				payload.append(",\"fill\":");
+				Appendables.appendValue(payload, fill[i]);
+				payload.append(",\"size\":");
+				Appendables.appendValue(payload, observedRingSize[i]);
+				payload.append(",\"consumed\":");
+				Appendables.appendValue(payload, consumed[i]);
+				payload.append('}');
+			}
+			i++;
 		}
+		payload.append("]}");
+
+		return null; //never cache this so we return null.
+	}
+
+	@Override
+	protected byte[] contentType() {
+		return HTTPContentTypeDefaults.JSON.getBytes();
 	}
 
 }
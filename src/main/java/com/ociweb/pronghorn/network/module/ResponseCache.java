@@ -0,0 +1,171 @@
+package com.ociweb.pronghorn.network.module;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded cache of whole serialized responses, headers included, which may be shared by many
+ * ResponseCacheStage instances. The key is the route, revision and extracted parameters of the request.
+ *
+ * Entries are evicted least recently used first and are never returned after the time to live,
+ * responses are stored as they were sent so headers like Date are only as fresh as the entry.
+ */
+public final class ResponseCache {
+
+	public static final class Entry {
+		public final byte[] bytes;
+		public final int contextFlags; //flags the module added to the request context, eg close
+		final long expires;
+
+		Entry(byte[] bytes, int contextFlags, long expires) {
+			this.bytes = bytes;
+			this.contextFlags = contextFlags;
+			this.expires = expires;
+		}
+	}
+
+	private static final class Key {
+		byte[] data;
+		int length;
+		int hash;
+
+		Key set(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+			int h = 1;
+			int i = length;
+			while (--i>=0) {
+				h = 31*h + data[i];
+			}
+			this.hash = h;
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key)obj;
+			if (that.length!=length || that.hash!=hash) {
+				return false;
+			}
+			int i = length;
+			while (--i>=0) {
+				if (that.data[i]!=data[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final long maxTotalBytes;
+	private final int maxEntryBytes;
+	private final long ttlMS;
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, .75f, true); //access order
+	private final Key lookup = new Key(); //reused so hits do not allocate, only touched while synchronized
+
+	private long totalBytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param maxTotalBytes limit for the sum of all cached responses
+	 * @param maxEntryBytes larger responses are never cached
+	 * @param ttlMS responses older than this are fetched again from the module
+	 */
+	public ResponseCache(long maxTotalBytes, int maxEntryBytes, long ttlMS) {
+		if (maxEntryBytes>maxTotalBytes) {
+			throw new UnsupportedOperationException("maxEntryBytes "+maxEntryBytes+" can not be larger than maxTotalBytes "+maxTotalBytes);
+		}
+		if (ttlMS<=0) {
+			throw new UnsupportedOperationException("ttlMS must be positive but found "+ttlMS);
+		}
+		this.maxTotalBytes = maxTotalBytes;
+		this.maxEntryBytes = maxEntryBytes;
+		this.ttlMS = ttlMS;
+	}
+
+	public int maxEntryBytes() {
+		return maxEntryBytes;
+	}
+
+	/**
+	 * @return cached response or null if missing or expired
+	 */
+	public synchronized Entry get(byte[] key, int keyLength, long now) {
+		Entry entry = entries.get(lookup.set(key, keyLength));
+		lookup.data = null;
+		if (null!=entry) {
+			if (now < entry.expires) {
+				hits++;
+				return entry;
+			}
+			remove(key, keyLength);
+			evictions++;
+		}
+		misses++;
+		return null;
+	}
+
+	public synchronized void put(byte[] key, int keyLength, byte[] bytes, int contextFlags, long now) {
+		if (bytes.length>maxEntryBytes) {
+			return;
+		}
+		Key owned = new Key().set(Arrays.copyOf(key, keyLength), keyLength);
+		Entry old = entries.put(owned, new Entry(bytes, contextFlags, now+ttlMS));
+		if (null!=old) {
+			totalBytes -= old.bytes.length;
+		}
+		totalBytes += bytes.length;
+
+		Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+		while (totalBytes>maxTotalBytes && iterator.hasNext()) {
+			Map.Entry<Key, Entry> eldest = iterator.next();
+			if (eldest.getKey().equals(owned)) {
+				continue; //the newest entry is last but never evict the one just added
+			}
+			totalBytes -= eldest.getValue().bytes.length;
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	private void remove(byte[] key, int keyLength) {
+		Entry old = entries.remove(lookup.set(key, keyLength));
+		lookup.data = null;
+		if (null!=old) {
+			totalBytes -= old.bytes.length;
+		}
+	}
+
+	public synchronized long totalBytes() {
+		return totalBytes;
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	public String toString() {
+		return "response cache hits:"+hits()+" misses:"+misses()+" evictions:"+evictions()+" bytes:"+totalBytes();
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.ociweb.pronghorn.network.module;
+
+import java.io.IOException;
+
+import com.ociweb.pronghorn.network.config.HTTPContentType;
+import com.ociweb.pronghorn.network.config.HTTPContentTypeDefaults;
+import com.ociweb.pronghorn.network.config.HTTPHeader;
+import com.ociweb.pronghorn.network.config.HTTPRevision;
+import com.ociweb.pronghorn.network.config.HTTPSpecification;
+import com.ociweb.pronghorn.network.config.HTTPVerb;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.util.AppendableBuilder;
+import com.ociweb.pronghorn.util.Appendables;
+
+/**
+ * Responds with the hits, misses, evictions and size of every ResponseCache in the graph as JSON,
+ * one entry for each cache with the ids of the ResponseCacheStage instances sharing it.
+ */
+public class ResponseCacheModuleStage<T extends Enum<T> & HTTPContentType,
+									R extends Enum<R> & HTTPRevision,
+									V extends Enum<V> & HTTPVerb,
+									H extends Enum<H> & HTTPHeader> extends AbstractAppendablePayloadResponseStage<T,R,V,H> {
+
+	public static ResponseCacheModuleStage<?, ?, ?, ?> newInstance(GraphManager graphManager, Pipe<HTTPRequestSchema>[] inputs, Pipe<ServerResponseSchema>[] outputs, HTTPSpecification<?, ?, ?, ?> httpSpec) {
+		return new ResponseCacheModuleStage(graphManager, inputs, outputs, httpSpec);
+	}
+
+	private ResponseCacheModuleStage(GraphManager graphManager,
+			Pipe<HTTPRequestSchema>[] inputs,
+			Pipe<ServerResponseSchema>[] outputs,
+			HTTPSpecification httpSpec) {
+		super(graphManager, inputs, outputs, httpSpec);
+
+		if (inputs.length>1) {
+			GraphManager.addNota(graphManager, GraphManager.LOAD_MERGE, GraphManager.LOAD_MERGE, this);
+		}
+	}
+
+	@Override
+	protected byte[] payload(AppendableBuilder payload,
+			                 GraphManager gm,
+			                 DataInputBlobReader<HTTPRequestSchema> params,
+			                 HTTPVerbDefaults verb) {
+
+		writeJSON(gm, payload);
+
+		return null; //never cache this so we return null.
+	}
+
+	/**
+	 * Writes [{"stages":[id,...],"hits":n,"misses":n,"evictions":n,"bytes":n},...] with one entry for each cache.
+	 */
+	public static <A extends Appendable> A writeJSON(GraphManager gm, A target) {
+		PronghornStage[] stages = GraphManager.allStagesByType(gm, ResponseCacheStage.class);
+		try {
+			target.append('[');
+			boolean first = true;
+			for (int i = 0; i < stages.length; i++) {
+				ResponseCache cache = ((ResponseCacheStage)stages[i]).cache();
+				if (isReported(stages, i, cache)) {
+					continue; //the same cache may be shared by the stages of many modules
+				}
+				if (!first) {
+					target.append(',');
+				}
+				first = false;
+				target.append("{\"stages\":[");
+				Appendables.appendValue(target, stages[i].stageId);
+				for (int j = i+1; j < stages.length; j++) {
+					if (cache == ((ResponseCacheStage)stages[j]).cache()) {
+						Appendables.appendValue(target.append(','), stages[j].stageId);
+					}
+				}
+				Appendables.appendValue(target.append("],\"hits\":"), cache.hits());
+				Appendables.appendValue(target.append(",\"misses\":"), cache.misses());
+				Appendables.appendValue(target.append(",\"evictions\":"), cache.evictions());
+				Appendables.appendValue(target.append(",\"bytes\":"), cache.totalBytes());
+				target.append('}');
+			}
+			target.append(']');
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return target;
+	}
+
+	private static boolean isReported(PronghornStage[] stages, int limit, ResponseCache cache) {
+		int i = limit;
+		while (--i>=0) {
+			if (cache == ((ResponseCacheStage)stages[i]).cache()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	protected byte[] contentType() {
+		return HTTPContentTypeDefaults.JSON.getBytes();
+	}
+
+}
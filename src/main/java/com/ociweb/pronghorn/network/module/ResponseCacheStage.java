@@ -0,0 +1,488 @@
+package com.ociweb.pronghorn.network.module;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.config.HTTPVerb;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.http.HTTPUtil;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Sits between the HTTP1xRouterStage and one module and answers repeated GET requests from a
+ * ResponseCache without waking the module.
+ *
+ * Requests are keyed by route, revision and the extracted parameters, which hold the path fields and
+ * the headers registered for the route. Misses are passed on to the module and its 200 responses are
+ * copied into the cache as they pass back through on the way to the OrderSupervisorStage. Requests
+ * which close the connection or stream a body are always passed on.
+ *
+ * To use it from ModuleConfig.registerModule build the module on new request pipes, build new response
+ * pipes for the module output and return those:
+ * <pre>
+ * new ResponseCacheStage(gm, cache, inputPipes, toModule, fromModule, outputs);
+ * </pre>
+ * NetGraphBuilder.cacheResponses does this for every module of a ModuleConfig. The counters of each cache
+ * are served as JSON by ResponseCacheModuleStage on the telemetry server.
+ */
+public class ResponseCacheStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(ResponseCacheStage.class);
+
+	private static final int MAX_PENDING = 64; //requests sent to the module which may be cached when answered
+	private static final int KEY_HEADER = 8;   //verb with route then revision
+	private static final byte[] STATUS_OK = "HTTP/1.1 200".getBytes();
+
+	//requests with these are never answered from the cache
+	private static final int NOT_CACHED_MASK = ServerCoordinator.CLOSE_CONNECTION_MASK
+			                                 | ServerCoordinator.STREAMED_BODY_MASK
+			                                 | ServerCoordinator.HTTP2_FRAMES_MASK
+			                                 | ServerCoordinator.UPGRADE_MASK;
+	private static final int RESPONSE_FLAGS = ServerCoordinator.END_RESPONSE_MASK | ServerCoordinator.CLOSE_CONNECTION_MASK;
+
+	private final ResponseCache cache;
+	private final Pipe<HTTPRequestSchema>[] fromRouter;
+	private final Pipe<HTTPRequestSchema>[] toModule;
+	private final Pipe<ServerResponseSchema>[] fromModule;
+	private final Pipe<ServerResponseSchema>[] toSupervisor;
+	private final int shards;
+	private final int maxEntryBytes;
+	private final int maxKeyBytes;
+
+	private byte[] keyWork;
+
+	//by input index then pending slot
+	private long[][]   pendingChannel;
+	private int[][]    pendingSequence;
+	private int[][]    pendingContext;
+	private byte[][][] pendingKey;
+	private int[][]    pendingKeyLength;
+	private int[]      pendingNext;
+
+	//response being copied into the cache, one at a time for each module output, by output index
+	private int[]      captureSlot;
+	private byte[][]   capture;
+	private int[]      captureLength;
+
+	private int shutdownCount;
+	private long now;
+
+	/**
+	 * @param cache may be shared with other instances, entries larger than the smallest output are never used
+	 * @param fromRouter requests from the router
+	 * @param toModule requests passed on to the module on a miss, matching fromRouter by index
+	 * @param fromModule responses from the module, matching fromRouter by index or one for each input and ordering
+	 *                   shard, index input*shards+(channelId & (shards-1)), see HTTPUtil.responsePipe
+	 * @param toSupervisor responses from the module and from the cache, matching fromModule by index
+	 */
+	public ResponseCacheStage(GraphManager graphManager, ResponseCache cache,
+			                  Pipe<HTTPRequestSchema>[] fromRouter,
+			                  Pipe<HTTPRequestSchema>[] toModule,
+			                  Pipe<ServerResponseSchema>[] fromModule,
+			                  Pipe<ServerResponseSchema>[] toSupervisor) {
+		super(graphManager, join(fromRouter, fromModule), join(toModule, toSupervisor));
+		this.cache = cache;
+		this.fromRouter = fromRouter;
+		this.toModule = toModule;
+		this.fromModule = fromModule;
+		this.toSupervisor = toSupervisor;
+		this.shutdownCount = fromRouter.length+fromModule.length;
+
+		if (fromRouter.length!=toModule.length || fromModule.length!=toSupervisor.length) {
+			throw new UnsupportedOperationException("Requests must match requests and responses must match responses by index");
+		}
+		HTTPUtil.validateResponsePipes(fromRouter.length, fromModule.length);
+		this.shards = fromModule.length/fromRouter.length;
+		if (minVarLength(toModule) < maxVarLength(fromRouter) || minVarLength(toSupervisor) < maxVarLength(fromModule)) {
+			throw new UnsupportedOperationException("outputs must hold payloads as large as the inputs");
+		}
+
+		//a hit is always sent as a single fragment
+		this.maxEntryBytes = Math.min(cache.maxEntryBytes(), minVarLength(toSupervisor));
+		this.maxKeyBytes = KEY_HEADER+maxVarLength(fromRouter);
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "ModuleStage", this);
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
+	}
+
+	@Override
+	public void startup() {
+		keyWork = new byte[maxKeyBytes];
+
+		int inputs = fromRouter.length;
+		pendingChannel = new long[inputs][MAX_PENDING];
+		pendingSequence = new int[inputs][MAX_PENDING];
+		pendingContext = new int[inputs][MAX_PENDING];
+		pendingKey = new byte[inputs][MAX_PENDING][];
+		pendingKeyLength = new int[inputs][MAX_PENDING];
+		pendingNext = new int[inputs];
+
+		int i = inputs;
+		while (--i>=0) {
+			Arrays.fill(pendingChannel[i], -1);
+		}
+
+		int outputs = fromModule.length;
+		captureSlot = new int[outputs];
+		capture = new byte[outputs][];
+		captureLength = new int[outputs];
+
+		i = outputs;
+		while (--i>=0) {
+			captureSlot[i] = -1;
+			capture[i] = new byte[maxEntryBytes];
+		}
+	}
+
+	public ResponseCache cache() {
+		return cache;
+	}
+
+	@Override
+	public void run() {
+		now = System.currentTimeMillis();
+		int i = fromRouter.length;
+		while (--i>=0) {
+			//responses first so pending slots are freed before new requests need them
+			int s = shards;
+			while (--s>=0) {
+				if (!processResponses((i*shards)+s)) {
+					return;
+				}
+			}
+			if (!processRequests(i)) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		logger.trace("{}", cache);
+	}
+
+	///////////////////////////////////////
+	//requests from the router
+	///////////////////////////////////////
+
+	private boolean processRequests(int idx) {
+		final Pipe<HTTPRequestSchema> input = fromRouter[idx];
+		final Pipe<HTTPRequestSchema> module = toModule[idx];
+		Pipe<ServerResponseSchema> output;
+
+		while (Pipe.hasContentToRead(input)
+			   && Pipe.hasRoomForWrite(module)
+			   && Pipe.hasRoomForWrite(output = HTTPUtil.responsePipe(toSupervisor, idx, fromRouter.length, input))) {
+
+			int msgIdx = Pipe.takeMsgIdx(input);
+			switch (msgIdx) {
+				case HTTPRequestSchema.MSG_RESTREQUEST_300:
+					restRequest(idx, input, module, output);
+					break;
+				case HTTPRequestSchema.MSG_WEBSOCKETFRAME_100:
+					forwardFrame(input, module);
+					break;
+				case HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301:
+					forwardContinuation(input, module);
+					break;
+				case -1:
+					Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
+					Pipe.releaseReadLock(input);
+					Pipe.publishEOF(module);
+					return checkShutdown();
+				default:
+					Pipe.skipNextFragment(input, msgIdx);
+					continue;
+			}
+			Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+			Pipe.releaseReadLock(input);
+		}
+		return true;
+	}
+
+	private void restRequest(int idx, Pipe<HTTPRequestSchema> input,
+			                 Pipe<HTTPRequestSchema> module, Pipe<ServerResponseSchema> output) {
+
+		long channelId = Pipe.takeLong(input);
+		int sequence = Pipe.takeInt(input);
+		int verbRoute = Pipe.takeInt(input);
+		int meta = Pipe.takeRingByteMetaData(input);
+		int len = Pipe.takeRingByteLen(input);
+		int blobMask = Pipe.blobMask(input);
+		int pos = Pipe.bytePosition(meta, input, len);
+		byte[] blob = Pipe.byteBackingArray(meta, input);
+		int revision = Pipe.takeInt(input);
+		int context = Pipe.takeInt(input);
+
+		boolean isCacheable = HTTPVerbDefaults.GET.ordinal() == (HTTPVerb.MASK & verbRoute)
+				              && 0 == (NOT_CACHED_MASK & context);
+		int keyLength = 0;
+		if (isCacheable) {
+			keyLength = buildKey(verbRoute, revision, blob, pos, blobMask, len);
+			ResponseCache.Entry entry = cache.get(keyWork, keyLength, now);
+			//the cache may be shared with stages which have larger outputs
+			if (null!=entry && entry.bytes.length<=output.maxVarLen) {
+				publishCached(output, channelId, sequence, context, entry);
+				return;
+			}
+		}
+
+		int size = Pipe.addMsgIdx(module, HTTPRequestSchema.MSG_RESTREQUEST_300);
+		Pipe.addLongValue(channelId, module);
+		Pipe.addIntValue(sequence, module);
+		Pipe.addIntValue(verbRoute, module);
+		DataOutputBlobWriter<HTTPRequestSchema> writer = Pipe.openOutputStream(module);
+		writer.write(blob, pos, len, blobMask);
+		DataOutputBlobWriter.closeLowLevelField(writer);
+		Pipe.addIntValue(revision, module);
+		Pipe.addIntValue(context, module);
+		Pipe.confirmLowLevelWrite(module, size);
+		Pipe.publishWrites(module);
+
+		if (isCacheable) {
+			addPending(idx, channelId, sequence, context, keyLength);
+		}
+	}
+
+	private int buildKey(int verbRoute, int revision, byte[] blob, int pos, int blobMask, int len) {
+		keyWork[0] = (byte)(verbRoute>>24);
+		keyWork[1] = (byte)(verbRoute>>16);
+		keyWork[2] = (byte)(verbRoute>>8);
+		keyWork[3] = (byte)verbRoute;
+		keyWork[4] = (byte)(revision>>24);
+		keyWork[5] = (byte)(revision>>16);
+		keyWork[6] = (byte)(revision>>8);
+		keyWork[7] = (byte)revision;
+		Pipe.copyBytesFromToRing(blob, pos, blobMask, keyWork, KEY_HEADER, Integer.MAX_VALUE, len);
+		return KEY_HEADER+len;
+	}
+
+	private void publishCached(Pipe<ServerResponseSchema> output, long channelId, int sequence,
+			                   int context, ResponseCache.Entry entry) {
+		int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNEL_100);
+		Pipe.addLongValue(channelId, output);
+		Pipe.addIntValue(sequence, output);
+		DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.openOutputStream(output);
+		writer.write(entry.bytes, 0, entry.bytes.length);
+		DataOutputBlobWriter.closeLowLevelField(writer);
+		Pipe.addIntValue(context | ServerCoordinator.END_RESPONSE_MASK | entry.contextFlags, output);
+		Pipe.confirmLowLevelWrite(output, size);
+		Pipe.publishWrites(output);
+	}
+
+	private void addPending(int idx, long channelId, int sequence, int context, int keyLength) {
+		//the oldest slot is reused when full so responses which never come can not block caching
+		int slot = pendingNext[idx];
+		pendingNext[idx] = (slot+1) % MAX_PENDING;
+		dropCapture(idx, slot);
+		byte[] key = pendingKey[idx][slot];
+		if (null==key) {
+			key = pendingKey[idx][slot] = new byte[maxKeyBytes]; //once for each slot
+		}
+		System.arraycopy(keyWork, 0, key, 0, keyLength);
+		pendingKeyLength[idx][slot] = keyLength;
+		pendingChannel[idx][slot] = channelId;
+		pendingSequence[idx][slot] = sequence;
+		pendingContext[idx][slot] = context;
+	}
+
+	private void forwardFrame(Pipe<HTTPRequestSchema> input, Pipe<HTTPRequestSchema> module) {
+		int size = Pipe.addMsgIdx(module, HTTPRequestSchema.MSG_WEBSOCKETFRAME_100);
+		Pipe.addLongValue(Pipe.takeLong(input), module);
+		Pipe.addIntValue(Pipe.takeInt(input), module); //sequence
+		Pipe.addIntValue(Pipe.takeInt(input), module); //fin and opcode
+		Pipe.addIntValue(Pipe.takeInt(input), module); //mask
+		copyBytes(input, module);
+		Pipe.confirmLowLevelWrite(module, size);
+		Pipe.publishWrites(module);
+	}
+
+	private void forwardContinuation(Pipe<HTTPRequestSchema> input, Pipe<HTTPRequestSchema> module) {
+		int size = Pipe.addMsgIdx(module, HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301);
+		Pipe.addLongValue(Pipe.takeLong(input), module);
+		Pipe.addIntValue(Pipe.takeInt(input), module); //sequence
+		Pipe.addIntValue(Pipe.takeInt(input), module); //flags
+		copyBytes(input, module);
+		Pipe.confirmLowLevelWrite(module, size);
+		Pipe.publishWrites(module);
+	}
+
+	private static void copyBytes(Pipe<HTTPRequestSchema> input, Pipe<HTTPRequestSchema> target) {
+		int meta = Pipe.takeRingByteMetaData(input);
+		int len = Pipe.takeRingByteLen(input);
+		int pos = Pipe.bytePosition(meta, input, len);
+		DataOutputBlobWriter<HTTPRequestSchema> writer = Pipe.openOutputStream(target);
+		writer.write(Pipe.byteBackingArray(meta, input), pos, len, Pipe.blobMask(input));
+		DataOutputBlobWriter.closeLowLevelField(writer);
+	}
+
+	///////////////////////////////////////
+	//responses from the module
+	///////////////////////////////////////
+
+	/**
+	 * @param outIdx index of the module output, its requests came from fromRouter[outIdx/shards]
+	 */
+	private boolean processResponses(int outIdx) {
+		final Pipe<ServerResponseSchema> input = fromModule[outIdx];
+		final Pipe<ServerResponseSchema> output = toSupervisor[outIdx];
+
+		while (Pipe.hasContentToRead(input) && Pipe.hasRoomForWrite(output)) {
+
+			int msgIdx = Pipe.takeMsgIdx(input);
+			if (msgIdx<0) {
+				Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
+				Pipe.releaseReadLock(input);
+				Pipe.publishEOF(output);
+				return checkShutdown();
+			}
+
+			int size = Pipe.addMsgIdx(output, msgIdx);
+			if (ServerResponseSchema.MSG_SKIP_300 == msgIdx) {
+				int meta = Pipe.takeRingByteMetaData(input);
+				int len = Pipe.takeRingByteLen(input);
+				int pos = Pipe.bytePosition(meta, input, len);
+				DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.openOutputStream(output);
+				writer.write(Pipe.byteBackingArray(meta, input), pos, len, Pipe.blobMask(input));
+				DataOutputBlobWriter.closeLowLevelField(writer);
+			} else {
+				long channelId = Pipe.takeLong(input);
+				int sequence = Pipe.takeInt(input);
+				Pipe.addLongValue(channelId, output);
+				Pipe.addIntValue(sequence, output);
+
+				if (ServerResponseSchema.MSG_TOCHANNELFILE_101 == msgIdx) {
+					abandonCapture(outIdx/shards, channelId, sequence); //file regions are sent as is and never cached
+					Pipe.addIntValue(Pipe.takeInt(input), output);   //file id
+					Pipe.addLongValue(Pipe.takeLong(input), output); //position
+					Pipe.addLongValue(Pipe.takeLong(input), output); //length
+					Pipe.addIntValue(Pipe.takeInt(input), output);   //context
+				} else {
+					int meta = Pipe.takeRingByteMetaData(input);
+					int len = Pipe.takeRingByteLen(input);
+					int blobMask = Pipe.blobMask(input);
+					int pos = Pipe.bytePosition(meta, input, len);
+					byte[] blob = Pipe.byteBackingArray(meta, input);
+					int context = Pipe.takeInt(input);
+
+					DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.openOutputStream(output);
+					writer.write(blob, pos, len, blobMask);
+					DataOutputBlobWriter.closeLowLevelField(writer);
+					Pipe.addIntValue(context, output);
+
+					if (ServerResponseSchema.MSG_TOCHANNEL_100 == msgIdx) {
+						captureResponse(outIdx, channelId, sequence, blob, pos, blobMask, len, context);
+					}
+				}
+			}
+			Pipe.confirmLowLevelWrite(output, size);
+			Pipe.publishWrites(output);
+
+			Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+			Pipe.releaseReadLock(input);
+		}
+		return true;
+	}
+
+	private void captureResponse(int outIdx, long channelId, int sequence,
+			                     byte[] blob, int pos, int blobMask, int len, int context) {
+
+		final int idx = outIdx/shards;
+		int slot = captureSlot[outIdx];
+		if (slot<0 || pendingChannel[idx][slot]!=channelId || pendingSequence[idx][slot]!=sequence) {
+			if (slot>=0) {
+				freePending(idx, slot); //interleaved with another response so the partial copy is dropped
+			}
+			slot = findPending(idx, channelId, sequence);
+			if (slot<0) {
+				return; //not a cacheable request
+			}
+			captureSlot[outIdx] = slot;
+			captureLength[outIdx] = 0;
+		}
+
+		if (captureLength[outIdx]+len > maxEntryBytes) {
+			freePending(idx, slot); //too large to be answered from the cache
+			return;
+		}
+		Pipe.copyBytesFromToRing(blob, pos, blobMask, capture[outIdx], captureLength[outIdx], Integer.MAX_VALUE, len);
+		captureLength[outIdx] += len;
+
+		if (0 != (ServerCoordinator.END_RESPONSE_MASK & context)) {
+			int length = captureLength[outIdx];
+			//only plain 200 responses whose context is the request context with the usual flags are kept
+			if (isStatusOK(capture[outIdx], length)
+				&& (context & ~RESPONSE_FLAGS) == (pendingContext[idx][slot] & ~RESPONSE_FLAGS)) {
+				cache.put(pendingKey[idx][slot], pendingKeyLength[idx][slot],
+						  Arrays.copyOf(capture[outIdx], length),
+						  context & ServerCoordinator.CLOSE_CONNECTION_MASK, now);
+			}
+			freePending(idx, slot);
+		}
+	}
+
+	private static boolean isStatusOK(byte[] response, int length) {
+		if (length<STATUS_OK.length) {
+			return false;
+		}
+		int i = STATUS_OK.length;
+		while (--i>=0) {
+			if (response[i]!=STATUS_OK[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void abandonCapture(int idx, long channelId, int sequence) {
+		int slot = findPending(idx, channelId, sequence);
+		if (slot>=0) {
+			freePending(idx, slot);
+		}
+	}
+
+	private int findPending(int idx, long channelId, int sequence) {
+		final long[] channels = pendingChannel[idx];
+		int i = MAX_PENDING;
+		while (--i>=0) {
+			if (channels[i]==channelId && pendingSequence[idx][i]==sequence) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void freePending(int idx, int slot) {
+		pendingChannel[idx][slot] = -1;
+		dropCapture(idx, slot);
+	}
+
+	/**
+	 * Stops any copy into the cache using this pending slot on the shard outputs of input idx.
+	 */
+	private void dropCapture(int idx, int slot) {
+		int s = shards;
+		while (--s>=0) {
+			if (slot == captureSlot[(idx*shards)+s]) {
+				captureSlot[(idx*shards)+s] = -1;
+			}
+		}
+	}
+
+	private boolean checkShutdown() {
+		if (--shutdownCount<=0) {
+			requestShutdown();
+			return false;
+		}
+		return true;
+	}
+
+}
@@ -11,12 +11,13 @@ import com.ociweb.pronghorn.pipe.PipeWriter;
 public class HTTPRequestSchema extends MessageSchema<HTTPRequestSchema> {
 
 	public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
-		    new int[]{0xc0400007,0x90800000,0x88000000,0x80000001,0xb8000000,0x80000002,0x80000003,0xc0200007,0xc0400006,0x90800000,0x88000000,0x88000004,0x88000005,0xb8000001,0xc0200006},
+		    new int[]{0xc0400007,0x90800000,0x88000000,0x80000001,0xb8000000,0x80000002,0x80000003,0xc0200007,0xc0400006,0x90800000,0x88000000,0x88000004,0x88000005,0xb8000001,0xc0200006,0xc0400005,0x90800000,0x88000000,0x88000006,0xb8000002,0xc0200005},
 		    (short)0,
 		    new String[]{"RestRequest","ChannelId","Sequence","Verb","Params","Revision","RequestContext",
-		    null,"WebSocketFrame","ChannelId","Sequence","FinOpp","Mask","BinaryPayload",null},
-		    new long[]{300, 21, 26, 23, 32, 24, 25, 0, 100, 21, 26, 11, 10, 12, 0},
-		    new String[]{"global",null,null,null,null,null,null,null,"global",null,null,null,null,null,null},
+		    null,"WebSocketFrame","ChannelId","Sequence","FinOpp","Mask","BinaryPayload",null,
+		    "RestRequestContinuation","ChannelId","Sequence","Flags","Payload",null},
+		    new long[]{300, 21, 26, 23, 32, 24, 25, 0, 100, 21, 26, 11, 10, 12, 0, 301, 21, 26, 27, 33, 0},
+		    new String[]{"global",null,null,null,null,null,null,null,"global",null,null,null,null,null,null,"global",null,null,null,null,null},
 		    "httpRequest.xml",
 		    new long[]{2, 2, 0},
 		    new int[]{2, 2, 0});
@@ -42,6 +43,14 @@ public class HTTPRequestSchema extends MessageSchema<HTTPRequestSchema> {
     public static final int MSG_WEBSOCKETFRAME_100_FIELD_FINOPP_11 = 0x00400004; //IntegerSigned/None/4
     public static final int MSG_WEBSOCKETFRAME_100_FIELD_MASK_10 = 0x00400005; //IntegerSigned/None/5
     public static final int MSG_WEBSOCKETFRAME_100_FIELD_BINARYPAYLOAD_12 = 0x01c00006; //ByteVector/None/1
+    public static final int MSG_RESTREQUESTCONTINUATION_301 = 0x0000000f; //Group/OpenTempl/5
+    public static final int MSG_RESTREQUESTCONTINUATION_301_FIELD_CHANNELID_21 = 0x00800001; //LongUnsigned/Delta/0
+    public static final int MSG_RESTREQUESTCONTINUATION_301_FIELD_SEQUENCE_26 = 0x00400003; //IntegerSigned/None/0
+    public static final int MSG_RESTREQUESTCONTINUATION_301_FIELD_FLAGS_27 = 0x00400004; //IntegerSigned/None/6
+    public static final int MSG_RESTREQUESTCONTINUATION_301_FIELD_PAYLOAD_33 = 0x01c00005; //ByteVector/None/2
+    
+    //Flags of the continuation, the last fragment of a streamed body is marked with this bit
+    public static final int CONTINUATION_END_OF_BODY = 1;
 
 
     public static void consume(Pipe<HTTPRequestSchema> input) {
@@ -54,6 +63,9 @@ public class HTTPRequestSchema extends MessageSchema<HTTPRequestSchema> {
                 case MSG_WEBSOCKETFRAME_100:
                     consumeWebSocketFrame(input);
                 break;
+                case MSG_RESTREQUESTCONTINUATION_301:
+                    consumeRestRequestContinuation(input);
+                break;
                 case -1:
                    //requestShutdown();
                 break;
@@ -78,6 +90,13 @@ public class HTTPRequestSchema extends MessageSchema<HTTPRequestSchema> {
         DataInputBlobReader<HTTPRequestSchema> fieldBinaryPayload = PipeReader.inputStream(input, MSG_WEBSOCKETFRAME_100_FIELD_BINARYPAYLOAD_12);
     }
 
+    public static void consumeRestRequestContinuation(Pipe<HTTPRequestSchema> input) {
+        long fieldChannelId = PipeReader.readLong(input,MSG_RESTREQUESTCONTINUATION_301_FIELD_CHANNELID_21);
+        int fieldSequence = PipeReader.readInt(input,MSG_RESTREQUESTCONTINUATION_301_FIELD_SEQUENCE_26);
+        int fieldFlags = PipeReader.readInt(input,MSG_RESTREQUESTCONTINUATION_301_FIELD_FLAGS_27);
+        DataInputBlobReader<HTTPRequestSchema> fieldPayload = PipeReader.inputStream(input, MSG_RESTREQUESTCONTINUATION_301_FIELD_PAYLOAD_33);
+    }
+
     public static void publishRestRequest(Pipe<HTTPRequestSchema> output, long fieldChannelId, int fieldSequence, int fieldVerb, byte[] fieldParamsBacking, int fieldParamsPosition, int fieldParamsLength, int fieldRevision, int fieldRequestContext) {
             PipeWriter.presumeWriteFragment(output, MSG_RESTREQUEST_300);
             PipeWriter.writeLong(output,MSG_RESTREQUEST_300_FIELD_CHANNELID_21, fieldChannelId);
@@ -97,5 +116,13 @@ public class HTTPRequestSchema extends MessageSchema<HTTPRequestSchema> {
             PipeWriter.writeBytes(output,MSG_WEBSOCKETFRAME_100_FIELD_BINARYPAYLOAD_12, fieldBinaryPayloadBacking, fieldBinaryPayloadPosition, fieldBinaryPayloadLength);
             PipeWriter.publishWrites(output);
     }
+    public static void publishRestRequestContinuation(Pipe<HTTPRequestSchema> output, long fieldChannelId, int fieldSequence, int fieldFlags, byte[] fieldPayloadBacking, int fieldPayloadPosition, int fieldPayloadLength) {
+            PipeWriter.presumeWriteFragment(output, MSG_RESTREQUESTCONTINUATION_301);
+            PipeWriter.writeLong(output,MSG_RESTREQUESTCONTINUATION_301_FIELD_CHANNELID_21, fieldChannelId);
+            PipeWriter.writeInt(output,MSG_RESTREQUESTCONTINUATION_301_FIELD_SEQUENCE_26, fieldSequence);
+            PipeWriter.writeInt(output,MSG_RESTREQUESTCONTINUATION_301_FIELD_FLAGS_27, fieldFlags);
+            PipeWriter.writeBytes(output,MSG_RESTREQUESTCONTINUATION_301_FIELD_PAYLOAD_33, fieldPayloadBacking, fieldPayloadPosition, fieldPayloadLength);
+            PipeWriter.publishWrites(output);
+    }
 
 }
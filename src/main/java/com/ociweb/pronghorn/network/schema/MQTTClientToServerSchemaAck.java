@@ -5,8 +5,9 @@ import com.ociweb.pronghorn.pipe.MessageSchema;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeReader;
 import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.scheduling.FeedbackSchema;
 
-public class MQTTClientToServerSchemaAck extends MessageSchema<MQTTClientToServerSchemaAck> {
+public class MQTTClientToServerSchemaAck extends MessageSchema<MQTTClientToServerSchemaAck> implements FeedbackSchema {
 
 	public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
 		    new int[]{0xc0400002,0x80000000,0xc0200002,0xc0400003,0x90000000,0x80000000,0xc0200003,0xc0400003,0x90000000,0x80000000,0xc0200003,0xc0400003,0x90000000,0x80000000,0xc0200003,0xc0400001,0xc0200001},
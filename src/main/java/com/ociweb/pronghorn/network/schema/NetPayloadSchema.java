@@ -10,14 +10,15 @@ import com.ociweb.pronghorn.pipe.PipeWriter;
 public class NetPayloadSchema extends MessageSchema<NetPayloadSchema> {
 
 	public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
-		    new int[]{0xc0400004,0x90000000,0x90000001,0xb8000000,0xc0200004,0xc0400005,0x90000000,0x90000001,0x90000002,0xb8000001,0xc0200005,0xc0400002,0x90000000,0xc0200002,0xc0400003,0x90000000,0x80000000,0xc0200003,0xc0400002,0x88000001,0xc0200002},
+		    new int[]{0xc0400004,0x90000000,0x90000001,0xb8000000,0xc0200004,0xc0400005,0x90000000,0x90000001,0x90000002,0xb8000001,0xc0200005,0xc0400002,0x90000000,0xc0200002,0xc0400003,0x90000000,0x80000000,0xc0200003,0xc0400002,0x88000001,0xc0200002,0xc0400006,0x90000000,0x90000001,0x88000002,0x90000002,0x90000003,0xc0200006},
 		    (short)0,
 		    new String[]{"Encrypted","ConnectionId","ArrivalTime","Payload",null,"Plain","ConnectionId","ArrivalTime",
 		    "Position","Payload",null,"Disconnect","ConnectionId",null,"Upgrade","ConnectionId",
-		    "NewRoute",null,"Begin","SequnceNo",null},
-		    new long[]{200, 201, 210, 203, 0, 210, 201, 210, 206, 204, 0, 203, 201, 0, 307, 201, 205, 0, 208, 209, 0},
+		    "NewRoute",null,"Begin","SequnceNo",null,"FileRegion","ConnectionId","ArrivalTime","FileId",
+		    "Position","Length",null},
+		    new long[]{200, 201, 210, 203, 0, 210, 201, 210, 206, 204, 0, 203, 201, 0, 307, 201, 205, 0, 208, 209, 0, 212, 201, 210, 211, 206, 213, 0},
 		    new String[]{"global",null,null,null,null,"global",null,null,null,null,null,"global",null,null,
-		    "global",null,null,null,"global",null,null},
+		    "global",null,null,null,"global",null,null,"global",null,null,null,null,null,null},
 		    "NetPayload.xml",
 		    new long[]{2, 2, 0},
 		    new int[]{2, 2, 0});
@@ -47,6 +48,12 @@ public class NetPayloadSchema extends MessageSchema<NetPayloadSchema> {
     public static final int MSG_UPGRADE_307_FIELD_NEWROUTE_205 = 0x00000003; //IntegerUnsigned/None/0
     public static final int MSG_BEGIN_208 = 0x00000012; //Group/OpenTempl/2
     public static final int MSG_BEGIN_208_FIELD_SEQUNCENO_209 = 0x00400001; //IntegerSigned/None/1
+    public static final int MSG_FILEREGION_212 = 0x00000015; //Group/OpenTempl/6
+    public static final int MSG_FILEREGION_212_FIELD_CONNECTIONID_201 = 0x00800001; //LongUnsigned/None/0
+    public static final int MSG_FILEREGION_212_FIELD_ARRIVALTIME_210 = 0x00800003; //LongUnsigned/None/1
+    public static final int MSG_FILEREGION_212_FIELD_FILEID_211 = 0x00400005; //IntegerSigned/None/2
+    public static final int MSG_FILEREGION_212_FIELD_POSITION_206 = 0x00800006; //LongUnsigned/None/2
+    public static final int MSG_FILEREGION_212_FIELD_LENGTH_213 = 0x00800008; //LongUnsigned/None/3
 
 
     public static void consume(Pipe<NetPayloadSchema> input) {
@@ -68,6 +75,9 @@ public class NetPayloadSchema extends MessageSchema<NetPayloadSchema> {
                 case MSG_BEGIN_208:
                     consumeBegin(input);
                 break;
+                case MSG_FILEREGION_212:
+                    consumeFileRegion(input);
+                break;
                 case -1:
                    //requestShutdown();
                 break;
@@ -97,6 +107,13 @@ public class NetPayloadSchema extends MessageSchema<NetPayloadSchema> {
     public static void consumeBegin(Pipe<NetPayloadSchema> input) {
         int fieldSequnceNo = PipeReader.readInt(input,MSG_BEGIN_208_FIELD_SEQUNCENO_209);
     }
+    public static void consumeFileRegion(Pipe<NetPayloadSchema> input) {
+        long fieldConnectionId = PipeReader.readLong(input,MSG_FILEREGION_212_FIELD_CONNECTIONID_201);
+        long fieldArrivalTime = PipeReader.readLong(input,MSG_FILEREGION_212_FIELD_ARRIVALTIME_210);
+        int fieldFileId = PipeReader.readInt(input,MSG_FILEREGION_212_FIELD_FILEID_211);
+        long fieldPosition = PipeReader.readLong(input,MSG_FILEREGION_212_FIELD_POSITION_206);
+        long fieldLength = PipeReader.readLong(input,MSG_FILEREGION_212_FIELD_LENGTH_213);
+    }
 
     public static void publishEncrypted(Pipe<NetPayloadSchema> output, long fieldConnectionId, long fieldArrivalTime, byte[] fieldPayloadBacking, int fieldPayloadPosition, int fieldPayloadLength) {
             PipeWriter.presumeWriteFragment(output, MSG_ENCRYPTED_200);
@@ -129,4 +146,13 @@ public class NetPayloadSchema extends MessageSchema<NetPayloadSchema> {
             PipeWriter.writeInt(output,MSG_BEGIN_208_FIELD_SEQUNCENO_209, fieldSequnceNo);
             PipeWriter.publishWrites(output);
     }
+    public static void publishFileRegion(Pipe<NetPayloadSchema> output, long fieldConnectionId, long fieldArrivalTime, int fieldFileId, long fieldPosition, long fieldLength) {
+            PipeWriter.presumeWriteFragment(output, MSG_FILEREGION_212);
+            PipeWriter.writeLong(output,MSG_FILEREGION_212_FIELD_CONNECTIONID_201, fieldConnectionId);
+            PipeWriter.writeLong(output,MSG_FILEREGION_212_FIELD_ARRIVALTIME_210, fieldArrivalTime);
+            PipeWriter.writeInt(output,MSG_FILEREGION_212_FIELD_FILEID_211, fieldFileId);
+            PipeWriter.writeLong(output,MSG_FILEREGION_212_FIELD_POSITION_206, fieldPosition);
+            PipeWriter.writeLong(output,MSG_FILEREGION_212_FIELD_LENGTH_213, fieldLength);
+            PipeWriter.publishWrites(output);
+    }
 }
@@ -0,0 +1,60 @@
+package com.ociweb.pronghorn.network.schema;
+
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.MessageSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+
+public class SSLHandshakeTaskSchema extends MessageSchema<SSLHandshakeTaskSchema> {
+
+	public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
+		    new int[]{0xc0400003,0x90000000,0x88000000,0xc0200003},
+		    (short)0,
+		    new String[]{"Task","ConnectionID","PipeIdx",null},
+		    new long[]{100, 1, 2, 0},
+		    new String[]{"global",null,null,null},
+		    "SSLHandshakeTask.xml",
+		    new long[]{2, 2, 0},
+		    new int[]{2, 2, 0});
+
+
+    protected SSLHandshakeTaskSchema() {
+        super(FROM);
+    }
+    
+    public static final SSLHandshakeTaskSchema instance = new SSLHandshakeTaskSchema();
+    
+    public static final int MSG_TASK_100 = 0x00000000; //Group/OpenTempl/3
+    public static final int MSG_TASK_100_FIELD_CONNECTIONID_1 = 0x00800001; //LongUnsigned/None/0
+    public static final int MSG_TASK_100_FIELD_PIPEIDX_2 = 0x00400003; //IntegerSigned/None/0
+
+
+    public static void consume(Pipe<SSLHandshakeTaskSchema> input) {
+        while (PipeReader.tryReadFragment(input)) {
+            int msgIdx = PipeReader.getMsgIdx(input);
+            switch(msgIdx) {
+                case MSG_TASK_100:
+                    consumeTask(input);
+                break;
+                case -1:
+                   //requestShutdown();
+                break;
+            }
+            PipeReader.releaseReadLock(input);
+        }
+    }
+
+    public static void consumeTask(Pipe<SSLHandshakeTaskSchema> input) {
+        long fieldConnectionID = PipeReader.readLong(input,MSG_TASK_100_FIELD_CONNECTIONID_1);
+        int fieldPipeIdx = PipeReader.readInt(input,MSG_TASK_100_FIELD_PIPEIDX_2);
+    }
+
+    public static void publishTask(Pipe<SSLHandshakeTaskSchema> output, long fieldConnectionID, int fieldPipeIdx) {
+            PipeWriter.presumeWriteFragment(output, MSG_TASK_100);
+            PipeWriter.writeLong(output,MSG_TASK_100_FIELD_CONNECTIONID_1, fieldConnectionID);
+            PipeWriter.writeInt(output,MSG_TASK_100_FIELD_PIPEIDX_2, fieldPipeIdx);
+            PipeWriter.publishWrites(output);
+    }
+        
+}
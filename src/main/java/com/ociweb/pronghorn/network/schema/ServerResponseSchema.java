@@ -10,11 +10,11 @@ import com.ociweb.pronghorn.pipe.PipeWriter;
 public class ServerResponseSchema extends MessageSchema<ServerResponseSchema> {
 
 	public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
-		    new int[]{0xc0400005,0x90800000,0x88000000,0xb8000000,0x80000001,0xc0200005,0xc0400005,0x90800001,0x88000000,0xb8000000,0x80000001,0xc0200005,0xc0400002,0xb8000000,0xc0200002},
+		    new int[]{0xc0400005,0x90800000,0x88000000,0xb8000000,0x80000001,0xc0200005,0xc0400005,0x90800001,0x88000000,0xb8000000,0x80000001,0xc0200005,0xc0400002,0xb8000000,0xc0200002,0xc0400007,0x90800000,0x88000000,0x88000002,0x90000002,0x90000003,0x80000001,0xc0200007},
 		    (short)0,
-		    new String[]{"ToChannel","ChannelId","SequenceNo","Payload","RequestContext",null,"ToSubscription","SubscriptionId","SequenceNo","Payload","RequestContext",null,"Skip","Payload",null},
-		    new long[]{100, 21, 23, 25, 24, 0, 200, 22, 23, 25, 24, 0, 300, 25, 0},
-		    new String[]{"global",null,null,null,null,null,"global",null,null,null,null,null,"global",null,null},
+		    new String[]{"ToChannel","ChannelId","SequenceNo","Payload","RequestContext",null,"ToSubscription","SubscriptionId","SequenceNo","Payload","RequestContext",null,"Skip","Payload",null,"ToChannelFile","ChannelId","SequenceNo","FileId","Position","Length","RequestContext",null},
+		    new long[]{100, 21, 23, 25, 24, 0, 200, 22, 23, 25, 24, 0, 300, 25, 0, 101, 21, 23, 26, 27, 28, 24, 0},
+		    new String[]{"global",null,null,null,null,null,"global",null,null,null,null,null,"global",null,null,"global",null,null,null,null,null,null,null},
 		    "serverResponse.xml",
 		    new long[]{2, 2, 0},
 		    new int[]{2, 2, 0});
@@ -40,6 +40,13 @@ public class ServerResponseSchema extends MessageSchema<ServerResponseSchema> {
     public static final int MSG_TOSUBSCRIPTION_200_FIELD_REQUESTCONTEXT_24 = 0x00000006; //IntegerUnsigned/None/1
     public static final int MSG_SKIP_300 = 0x0000000c; //Group/OpenTempl/2
     public static final int MSG_SKIP_300_FIELD_PAYLOAD_25 = 0x01c00001; //ByteVector/None/0
+    public static final int MSG_TOCHANNELFILE_101 = 0x0000000f; //Group/OpenTempl/7
+    public static final int MSG_TOCHANNELFILE_101_FIELD_CHANNELID_21 = 0x00800001; //LongUnsigned/Delta/0
+    public static final int MSG_TOCHANNELFILE_101_FIELD_SEQUENCENO_23 = 0x00400003; //IntegerSigned/None/0
+    public static final int MSG_TOCHANNELFILE_101_FIELD_FILEID_26 = 0x00400004; //IntegerSigned/None/2
+    public static final int MSG_TOCHANNELFILE_101_FIELD_POSITION_27 = 0x00800005; //LongUnsigned/None/2
+    public static final int MSG_TOCHANNELFILE_101_FIELD_LENGTH_28 = 0x00800007; //LongUnsigned/None/3
+    public static final int MSG_TOCHANNELFILE_101_FIELD_REQUESTCONTEXT_24 = 0x00000009; //IntegerUnsigned/None/1
 
 
     public static void consume(Pipe<ServerResponseSchema> input) {
@@ -55,6 +62,9 @@ public class ServerResponseSchema extends MessageSchema<ServerResponseSchema> {
                 case MSG_SKIP_300:
                     consumeSkip(input);
                 break;
+                case MSG_TOCHANNELFILE_101:
+                    consumeToChannelFile(input);
+                break;
                 case -1:
                    //requestShutdown();
                 break;
@@ -78,6 +88,14 @@ public class ServerResponseSchema extends MessageSchema<ServerResponseSchema> {
     public static void consumeSkip(Pipe<ServerResponseSchema> input) {
         DataInputBlobReader<ServerResponseSchema> fieldPayload = PipeReader.inputStream(input, MSG_SKIP_300_FIELD_PAYLOAD_25);
     }
+    public static void consumeToChannelFile(Pipe<ServerResponseSchema> input) {
+        long fieldChannelId = PipeReader.readLong(input,MSG_TOCHANNELFILE_101_FIELD_CHANNELID_21);
+        int fieldSequenceNo = PipeReader.readInt(input,MSG_TOCHANNELFILE_101_FIELD_SEQUENCENO_23);
+        int fieldFileId = PipeReader.readInt(input,MSG_TOCHANNELFILE_101_FIELD_FILEID_26);
+        long fieldPosition = PipeReader.readLong(input,MSG_TOCHANNELFILE_101_FIELD_POSITION_27);
+        long fieldLength = PipeReader.readLong(input,MSG_TOCHANNELFILE_101_FIELD_LENGTH_28);
+        int fieldRequestContext = PipeReader.readInt(input,MSG_TOCHANNELFILE_101_FIELD_REQUESTCONTEXT_24);
+    }
 
     public static void publishToChannel(Pipe<ServerResponseSchema> output, long fieldChannelId, int fieldSequenceNo, byte[] fieldPayloadBacking, int fieldPayloadPosition, int fieldPayloadLength, int fieldRequestContext) {
             PipeWriter.presumeWriteFragment(output, MSG_TOCHANNEL_100);
@@ -100,6 +118,16 @@ public class ServerResponseSchema extends MessageSchema<ServerResponseSchema> {
             PipeWriter.writeBytes(output,MSG_SKIP_300_FIELD_PAYLOAD_25, fieldPayloadBacking, fieldPayloadPosition, fieldPayloadLength);
             PipeWriter.publishWrites(output);
     }
+    public static void publishToChannelFile(Pipe<ServerResponseSchema> output, long fieldChannelId, int fieldSequenceNo, int fieldFileId, long fieldPosition, long fieldLength, int fieldRequestContext) {
+            PipeWriter.presumeWriteFragment(output, MSG_TOCHANNELFILE_101);
+            PipeWriter.writeLong(output,MSG_TOCHANNELFILE_101_FIELD_CHANNELID_21, fieldChannelId);
+            PipeWriter.writeInt(output,MSG_TOCHANNELFILE_101_FIELD_SEQUENCENO_23, fieldSequenceNo);
+            PipeWriter.writeInt(output,MSG_TOCHANNELFILE_101_FIELD_FILEID_26, fieldFileId);
+            PipeWriter.writeLong(output,MSG_TOCHANNELFILE_101_FIELD_POSITION_27, fieldPosition);
+            PipeWriter.writeLong(output,MSG_TOCHANNELFILE_101_FIELD_LENGTH_28, fieldLength);
+            PipeWriter.writeInt(output,MSG_TOCHANNELFILE_101_FIELD_REQUESTCONTEXT_24, fieldRequestContext);
+            PipeWriter.publishWrites(output);
+    }
     
     
 }
@@ -0,0 +1,71 @@
+package com.ociweb.pronghorn.network.schema;
+
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.MessageSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+
+public class WebSocketSchema extends MessageSchema<WebSocketSchema> {
+
+	public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
+		    new int[]{0xc0400004,0x90000000,0x88000000,0xb8000000,0xc0200004},
+		    (short)0,
+		    new String[]{"Message","ChannelId","Opcode","Payload",null},
+		    new long[]{100, 21, 11, 12, 0},
+		    new String[]{"global",null,null,null,null},
+		    "webSocket.xml",
+		    new long[]{2, 2, 0},
+		    new int[]{2, 2, 0});
+
+
+    protected WebSocketSchema() {
+        super(FROM);
+    }
+    
+    public static final WebSocketSchema instance = new WebSocketSchema();
+    
+    public static final int MSG_MESSAGE_100 = 0x00000000; //Group/OpenTempl/4
+    public static final int MSG_MESSAGE_100_FIELD_CHANNELID_21 = 0x00800001; //LongUnsigned/None/0
+    public static final int MSG_MESSAGE_100_FIELD_OPCODE_11 = 0x00400003; //IntegerSigned/None/0
+    public static final int MSG_MESSAGE_100_FIELD_PAYLOAD_12 = 0x01c00004; //ByteVector/None/0
+
+    //opcode values from RFC 6455
+    public static final int OPCODE_TEXT   = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE  = 0x8;
+    public static final int OPCODE_PING   = 0x9;
+    public static final int OPCODE_PONG   = 0xA;
+
+
+    public static void consume(Pipe<WebSocketSchema> input) {
+        while (PipeReader.tryReadFragment(input)) {
+            int msgIdx = PipeReader.getMsgIdx(input);
+            switch(msgIdx) {
+                case MSG_MESSAGE_100:
+                    consumeMessage(input);
+                break;
+                case -1:
+                   //requestShutdown();
+                break;
+            }
+            PipeReader.releaseReadLock(input);
+        }
+    }
+
+    public static void consumeMessage(Pipe<WebSocketSchema> input) {
+        long fieldChannelId = PipeReader.readLong(input,MSG_MESSAGE_100_FIELD_CHANNELID_21);
+        int fieldOpcode = PipeReader.readInt(input,MSG_MESSAGE_100_FIELD_OPCODE_11);
+        DataInputBlobReader<WebSocketSchema> fieldPayload = PipeReader.inputStream(input, MSG_MESSAGE_100_FIELD_PAYLOAD_12);
+    }
+
+    public static void publishMessage(Pipe<WebSocketSchema> output, long fieldChannelId, int fieldOpcode, byte[] fieldPayloadBacking, int fieldPayloadPosition, int fieldPayloadLength) {
+            PipeWriter.presumeWriteFragment(output, MSG_MESSAGE_100);
+            PipeWriter.writeLong(output,MSG_MESSAGE_100_FIELD_CHANNELID_21, fieldChannelId);
+            PipeWriter.writeInt(output,MSG_MESSAGE_100_FIELD_OPCODE_11, fieldOpcode);
+            PipeWriter.writeBytes(output,MSG_MESSAGE_100_FIELD_PAYLOAD_12, fieldPayloadBacking, fieldPayloadPosition, fieldPayloadLength);
+            PipeWriter.publishWrites(output);
+    }
+        
+}
@@ -226,6 +226,10 @@ public class RequestTwitterFriendshipStage extends PronghornStage {
 								       fieldSequence);			
 				        
 					break;
+			        case HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301:
+			        	//the friend id travels in the route params, streamed bodies are dropped
+			        	Pipe.skipNextFragment(input, msgIdx);
+			        continue; //already confirmed and released
 			        case -1:
 			           //requestShutdown();
 			        break;
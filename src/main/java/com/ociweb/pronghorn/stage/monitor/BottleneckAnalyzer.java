@@ -0,0 +1,212 @@
+package com.ociweb.pronghorn.stage.monitor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.util.Appendables;
+
+/**
+ * Finds the stage limiting throughput from the pipe fill and stage CPU telemetry.
+ *
+ * A stage whose input pipes are full while its output pipes are not is holding back the
+ * data, the fuller the inputs, the emptier the outputs and the busier the stage the higher it ranks.
+ * The critical path is the top ranked stage and everything upstream of it which is stalled
+ * behind saturated pipes.
+ */
+public class BottleneckAnalyzer {
+
+	public static final int SATURATED_PCT = 60; //same value drawn in red on the DOT
+	private static final int MAX_REPORTED = 20;
+
+	private final GraphManager gm;
+	private int[] score = new int[0];       //by stageId, 0 to 10000
+	private boolean[] criticalStage = new boolean[0];
+	private boolean[] criticalPipe = new boolean[0];
+	private int[] ranked = new int[0];      //stage ids, highest score first
+	private int rankedCount;
+	private int[] pipeFill = new int[0];    //by pipeId, 0 to 100
+	private long[] traffic;
+
+	public BottleneckAnalyzer(GraphManager gm) {
+		this.gm = gm;
+	}
+
+	/**
+	 * @param pipeFillPct fill of each pipe by pipe id, 0 to 100
+	 * @param pipeTraffic consumed fragments of each pipe by pipe id, may be null
+	 */
+	public void analyze(int[] pipeFillPct, long[] pipeTraffic) {
+		this.pipeFill = pipeFillPct;
+		this.traffic = pipeTraffic;
+
+		PronghornStage[] stages = GraphManager.allStages(gm);
+		int maxStageId = 0;
+		int i = stages.length;
+		while (--i>=0) {
+			maxStageId = Math.max(maxStageId, stages[i].stageId);
+		}
+		if (score.length<=maxStageId) {
+			score = new int[maxStageId+1];
+			criticalStage = new boolean[maxStageId+1];
+			ranked = new int[maxStageId+1];
+		} else {
+			Arrays.fill(score, 0);
+			Arrays.fill(criticalStage, false);
+		}
+		if (criticalPipe.length < pipeFillPct.length) {
+			criticalPipe = new boolean[pipeFillPct.length];
+		} else {
+			Arrays.fill(criticalPipe, false);
+		}
+
+		rankedCount = 0;
+		i = stages.length;
+		while (--i>=0) {
+			int stageId = stages[i].stageId;
+			if (GraphManager.hasNota(gm, stageId, GraphManager.MONITOR)) {
+				continue;//the telemetry is never the bottleneck of the application
+			}
+			int inFull = maxFill(stageId, true);
+			int outFull = maxFill(stageId, false);
+			int busy = Math.min(100, GraphManager.stageCPUPct(gm, stageId)/1000);
+
+			//backed up on the way in, free on the way out, weighted by busy time
+			int s = (inFull*(100-outFull)*(100+busy))/200;
+			if (s>0) {
+				score[stageId] = s;
+				insertRanked(stageId);
+			}
+		}
+
+		if (rankedCount>0) {
+			markCriticalPath(ranked[0]);
+		}
+	}
+
+	private void insertRanked(int stageId) {
+		int pos = rankedCount++;
+		while (pos>0 && score[ranked[pos-1]]<score[stageId]) {
+			ranked[pos] = ranked[pos-1];
+			pos--;
+		}
+		ranked[pos] = stageId;
+	}
+
+	private void markCriticalPath(int bottleneckId) {
+		int[] stack = new int[score.length];
+		int depth = 0;
+		stack[depth++] = bottleneckId;
+		criticalStage[bottleneckId] = true;
+		while (depth>0) {
+			int stageId = stack[--depth];
+			int c = GraphManager.getInputPipeCount(gm, stageId);
+			while (c>0) {
+				Pipe<?> p = GraphManager.getInputPipe(gm, stageId, c--);
+				if (fill(p.id)>=SATURATED_PCT) {
+					criticalPipe[p.id] = true;
+					int producer = GraphManager.getRingProducerStageId(gm, p.id);
+					//producers stalled by this full pipe are part of the path
+					if (producer>=0 && producer<criticalStage.length && !criticalStage[producer]) {
+						criticalStage[producer] = true;
+						stack[depth++] = producer;
+					}
+				}
+			}
+		}
+	}
+
+	private int maxFill(int stageId, boolean inputs) {
+		int max = 0;
+		int c = inputs ? GraphManager.getInputPipeCount(gm, stageId) : GraphManager.getOutputPipeCount(gm, stageId);
+		while (c>0) {
+			Pipe<?> p = inputs ? GraphManager.getInputPipe(gm, stageId, c) : GraphManager.getOutputPipe(gm, stageId, c);
+			max = Math.max(max, fill(p.id));
+			c--;
+		}
+		return max;
+	}
+
+	private int fill(int pipeId) {
+		return pipeId<pipeFill.length ? Math.max(0, Math.min(100, pipeFill[pipeId])) : 0;
+	}
+
+	/**
+	 * @return stage id of the stage most likely limiting throughput or -1 if no pipes are backed up
+	 */
+	public int bottleneckStageId() {
+		return rankedCount>0 ? ranked[0] : -1;
+	}
+
+	public int rankedCount() {
+		return rankedCount;
+	}
+
+	public int rankedStageId(int rank) {
+		return ranked[rank];
+	}
+
+	public int score(int stageId) {
+		return stageId<score.length ? score[stageId] : 0;
+	}
+
+	public boolean isCriticalStage(int stageId) {
+		return stageId<criticalStage.length && criticalStage[stageId];
+	}
+
+	public boolean isCriticalPipe(int pipeId) {
+		return pipeId<criticalPipe.length && criticalPipe[pipeId];
+	}
+
+	/**
+	 * Ranked stages followed by the saturated pipes as JSON.
+	 */
+	public <A extends Appendable> A writeJSON(A target) {
+		try {
+			Appendables.appendValue(target.append("{\"bottleneck\":"), bottleneckStageId());
+			target.append(",\"stages\":[");
+			int limit = Math.min(MAX_REPORTED, rankedCount);
+			for(int r = 0; r<limit; r++) {
+				int stageId = ranked[r];
+				if (r>0) {
+					target.append(',');
+				}
+				Appendables.appendValue(target.append("{\"stageId\":"), stageId);
+				target.append(",\"name\":\"").append(GraphManager.getStage(gm, stageId).getClass().getSimpleName()).append('"');
+				Appendables.appendValue(target.append(",\"score\":"), score[stageId]);
+				Appendables.appendValue(target.append(",\"cpu\":"), GraphManager.stageCPUPct(gm, stageId));
+				Appendables.appendValue(target.append(",\"inFull\":"), maxFill(stageId, true));
+				Appendables.appendValue(target.append(",\"outFull\":"), maxFill(stageId, false));
+				target.append(",\"critical\":").append(criticalStage[stageId] ? "true" : "false");
+				target.append('}');
+			}
+			target.append("],\"saturatedPipes\":[");
+			boolean first = true;
+			int p = pipeFill.length;
+			while (--p>=0) {
+				if (fill(p)>=SATURATED_PCT && null!=GraphManager.getPipe(gm, p)) {
+					if (!first) {
+						target.append(',');
+					}
+					first = false;
+					Appendables.appendValue(target.append("{\"pipeId\":"), p);
+					Appendables.appendValue(target.append(",\"fill\":"), fill(p));
+					Appendables.appendValue(target.append(",\"producer\":"), GraphManager.getRingProducerStageId(gm, p));
+					Appendables.appendValue(target.append(",\"consumer\":"), GraphManager.getRingConsumerStageId(gm, p));
+					if (null!=traffic && p<traffic.length) {
+						Appendables.appendValue(target.append(",\"consumed\":"), traffic[p]);
+					}
+					target.append(",\"critical\":").append(isCriticalPipe(p) ? "true" : "false");
+					target.append('}');
+				}
+			}
+			target.append("]}");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return target;
+	}
+
+}
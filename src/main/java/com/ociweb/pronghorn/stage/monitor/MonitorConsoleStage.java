@@ -6,6 +6,7 @@ import org.HdrHistogram.Histogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
 import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeConfig;
@@ -18,8 +19,16 @@ import com.ociweb.pronghorn.util.Appendables;
 public class MonitorConsoleStage extends PronghornStage {
 
 	private static final int SIZE_OF = Pipe.sizeOf(PipeMonitorSchema.instance, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100);
+	private static final int SIZE_OF_BATCH = Pipe.sizeOf(PipeMonitorBatchSchema.instance, PipeMonitorBatchSchema.MSG_PIPESAMPLEBATCH_200);
+	public static final int DEFAULT_PIPES_PER_SAMPLER = 1024;
 	private final Pipe[] inputs;
 
+	//each input holds samples for one or many (when batched) observed pipes, each of these is a slot
+	private int[] slotBase;
+	private boolean[] isBatch;
+	private long[] batchFill;
+	private int[] observedRingSize;
+	
 	private int[] observedPipeId;
 	private long[] observedPipeBytesAllocated;
 	private String[] observedPipeName;
@@ -38,6 +47,7 @@ public class MonitorConsoleStage extends PronghornStage {
 	private int reportSlowSpeed = 10;
     
 	private boolean recorderOn=true;
+	private BottleneckAnalyzer analyzer;
 	
 	private MonitorConsoleStage(GraphManager graphManager, Pipe ... inputs) {
 		super(graphManager, inputs, NONE);
@@ -55,7 +65,7 @@ public class MonitorConsoleStage extends PronghornStage {
 		int i = inputs.length;
 		while (--i>=0) {
 			FieldReferenceOffsetManager from = Pipe.from(inputs[i]); 
-			if (!from.fieldNameScript[0].equals("RingStatSample")) {
+			if (!from.fieldNameScript[0].equals("RingStatSample") && !from.fieldNameScript[0].equals("PipeSampleBatch")) {
 				throw new UnsupportedOperationException("Can only write to ring buffer that is expecting montior records.");
 			}
 		}
@@ -74,7 +84,27 @@ public class MonitorConsoleStage extends PronghornStage {
 		percentileValues = new int[Pipe.totalPipes()+1];
 		trafficValues = new long[Pipe.totalPipes()+1];
 		
-		int i = inputs.length;
+		slotBase = new int[inputs.length];
+		isBatch = new boolean[inputs.length];
+		int slots = 0;
+		int maxBatch = 0;
+		int j = 0;
+		while (j<inputs.length) {
+			slotBase[j] = slots;
+			PronghornStage producer = producer(j);
+			if (producer instanceof PipeMonitorSamplerStage) {
+				int count = ((PipeMonitorSamplerStage)producer).getObservedPipeCount();
+				isBatch[j] = true;
+				maxBatch = Math.max(maxBatch, count);
+				slots += count;
+			} else {
+				slots++;
+			}
+			j++;
+		}
+		batchFill = new long[maxBatch];
+		
+		int i = slots;
 		pctFull = new short[i];
 		hists = new Histogram[i];
 		while (--i>=0) {
@@ -83,22 +113,34 @@ public class MonitorConsoleStage extends PronghornStage {
 				
 		position = inputs.length;
 		
-		observedPipeId = new int[inputs.length];
+		observedPipeId = new int[slots];
 		Arrays.fill(observedPipeId, -1);
-		observedPipeBytesAllocated = new long[inputs.length];
-		observedPipeName = new String[inputs.length];
+		observedPipeBytesAllocated = new long[slots];
+		observedPipeName = new String[slots];
+		observedRingSize = new int[slots];
 		
-		int j = inputs.length;
+		j = inputs.length;
 		while (--j>=0) {
-			int stageId = GraphManager.getRingProducerStageId(graphManager, inputs[j].id);	
-            PronghornStage producer = GraphManager.getStage(graphManager, stageId);
+            PronghornStage producer = producer(j);
             if (producer instanceof PipeMonitorStage) {
             	PipeMonitorStage p = (PipeMonitorStage)producer;
             	
-            	observedPipeId[j] = p.getObservedPipeId();
-            	observedPipeBytesAllocated[j] = p.getObservedPipeBytesAllocated();
-            	observedPipeName[j] = p.getObservedPipeName();
+            	observedPipeId[slotBase[j]] = p.getObservedPipeId();
+            	observedPipeBytesAllocated[slotBase[j]] = p.getObservedPipeBytesAllocated();
+            	observedPipeName[slotBase[j]] = p.getObservedPipeName();
+            	
+            } else if (producer instanceof PipeMonitorSamplerStage) {
+            	PipeMonitorSamplerStage p = (PipeMonitorSamplerStage)producer;
             	
+            	int k = p.getObservedPipeCount();
+            	while (--k>=0) {
+            		Pipe<?> observed = p.getObservedPipe(k);
+            		int slot = slotBase[j]+k;
+            		observedPipeId[slot] = observed.id;
+            		observedPipeBytesAllocated[slot] = observed.config().totalBytesAllocated();
+            		observedPipeName[slot] = GraphManager.getPipeName(graphManager, observed).intern();
+            		observedRingSize[slot] = observed.sizeOfSlabRing;
+            	}
             }
             
 		}
@@ -107,6 +149,11 @@ public class MonitorConsoleStage extends PronghornStage {
 	}
 		
 	
+	private PronghornStage producer(int inputIdx) {
+		int stageId = GraphManager.getRingProducerStageId(graphManager, inputs[inputIdx].id);	
+		return GraphManager.getStage(graphManager, stageId);
+	}
+	
 	@Override
 	public void run() {
 
@@ -119,7 +166,11 @@ public class MonitorConsoleStage extends PronghornStage {
 				pos = inputs.length-1;
 			}			
 			//can pass in null for local hists when not gatering history
-			consumeSamples(pos, inputs, localHists, pctFull);
+			if (isBatch[pos]) {
+				consumeBatches(pos, inputs, localHists, pctFull);
+			} else {
+				consumeSamples(pos, inputs, localHists, pctFull);
+			}
 		}
 		position = pos;
 	}
@@ -157,11 +208,39 @@ public class MonitorConsoleStage extends PronghornStage {
 		/////////////////////		
 		if (consumed>=0) {
 			
-			recordPctFull(pos, localHists, pctFullAvg, consumed, head, tail, ringSize, msgSkipped); 
+			recordPctFull(slotBase[pos], localHists, pctFullAvg, consumed, head, tail, ringSize, msgSkipped); 
 		}
 	}
 
-	private void recordPctFull(int pos, Histogram[] localHists, short[] pctFullAvg, long consumed, long head, long tail,
+	private void consumeBatches(int pos, Pipe[] localInputs, Histogram[] localHists, short[] pctFullAvg) {
+		Pipe<?> pipe = localInputs[pos];
+		final int base = slotBase[pos];
+		final long[] fill = batchFill;
+		
+		while (Pipe.hasContentToRead(pipe)) {
+			int msgIdx = Pipe.takeMsgIdx(pipe);
+			assert(PipeMonitorBatchSchema.MSG_PIPESAMPLEBATCH_200 == msgIdx);
+			long time = Pipe.takeLong(pipe);
+			int count = Pipe.takeInt(pipe);
+			
+			DataInputBlobReader<?> columns = Pipe.openInputStream(pipe);
+			int i = 0;
+			while (i<count) {
+				fill[i++] = columns.readPackedLong();
+			}
+			i = 0;
+			while (i<count) {
+				long consumed = columns.readPackedLong();
+				recordPctFull(base+i, localHists, pctFullAvg, consumed, fill[i], 0, observedRingSize[base+i], 0);
+				i++;
+			}
+			
+			Pipe.confirmLowLevelRead(pipe, SIZE_OF_BATCH);
+			Pipe.releaseReadLock(pipe);
+		}
+	}
+
+	private void recordPctFull(int slot, Histogram[] localHists, short[] pctFullAvg, long consumed, long head, long tail,
 			int ringSize, int msgSkipped) {
 		if (msgSkipped>10 && --reportSlowSpeed>0) {			
 			logger.warn("warning {} samples skipped, telemery read is not keeping up with data", msgSkipped);			
@@ -171,11 +250,11 @@ public class MonitorConsoleStage extends PronghornStage {
 		int pctFull = (int)((10000*(head-tail))/ringSize);
 		if (null!=localHists && head>=0 && tail>=0) {
 			//bounds enforcement because both head and tail are snapshots and are not synchronized to one another.				
-			localHists[pos].recordValue(pctFull>=0 ? (pctFull<=10000 ? pctFull : 9999) : 0);
+			localHists[slot].recordValue(pctFull>=0 ? (pctFull<=10000 ? pctFull : 9999) : 0);
 		}
-		pctFullAvg[pos] = (short)Math.min(9999, (((99*pctFullAvg[pos])+pctFull)/100));
+		pctFullAvg[slot] = (short)Math.min(9999, (((99*pctFullAvg[slot])+pctFull)/100));
 					
-		trafficValues[this.observedPipeId[pos]] = consumed;
+		trafficValues[this.observedPipeId[slot]] = consumed;
 	}
 
 	@Override
@@ -292,11 +371,38 @@ public class MonitorConsoleStage extends PronghornStage {
 	private static final PipeConfig defaultMonitorRingConfig = new PipeConfig(PipeMonitorSchema.instance, 15, 0);
 	
 	public static MonitorConsoleStage attach(GraphManager gm) {
-		return attach(gm,defaultMonitorRate,defaultMonitorRingConfig);
+		return attach(gm,defaultMonitorRate,DEFAULT_PIPES_PER_SAMPLER);
 	}
 	
 	public static MonitorConsoleStage attach(GraphManager gm, long rate) {
-	        return attach(gm,Long.valueOf(rate),defaultMonitorRingConfig);
+	        return attach(gm,Long.valueOf(rate),DEFAULT_PIPES_PER_SAMPLER);
+	}
+	
+	/**
+	 * Adds monitoring with a few sampler stages which each sweep many pipes, instead of a monitor stage per pipe.
+	 * @param gm
+	 * @param monitorRate
+	 * @param pipesPerSampler count of pipes swept by each sampler stage
+	 */
+	public static MonitorConsoleStage attach(GraphManager gm, Long monitorRate, int pipesPerSampler) {
+		
+		return attach(gm, monitorRate, GraphManager.attachSamplersToGraph(gm, monitorRate, pipesPerSampler));
+	}
+	
+	/**
+	 * Adds monitoring which reads batches from samplers already attached to the graph, so the
+	 * same sweep can also feed other telemetry, see GraphManager.attachSamplersToGraph.
+	 * @param gm
+	 * @param monitorRate rate of the samplers
+	 * @param batches one pipe from each sampler
+	 */
+	public static MonitorConsoleStage attach(GraphManager gm, Long monitorRate, Pipe<PipeMonitorBatchSchema>[] batches) {
+		
+		MonitorConsoleStage stage = new MonitorConsoleStage(gm, batches);
+        
+		GraphManager.addNota(gm, GraphManager.SCHEDULE_RATE, monitorRate>>5, stage);
+		GraphManager.addNota(gm, GraphManager.MONITOR, "dummy", stage);
+		return stage;
 	}
 	
 	/**
@@ -314,16 +420,30 @@ public class MonitorConsoleStage extends PronghornStage {
 		return stage;
 	}
 
-	public void writeAsDot(GraphManager gm, AppendableBuilder payload) {
+	public synchronized void writeAsDot(GraphManager gm, AppendableBuilder payload) {
 		summarizeRuntime(false, ValueType.NearRealTime);
 
 	//	ServerCoordinator.newDotRequestStart = System.nanoTime();
-		GraphManager.writeAsDOT(gm, payload, true, percentileValues, trafficValues);
+		GraphManager.writeAsDOT(gm, payload, true, percentileValues, trafficValues, analyzer(gm));
 
 		
 		
 	}
 
-	
+	/**
+	 * Writes the stages limiting throughput, ranked using the latest pipe fill and stage CPU values, as JSON.
+	 */
+	public synchronized <A extends Appendable> A writeBottlenecks(GraphManager gm, A target) {
+		summarizeRuntime(false, ValueType.NearRealTime);
+		return analyzer(gm).writeJSON(target);
+	}
+
+	private BottleneckAnalyzer analyzer(GraphManager gm) {
+		if (null == analyzer) {
+			analyzer = new BottleneckAnalyzer(gm);
+		}
+		analyzer.analyze(percentileValues, trafficValues);
+		return analyzer;
+	}
 
 }
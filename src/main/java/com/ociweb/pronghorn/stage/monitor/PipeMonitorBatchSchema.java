@@ -0,0 +1,61 @@
+package com.ociweb.pronghorn.stage.monitor;
+
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
+import com.ociweb.pronghorn.pipe.MessageSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+
+/**
+ * One message holds the samples of many pipes. Columns holds PipeCount packed fill
+ * values (head minus tail) followed by PipeCount packed consumed fragment totals, in the
+ * order of the pipes observed by the PipeMonitorSamplerStage which produced it.
+ */
+public class PipeMonitorBatchSchema extends MessageSchema<PipeMonitorBatchSchema>{
+
+	public final static FieldReferenceOffsetManager FROM = new FieldReferenceOffsetManager(
+		    new int[]{0xc0400004,0x90000000,0x80000000,0xb8000000,0xc0200004},
+		    (short)0,
+		    new String[]{"PipeSampleBatch","MS","PipeCount","Columns",null},
+		    new long[]{200, 1, 2, 3, 0},
+		    new String[]{"global",null,null,null,null},
+		    "PipeMonitorBatch.xml",
+		    new long[]{2, 2, 0},
+		    new int[]{2, 2, 0});
+
+
+    public static PipeMonitorBatchSchema instance = new PipeMonitorBatchSchema();
+
+    
+    private PipeMonitorBatchSchema() {
+        super(FROM);
+    }
+    
+    public static final int MSG_PIPESAMPLEBATCH_200 = 0x00000000; //Group/OpenTempl/4
+    public static final int MSG_PIPESAMPLEBATCH_200_FIELD_MS_1 = 0x00800001; //LongUnsigned/None/0
+    public static final int MSG_PIPESAMPLEBATCH_200_FIELD_PIPECOUNT_2 = 0x00000003; //IntegerUnsigned/None/0
+    public static final int MSG_PIPESAMPLEBATCH_200_FIELD_COLUMNS_3 = 0x01c00004; //ByteVector/None/0
+
+
+    public static void consume(Pipe<PipeMonitorBatchSchema> input) {
+        while (PipeReader.tryReadFragment(input)) {
+            int msgIdx = PipeReader.getMsgIdx(input);
+            switch(msgIdx) {
+                case MSG_PIPESAMPLEBATCH_200:
+                    consumePipeSampleBatch(input);
+                break;
+                case -1:
+                   //requestShutdown();
+                break;
+            }
+            PipeReader.releaseReadLock(input);
+        }
+    }
+
+    public static void consumePipeSampleBatch(Pipe<PipeMonitorBatchSchema> input) {
+        long fieldMS = PipeReader.readLong(input,MSG_PIPESAMPLEBATCH_200_FIELD_MS_1);
+        int fieldPipeCount = PipeReader.readInt(input,MSG_PIPESAMPLEBATCH_200_FIELD_PIPECOUNT_2);
+        DataInputBlobReader<PipeMonitorBatchSchema> fieldColumns = PipeReader.inputStream(input, MSG_PIPESAMPLEBATCH_200_FIELD_COLUMNS_3);
+    }
+
+}
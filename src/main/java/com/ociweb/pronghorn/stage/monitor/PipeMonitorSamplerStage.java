@@ -0,0 +1,130 @@
+package com.ociweb.pronghorn.stage.monitor;
+
+import static com.ociweb.pronghorn.stage.monitor.PipeMonitorBatchSchema.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Sweeps the head and tail positions of many observed pipes on each run and publishes them
+ * as a single columnar PipeMonitorBatchSchema message. One of these replaces a PipeMonitorStage
+ * and its monitor pipe for every observed pipe.
+ */
+public class PipeMonitorSamplerStage extends PronghornStage {
+
+	//packed longs never need more than 10 bytes and we write 2 columns
+	private static final int MAX_BYTES_PER_PIPE = 20;
+	private static final Logger logger = LoggerFactory.getLogger(PipeMonitorSamplerStage.class);
+
+	private final Pipe<?>[] observedPipes;
+	private final Pipe<PipeMonitorBatchSchema>[] outputs;
+	private final GraphManager gm;
+	private final long[] fill;
+	private final long[] written;
+	private long dropped = 0;
+
+	public static PipeConfig<PipeMonitorBatchSchema> outputConfig(int observedCount) {
+		return new PipeConfig<PipeMonitorBatchSchema>(PipeMonitorBatchSchema.instance, 4, MAX_BYTES_PER_PIPE*observedCount);
+	}
+
+	public PipeMonitorSamplerStage(GraphManager gm, Pipe<?>[] observedPipes, Pipe<PipeMonitorBatchSchema> output) {
+		this(gm, observedPipes, new Pipe[]{output});
+	}
+
+	/**
+	 * @param outputs every output gets the same batch so many telemetry consumers can share one sweep
+	 */
+	public PipeMonitorSamplerStage(GraphManager gm, Pipe<?>[] observedPipes, Pipe<PipeMonitorBatchSchema>[] outputs) {
+		//the observed pipes are NOT inputs
+		super(gm, NONE, outputs);
+		this.observedPipes = observedPipes;
+		this.outputs = outputs;
+		this.gm = gm;
+		this.fill = new long[observedPipes.length];
+		this.written = new long[observedPipes.length];
+		if (minVarLength(outputs) < MAX_BYTES_PER_PIPE*observedPipes.length) {
+			throw new UnsupportedOperationException("Output pipes must hold at least "+(MAX_BYTES_PER_PIPE*observedPipes.length)+" bytes, see outputConfig()");
+		}
+		GraphManager.addNota(gm, GraphManager.MONITOR, GraphManager.MONITOR, this);
+	}
+
+	@Override
+	public void startup() {
+		int o = outputs.length;
+		while (--o>=0) {
+			Pipe.setPublishBatchSize(outputs[o], 0);//can not be done earlier
+		}
+	}
+
+	@Override
+	public void run() {
+
+		final Pipe<?>[] localObserved = observedPipes;
+		final long[] localFill = fill;
+		final long[] localWritten = written;
+		final int count = localObserved.length;
+		final long now = System.currentTimeMillis();
+		boolean swept = false;
+
+		int o = outputs.length;
+		while (--o>=0) {
+			Pipe<PipeMonitorBatchSchema> localOutput = outputs[o];
+
+			//if we can't write then do it again on the next cycle, and skip this data point.
+			if (Pipe.hasRoomForWrite(localOutput)) {
+
+				if (!swept) {
+					//one sweep is shared by every output so they all see the same sample
+					int i = 0;
+					while (i<count) {
+						Pipe<?> p = localObserved[i];
+						//tail is read first so the fill is never negative
+						long tail = Pipe.tailPosition(p);
+						localFill[i] = Pipe.headPosition(p)-tail;
+						localWritten[i++] = Pipe.totalWrittenFragments(p);
+					}
+					swept = true;
+				}
+
+				final int size = Pipe.addMsgIdx(localOutput, MSG_PIPESAMPLEBATCH_200);
+				Pipe.addLongValue(now, localOutput);
+				Pipe.addIntValue(count, localOutput);
+
+				DataOutputBlobWriter<PipeMonitorBatchSchema> columns = Pipe.openOutputStream(localOutput);
+				int i = 0;
+				while (i<count) {
+					columns.writePackedLong(localFill[i++]);
+				}
+				i = 0;
+				while (i<count) {
+					columns.writePackedLong(localWritten[i++]);
+				}
+				DataOutputBlobWriter.closeLowLevelField(columns);
+
+				Pipe.confirmLowLevelWrite(localOutput, size);
+				Pipe.publishWrites(localOutput);
+
+			} else {
+				//if unable to write then the values are dropped.
+				if (Long.numberOfLeadingZeros(dropped)!=Long.numberOfLeadingZeros(++dropped)) {
+					logger.info("Telemetry is not consuming collected data fast enough dropped:{} rate:{}ns  {}",dropped,(Number)GraphManager.getNota(gm, this, GraphManager.SCHEDULE_RATE, -1),localOutput);
+				}
+			}
+		}
+	}
+
+	public int getObservedPipeCount() {
+		return observedPipes.length;
+	}
+
+	public Pipe<?> getObservedPipe(int idx) {
+		return observedPipes[idx];
+	}
+
+}
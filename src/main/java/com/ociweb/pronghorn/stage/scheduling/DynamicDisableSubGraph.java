@@ -14,11 +14,16 @@ public class DynamicDisableSubGraph {
 	private final int[] disabledIndexes;//index to which row is the disabled item.
 	private final Pipe[][] foundToHaveData; //if has data we must un-disable this sequence
 		
-	private final long thresholdForDisableNS = 1_000_000_000; //1 full second of non use
+	private final long thresholdForDisableNS;
 	private SubGraphDisableable disabler;
 	
 	public DynamicDisableSubGraph(int countOfSubGraphs, SubGraphDisableable disableable) {
-			
+		this(countOfSubGraphs, disableable, 1_000_000_000); //1 full second of non use
+	}
+	
+	public DynamicDisableSubGraph(int countOfSubGraphs, SubGraphDisableable disableable, long thresholdForDisableNS) {
+		
+		this.thresholdForDisableNS = thresholdForDisableNS;
 		foundToBeUnusedLastModified = new long[countOfSubGraphs];
 		foundToBeUnusedBaselines = new long[countOfSubGraphs][];
 		foundToBeUnused = new Pipe[countOfSubGraphs][];
@@ -59,25 +64,17 @@ public class DynamicDisableSubGraph {
 		int d = disabledCount;
 		while (--d>=0) {
 			int i = disabledIndexes[d];
-			if (i>=0) {
-				if (foundToHaveData(foundToHaveData[i])) {
-					//un-disable the object
-					
-					//call method on the external subGraph to change its state
-					disabler.disable(i,false);
-					
-					//remove from list since it is now disabled
-					disabledIndexes[d] = -1;
-					
-					//shrink list of possible
-					if (d+1==disabledCount) {
-						disabledCount--;
-					}				
-				}
-			} else {
-				if (d+1==disabledCount) {
-					disabledCount--;
-				}
+			if (foundToHaveData(foundToHaveData[i])) {
+				//un-disable the object
+				
+				//call method on the external subGraph to change its state
+				disabler.disable(i,false);
+				
+				//start the idle clock over so it is not disabled again before it can run
+				foundToBeUnusedLastModified[i] = System.nanoTime();
+				
+				//remove from list since it is now enabled, the last one was already checked so move it here
+				disabledIndexes[d] = disabledIndexes[--disabledCount];
 			}
 		}
 		
@@ -93,6 +90,9 @@ public class DynamicDisableSubGraph {
 		
 		long[] baseLines = foundToBeUnusedBaselines[activeItem];		
 		Pipe[] outputs = foundToBeUnused[activeItem];
+		if (null == outputs) {
+			return; //this subGraph was never added so it can not be disabled
+		}
 		boolean considerForDisable = true;
 		int i = outputs.length;
 		while (--i>=0) {
@@ -103,7 +103,7 @@ public class DynamicDisableSubGraph {
 				considerForDisable = false;
 			}
 		}
-		if (considerForDisable) {
+		if (considerForDisable && !foundToHaveData(foundToHaveData[activeItem])) {
 			//if not already disabled and over time
 			if ( (!disabler.disabled(activeItem))
 				&& (System.nanoTime()-foundToBeUnusedLastModified[activeItem])>thresholdForDisableNS 
@@ -1,22 +1,47 @@
 package com.ociweb.pronghorn.stage.scheduling;
 
+import java.util.Arrays;
+
 import com.ociweb.pronghorn.util.Appendables;
 
+/**
+ * Log-linear histogram of elapsed times. Each power of two range is split into
+ * 2^subBucketBits linear sub-buckets so the reported values are within
+ * 1/2^subBucketBits of the recorded values, values below 2^subBucketBits are exact.
+ *
+ * Counts are kept in one row of sub-buckets per power of two and each row is only
+ * allocated once a value of that magnitude is recorded, so a recorder costs memory
+ * in proportion to the range of values it has seen.
+ *
+ * Recording is not thread safe, each instance must have a single writer.
+ * See ThreadedElapsedTimeRecorder for recording from many threads.
+ */
 public class ElapsedTimeRecorder {
 
-	private final int[] buckets; 
+	public static final int DEFAULT_SUB_BUCKET_BITS = 5; //within 3%
+
+	private final int subBucketBits;
+	private final long[][] rows; //row n holds the sub-buckets of bucket index n<<subBucketBits, null until used
 	private long totalCount;
-	
+	private long maxValue;
+
 	public ElapsedTimeRecorder() {
-		
-		buckets = new int[64];
-		
+		this(DEFAULT_SUB_BUCKET_BITS);
 	}
-	
+
+	public ElapsedTimeRecorder(int subBucketBits) {
+		if (subBucketBits<0 || subBucketBits>16) {
+			throw new UnsupportedOperationException("Must be value between 0 and 16");
+		}
+		this.subBucketBits = subBucketBits;
+		//values up to 2^63 need 63-subBucketBits magnitudes plus the exact range at the bottom
+		this.rows = new long[64-subBucketBits][];
+	}
+
 	public String toString() {
 		return report(new StringBuilder()).toString();
 	}
-	
+
 	public <A extends Appendable> A report(A target) {
 		Appendables.appendNearestTimeUnit(target, ElapsedTimeRecorder.elapsedAtPercentile(this, .50f), " 50 percentile\n");
 		Appendables.appendNearestTimeUnit(target, ElapsedTimeRecorder.elapsedAtPercentile(this, .80f), " 80 percentile\n");
@@ -29,52 +54,177 @@ public class ElapsedTimeRecorder {
 		Appendables.appendNearestTimeUnit(target, ElapsedTimeRecorder.elapsedAtPercentile(this, 1f), " max update\n");
 		return target;
 	}
-	
-	public static void record(ElapsedTimeRecorder that, long valueNS) {		
-		that.buckets[63 - Long.numberOfLeadingZeros(valueNS)]++;
+
+	public static void record(ElapsedTimeRecorder that, long valueNS) {
+		if (valueNS<0) {
+			valueNS = 0;
+		}
+		final int idx = bucketIndex(that.subBucketBits, valueNS);
+		row(that, idx>>that.subBucketBits)[idx & ((1<<that.subBucketBits)-1)]++;
 		that.totalCount++;
+		if (valueNS>that.maxValue) {
+			that.maxValue = valueNS;
+		}
+	}
+
+	private static long[] row(ElapsedTimeRecorder that, int r) {
+		long[] row = that.rows[r];
+		if (null == row) {
+			row = that.rows[r] = new long[1<<that.subBucketBits];
+		}
+		return row;
 	}
-	
+
+	static int bucketIndex(int bits, long value) {
+		int magnitude = 63 - Long.numberOfLeadingZeros(value); //-1 for zero
+		if (magnitude < bits) {
+			return (int)value; //exact
+		}
+		int shift = magnitude-bits;
+		//leading one bit of (value>>shift) adds the 1<<bits offset for us
+		return ((shift)<<bits) + (int)(value>>>shift);
+	}
+
+	static long bucketFloor(int bits, int idx) {
+		int shift = (idx>>bits)-1;
+		if (shift<=0) {
+			return idx; //exact
+		}
+		return ((long)((1<<bits) + (idx & ((1<<bits)-1)))) << shift;
+	}
+
+	static long bucketWidth(int bits, int idx) {
+		int shift = (idx>>bits)-1;
+		return shift<=0 ? 1 : 1L<<shift;
+	}
+
+	public static long totalCount(ElapsedTimeRecorder that) {
+		return that.totalCount;
+	}
+
+	public static long maxValue(ElapsedTimeRecorder that) {
+		return that.maxValue;
+	}
+
 	public static long elapsedAtPercentile(ElapsedTimeRecorder that, float pct) {
-		long targetCount = (long)(pct * that.totalCount);
-		
-		if (0 != targetCount) {
-			int i = 0;
-			int j = 0; //max;
-			while (i<64) {
-				
-				int b = that.buckets[i++];
-				if (b>0) {
-					j = i;
-				}
-				if (targetCount<=b) {
-					
-					long floor = i<=1 ? 0 : (1L<<(i-2));
-					long ceil = (1L<<(i-1));
-					
-					long dif = ((ceil-floor) * targetCount)/(long)b ; 
-					
-					return floor + dif; 
-					
-				} else {
-					targetCount -= b;				
+
+		if (0 == that.totalCount || pct<=0) {
+			return 0;
+		}
+		//nearest rank, rounded to avoid float noise such as .999f*1000 > 999
+		long targetCount = Math.max(1, (long)((pct*(double)that.totalCount)+.5d));
+		if (targetCount >= that.totalCount) {
+			return that.maxValue;
+		}
+
+		final long[][] local = that.rows;
+		final int bits = that.subBucketBits;
+		final int width = 1<<bits;
+		for(int r = 0; r<local.length; r++) {
+			final long[] row = local[r];
+			if (null != row) {
+				for(int c = 0; c<width; c++) {
+					long b = row[c];
+					if (targetCount<=b) {
+						//linear position inside this sub-bucket
+						int i = (r<<bits)+c;
+						long result = bucketFloor(bits, i) + (((bucketWidth(bits, i)-1)*targetCount)/b);
+						return Math.min(result, that.maxValue);
+					} else {
+						targetCount -= b;
+					}
 				}
 			}
-			
-			return 1L<<(j-1);//largest value		
-		} else {
-			return 0;
 		}
+		return that.maxValue;
 	}
 
 	public void add(ElapsedTimeRecorder source) {
-		int i = buckets.length;
-		while (--i>=0) {
-			buckets[i] += source.buckets[i];			
+		if (source.subBucketBits != subBucketBits) {
+			throw new UnsupportedOperationException("Sub bucket bits must match, found "+source.subBucketBits+" expected "+subBucketBits);
+		}
+		final long[][] sourceRows = source.rows;
+		long count = 0;
+		int r = sourceRows.length;
+		while (--r>=0) {
+			final long[] sourceRow = sourceRows[r];
+			if (null != sourceRow) {
+				final long[] local = row(this, r);
+				int c = local.length;
+				while (--c>=0) {
+					long value = sourceRow[c];
+					local[c] += value;
+					count += value;
+				}
+			}
+		}
+		//source may still be recording so the sum of what we read is used for the total
+		totalCount += count;
+		maxValue = Math.max(maxValue, source.maxValue);
+	}
+
+	/**
+	 * Replaces the counts in this recorder with the counts of current which were
+	 * recorded after previous. Used for interval snapshots of running totals.
+	 */
+	public void difference(ElapsedTimeRecorder current, ElapsedTimeRecorder previous) {
+		if (current.subBucketBits != subBucketBits || previous.subBucketBits != subBucketBits) {
+			throw new UnsupportedOperationException("Sub bucket bits must match");
+		}
+		final int bits = subBucketBits;
+		long count = 0;
+		int top = -1;
+		int r = rows.length;
+		while (--r>=0) {
+			final long[] currentRow = current.rows[r];
+			if (null == currentRow) {
+				//nothing recorded at this magnitude so nothing can be new
+				if (null != rows[r]) {
+					Arrays.fill(rows[r], 0);
+				}
+				continue;
+			}
+			final long[] previousRow = previous.rows[r];
+			final long[] local = row(this, r);
+			int c = local.length;
+			while (--c>=0) {
+				long value = currentRow[c]-(null==previousRow ? 0 : previousRow[c]);
+				local[c] = value;
+				count += value;
+				if (value>0 && top<0) {
+					top = (r<<bits)+c;
+				}
+			}
+		}
+		totalCount = count;
+		//the exact max is not known for the interval, use the top of the highest sub-bucket
+		maxValue = top<0 ? 0 : Math.min(current.maxValue, bucketFloor(subBucketBits, top)+bucketWidth(subBucketBits, top)-1);
+	}
+
+	public void clear() {
+		int r = rows.length;
+		while (--r>=0) {
+			if (null != rows[r]) {
+				Arrays.fill(rows[r], 0);
+			}
 		}
-		totalCount += source.totalCount;
-		
+		totalCount = 0;
+		maxValue = 0;
 	}
-	
-	
+
+	public int subBucketBits() {
+		return subBucketBits;
+	}
+
+	int allocatedRows() {
+		int count = 0;
+		int r = rows.length;
+		while (--r>=0) {
+			if (null != rows[r]) {
+				count++;
+			}
+		}
+		return count;
+	}
+
 }
@@ -0,0 +1,9 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+/**
+ * Marks a schema which carries acknowledgements or releases back upstream. Stages joined by
+ * such a pipe are never placed in the same chain by GraphManager.colocateStageChains.
+ */
+public interface FeedbackSchema {
+
+}
@@ -22,7 +22,10 @@ import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeConfig;
 import com.ociweb.pronghorn.pipe.PipeMonitor;
 import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.monitor.BottleneckAnalyzer;
 import com.ociweb.pronghorn.stage.monitor.MonitorConsoleStage;
+import com.ociweb.pronghorn.stage.monitor.PipeMonitorBatchSchema;
+import com.ociweb.pronghorn.stage.monitor.PipeMonitorSamplerStage;
 import com.ociweb.pronghorn.stage.monitor.PipeMonitorStage;
 import com.ociweb.pronghorn.stage.route.ReplicatorStage;
 import com.ociweb.pronghorn.stage.test.ConsoleJSONDumpStage;
@@ -74,6 +77,29 @@ public class GraphManager {
 		percentile = value;
 	}
 	
+	/**
+	 * Sets the precision of the per stage elapsed time histograms, must be called before the graph starts.
+	 * @param gm
+	 * @param subBucketBits each power of two range is split into 2^subBucketBits buckets
+	 */
+	public static void setElapsedTimePrecision(GraphManager gm, int subBucketBits) {
+		gm.stageElapsed = new ThreadedElapsedTimeRecorder(subBucketBits);
+	}
+	
+	/**
+	 * @return target holding the elapsed times of this stage since start, merged from all threads
+	 */
+	public static ElapsedTimeRecorder stageElapsed(GraphManager gm, int stageId, ElapsedTimeRecorder target) {
+		return ThreadedElapsedTimeRecorder.snapshot(gm.stageElapsed, stageId, target);
+	}
+	
+	/**
+	 * @return target holding the elapsed times of this stage since the previous call for this stage
+	 */
+	public static ElapsedTimeRecorder stageElapsedInterval(GraphManager gm, int stageId, ElapsedTimeRecorder target) {
+		return ThreadedElapsedTimeRecorder.intervalSnapshot(gm.stageElapsed, stageId, target);
+	}
+	
     private class GraphManagerStageStateData {
     	
 		private Object lock = new Object();	
@@ -106,6 +132,7 @@ public class GraphManager {
 	
 	public final static String UNSCHEDULED   = "UNSCHEDULED";//new nota for stages that should never get a thread (experimental)
 	public final static String THREAD_GROUP  = "THREAD_GROUP";   //new nota for stages that do not give threads back (experimental)
+	public final static String COLOCATED_CHAIN   = "COLOCATED_CHAIN";    //index of the linear chain this stage was colocated with, see colocateStageChains
 	
 	
 	private final static Logger log = LoggerFactory.getLogger(GraphManager.class);
@@ -134,12 +161,13 @@ public class GraphManager {
 	//for lookup of Stage from Stage id
 	private PronghornStage[]  stageIdToStage = new PronghornStage[INIT_STAGES];
 	private long[] stageStartTimeNs = new long[INIT_STAGES];
+	private long[] stageStartupNS = new long[INIT_STAGES];
 	private long[] stageShutdownTimeNs = new long[INIT_STAGES];
 	private long[] stageRunNS = new long[INIT_STAGES];
 	private int[]  stageCPUPct = new int[INIT_STAGES];
 	private long[] stageLastTimeNs = new long[INIT_STAGES];
 	
-	private ElapsedTimeRecorder[] stageElapsed = new ElapsedTimeRecorder[0];
+	private ThreadedElapsedTimeRecorder stageElapsed = new ThreadedElapsedTimeRecorder(ElapsedTimeRecorder.DEFAULT_SUB_BUCKET_BITS);
 	
 	private Map<Object, StringBuilder> cachedRanks;
     
@@ -570,6 +598,26 @@ public class GraphManager {
 		return gm.telemetryPort > 0;
 	}
 	
+	/**
+	 * Per stage CPU load is always collected when telemetry is on, this turns
+	 * it on without telemetry for schedulers which balance threads by load.
+	 * @param gm
+	 */
+	public static void enableStageLoadTracking(GraphManager gm) {
+		gm.stageLoadTracking = true;
+	}
+	
+	public static boolean isStageLoadTracked(GraphManager gm) {
+		return gm.stageLoadTracking || isTelemetryEnabled(gm);
+	}
+	
+	/**
+	 * @return moving average of CPU used by this stage where 100_000 is one full core
+	 */
+	public static int stageCPUPct(GraphManager gm, int stageId) {
+		return stageId < gm.stageCPUPct.length ? gm.stageCPUPct[stageId] : 0;
+	}
+	
 	private Comparator<? super Pipe> joinFirstComparator;
 	
 	public static Comparator<? super Pipe> joinFirstComparator(GraphManager m) {
@@ -844,6 +892,7 @@ public class GraphManager {
 		gm.stageRunNS = setValue(gm.stageRunNS, stageId, 0);
 		gm.stageShutdownTimeNs = setValue(gm.stageShutdownTimeNs, stageId, 0);
 		gm.stageStartTimeNs = setValue(gm.stageStartTimeNs, stageId, 0);
+		gm.stageStartupNS = setValue(gm.stageStartupNS, stageId, 0);
 		
 		gm.stageLastTimeNs = setValue(gm.stageLastTimeNs, stageId, 0);
 		gm.stageCPUPct = setValue(gm.stageCPUPct, stageId, 0);
@@ -968,6 +1017,17 @@ public class GraphManager {
 		}
 	}
 	
+	static void recordStartupTime(GraphManager gm, int stageId, long durationNS) {
+		gm.stageStartupNS[stageId] = durationNS;
+	}
+	
+	/**
+	 * @return time spent in the startup method of this stage, 0 if it has not been started
+	 */
+	public static long stageStartupNS(GraphManager gm, int stageId) {
+		return gm.stageStartupNS[stageId];
+	}
+	
 	public static void setStateToShutdown(GraphManager gm, int stageId) {
 		synchronized(gm.stageStateData.lock) {
 			gm.stageStateData.stageStateArray = setValue(stageStateArray(gm), stageId, GraphManagerStageStateData.STAGE_TERMINATED);
@@ -1187,6 +1247,10 @@ public class GraphManager {
    public static int getRingProducerStageId(GraphManager gm, int ringId) {
         return getRingProducerId(gm, ringId);
     }
+   
+   public static int getRingConsumerStageId(GraphManager gm, int ringId) {
+        return getRingConsumerId(gm, ringId);
+    }
 	
 	public static PronghornStage getRingConsumer(GraphManager gm, int ringId) {
 		int stageId = getRingConsumerId(gm, ringId);
@@ -1575,6 +1639,14 @@ public class GraphManager {
     
 	public static void writeAsDOT(GraphManager m, AppendableBuilder target, boolean isVertical,
 			                      int[] percentileValues, long[] traffic) {
+		writeAsDOT(m, target, isVertical, percentileValues, traffic, null);
+	}
+	
+	/**
+	 * @param critical when not null the stages and pipes of the critical path are drawn in purple
+	 */
+	public static void writeAsDOT(GraphManager m, AppendableBuilder target, boolean isVertical,
+			                      int[] percentileValues, long[] traffic, BottleneckAnalyzer critical) {
 					    	
 	        int stages = GraphManager.countStages(m);
 	        	        
@@ -1603,6 +1675,7 @@ public class GraphManager {
 	            if (null!=stage 
 	            		&& !(stage instanceof MonitorConsoleStage) 
 	            		&& !(stage instanceof PipeMonitorStage)
+	            		&& !(stage instanceof PipeMonitorSamplerStage)
 	            		&& !stageForMonitorData(m,stage) 
 	            		) {       
           	
@@ -1667,7 +1740,7 @@ public class GraphManager {
 	                }
 	                
 	                if (recordElapsedTime) {
-	                	writeElapsed(target, ElapsedTimeRecorder.elapsedAtPercentile(m.stageElapsed[stage.stageId],(float)percentile));
+	                	writeElapsed(target, ThreadedElapsedTimeRecorder.elapsedAtPercentile(m.stageElapsed, stage.stageId, (float)percentile));
 	                }
 	                
 
@@ -1678,7 +1751,9 @@ public class GraphManager {
 	                
 	                target.append(AQUOTE);
 	                
-	                if (pct>=60000) {
+	                if (null!=critical && critical.isCriticalStage(stage.stageId)) {
+	                	target.append(",color=purple,penwidth=7");
+	                } else if (pct>=60000) {
                 		target.append(",color=red,penwidth=5");	    
                 	} else if (pct>=40000) {
                 		target.append(",color=orange,penwidth=5");	    
@@ -1714,6 +1789,20 @@ public class GraphManager {
 		        }
 	        }
 	        
+	        /////
+	        //colocated chains are drawn as clusters
+	        /////
+	        int c = colocatedChainCount(m);
+	        while (--c>=0) {
+	        	Appendables.appendValue(target.append("subgraph cluster_chain"), c);
+	        	target.append(" { label=\"chain\"; style=dashed;");
+	        	int[] chain = m.colocatedChains[c];
+	        	for(int k = 0; k<chain.length; k++) {
+	        		target.append(" \"").append(m.stageIds[chain[k]]).append("\";");
+	        	}
+	        	target.append(" }\n");
+	        }
+	        
 	        /////
 	        //pipes
 	        /////
@@ -1800,7 +1889,10 @@ public class GraphManager {
 		                		                
 		                int lineWidth = computeLineWidth(traffic, pipe);
 		                
-		                if (null!=percentileValues) {		                	
+		                if (null!=critical && critical.isCriticalPipe(pipe.id)) {
+		                	target.append(",color=purple");
+		                	lineWidth = Math.max(lineWidth, 4);
+		                } else if (null!=percentileValues) {		                	
 		                	int pctFull = percentileValues[pipe.id];
 		                	if (pctFull>=60) {
 		                		target.append(",color=red");	    
@@ -2113,6 +2205,62 @@ public class GraphManager {
 		return monBuffers;	
 	}
 
+	/**
+	 * Adds sampler stages which each sweep up to pipesPerSampler of the pipes in the graph
+	 * on every run. This is much lighter than attachMonitorsToGraph for very large graphs.
+	 * @return one PipeMonitorBatchSchema pipe for each sampler
+	 */
+	public static Pipe<PipeMonitorBatchSchema>[] attachSamplersToGraph(GraphManager gm, Long monitorRate, int pipesPerSampler) {
+		return attachSamplersToGraph(gm, monitorRate, pipesPerSampler, 1)[0];
+	}
+	
+	/**
+	 * Same as attachSamplersToGraph but each sampler publishes every batch to one pipe for each
+	 * consumer, use this when many telemetry stages must share one sweep of the graph.
+	 * @return for each consumer one PipeMonitorBatchSchema pipe for each sampler
+	 */
+	public static Pipe<PipeMonitorBatchSchema>[][] attachSamplersToGraph(GraphManager gm, Long monitorRate, int pipesPerSampler, int consumers) {
+
+		int j = gm.pipeIdToPipe.length;
+		int count = 0;
+		while (--j>=0) {
+			if (null!=gm.pipeIdToPipe[j] && !ringHoldsMonitorData(gm, gm.pipeIdToPipe[j])) {
+				count++;
+			}
+		}
+		if (0==count) {
+			throw new UnsupportedOperationException("Nothing to monitor, move this call down to after graph is constructed.");
+		}
+		
+		Pipe[] observed = new Pipe[count];
+		int obsIdx = 0;
+		j = gm.pipeIdToPipe.length;
+		while (--j>=0) {
+			Pipe ringBuffer = gm.pipeIdToPipe[j];
+			//Do not monitor those rings that are part of other monitoring networks.
+			if (null!=ringBuffer && !ringHoldsMonitorData(gm, ringBuffer)) {
+				observed[obsIdx++] = ringBuffer;
+			}
+		}
+		
+		int samplers = (count+pipesPerSampler-1)/pipesPerSampler;
+		Pipe<PipeMonitorBatchSchema>[][] batchPipes = new Pipe[consumers][samplers];
+		int s = samplers;
+		while (--s>=0) {
+			int start = s*pipesPerSampler;
+			Pipe[] shard = Arrays.copyOfRange(observed, start, Math.min(count, start+pipesPerSampler));
+			
+			Pipe<PipeMonitorBatchSchema>[] outputs = new Pipe[consumers];
+			int c = consumers;
+			while (--c>=0) {
+				outputs[c] = batchPipes[c][s] = new Pipe<PipeMonitorBatchSchema>(PipeMonitorSamplerStage.outputConfig(shard.length));
+			}
+			PipeMonitorSamplerStage stage = new PipeMonitorSamplerStage(gm, shard, outputs);
+			GraphManager.addNota(gm, GraphManager.SCHEDULE_RATE, monitorRate, stage);
+		}
+		return batchPipes;
+	}
+
 	private static boolean ringHoldsMonitorData(GraphManager gm, Pipe ringBuffer) {
 		if (!monitorAll) {
 			return null != GraphManager.getNota(gm, GraphManager.getRingProducerStageId(gm, ringBuffer.id), GraphManager.MONITOR, null);
@@ -2129,6 +2277,125 @@ public class GraphManager {
     	
     }
 
+	/**
+	 * Linear chains of stages will be colocated so the scheduler runs them back to back on one thread.
+	 * Each stage is still scheduled on its own, this only controls placement and order.
+	 * Must be called before the scheduler is built.
+	 * @param gm
+	 */
+	public static void enableChainColocation(GraphManager gm) {
+		gm.chainColocation = true;
+	}
+	
+	public static boolean isChainColocationEnabled(GraphManager gm) {
+		return gm.chainColocation;
+	}
+	
+	/**
+	 * Finds chains of stages joined by pipes where each producer has only that one output
+	 * and each consumer has only that one input. Each chain is marked with the COLOCATED_CHAIN nota
+	 * so the schedulers keep its stages together, in order, in the same block of the same thread.
+	 * Stages which have a rate or must be kept apart (MONITOR, PRODUCER, TRIGGER, ISOLATE, ROUTER_HUB, HEAVY_COMPUTE) are never
+	 * chained, nor are pipes whose schema implements FeedbackSchema.
+	 * 
+	 * @return count of colocated chains, this is only computed once
+	 */
+	public static int colocateStageChains(GraphManager gm) {
+		if (null != gm.colocatedChains) {
+			return gm.colocatedChains.length;
+		}
+		
+		int[][] chains = new int[0][];
+		int[] working = new int[16];
+		int s = gm.stageIdToStage.length;
+		boolean[] visited = new boolean[s];
+		while (--s>=0) {
+			if (null!=gm.stageIdToStage[s] && isChainable(gm, s) && !visited[s] && (predecessorInChain(gm, s) < 0)) {
+								
+				int len = 0;
+				int cur = s;
+				do {
+					if (len == working.length) {
+						working = Arrays.copyOf(working, len*2);
+					}
+					working[len++] = cur;
+					visited[cur] = true;
+				} while ((cur = successorInChain(gm, cur)) >= 0 && !visited[cur]);
+				
+				if (len>=2) {
+					int chainIdx = chains.length;
+					chains = Arrays.copyOf(chains, chainIdx+1);
+					chains[chainIdx] = Arrays.copyOf(working, len);
+					int j = len;
+					while (--j>=0) {
+						addNota(gm, COLOCATED_CHAIN, chainIdx, working[j]);
+					}
+				}
+			}
+		}
+		gm.colocatedChains = chains;
+		if (chains.length>0) {
+			logger.info("colocated {} linear chains of stages", chains.length);
+		}
+		return chains.length;
+	}
+	
+	public static int colocatedChainCount(GraphManager gm) {
+		return null==gm.colocatedChains ? 0 : gm.colocatedChains.length;
+	}
+	
+	/**
+	 * @return stage ids of this chain in data flow order
+	 */
+	public static int[] colocatedChain(GraphManager gm, int chainIdx) {
+		return gm.colocatedChains[chainIdx];
+	}
+	
+	public static int colocatedChainIndex(GraphManager gm, int stageId) {
+		return ((Number)getNota(gm, stageId, COLOCATED_CHAIN, -1)).intValue();
+	}
+	
+	private static boolean isChainable(GraphManager gm, int stageId) {
+		return !hasNota(gm, stageId, SCHEDULE_RATE)
+			&& !hasNota(gm, stageId, MONITOR)
+			&& !hasNota(gm, stageId, PRODUCER)
+			&& !hasNota(gm, stageId, TRIGGER)
+			&& !hasNota(gm, stageId, ISOLATE)
+			&& !hasNota(gm, stageId, ROUTER_HUB)
+			&& !hasNota(gm, stageId, HEAVY_COMPUTE);
+	}
+	
+	private static boolean isChainablePipe(Pipe p) {
+		//never chain through the feedback connections
+		return !(p.config().schema() instanceof FeedbackSchema);
+	}
+	
+	private static int successorInChain(GraphManager gm, int stageId) {
+		if (1 == getOutputPipeCount(gm, stageId)) {
+			Pipe p = getOutputPipe(gm, stageId);
+			int consumer = getRingConsumerId(gm, p.id);
+			if (consumer>=0 && consumer!=stageId 
+				&& 1 == getInputPipeCount(gm, consumer) 
+				&& isChainable(gm, consumer) && isChainablePipe(p)) {
+				return consumer;
+			}
+		}
+		return -1;
+	}
+	
+	private static int predecessorInChain(GraphManager gm, int stageId) {
+		if (1 == getInputPipeCount(gm, stageId)) {
+			Pipe p = getInputPipe(gm, stageId);
+			int producer = getRingProducerId(gm, p.id);
+			if (producer>=0 && producer!=stageId 
+				&& 1 == getOutputPipeCount(gm, producer) 
+				&& isChainable(gm, producer) && isChainablePipe(p)) {
+				return producer;
+			}
+		}
+		return -1;
+	}
+
 	public static void enableBatching(GraphManager gm) {
 		int j = gm.pipeIdToPipe.length;
 		while (--j>=0) {
@@ -2233,6 +2500,9 @@ public class GraphManager {
 	
     private String 			telemetryHost=null;
     private int    			telemetryPort=-1;
+    private boolean         stageLoadTracking = false;
+    private boolean         chainColocation = false;
+    private int[][]         colocatedChains = null;
     
     //TODO: do not enable until the index.html can use https for its call back...
     private TLSCertificates telemetryCert = null;//TLSCertificates.defaultCerts;
@@ -2343,12 +2613,12 @@ public class GraphManager {
 		if (duration>0) {
 			//Does not track this data if it will no be used by telemetry
 			//this saves CPU cycles
-			if (isTelemetryEnabled(graphManager)) {
+			if (isStageLoadTracked(graphManager)) {
 				accumPositiveTime(graphManager, stageId, duration, now);			
 			}
 			return true;
 		} else {
-			if (isTelemetryEnabled(graphManager)) {
+			if (isStageLoadTracked(graphManager)) {
 				accumWhenZero(graphManager, stageId, duration);
 			}
 			return false;
@@ -2391,10 +2661,8 @@ public class GraphManager {
 		
 	private static void accumDuration(GraphManager graphManager, int stageId, long duration, long fullPeriod) {
 		if (recordElapsedTime) {
-			
-			buildHistogramsAsNeeded(graphManager, stageId);
-			ElapsedTimeRecorder.record(graphManager.stageElapsed[stageId], duration);
-
+			//recorded by the calling thread, no locks are needed even if the stage moves between threads
+			ThreadedElapsedTimeRecorder.record(graphManager.stageElapsed, stageId, duration);
 		}		
 		
 		long newPct = ( (100_000L*(duration)) / (fullPeriod) );		
@@ -2429,20 +2697,6 @@ public class GraphManager {
 		}
 	}
 
-	private static void buildHistogramsAsNeeded(GraphManager graphManager, int stageId) {
-		if (stageId >= graphManager.stageElapsed.length) {
-			int maxArray = 1+graphManager.stageCounter.get(); //largestId plus 1
-			//Does this need to grow??
-			
-			ElapsedTimeRecorder[] newHE = new ElapsedTimeRecorder[maxArray];
-			int i = maxArray;
-			while (--i>=0) {				
-				newHE[i] = new ElapsedTimeRecorder();
-			}
-			graphManager.stageElapsed = newHE;
-		}
-	}
-
 	public static void accumRunTimeAll(GraphManager graphManager, int stageId) {		
 		graphManager.stageRunNS[stageId] = -1; //flag for 100%
 	}
@@ -281,53 +281,8 @@ public class NonThreadScheduler extends StageScheduler implements Runnable {
     	}
     	someAreRateLimited = isAnyRateLimited;
     	
-    	int unInitCount = stageCount;
- 
-    	while (unInitCount>0) {
-    		    		
-    		j = stageCount;
-	        while (--j >= 0) {               
-	        	final PronghornStage stage = stages[j];
-	        	
-	        	if (null!=stage && !GraphManager.isStageStarted(graphManager, stage.stageId)) {
-	        				        		
-		        		GraphManager.initAllPipes(graphManager, stage.stageId);
-		        		
-		        		 try {
-		                	 logger.debug("begin startup of    {}",stage);
-		                	 
-		                	 Thread thread = Thread.currentThread();
-		                	 new ThreadLocal<Integer>();
-		                	 
-		                	 setCallerId(stage.boxedStageId);
-		        			 stage.startup();
-		        			 clearCallerId();
-		        			 
-		        			 logger.debug("finished startup of {}",stage);
-		        			 
-		                	 //client work is complete so move stage of stage to started.
-		                	 GraphManager.setStateToStarted(graphManager, stage.stageId);
-		                	 unInitCount--;
-		                 } catch (Throwable t) {				    
-		 	                recordTheException(stage, t, this);
-		 	                try {
-		 	                	if (null!=stage) {
-		 	                		setCallerId(stage.boxedStageId);
-		 	                		GraphManager.shutdownStage(graphManager, stage);
-		 	                		clearCallerId();
-		 	                	}
-		 	                } catch(Throwable tx) {
-		 	                	recordTheException(stage, tx, this);
-		 	                } finally {
-		 	                	if (null!=stage) {
-		 	                		GraphManager.setStateToShutdown(graphManager, stage.stageId); //Must ensure marked as terminated
-		 	                	}
-		 	                }
-		 	                return;
-		 				 }		        		
-	        	}
-	        }
-    	}
+    	//upstream stages first, on failure the started stages are shut down and the failure is thrown
+    	StageStartup.startupAll(this, graphManager, stages, 1);
 
         
         rates = new long[stageCount+1];
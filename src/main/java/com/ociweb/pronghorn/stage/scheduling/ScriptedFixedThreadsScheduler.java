@@ -8,6 +8,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +20,7 @@ import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.util.hash.IntHashTable;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.monitor.MonitorConsoleStage;
+import com.ociweb.pronghorn.stage.monitor.PipeMonitorSamplerStage;
 import com.ociweb.pronghorn.stage.monitor.PipeMonitorStage;
 import com.ociweb.pronghorn.util.ma.RunningStdDev;
 import com.ociweb.pronghorn.util.primitive.IntArrayHolder;
@@ -30,7 +32,27 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 	private ExecutorService executorService;
 	private volatile Throwable firstException;//will remain null if nothing is wrong
 	static final Logger logger = LoggerFactory.getLogger(ScriptedFixedThreadsScheduler.class);
-	private ScriptedNonThreadScheduler[] ntsArray;
+	private volatile ScriptedNonThreadScheduler[] ntsArray;
+	private boolean workStealing = false;
+	private long disableThresholdNS = -1;
+	
+	//idle strategy, when maxParkNS is set threads park and are woken by data arrival
+	private int idleSpins;
+	private int idleYields;
+	private long idleMaxParkNS = -1;
+	
+	//adaptive regrouping of stages by their measured load
+	private long regroupPeriodNS = -1;
+	private volatile long nextRegroupNS;
+	private volatile boolean regroupPending;
+	private volatile CyclicBarrier regroupBarrier;
+	private volatile int regroupSafePoints; //count of safe points reached by every thread
+	private static final long REGROUP_SAFE_POINT_TIMEOUT_MS = 1_000;
+	//when a group is at least this far over the average it is worth moving stages
+	private static final int REGROUP_IMBALANCE_PCT = 20_000; //20% of a core
+	
+	//stage startup is done in parallel before the threads begin running their scripts
+	private int startupParallelism = -1;
 
 	public ScriptedFixedThreadsScheduler(GraphManager graphManager) {
 		//this is often very optimal since we have enough granularity to swap work but we do not
@@ -64,6 +86,9 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 	}
 
 	public static PronghornStage[][] buildStageGroups(final GraphManager graphManager, int targetThreadCount, boolean enforceLimit) {
+		if (GraphManager.isChainColocationEnabled(graphManager)) {
+			GraphManager.colocateStageChains(graphManager);
+		}
 		//must add 1 for the tree of roots also adding 1 more to make hash more efficient.
 	    final int countStages = GraphManager.countStages(graphManager);  
 		int bits = 1 + (int)Math.ceil(Math.log(countStages)/Math.log(2));
@@ -100,10 +125,48 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 		
 		verifyNoStagesAreMissing(graphManager, stageArrays);
 		
+		if (GraphManager.colocatedChainCount(graphManager)>0) {
+			int g = stageArrays.length;
+			while (--g>=0) {
+				if (null!=stageArrays[g]) {
+					stageArrays[g] = keepColocatedChainsInOrder(graphManager, stageArrays[g]);
+				}
+			}
+		}
 		
 		return stageArrays;
 	}
 
+	/**
+	 * Moves the stages of each colocated chain next to one another, in data flow order, at the position
+	 * of the first member found. All the stages of a chain share one rate so they run back to back.
+	 */
+	static PronghornStage[] keepColocatedChainsInOrder(GraphManager graphManager, PronghornStage[] group) {
+		PronghornStage[] result = new PronghornStage[group.length];
+		boolean[] emitted = new boolean[GraphManager.colocatedChainCount(graphManager)];
+		int pos = 0;
+		for(int i = 0; i<group.length; i++) {
+			int chainIdx = GraphManager.colocatedChainIndex(graphManager, group[i].stageId);
+			if (chainIdx<0) {
+				result[pos++] = group[i];
+			} else if (!emitted[chainIdx]) {
+				emitted[chainIdx] = true;
+				int[] chain = GraphManager.colocatedChain(graphManager, chainIdx);
+				for(int c = 0; c<chain.length; c++) {
+					//only those members in this group, normally this is all of them
+					for(int j = i; j<group.length; j++) {
+						if (group[j].stageId == chain[c]) {
+							result[pos++] = group[j];
+							break;
+						}
+					}
+				}
+			}
+		}
+		assert(pos==group.length) : "stages were lost while ordering colocated chains";
+		return result;
+	}
+
 	public static void verifyNoStagesAreMissing(GraphManager graphManager, PronghornStage[][] stageArrays) {
 		///////////
 		//double check that nothing was lost
@@ -306,11 +369,14 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 		//////////////////////////////////////////////////
 		//before we begin combine all monitior stages on a single thread to minimize disruption across the graph.
 		///////////////////////////////////////////////////
-		PronghornStage[] monitors = GraphManager.allStagesByType(graphManager, PipeMonitorStage.class);
+		PronghornStage[] pipeMonitors = GraphManager.allStagesByType(graphManager, PipeMonitorStage.class);
+		PronghornStage[] samplers = GraphManager.allStagesByType(graphManager, PipeMonitorSamplerStage.class);
+		PronghornStage[] monitors = Arrays.copyOf(pipeMonitors, pipeMonitors.length+samplers.length);
+		System.arraycopy(samplers, 0, monitors, pipeMonitors.length, samplers.length);
 		int m = monitors.length;
 		PronghornStage prevMonitor = null;
 		while (--m >= 0) {
-			PipeMonitorStage rbms = (PipeMonitorStage)monitors[m];
+			PronghornStage rbms = monitors[m];
 			if (prevMonitor!=null) {
 			
 				int prodRoot1 = rootId(rbms.stageId , rootsTable, lastKnownRoot);
@@ -326,6 +392,21 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 		//done combining the monitor stages.
 		///////////////////////////////////////////////
 
+		//each colocated chain must be on one thread
+		int c = GraphManager.colocatedChainCount(graphManager);
+		while (--c>=0) {
+			int[] chain = GraphManager.colocatedChain(graphManager, c);
+			int k = chain.length;
+			while (--k>0) {
+				int root1 = rootId(chain[k], rootsTable, lastKnownRoot);
+				int root2 = rootId(chain[0], rootsTable, lastKnownRoot);
+				if (root1!=root2) {
+					rootCounter = combineToSameRoot(rootCounter, root1, root2, rootsTable);
+					totalThreads--;//removed one thread
+				}
+			}
+		}
+
 		int i = pipes.length;
 	    while (--i>=0 /*&& totalThreads>targetThreadCount*/) {	    //can stop early but this may not be optimal??	
 	    	int ringId = pipes[i].id;
@@ -1037,6 +1118,34 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 			return;
 		}	
 		
+		if (workStealing) {
+			int w = ntsArray.length;
+			while (--w>=0) {
+				ntsArray[w].enableWorkStealing(ntsArray);
+			}
+			logger.info("work stealing enabled across {} threads", threadCount);
+		}
+		if (disableThresholdNS > 0) {
+			int w = ntsArray.length;
+			while (--w>=0) {
+				ntsArray[w].enableDynamicDisable(disableThresholdNS);
+			}
+		}
+		if (idleMaxParkNS > 0) {
+			int w = ntsArray.length;
+			while (--w>=0) {
+				ntsArray[w].enableDataArrivalWakeups(ntsArray, idleSpins, idleYields, idleMaxParkNS);
+			}
+		}
+		if (regroupPeriodNS > 0) {
+			nextRegroupNS = System.nanoTime()+regroupPeriodNS;
+			//the action is run by the last thread to arrive while all the others are parked at the safe point
+			regroupBarrier = buildRegroupBarrier();
+		}
+		
+		//throws with every stage shut down if any stage can not start
+		startupAllStages();
+		
         ThreadFactory threadFactory = new ThreadFactory() {
         	int count = ntsArray.length;
 			@Override
@@ -1056,7 +1165,7 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 		
 		int i = ntsArray.length;
 		while (--i>=0) {
-			executorService.execute(buildRunnable(allStagesLatch, ntsArray[i]));
+			executorService.execute(buildRunnable(allStagesLatch, ntsArray[i], i));
 		}		
 		
 		logger.trace("waiting for startup");
@@ -1070,15 +1179,37 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 		
 	}
 
-	private Runnable buildRunnable(final CyclicBarrier allStagesLatch, final ScriptedNonThreadScheduler nts) {
+	private void startupAllStages() {
+		int total = 0;
+		int i = ntsArray.length;
+		while (--i>=0) {
+			if (null != ntsArray[i].stages) {
+				total += ntsArray[i].stages.length;
+			}
+		}
+		PronghornStage[] all = new PronghornStage[total];
+		i = ntsArray.length;
+		while (--i>=0) {
+			PronghornStage[] stages = ntsArray[i].stages;
+			if (null != stages) {
+				total -= stages.length;
+				System.arraycopy(stages, 0, all, total, stages.length);
+			}
+		}
+		int parallelism = startupParallelism>0 ? startupParallelism 
+				                               : Math.min(threadCount, Runtime.getRuntime().availableProcessors());
+		StageStartup.startupAll(this, graphManager, all, parallelism);
+	}
+
+	private Runnable buildRunnable(final CyclicBarrier allStagesLatch, final ScriptedNonThreadScheduler initNts, final int slot) {
 		assert(null!=allStagesLatch);
-		assert(null!=nts);
+		assert(null!=initNts);
 	
 		return new Runnable() {
 
 			@Override
 			public void run() {
-				
+				ScriptedNonThreadScheduler nts = initNts;
 				nts.startup();
 				
 				try {
@@ -1094,12 +1225,228 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 				while (!ScriptedNonThreadScheduler.isShutdownRequested(nts)) {
 					
 						nts.run();
-										
+						
+						if (null != regroupBarrier) {
+							if (0==slot && !regroupPending && System.nanoTime()>nextRegroupNS) {
+								if (regroupBarrier.isBroken()) {
+									//any thread still arriving from the failed attempt joins this one
+									regroupBarrier = buildRegroupBarrier();
+								}
+								regroupPending = true;
+							}
+							if (regroupPending) {
+								nts = awaitRegroup(slot, nts);
+							}
+						}
 				}
 			}	
 			
 		};
 	}
+	
+	private CyclicBarrier buildRegroupBarrier() {
+		//the action is run by the last thread to arrive while all the others are parked at the safe point
+		return new CyclicBarrier(threadCount, new Runnable() {
+			@Override
+			public void run() {
+				regroupByLoad();
+			}				
+		});
+	}
+	
+	//safe point, every thread has finished a full pass of its script before stages are moved.
+	private ScriptedNonThreadScheduler awaitRegroup(int slot, ScriptedNonThreadScheduler nts) {
+		try {
+			regroupBarrier.await(REGROUP_SAFE_POINT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			return ntsArray[slot];
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (BrokenBarrierException | TimeoutException e) {
+			//some thread did not reach the safe point in time, it may be in a long running stage
+			//or shutting down. Nothing was moved so this attempt is dropped and tried again later.
+		}
+		if (regroupPending) {
+			nextRegroupNS = System.nanoTime()+regroupPeriodNS;
+			regroupPending = false;
+			logger.debug("adaptive regrouping skipped, all threads could not reach the safe point");
+		}
+		return nts;
+	}
+	
+	/**
+	 * @return count of regroup attempts where every thread reached the safe point
+	 */
+	int regroupSafePoints() {
+		return regroupSafePoints;
+	}
+	
+	private void regroupByLoad() {
+		
+		regroupSafePoints++; //only written here while all the other threads wait
+		nextRegroupNS = System.nanoTime()+regroupPeriodNS;
+		regroupPending = false;
+		
+		ScriptedNonThreadScheduler[] current = ntsArray;
+		int i = current.length;
+		while (--i>=0) {
+			if (ScriptedNonThreadScheduler.isShutdownRequested(current[i])) {
+				return;
+			}
+		}
+		
+		PronghornStage[][] groups = buildStageGroupsByLoad(graphManager, current);
+		if (null == groups) {
+			return;//already balanced
+		}
+		
+		ScriptedNonThreadScheduler[] next = new ScriptedNonThreadScheduler[groups.length];
+		int j = groups.length;
+		while (--j>=0) {
+			PronghornStage lastStage = groups[j][groups[j].length-1];
+			String name = lastStage.stageId+":"+lastStage.getClass().getSimpleName()+"...";
+			next[j] = new ScriptedNonThreadScheduler(j+1, graphManager, false, groups[j], name, true);
+			next[j].lowLatencyEnforced = current[j].lowLatencyEnforced;
+			if (workStealing) {
+				next[j].enableWorkStealing(next);
+			}
+			if (disableThresholdNS > 0) {
+				next[j].enableDynamicDisable(disableThresholdNS);
+			}
+			if (idleMaxParkNS > 0) {
+				next[j].enableDataArrivalWakeups(next, idleSpins, idleYields, idleMaxParkNS);
+			}
+		}
+		j = next.length;
+		while (--j>=0) {
+			//stages are already started so this only builds the schedule data
+			next[j].startup();
+		}
+		ntsArray = next;
+		logger.info("regrouped stages by load across {} threads", next.length);
+	}
+	
+	/**
+	 * Repartitions the stages across the same number of groups using the CPU measured for each stage.
+	 * Hot stages are given their own group and the remaining stages are packed into the least loaded group.
+	 * Monitor stages and colocated chains always remain together. Within each group the original script order is kept.
+	 * 
+	 * @return new groups or null if the current groups are balanced enough
+	 */
+	static PronghornStage[][] buildStageGroupsByLoad(GraphManager graphManager, ScriptedNonThreadScheduler[] current) {
+		
+		final int groupCount = current.length;
+		if (groupCount < 2) {
+			return null;
+		}
+		
+		//all stages in their current script order
+		int total = 0;
+		for(int g = 0; g<groupCount; g++) {
+			total += current[g].stages.length;
+		}
+		PronghornStage[] ordered = new PronghornStage[total];
+		int[] loads = new int[total];
+		long totalLoad = 0;
+		int maxGroupLoad = 0;
+		int pos = 0;
+		for(int g = 0; g<groupCount; g++) {
+			int groupLoad = 0;
+			for(PronghornStage stage: current[g].stages) {
+				ordered[pos] = stage;
+				loads[pos] = Math.max(0, GraphManager.stageCPUPct(graphManager, stage.stageId));
+				groupLoad += loads[pos];
+				totalLoad += loads[pos++];
+			}
+			maxGroupLoad = Math.max(maxGroupLoad, groupLoad);
+		}
+		final int avgLoad = (int)(totalLoad/groupCount);
+		if (maxGroupLoad-avgLoad < REGROUP_IMBALANCE_PCT) {
+			return null;
+		}
+				
+		//units of work, each monitor stage is assigned to the first monitor unit
+		int[] unitOf = new int[total];
+		int[] unitLoad = new int[total];
+		int units = 0;
+		int monitorUnit = -1;
+		int[] chainUnit = new int[GraphManager.colocatedChainCount(graphManager)];
+		Arrays.fill(chainUnit, -1);
+		for(int s = 0; s<total; s++) {
+			int chainIdx = GraphManager.colocatedChainIndex(graphManager, ordered[s].stageId);
+			if (GraphManager.hasNota(graphManager, ordered[s].stageId, GraphManager.MONITOR)) {
+				if (monitorUnit<0) {
+					monitorUnit = units++;
+				}
+				unitOf[s] = monitorUnit;
+			} else if (chainIdx>=0) {
+				//colocated chains move as one unit
+				if (chainUnit[chainIdx]<0) {
+					chainUnit[chainIdx] = units++;
+				}
+				unitOf[s] = chainUnit[chainIdx];
+			} else {
+				unitOf[s] = units++;
+			}
+			unitLoad[unitOf[s]] += loads[s];
+		}
+		if (units < groupCount) {
+			return null;
+		}
+		
+		//largest units first
+		Integer[] byLoad = new Integer[units];
+		for(int u = 0; u<units; u++) {
+			byLoad[u] = u;
+		}
+		final int[] finalUnitLoad = unitLoad;
+		Arrays.sort(byLoad, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(finalUnitLoad[b], finalUnitLoad[a]);
+			}			
+		});
+		
+		int[] groupOfUnit = new int[units];
+		long[] groupLoad = new long[groupCount];
+		int[] groupSize = new int[groupCount];
+		boolean[] dedicated = new boolean[groupCount];
+		int nextDedicated = 0;
+		for(int k = 0; k<units; k++) {
+			int u = byLoad[k];
+			int g = -1;
+			if (unitLoad[u] >= avgLoad && nextDedicated < groupCount-1 && (units-k) > (groupCount-nextDedicated)) {
+				//hot unit gets a thread of its own, at least one group is always left for the cold units
+				g = nextDedicated++;
+				dedicated[g] = true;
+			} else {
+				//cold unit is packed into the least loaded shared group, empty groups are filled first
+				for(int x = 0; x<groupCount; x++) {
+					if (!dedicated[x] && (g<0 || groupLoad[x]<groupLoad[g] 
+							              || (groupLoad[x]==groupLoad[g] && groupSize[x]<groupSize[g]))) {
+						g = x;
+					}
+				}
+			}
+			groupOfUnit[u] = g;
+			groupLoad[g] += unitLoad[u];
+			groupSize[g]++;
+		}
+		
+		PronghornStage[][] result = new PronghornStage[groupCount][];
+		int[] counts = new int[groupCount];
+		for(int s = 0; s<total; s++) {
+			counts[groupOfUnit[unitOf[s]]]++;
+		}
+		for(int g = 0; g<groupCount; g++) {
+			result[g] = new PronghornStage[counts[g]];
+			counts[g] = 0;
+		}
+		for(int s = 0; s<total; s++) {
+			int g = groupOfUnit[unitOf[s]];
+			result[g][counts[g]++] = ordered[s];
+		}
+		return result;
+	}
 
 	@Override
 	public void shutdown() {
@@ -1164,6 +1511,63 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 		return true;
 	}
 
+	/**
+	 * Opt-in mode where idle threads steal whole blocks of the script from groups which
+	 * have fallen behind. Must be set before startup.
+	 */
+	public void setWorkStealing(boolean value) {
+		assert(null==executorService) : "must be set before startup";
+		workStealing = value;
+	}
+	
+	/**
+	 * Opt-in mode where blocks of the script which have had no input for the threshold
+	 * are skipped until new input arrives. Must be set before startup.
+	 */
+	public void setDynamicDisable(long thresholdNS) {
+		assert(null==executorService) : "must be set before startup";
+		disableThresholdNS = thresholdNS;
+	}
+	
+	/**
+	 * Opt-in idle strategy, while waiting for the next block each thread will spin, then yield
+	 * then park. Parked threads are woken as soon as a stage on another thread publishes to
+	 * one of their input pipes. Must be set before startup.
+	 * 
+	 * @param spins count of busy checks before yielding
+	 * @param yields count of yields before parking
+	 * @param maxParkNS longest single park, also bounds any missed wakeup
+	 */
+	public void setIdleStrategy(int spins, int yields, long maxParkNS) {
+		assert(null==executorService) : "must be set before startup";
+		idleSpins = spins;
+		idleYields = yields;
+		idleMaxParkNS = maxParkNS;
+	}
+	
+	/**
+	 * Opt-in mode where the stages are periodically repartitioned between the threads
+	 * using the CPU load measured for each stage. Hot stages end up on their own thread
+	 * while cold ones are packed together. Must be set before startup.
+	 */
+	public void setAdaptiveRegrouping(long periodNS) {
+		assert(null==executorService) : "must be set before startup";
+		regroupPeriodNS = periodNS;
+		if (periodNS > 0) {
+			GraphManager.enableStageLoadTracking(graphManager);
+		}
+	}
+	
+	/**
+	 * Limits the number of stages which are started at the same time, upstream stages are always
+	 * started before the stages they feed. Defaults to the smaller of the thread count and the core count.
+	 * Must be set before startup.
+	 */
+	public void setStartupParallelism(int parallelism) {
+		assert(null==executorService) : "must be set before startup";
+		startupParallelism = parallelism;
+	}
+	
 	public void setEnsureLowLatency(boolean value) {
 		
 		int i = ntsArray.length;
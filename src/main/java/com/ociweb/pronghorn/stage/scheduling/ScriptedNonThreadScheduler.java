@@ -1,9 +1,12 @@
 package com.ociweb.pronghorn.stage.scheduling;
 
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,7 +17,7 @@ import com.ociweb.pronghorn.util.ma.RunningStdDev;
 import com.ociweb.pronghorn.util.math.PMath;
 import com.ociweb.pronghorn.util.math.ScriptedSchedule;
 
-public class ScriptedNonThreadScheduler extends StageScheduler implements Runnable {
+public class ScriptedNonThreadScheduler extends StageScheduler implements Runnable, SubGraphDisableable {
 
     public static boolean debugStageOrder = false; //turn on to investigate performance issues.
 	
@@ -59,6 +62,30 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
     private ScriptedSchedule schedule = null;
     private int[] enabled; //used for turning off subGraph sequences when not in use. has jumps for jump over
     private int[] sequenceLookup; //schedule
+    private int blockCount;
+    
+    //work stealing, only built when enabled by the fixed threads scheduler
+    private AtomicIntegerArray stageClaims; //1 while some thread is running this stage
+    private boolean[] stealableBlocks;
+    private ScriptedNonThreadScheduler[] stealPeers;
+    private int stealCursor; //only used by this thread when it steals from peers
+    private volatile int behindCount; //grows while this script can not keep up with the common clock
+    
+    //data arrival wakeups, only built when enabled
+    private ScriptedNonThreadScheduler[] wakePeers;
+    private Pipe[] crossOutputPipes; //outputs consumed by stages on other schedulers
+    private long[] crossOutputHeads;
+    private ScriptedNonThreadScheduler[] crossConsumers;
+    private int idleSpins;
+    private int idleYields;
+    private long maxParkNS;
+    private volatile boolean parked;
+    private boolean inputDriven; //no producers or timed stages so only input can create work
+    private volatile Thread runningThread;
+    
+    //turns off blocks of the script which have had no input for a while, only built when enabled
+    private long disableThresholdNS = -1;
+    private DynamicDisableSubGraph dynamicDisable;
 
     private boolean recordTime;    
 
@@ -70,7 +97,7 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
     		                   boolean reverseOrder) {
     	
     	stateArray = GraphManager.stageStateArray(graphManager);    	
-    	recordTime = GraphManager.isTelemetryEnabled(graphManager);
+    	recordTime = GraphManager.isStageLoadTracked(graphManager);
     	
     	if (null==stages) {
     		schedule = new ScriptedSchedule(0, new int[0], 0);
@@ -117,12 +144,8 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
         		lastBlockIdx = i;
         		blockRun = 0;
         		     		
-        		//TODO: need all the pipes associated with this sequence
-        		//TODO: need all the pipes going into this sequence;
-        		
-        		
-        		
-        		
+        		//NOTE: the pipes for each block are collected by buildDynamicDisable 
+        		//      at startup once they have been initialized.
         		blockId++;
         	}
         	blockRun++;
@@ -138,7 +161,7 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
         	     	
         	
         }
-        
+        blockCount = blockId;
              
 
         if (debugStageOrder) {		
@@ -230,6 +253,216 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
     	return schedule;
     }
     
+    /**
+     * Opt-in idle strategy where the thread backs off from spin to yield to park while it waits 
+     * for its next block. It returns early as soon as any of the pipes coming into this group
+     * from another scheduler has new content. Schedulers which publish to those pipes unpark this
+     * thread after each block they run. Must be called before startup.
+     * 
+     * A wakeup lost to a race with the park is bounded by maxParkNS.
+     * 
+     * A group is input driven when it holds no producers (stages with no inputs or the PRODUCER nota),
+     * no stage has a SCHEDULE_RATE and at least one pipe comes in from another group. Only new input
+     * can give such a group work, so while its inputs are empty it ignores the clock and parks until
+     * a publisher or shutdown wakes it, with maxParkNS as a heartbeat. Every other group parks no longer
+     * than the start of its next block.
+     * 
+     * @param peers all the schedulers which may publish to this one, may include this one.
+     * @param spins count of busy checks before yielding
+     * @param yields count of yields before parking
+     * @param maxParkNS longest single park
+     */
+    public void enableDataArrivalWakeups(ScriptedNonThreadScheduler[] peers, int spins, int yields, long maxParkNS) {
+    	assert(null==shutdownRequested) : "wakeups must be enabled before startup";
+    	assert(maxParkNS>0);
+    	this.wakePeers = peers;
+    	this.idleSpins = spins;
+    	this.idleYields = yields;
+    	this.maxParkNS = maxParkNS;
+    }
+    
+    private void buildCrossOutputs() {
+    	int total = 0;
+    	int s = stages.length;
+    	while (--s >= 0) {
+    		total += GraphManager.getOutputPipeCount(graphManager, stages[s].stageId);
+    	}
+    	Pipe[] pipes = new Pipe[total];
+    	ScriptedNonThreadScheduler[] consumers = new ScriptedNonThreadScheduler[total];
+    	int count = 0;
+    	s = stages.length;
+    	while (--s >= 0) {
+    		int outC = GraphManager.getOutputPipeCount(graphManager, stages[s].stageId);
+    		for(int k = 1; k <= outC; k++) {
+    			Pipe pipe = GraphManager.getOutputPipe(graphManager, stages[s].stageId, k);
+    			ScriptedNonThreadScheduler owner = ownerOf(wakePeers, GraphManager.getRingConsumerId(graphManager, pipe.id));
+    			if (null != owner && owner != this) {
+    				pipes[count] = pipe;
+    				consumers[count++] = owner;
+    			}
+    		}
+    	}
+    	crossOutputPipes = Arrays.copyOf(pipes, count);
+    	crossConsumers = Arrays.copyOf(consumers, count);
+    	crossOutputHeads = new long[count];
+    	syncInputHeadValues(crossOutputPipes, crossOutputHeads);
+    }
+
+    private ScriptedNonThreadScheduler ownerOf(ScriptedNonThreadScheduler[] peers, int stageId) {
+    	if (stageId < 0) {
+    		return null;
+    	}
+    	//fast path, the schedulers are built with their scheduleId as index+1
+    	Object group = GraphManager.getNota(graphManager, stageId, GraphManager.THREAD_GROUP, null);
+    	if (group instanceof Integer) {
+    		int g = ((Integer)group).intValue()-1;
+    		if (g >= 0 && g < peers.length && null != peers[g] && peers[g].hasStage(stageId)) {
+    			return peers[g];
+    		}
+    	}
+    	int p = peers.length;
+    	while (--p >= 0) {
+    		if (null != peers[p] && null != peers[p].stages) {
+    			PronghornStage[] peerStages = peers[p].stages;
+    			int i = peerStages.length;
+    			while (--i >= 0) {
+    				if (peerStages[i].stageId == stageId) {
+    					return peers[p];
+    				}
+    			}
+    		}
+    	}
+    	return null;
+    }
+    
+    private boolean hasStage(int stageId) {
+    	if (null != stages) {
+    		int i = stages.length;
+    		while (--i >= 0) {
+    			if (stages[i].stageId == stageId) {
+    				return true;
+    			}
+    		}
+    	}
+    	return false;
+    }
+    
+    private boolean isInputsEmpty() {
+    	int i = inputPipes.length;
+    	while (--i >= 0) {
+    		if (Pipe.contentRemaining(inputPipes[i]) > 0) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    //called after each block, wakes any parked scheduler which now has new input from us
+    private void notifyConsumers() {
+    	final Pipe[] pipes = crossOutputPipes;
+    	int i = pipes.length;
+    	while (--i >= 0) {
+    		long head = Pipe.headPosition(pipes[i]);
+    		if (head != crossOutputHeads[i]) {
+    			crossOutputHeads[i] = head;
+    			crossConsumers[i].wake();
+    		}
+    	}
+    }
+    
+    private void wake() {
+    	if (parked) {
+    		Thread thread = runningThread;
+    		if (null != thread) {
+    			LockSupport.unpark(thread);
+    		}
+    	}
+    }
+    
+    private boolean hasNewInput() {
+    	if (isSyncInputHeadValues(inputPipes, inputPipeHeads)) {
+    		return false;
+    	} else {
+    		syncInputHeadValues(inputPipes, inputPipeHeads);
+    		return true;
+    	}
+    }
+    
+    //spin, then yield, then park until the next block is due or new data arrives.
+    //when only input can create work and the inputs are empty the clock is ignored and
+    //each park is bounded by maxParkNS instead.
+    private void idleUntil(long blockStartTime) {
+    	final boolean untilData = inputDriven && isInputsEmpty();
+    	int attempts = 0;
+    	long dif;
+    	while ((dif = (untilData ? maxParkNS : (blockStartTime-System.nanoTime()))) > NS_OPERATOR_FLOOR) {
+    		if (hasNewInput() || shutdownRequested.get()) {
+    			return;
+    		}
+    		if (attempts < idleSpins) {
+    			attempts++;
+    		} else if (attempts < idleSpins+idleYields) {
+    			attempts++;
+    			Thread.yield();
+    		} else {
+    			parked = true;
+    			//check again now that publishers can see we are parked
+    			if (!hasNewInput()) {
+    				LockSupport.parkNanos(this, Math.min(dif, maxParkNS));
+    				parked = false;
+    				if (untilData) {
+    					return; //heartbeat, let the script run once
+    				}
+    			} else {
+    				parked = false;
+    				return;
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Opt-in disabling of script blocks whose pipes have not moved for the threshold, they are
+     * enabled again on the next pass after any of their input pipes has content. Must be called before startup.
+     * Blocks holding producers, triggers, monitors or rate limited stages are never disabled since
+     * they may have work to do with no input.
+     * 
+     * @param thresholdNS idle time in ns before a block is disabled
+     */
+    public void enableDynamicDisable(long thresholdNS) {
+    	assert(null==shutdownRequested) : "dynamic disable must be enabled before startup";
+    	assert(thresholdNS>0);
+    	disableThresholdNS = thresholdNS;
+    }
+    
+    @Override
+    public void disable(int idx, boolean disable) {
+    	int head = sequenceLookup[idx];
+    	int run = Math.abs(enabled[head]);
+    	//positive values are skipped over by playScript
+    	enabled[head] = disable ? run : -run;
+    }
+
+    @Override
+    public boolean disabled(int idx) {
+    	return enabled[sequenceLookup[idx]] > 0;
+    }
+    
+    /**
+     * Opt-in work stealing, must be called before startup. Every stage is claimed before it is run
+     * so it is only ever run by one thread at a time. This keeps every pipe single producer and single
+     * consumer regardless of which thread is playing the block. Idle time before the next block is first
+     * offered to the peer which has fallen furthest behind its clock. Blocks holding producers, monitors
+     * or stages with a SCHEDULE_RATE are never stolen so those only run on their own clock.
+     * 
+     * @param peers all the schedulers which may steal from each other, may include this one.
+     */
+    public void enableWorkStealing(ScriptedNonThreadScheduler[] peers) {
+    	assert(null==shutdownRequested) : "work stealing must be enabled before startup";
+    	stealPeers = peers;
+    	stageClaims = new AtomicIntegerArray(Math.max(1, null==stages ? 0 : stages.length));
+    }
+    
     RunningStdDev stdDevRate = null;
 
     public RunningStdDev stdDevRate() {
@@ -259,6 +492,7 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
     @Override
     public void startup() {
     	shutdownRequested = new AtomicBoolean(false);
+    	recordTime = GraphManager.isStageLoadTracked(graphManager); //may have been turned on after construction
     	if (null==stages) {
     		return;
     	}
@@ -284,6 +518,98 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
         syncInputHeadValues(producerInputPipes, producerInputPipeHeads);
         syncInputHeadValues(inputPipes, inputPipeHeads);
 
+        if (null != stageClaims) {
+        	stealableBlocks = buildStealableBlocks();
+        }
+        if (null != wakePeers) {
+        	buildCrossOutputs();
+        	inputDriven = (0 == producersIdx.length) && (0 == maxRate) && (inputPipes.length > 0);
+        }
+        if (disableThresholdNS > 0 && blockCount > 0) {
+        	dynamicDisable = buildDynamicDisable();
+        }
+    }
+    
+    private DynamicDisableSubGraph buildDynamicDisable() {
+    	DynamicDisableSubGraph result = new DynamicDisableSubGraph(blockCount, this, disableThresholdNS);
+    	int[] script = schedule.script;
+    	int b = blockCount;
+    	while (--b >= 0) {
+    		int idx = sequenceLookup[b];
+    		int stageIdx;
+    		boolean canDisable = true;
+    		int inputCount = 0;
+    		int allCount = 0;
+    		while ((stageIdx = script[idx++]) >= 0) {
+    			final int stageId = stages[stageIdx].stageId;
+    			if (!isDisableable(stageIdx, stageId)) {
+    				canDisable = false;
+    				break;
+    			}
+    			int ins = GraphManager.getInputPipeCount(graphManager, stageId);
+    			inputCount += ins;
+    			allCount += ins+GraphManager.getOutputPipeCount(graphManager, stageId);
+    		}
+    		if (canDisable) {
+    			result.addSubGraph(b, this, 
+    					           blockPipes(sequenceLookup[b], script, inputCount, true),
+    					           blockPipes(sequenceLookup[b], script, allCount, false));
+    		}
+    	}
+    	return result;
+    }
+
+	private boolean isDisableable(int stageIdx, int stageId) {
+		return 0 == rates[stageIdx]
+			&& 0 != GraphManager.getInputPipeCount(graphManager, stageId)
+			&& !GraphManager.hasNota(graphManager, stageId, GraphManager.PRODUCER)
+			&& !GraphManager.hasNota(graphManager, stageId, GraphManager.TRIGGER)
+			&& !GraphManager.hasNota(graphManager, stageId, GraphManager.MONITOR);
+	}
+    
+    //collects the input pipes of the block, or all the pipes of the block when onlyInputs is false
+    private Pipe[] blockPipes(int idx, int[] script, int count, boolean onlyInputs) {
+    	Pipe[] result = new Pipe[count];
+    	int r = 0;
+    	int stageIdx;
+    	while ((stageIdx = script[idx++]) >= 0) {
+    		final int stageId = stages[stageIdx].stageId;
+    		int c = GraphManager.getInputPipeCount(graphManager, stageId);
+    		for(int i = 1; i <= c; i++) {
+    			result[r++] = GraphManager.getInputPipe(graphManager, stageId, i);
+    		}
+    		if (!onlyInputs) {
+    			c = GraphManager.getOutputPipeCount(graphManager, stageId);
+    			for(int i = 1; i <= c; i++) {
+    				result[r++] = GraphManager.getOutputPipe(graphManager, stageId, i);
+    			}
+    		}
+    	}
+    	return result;
+    }
+    
+    //producers, monitors and rate limited stages must only run on their own clock so blocks holding them are never stolen.
+    private boolean[] buildStealableBlocks() {
+    	boolean[] result = new boolean[blockCount];
+    	int[] script = schedule.script;
+    	int b = blockCount;
+    	while (--b >= 0) {
+    		boolean stealable = true;
+    		int idx = sequenceLookup[b];
+    		while (idx < script.length && script[idx] >= 0) {
+    			int stageIdx = script[idx++];
+    			final int stageId = stages[stageIdx].stageId;
+    			if (0 != rates[stageIdx]
+    				|| 0 == GraphManager.getInputPipeCount(graphManager, stageId)
+    				|| GraphManager.hasNota(graphManager, stageId, GraphManager.PRODUCER)
+    				|| GraphManager.hasNota(graphManager, stageId, GraphManager.MONITOR)) {
+    				stealable = false;
+    				break;
+    			}
+    		}
+    		result[b] = stealable;
+    	}
+    	return result;
     }
 
     private static void syncInputHeadValues(Pipe[] pipes, long[] heads) {
@@ -391,76 +717,13 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 
 
     /**
-     * Stages have unknown dependencies based on their own internal locks and the pipe usages.  As a result we do not
-     * know the right order for starting them. 
+     * Stages have unknown dependencies based on their own internal locks and the pipe usages. Upstream stages are
+     * started first and all the stages are started on this thread. If any stage fails to start the stages which
+     * were started are shut down and the failure is thrown.
      */
     private void startupAllStages(final int stageCount) {
 
-        int j;
-        boolean isAnyRateLimited = false;
-        //to avoid hang we must init all the inputs first
-        j = stageCount;
-        while (--j >= 0) {
-            //this is a half init which is required when loops in the graph are discovered and we need to initialized cross dependent stages.
-            if (null != stages[j]) {
-                GraphManager.initInputPipesAsNeeded(graphManager, stages[j].stageId);
-                isAnyRateLimited |= GraphManager.isRateLimited(graphManager, stages[j].stageId);
-            }
-        }
-
-        int unInitCount = stageCount;
-
-        while (unInitCount > 0) {
-
-            j = stageCount;
-            while (--j >= 0) {
-                final PronghornStage stage = stages[j];
-
-                if (null != stage && !GraphManager.isStageStarted(graphManager, stage.stageId)) {
-
-                    GraphManager.initAllPipes(graphManager, stage.stageId);
-
-                    try {
-                        logger.debug("begin startup of    {}", stage);
-
-                       // Thread thread = Thread.currentThread();
-                       // new ThreadLocal<Integer>();
-
-                        setCallerId(stage.boxedStageId);
-                        stage.startup();
-                        clearCallerId();
-
-                        logger.debug("finished startup of {}", stage);
-
-                        //client work is complete so move stage of stage to started.
-                        GraphManager.setStateToStarted(graphManager, stage.stageId);
-                        unInitCount--;
-                    } catch (Throwable t) {
-                        recordTheException(stage, t, this);
-                        try {
-                            if (null != stage) {
-                                setCallerId(stage.boxedStageId);
-                                GraphManager.shutdownStage(graphManager, stage);
-                                clearCallerId();
-                            }
-                        } catch (Throwable tx) {
-                            recordTheException(stage, tx, this);
-                        } finally {
-                            if (null != stage) {
-                                GraphManager.setStateToShutdown(graphManager,
-                                                                stage.stageId); //Must ensure marked as terminated
-                            }
-                        }
-                        //TODO: need to halt more startups
-                        //      while j< stage count must shutdown those started
-                        //      then call shutdown on this scheduler
-                        System.exit(-1); //this is a hack for now until the above is completed.
-                        return;
-                    }
-                }
-            }
-        }
-
+        StageStartup.startupAll(this, graphManager, stages, 1);
 
         rates = new long[stageCount + 1];
         lastRun = new long[stageCount + 1];
@@ -516,7 +779,9 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
     public void run() {
 
     	assert(null != shutdownRequested) : "startup() must be called before run.";
-        
+    	if (null != wakePeers) {
+    		runningThread = Thread.currentThread();
+    	}
     	playScript(graphManager, stages, schedule.script, recordTime);
 				
     }
@@ -524,11 +789,14 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 	private void playScript(GraphManager localGM, PronghornStage[] localStages, 
 			                int[] script, final boolean recordTime) {
 
-		//TODO: before running the full group must compute part of the DynamicDisableSubGraph...
-		
+		if (null != dynamicDisable) {
+			//once per pass disabled blocks with new input are turned back on and one block is checked for idle
+			dynamicDisable.processUnit();
+		}
 		
 		final int length = script.length;
 		int scheduleIdx = 0;
+		boolean played = false;
 
         //play the script
 		while (scheduleIdx < length) {
@@ -537,6 +805,7 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 				//skip over this one, it is disabled due to lack of use.
 				scheduleIdx += enabled[scheduleIdx];
 			} else {			
+				played = true;
 				
 	            // We need to wait between scheduler blocks, or else
 	            // we'll just burn through the entire schedule nearly instantaneously.
@@ -559,9 +828,43 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 				scheduleIdx = runBlock(scheduleIdx, script, localStages, localGM, recordTime);
 			}
         }
+		
+		if (!played && length > 0) {
+			waitWhileAllDisabled();
+		}
+	}
+
+	//every block was skipped so wait for the next block time, or for data when parking is on,
+	//instead of returning at once and spinning the calling thread.
+	private void waitWhileAllDisabled() {
+		if (shutdownRequested.get()) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (blockStartTime <= now) {
+			blockStartTime = now + schedule.commonClock;
+		}
+		try {
+			platformThresholdForSleep = waitForBatch(blockStartTime-now, platformThresholdForSleep, blockStartTime);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	private int waitForBatch(long wait, int platformThresholdForSleep, long blockStartTime) throws InterruptedException {
+		if (null != stealPeers) {
+			//spare time goes to the peers which have fallen behind before we wait
+			while ((blockStartTime-System.nanoTime()) > NS_OPERATOR_FLOOR && stealWork()) {
+			}
+			wait = blockStartTime-System.nanoTime();
+			if (wait <= NS_OPERATOR_FLOOR) {
+				return platformThresholdForSleep;
+			}
+		}
+		if (null != wakePeers) {
+			idleUntil(blockStartTime);
+			return platformThresholdForSleep;
+		}
 		//some platforms will not sleep long enough so the spin yield is below 
 		//logger.info("sleep: {} common clock {}",wait,schedule.commonClock);
 		/////////////////////////////
@@ -609,6 +912,82 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 		return platformThresholdForSleep;
 	}
 
+	/**
+	 * Called when this thread has time to spare before its next block. Finds the peer which
+	 * has fallen furthest behind its clock and plays one of its blocks which has input waiting.
+	 * 
+	 * @return true if a block was stolen and played
+	 */
+	private boolean stealWork() {
+		ScriptedNonThreadScheduler victim = null;
+		int mostBehind = 0;
+		int i = stealPeers.length;
+		while (--i >= 0) {
+			ScriptedNonThreadScheduler peer = stealPeers[i];
+			if (peer != this && null != peer) {
+				int behind = peer.behindCount;
+				if (behind > mostBehind) {
+					mostBehind = behind;
+					victim = peer;
+				}
+			}
+		}
+		return null != victim && victim.playStolenBlock(stealCursor++);
+	}
+	
+	//NOTE: this is run on the thief thread but the stages remain owned by this scheduler.
+	//      the cursor belongs to the thief so no state of this scheduler is written here
+	//      other than the claims.
+	private boolean playStolenBlock(int cursor) {
+		final boolean[] stealable = stealableBlocks;
+		final int blocks = blockCount;
+		if (null == stealable || 0 == blocks || null == shutdownRequested || shutdownRequested.get()) {
+			return false;
+		}
+		final int[] script = schedule.script;
+		int count = blocks;
+		while (--count >= 0) {
+			int b = ((cursor+count) & Integer.MAX_VALUE) % blocks;
+			
+			if (stealable[b] && isContentForBlock(sequenceLookup[b], script)) {
+				
+				boolean played = false;
+				int idx = sequenceLookup[b];
+				int stageIdx;
+				while ((stageIdx = script[idx++]) >= 0) {
+					if (!stageClaims.compareAndSet(stageIdx, 0, 1)) {
+						continue; //the owner or another thief is running this stage right now
+					}
+					final long start = recordTime ? System.nanoTime() : 0;
+					final boolean running = run(graphManager, stages[stageIdx], this);
+					stageClaims.set(stageIdx, 0); //release, this also publishes our pipe positions to the owner
+					if (!running) {
+						break; //owner will finish the shutdown on its next pass
+					}
+					played = true;
+					if (recordTime) {
+						final long now = System.nanoTime();
+						GraphManager.accumRunTimeNS(graphManager, stages[stageIdx].stageId, now-start, now);
+					}
+				}
+				if (played) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean isContentForBlock(int idx, int[] script) {
+		int stageIdx;
+		while ((stageIdx = script[idx++]) >= 0) {
+			if (isContentForStage(stages[stageIdx])) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	private int storeNewThreshold(long wait) {
 		int platformThresholdForSleep;
 		platformThresholdForSleep = (int)Math.min( wait*2, 20_000_000);//20 MS max value
@@ -627,6 +1006,11 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 		
 		boolean shutDownRequestedHere = false;
 		int inProgressIdx;
+		
+		//when work stealing is on we must own each stage before running it, if a peer
+		//is running it right now the stage is skipped for this pass.
+		final AtomicIntegerArray claims = stageClaims;
+		
 		// Once we're done waiting for a block, we need to execute it!
 		top:
 		do {
@@ -635,12 +1019,18 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 		    
 		    // If it isn't a block-end (-1), run it!
 		    if (inProgressIdx >= 0) {
+		    	if (null != claims && !claims.compareAndSet(inProgressIdx, 0, 1)) {
+		    		continue;
+		    	}
 
 		    	final long start = recordTime ? System.nanoTime() : 0;
 		    	
 		    	if (!run(gm, localStage[inProgressIdx], this)) {
 					shutDownRequestedHere = true;
 				}
+		    	if (null != claims) {
+		    		claims.set(inProgressIdx, 0);
+		    	}
 		        
 				if (recordTime) {
 					final long now = System.nanoTime();		        
@@ -661,6 +1051,10 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 		    	break;
 		    }
 		} while (true);
+		
+		if (null != crossOutputPipes) {
+			notifyConsumers();
+		}
 
 		// Update the block start time.
 		blockStartTime += schedule.commonClock;
@@ -672,6 +1066,11 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 		long now = System.nanoTime();
 		if (blockStartTime <= now) {
 			blockStartTime = now;
+			if (null != claims) {
+				behindCount++; //peers with spare time will use this to pick who to help
+			}
+		} else if (null != claims && behindCount > 0) {
+			behindCount = behindCount>>1;
 		}
         		
 		// If a shutdown is triggered in any way, shutdown and halt this scheduler.
@@ -728,14 +1127,17 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 
     }
 
-    private Object key = "key";
+    //shared by every scheduler so debug dumps do not interleave, a j.u.c lock does not pin virtual threads
+    private static final ReentrantLock debugLock = new ReentrantLock();
     
     @Override
     public void shutdown() {
     	
         if (null!=stages && shutdownRequested.compareAndSet(false, true)) {
+        	wake(); //in case this thread is parked waiting for data
 
-        	synchronized(key) {
+        	debugLock.lock();
+        	try {
                 boolean debug = false;
                 if (debug) {	
         	        System.err.println();
@@ -753,6 +1155,8 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
         	        	
         	        }
                 }
+            } finally {
+            	debugLock.unlock();
             }
         	
         	
@@ -0,0 +1,293 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+/**
+ * Calls startup on a set of stages in waves. Each wave holds the stages whose upstream producers
+ * (within the set) have already started so a consumer never starts before the stage feeding it.
+ * Stages in a cycle are released together once nothing else can start. The stages of one wave
+ * are started in parallel on a bounded pool, with a parallelism of 1 everything runs on the caller thread.
+ *
+ * If any startup fails the stages already started are shut down in reverse order and the failure is thrown.
+ * The time taken by each startup is kept in the GraphManager, see GraphManager.stageStartupNS.
+ */
+class StageStartup {
+
+	private static final Logger logger = LoggerFactory.getLogger(StageStartup.class);
+	private static final int SLOWEST_REPORTED = 10;
+
+	private final StageScheduler scheduler;
+	private final GraphManager graphManager;
+
+	//started stages in the order they finished startup, used for rollback
+	private final PronghornStage[] started;
+	private int startedCount;
+
+	private StageStartup(StageScheduler scheduler, GraphManager graphManager, int maxStages) {
+		this.scheduler = scheduler;
+		this.graphManager = graphManager;
+		this.started = new PronghornStage[maxStages];
+	}
+
+	/**
+	 * Starts all the stages in this array which have not yet been started.
+	 * @throws RuntimeException holding the first startup failure after the started stages have been shut down
+	 */
+	static void startupAll(StageScheduler scheduler, GraphManager graphManager, PronghornStage[] stages, int parallelism) {
+
+		//to avoid hang we must init all the inputs first
+		int j = stages.length;
+		while (--j >= 0) {
+			//this is a half init which is required when loops in the graph are discovered and we need to initialized cross dependent stages.
+			if (null != stages[j]) {
+				GraphManager.initInputPipesAsNeeded(graphManager, stages[j].stageId);
+			}
+		}
+
+		//stages may already be started when a scheduler takes over a regrouped set of stages
+		PronghornStage[] pending = new PronghornStage[stages.length];
+		int pendingCount = 0;
+		for(j = 0; j<stages.length; j++) {
+			if (null != stages[j] && !GraphManager.isStageStarted(graphManager, stages[j].stageId)) {
+				pending[pendingCount++] = stages[j];
+			}
+		}
+		if (0 == pendingCount) {
+			return;
+		}
+
+		new StageStartup(scheduler, graphManager, pendingCount).startupInWaves(Arrays.copyOf(pending, pendingCount), parallelism);
+	}
+
+	private void startupInWaves(PronghornStage[] pending, int parallelism) {
+
+		final long begin = System.nanoTime();
+		final boolean[] waiting = new boolean[maxStageId(pending)+1];
+		int i = pending.length;
+		while (--i>=0) {
+			waiting[pending[i].stageId] = true;
+		}
+
+		ExecutorService pool = null;
+		try {
+			int remaining = pending.length;
+			PronghornStage[] wave = new PronghornStage[pending.length];
+			int waves = 0;
+			while (remaining > 0) {
+
+				int waveCount = 0;
+				for(i = 0; i<pending.length; i++) {
+					if (null != pending[i] && isUpstreamStarted(pending[i], waiting)) {
+						wave[waveCount++] = pending[i];
+					}
+				}
+				if (0 == waveCount) {
+					//only cycles remain, they must start together
+					for(i = 0; i<pending.length; i++) {
+						if (null != pending[i]) {
+							wave[waveCount++] = pending[i];
+						}
+					}
+				}
+				waves++;
+
+				Throwable failure;
+				if (parallelism <= 1 || waveCount == 1) {
+					failure = startupSerial(wave, waveCount);
+				} else {
+					if (null == pool) {
+						pool = Executors.newFixedThreadPool(parallelism, new StartupThreadFactory());
+					}
+					failure = startupParallel(pool, wave, waveCount);
+				}
+
+				if (null != failure) {
+					rollback();
+					throw new RuntimeException("Unable to start up all stages, the "+startedCount+" already started have been shut down.", failure);
+				}
+
+				//remove this wave from the pending stages
+				int w = waveCount;
+				while (--w>=0) {
+					waiting[wave[w].stageId] = false;
+				}
+				for(i = 0; i<pending.length; i++) {
+					if (null != pending[i] && !waiting[pending[i].stageId]) {
+						pending[i] = null;
+						remaining--;
+					}
+				}
+			}
+			logger.debug("started {} stages in {} waves", startedCount, waves);
+		} finally {
+			if (null != pool) {
+				pool.shutdown();
+			}
+		}
+
+		reportStartupTimes(System.nanoTime()-begin);
+	}
+
+	private boolean isUpstreamStarted(PronghornStage stage, boolean[] waiting) {
+		int c = GraphManager.getInputPipeCount(graphManager, stage.stageId);
+		while (--c >= 0) {
+			int producerId = GraphManager.getRingProducerId(graphManager, GraphManager.getInputPipeId(graphManager, stage.stageId, c+1));
+			if (producerId >= 0 && producerId < waiting.length && producerId != stage.stageId && waiting[producerId]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Throwable startupSerial(PronghornStage[] wave, int waveCount) {
+		for(int w = 0; w<waveCount; w++) {
+			Throwable t = startupStage(wave[w]);
+			if (null != t) {
+				return t;
+			}
+		}
+		return null;
+	}
+
+	private Throwable startupParallel(ExecutorService pool, PronghornStage[] wave, int waveCount) {
+		List<Callable<Throwable>> tasks = new ArrayList<Callable<Throwable>>(waveCount);
+		for(int w = 0; w<waveCount; w++) {
+			final PronghornStage stage = wave[w];
+			tasks.add(new Callable<Throwable>() {
+				@Override
+				public Throwable call() {
+					return startupStage(stage);
+				}
+			});
+		}
+
+		Throwable first = null;
+		try {
+			//all the tasks of the wave are complete before we look at the results
+			for(Future<Throwable> f : pool.invokeAll(tasks)) {
+				Throwable t = f.get();
+				if (null == first) {
+					first = t;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (null == first) {
+				first = e;
+			}
+		} catch (ExecutionException e) {
+			if (null == first) {
+				first = e.getCause();
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * @return null if the stage was started
+	 */
+	private Throwable startupStage(PronghornStage stage) {
+		try {
+			GraphManager.initAllPipes(graphManager, stage.stageId);
+
+			logger.debug("begin startup of    {}", stage);
+			long start = System.nanoTime();
+
+			scheduler.setCallerId(stage.boxedStageId);
+			stage.startup();
+			scheduler.clearCallerId();
+
+			GraphManager.recordStartupTime(graphManager, stage.stageId, System.nanoTime()-start);
+			logger.debug("finished startup of {}", stage);
+
+			//client work is complete so move stage of stage to started.
+			GraphManager.setStateToStarted(graphManager, stage.stageId);
+			synchronized(this) {
+				started[startedCount++] = stage;
+			}
+			return null;
+		} catch (Throwable t) {
+			scheduler.clearCallerId();
+			GraphManager.reportError(graphManager, stage, t, logger);
+			shutdownStage(stage);
+			return t;
+		}
+	}
+
+	private void rollback() {
+		//reverse order so consumers are shut down before the stages feeding them
+		int i = startedCount;
+		while (--i >= 0) {
+			shutdownStage(started[i]);
+		}
+	}
+
+	private void shutdownStage(PronghornStage stage) {
+		try {
+			scheduler.setCallerId(stage.boxedStageId);
+			GraphManager.shutdownStage(graphManager, stage);
+		} catch (Throwable tx) {
+			GraphManager.reportError(graphManager, stage, tx, logger);
+		} finally {
+			scheduler.clearCallerId();
+			GraphManager.setStateToShutdown(graphManager, stage.stageId); //Must ensure marked as terminated
+		}
+	}
+
+	private void reportStartupTimes(long wallNS) {
+		if (!logger.isInfoEnabled() || startedCount<=1) {
+			return;
+		}
+		PronghornStage[] slowest = Arrays.copyOf(started, startedCount);
+		Arrays.sort(slowest, new Comparator<PronghornStage>() {
+			@Override
+			public int compare(PronghornStage a, PronghornStage b) {
+				return Long.compare(GraphManager.stageStartupNS(graphManager, b.stageId),
+						            GraphManager.stageStartupNS(graphManager, a.stageId));
+			}
+		});
+
+		StringBuilder report = new StringBuilder();
+		report.append("started ").append(startedCount).append(" stages in ");
+		report.append(wallNS/1_000_000).append("ms, slowest:");
+		int limit = Math.min(SLOWEST_REPORTED, slowest.length);
+		for(int i = 0; i<limit; i++) {
+			report.append("\n    ").append(GraphManager.stageStartupNS(graphManager, slowest[i].stageId)/1_000).append("us ").append(slowest[i]);
+		}
+		logger.info(report.toString());
+	}
+
+	private static int maxStageId(PronghornStage[] stages) {
+		int max = 0;
+		int i = stages.length;
+		while (--i>=0) {
+			max = Math.max(max, stages[i].stageId);
+		}
+		return max;
+	}
+
+	private static class StartupThreadFactory implements ThreadFactory {
+		private int count = 0;
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "StageStartup-"+(count++));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
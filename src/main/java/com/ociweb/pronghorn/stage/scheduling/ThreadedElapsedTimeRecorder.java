@@ -0,0 +1,118 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Elapsed time histograms for many ids (eg stages) which may be recorded from any thread.
+ * Each thread records into its own ElapsedTimeRecorder so recording takes no locks and
+ * no atomics, readers merge the per thread recorders when a snapshot is requested.
+ *
+ * Snapshots may be taken since start or for the interval since the previous interval snapshot.
+ */
+public class ThreadedElapsedTimeRecorder {
+
+	private static final ElapsedTimeRecorder[] EMPTY = new ElapsedTimeRecorder[0];
+
+	private final int subBucketBits;
+	private final AtomicReference<ThreadRecorders[]> allThreads = new AtomicReference<ThreadRecorders[]>(new ThreadRecorders[0]);
+	private final ThreadLocal<ThreadRecorders> local = new ThreadLocal<ThreadRecorders>() {
+		@Override
+		protected ThreadRecorders initialValue() {
+			return register(new ThreadRecorders());
+		}
+	};
+
+	//reader side only, guarded by synchronized intervalSnapshot
+	private ElapsedTimeRecorder[] previous = EMPTY;
+
+	private static final class ThreadRecorders {
+		//only written by the owning thread, replaced rather than modified so readers never see a partial recorder
+		private volatile ElapsedTimeRecorder[] byId = EMPTY;
+	}
+
+	public ThreadedElapsedTimeRecorder() {
+		this(ElapsedTimeRecorder.DEFAULT_SUB_BUCKET_BITS);
+	}
+
+	public ThreadedElapsedTimeRecorder(int subBucketBits) {
+		this.subBucketBits = subBucketBits;
+	}
+
+	private ThreadRecorders register(ThreadRecorders recorders) {
+		ThreadRecorders[] old;
+		ThreadRecorders[] next;
+		do {
+			old = allThreads.get();
+			next = new ThreadRecorders[old.length+1];
+			System.arraycopy(old, 0, next, 0, old.length);
+			next[old.length] = recorders;
+		} while (!allThreads.compareAndSet(old, next));
+		return recorders;
+	}
+
+	public static void record(ThreadedElapsedTimeRecorder that, int id, long valueNS) {
+		ThreadRecorders recorders = that.local.get();
+		ElapsedTimeRecorder[] byId = recorders.byId;
+		ElapsedTimeRecorder target;
+		if (id >= byId.length || null == (target = byId[id])) {
+			target = that.newRecorder(recorders, id);
+		}
+		ElapsedTimeRecorder.record(target, valueNS);
+	}
+
+	private ElapsedTimeRecorder newRecorder(ThreadRecorders recorders, int id) {
+		ElapsedTimeRecorder[] old = recorders.byId;
+		ElapsedTimeRecorder[] next = new ElapsedTimeRecorder[Math.max(old.length, id+1)];
+		System.arraycopy(old, 0, next, 0, old.length);
+		ElapsedTimeRecorder result = new ElapsedTimeRecorder(subBucketBits);
+		next[id] = result;
+		recorders.byId = next;
+		return result;
+	}
+
+	/**
+	 * Merges everything recorded for this id since start into target, target is cleared first.
+	 */
+	public static ElapsedTimeRecorder snapshot(ThreadedElapsedTimeRecorder that, int id, ElapsedTimeRecorder target) {
+		target.clear();
+		ThreadRecorders[] threads = that.allThreads.get();
+		int t = threads.length;
+		while (--t>=0) {
+			ElapsedTimeRecorder[] byId = threads[t].byId;
+			if (id<byId.length && null!=byId[id]) {
+				target.add(byId[id]);
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * Merges everything recorded for this id since the previous interval snapshot into target.
+	 */
+	public static ElapsedTimeRecorder intervalSnapshot(ThreadedElapsedTimeRecorder that, int id, ElapsedTimeRecorder target) {
+		ElapsedTimeRecorder current = snapshot(that, id, new ElapsedTimeRecorder(that.subBucketBits));
+		synchronized(that) {
+			if (id >= that.previous.length) {
+				ElapsedTimeRecorder[] next = new ElapsedTimeRecorder[id+1];
+				System.arraycopy(that.previous, 0, next, 0, that.previous.length);
+				that.previous = next;
+			}
+			ElapsedTimeRecorder prior = that.previous[id];
+			if (null == prior) {
+				prior = new ElapsedTimeRecorder(that.subBucketBits);
+			}
+			target.difference(current, prior);
+			that.previous[id] = current;
+		}
+		return target;
+	}
+
+	public static long elapsedAtPercentile(ThreadedElapsedTimeRecorder that, int id, float pct) {
+		return ElapsedTimeRecorder.elapsedAtPercentile(snapshot(that, id, new ElapsedTimeRecorder(that.subBucketBits)), pct);
+	}
+
+	public int subBucketBits() {
+		return subBucketBits;
+	}
+
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import com.ociweb.pronghorn.network.schema.ReleaseSchema;
 import com.ociweb.pronghorn.pipe.FieldReferenceOffsetManager;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeConfig;
@@ -162,10 +163,63 @@ public class GraphManagerTest {
 		assertTrue(GraphManager.mayHaveUpstreamData(gm, c1.stageId)); //this is true because the first ring buffer has 1 integer
 		assertTrue(GraphManager.mayHaveUpstreamData(gm, c2.stageId)); //this is true because the first ring buffer has 1 integer
 
-		
+
 	}
-	
-	
+
+	@Test
+	public void colocateLinearChain() {
+
+		GraphManager gm = new GraphManager();
+
+		Pipe rb1 = new Pipe(new PipeConfig(RawDataSchema.instance));
+		Pipe rb2 = new Pipe(new PipeConfig(RawDataSchema.instance));
+		Pipe rb3 = new Pipe(new PipeConfig(RawDataSchema.instance));
+
+		PronghornStage a = new SimpleOut(gm, rb1);
+		PronghornStage b = new SimpleInOut(gm, rb1, rb2);
+		PronghornStage c = new SimpleInOut(gm, rb2, rb3);
+		PronghornStage d = new SimpleIn(gm, rb3);
+
+		assertEquals(1, GraphManager.colocateStageChains(gm));
+		int[] chain = GraphManager.colocatedChain(gm, 0);
+		assertArrayEquals(new int[]{a.stageId, b.stageId, c.stageId, d.stageId}, chain);
+		assertEquals(0, GraphManager.colocatedChainIndex(gm, b.stageId));
+
+		//a rate on the middle stage breaks the chain in two
+		GraphManager gm2 = new GraphManager();
+
+		Pipe rb21 = new Pipe(new PipeConfig(RawDataSchema.instance));
+		Pipe rb22 = new Pipe(new PipeConfig(RawDataSchema.instance));
+		Pipe rb23 = new Pipe(new PipeConfig(RawDataSchema.instance));
+
+		PronghornStage a2 = new SimpleOut(gm2, rb21);
+		PronghornStage b2 = new SimpleInOut(gm2, rb21, rb22);
+		GraphManager.addNota(gm2, GraphManager.SCHEDULE_RATE, 1_000_000, b2);
+		PronghornStage c2 = new SimpleInOut(gm2, rb22, rb23);
+		PronghornStage d2 = new SimpleIn(gm2, rb23);
+
+		assertEquals(1, GraphManager.colocateStageChains(gm2));
+		assertArrayEquals(new int[]{c2.stageId, d2.stageId}, GraphManager.colocatedChain(gm2, 0));
+		assertEquals(-1, GraphManager.colocatedChainIndex(gm2, a2.stageId));
+		assertEquals(-1, GraphManager.colocatedChainIndex(gm2, b2.stageId));
+
+		//a feedback schema is never chained through
+		GraphManager gm3 = new GraphManager();
+
+		Pipe rb31 = new Pipe(new PipeConfig(RawDataSchema.instance));
+		Pipe rb32 = new Pipe(new PipeConfig(ReleaseSchema.instance));
+
+		PronghornStage a3 = new SimpleOut(gm3, rb31);
+		PronghornStage b3 = new SimpleInOut(gm3, rb31, rb32);
+		PronghornStage c3 = new SimpleIn(gm3, rb32);
+
+		assertEquals(1, GraphManager.colocateStageChains(gm3));
+		assertArrayEquals(new int[]{a3.stageId, b3.stageId}, GraphManager.colocatedChain(gm3, 0));
+		assertEquals(-1, GraphManager.colocatedChainIndex(gm3, c3.stageId));
+
+	}
+
+
 	private class SimpleInOut extends PronghornStage {
 
 		protected SimpleInOut(GraphManager pm, Pipe input, Pipe output) {
@@ -0,0 +1,69 @@
+package com.ociweb.pronghorn.stage.monitor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class BottleneckAnalyzerTest {
+
+	@Test
+	public void fullInputEmptyOutputIsTheBottleneck() {
+
+		GraphManager gm = new GraphManager();
+
+		Pipe<RawDataSchema> rb1 = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance));
+		Pipe<RawDataSchema> rb2 = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance));
+		Pipe<RawDataSchema> rb3 = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance));
+
+		PronghornStage a = new SimpleStage(gm, new Pipe[0], new Pipe[]{rb1});
+		PronghornStage b = new SimpleStage(gm, new Pipe[]{rb1}, new Pipe[]{rb2});
+		PronghornStage c = new SimpleStage(gm, new Pipe[]{rb2}, new Pipe[]{rb3});
+		PronghornStage d = new SimpleStage(gm, new Pipe[]{rb3}, new Pipe[0]);
+
+		int[] fill = new int[Pipe.totalPipes()+1];
+		fill[rb1.id] = 95;
+		fill[rb2.id] = 90;
+		fill[rb3.id] = 5;
+
+		BottleneckAnalyzer analyzer = new BottleneckAnalyzer(gm);
+		analyzer.analyze(fill, null);
+
+		//c has both full input and empty output
+		assertEquals(c.stageId, analyzer.bottleneckStageId());
+		assertTrue(analyzer.isCriticalStage(c.stageId));
+		assertTrue(analyzer.isCriticalStage(b.stageId));
+		assertTrue(analyzer.isCriticalStage(a.stageId));
+		assertFalse(analyzer.isCriticalStage(d.stageId));
+		assertTrue(analyzer.isCriticalPipe(rb1.id));
+		assertTrue(analyzer.isCriticalPipe(rb2.id));
+		assertFalse(analyzer.isCriticalPipe(rb3.id));
+
+		String json = analyzer.writeJSON(new StringBuilder()).toString();
+		assertTrue(json, json.startsWith("{\"bottleneck\":"+c.stageId));
+
+		//nothing backed up, nothing to report
+		fill[rb1.id] = 0;
+		fill[rb2.id] = 0;
+		fill[rb3.id] = 0;
+		analyzer.analyze(fill, null);
+		assertEquals(-1, analyzer.bottleneckStageId());
+	}
+
+	private static class SimpleStage extends PronghornStage {
+
+		protected SimpleStage(GraphManager gm, Pipe[] inputs, Pipe[] outputs) {
+			super(gm, inputs, outputs);
+		}
+
+		@Override
+		public void run() {
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.ociweb.pronghorn.stage.monitor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class PipeMonitorSamplerStageTest {
+
+	@Test
+	public void oneSweepFeedsEveryConsumer() {
+
+		GraphManager gm = new GraphManager();
+		Pipe<RawDataSchema> observed = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance));
+		new IdleStage(gm, observed);
+
+		Pipe<PipeMonitorBatchSchema>[][] batches = GraphManager.attachSamplersToGraph(gm, Long.valueOf(1_000_000), 1024, 2);
+		assertEquals(2, batches.length);
+		assertEquals(1, batches[0].length);
+		assertEquals(1, batches[1].length);
+
+		//both consumers are fed by the same sampler
+		int samplerId = GraphManager.getRingProducerStageId(gm, batches[0][0].id);
+		assertEquals(samplerId, GraphManager.getRingProducerStageId(gm, batches[1][0].id));
+		assertEquals(1, GraphManager.countStagesWithNotaKey(gm, GraphManager.MONITOR));
+
+		observed.initBuffers();
+		batches[0][0].initBuffers();
+		batches[1][0].initBuffers();
+		int size = Pipe.addMsgIdx(observed, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+		Pipe.addNullByteArray(observed);
+		Pipe.confirmLowLevelWrite(observed, size);
+		Pipe.publishWrites(observed);
+
+		PronghornStage sampler = GraphManager.getStage(gm, samplerId);
+		sampler.startup();
+		sampler.run();
+
+		long time = assertBatch(batches[0][0], Pipe.sizeOf(RawDataSchema.instance, RawDataSchema.MSG_CHUNKEDSTREAM_1));
+		assertEquals(time, assertBatch(batches[1][0], Pipe.sizeOf(RawDataSchema.instance, RawDataSchema.MSG_CHUNKEDSTREAM_1)));
+	}
+
+	private static long assertBatch(Pipe<PipeMonitorBatchSchema> pipe, int expectedFill) {
+		assertTrue(Pipe.hasContentToRead(pipe));
+		assertEquals(PipeMonitorBatchSchema.MSG_PIPESAMPLEBATCH_200, Pipe.takeMsgIdx(pipe));
+		long time = Pipe.takeLong(pipe);
+		assertEquals(1, Pipe.takeInt(pipe));
+		DataInputBlobReader<PipeMonitorBatchSchema> columns = Pipe.openInputStream(pipe);
+		assertEquals(expectedFill, columns.readPackedLong());
+		assertEquals(1, columns.readPackedLong());
+		Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, PipeMonitorBatchSchema.MSG_PIPESAMPLEBATCH_200));
+		Pipe.releaseReadLock(pipe);
+		return time;
+	}
+
+	private static class IdleStage extends PronghornStage {
+
+		protected IdleStage(GraphManager gm, Pipe<RawDataSchema> output) {
+			super(gm, NONE, output);
+		}
+
+		@Override
+		public void run() {
+		}
+	}
+
+}
@@ -13,6 +13,11 @@ public class PipeMonitorSchemaTest {
 	public void testFROMMatchesXML() {
 		assertTrue(FROMValidation.checkSchema("/PipeMonitor.xml", PipeMonitorSchema.class));
 	}
+	
+	@Test
+	public void testBatchFROMMatchesXML() {
+		assertTrue(FROMValidation.checkSchema("/PipeMonitorBatch.xml", PipeMonitorBatchSchema.class));
+	}
 
 
 }
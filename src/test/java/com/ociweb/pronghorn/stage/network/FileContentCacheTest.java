@@ -0,0 +1,49 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.module.FileContentCache;
+
+public class FileContentCacheTest {
+
+	private static final Path A = Paths.get("a.html");
+	private static final Path B = Paths.get("b.css");
+	private static final Path C = Paths.get("c.js");
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		FileContentCache cache = new FileContentCache(200, 100);
+		cache.put(A, new byte[80], 1);
+		cache.put(B, new byte[80], 1);
+		assertNotNull(cache.get(A, 1)); //A is now the most recent
+
+		cache.put(C, new byte[80], 1);
+		assertNotNull(cache.get(A, 1));
+		assertNull(cache.get(B, 1));
+		assertNotNull(cache.get(C, 1));
+		assertEquals(160, cache.totalBytes());
+		assertEquals(1, cache.evictions());
+		assertEquals(3, cache.hits());
+		assertEquals(1, cache.misses());
+	}
+
+	@Test
+	public void ignoresOtherVersionsAndLargeFiles() {
+		FileContentCache cache = new FileContentCache(200, 100);
+		cache.put(A, new byte[10], 1);
+		assertNull(cache.get(A, 2));
+
+		cache.put(B, new byte[101], 1);
+		assertNull(cache.get(B, 1));
+
+		cache.invalidate(A);
+		assertNull(cache.get(A, 1));
+		assertEquals(0, cache.totalBytes());
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.module.FileReadModuleStage;
+
+public class FileReadConditionalTest {
+
+	private static final int RING_SIZE = 128;
+	private static final int MASK = RING_SIZE-1;
+	private static final int POSITION = 100; //values wrap around the end of the ring
+
+	private final long[] starts = new long[16];
+	private final long[] lengths = new long[16];
+
+	@Test
+	public void singleRangeIsClippedToTheFile() {
+		assertEquals(1, ranges("bytes=0-499", 1000));
+		assertRange(0, 0, 500);
+
+		assertEquals(1, ranges("bytes=900-5000", 1000));
+		assertRange(0, 900, 100);
+
+		assertEquals(1, ranges("bytes=100-", 1000));
+		assertRange(0, 100, 900);
+	}
+
+	@Test
+	public void suffixRanges() {
+		assertEquals(1, ranges("bytes=-200", 1000));
+		assertRange(0, 800, 200);
+
+		//suffix longer than the file is the whole file
+		assertEquals(1, ranges("bytes=-5000", 1000));
+		assertRange(0, 0, 1000);
+
+		//a zero length suffix can not be satisfied
+		assertEquals(0, ranges("bytes=-0", 1000));
+	}
+
+	@Test
+	public void overlappingRangesAreEachReturned() {
+		assertEquals(3, ranges("bytes=0-99, 50-149,-10", 1000));
+		assertRange(0, 0, 100);
+		assertRange(1, 50, 100);
+		assertRange(2, 990, 10);
+	}
+
+	@Test
+	public void unsatisfiableRangesGive416() {
+		assertEquals(0, ranges("bytes=1000-1999", 1000));
+		assertEquals(0, ranges("bytes=2000-,3000-3001", 1000));
+		assertEquals(0, ranges("bytes=-10", 0));
+		//satisfiable parts are kept, the others dropped
+		assertEquals(1, ranges("bytes=2000-,10-19", 1000));
+		assertRange(0, 10, 10);
+	}
+
+	@Test
+	public void badRangesAreIgnored() {
+		assertEquals(-1, ranges("items=0-1", 1000));
+		assertEquals(-1, ranges("bytes=", 1000));
+		assertEquals(-1, ranges("bytes=-", 1000));
+		assertEquals(-1, ranges("bytes=9-1", 1000));
+		assertEquals(-1, ranges("bytes=a-1", 1000));
+		assertEquals(-1, ranges("bytes=1-2;3-4", 1000));
+		assertEquals(-1, ranges("bytes=0-0,1-1,2-2,3-3,4-4,5-5,6-6,7-7,8-8,9-9,10-10,11-11,12-12,13-13,14-14,15-15,16-16", 1000));
+	}
+
+	@Test
+	public void strongAndWeakETags() {
+		byte[] etag = "\"3e8-5f5e100\"".getBytes();
+
+		assertTrue(etag("\"3e8-5f5e100\"", etag, false));
+		assertTrue(etag("\"other\", \"3e8-5f5e100\"", etag, false));
+		assertFalse(etag("\"other\"", etag, true));
+
+		//weak tags only match when weak comparison is allowed, as for If-None-Match
+		assertTrue(etag("W/\"3e8-5f5e100\"", etag, true));
+		assertFalse(etag("W/\"3e8-5f5e100\"", etag, false));
+		assertFalse(etag("W/\"other\"", etag, true));
+
+		//unquoted values never match
+		assertFalse(etag("3e8-5f5e100", etag, true));
+	}
+
+	@Test
+	public void starMatchesOnlyForIfNoneMatch() {
+		byte[] etag = "\"1\"".getBytes();
+		assertTrue(etag("*", etag, true));
+		assertFalse("If-Range requires a real entity tag", etag("*", etag, false));
+	}
+
+	@Test
+	public void etagFollowsContentNotSlot() {
+		String tag = new String(FileReadModuleStage.etagBytes(new StringBuilder(), 1000, 100000000L, null));
+		assertTrue(tag.startsWith("\"") && tag.endsWith("\""));
+		//same file state after a restart or on another server gives the same tag
+		assertEquals(tag, new String(FileReadModuleStage.etagBytes(new StringBuilder(), 1000, 100000000L, null)));
+		assertNotEquals(tag, new String(FileReadModuleStage.etagBytes(new StringBuilder(), 1000, 100000001L, null)));
+		assertNotEquals(tag, new String(FileReadModuleStage.etagBytes(new StringBuilder(), 1001, 100000000L, null)));
+
+		String gzipTag = new String(FileReadModuleStage.etagBytes(new StringBuilder(), 1000, 100000000L, "gzip"));
+		assertEquals(tag.substring(0, tag.length()-1)+"-gzip\"", gzipTag);
+	}
+
+	@Test
+	public void acceptEncodingList() {
+		byte[] gzip = "gzip".getBytes();
+		assertTrue(accepts("gzip, deflate, br", gzip));
+		assertTrue(accepts("deflate, GZIP", gzip));
+		assertTrue(accepts("br;q=1.0, gzip;q=0.5", gzip));
+		assertTrue(accepts("*", gzip));
+		assertFalse(accepts("deflate, br", gzip));
+		assertFalse(accepts("gzip;q=0", gzip));
+		assertFalse(accepts("gzip;q=0.000, deflate", gzip));
+		assertFalse(accepts("*;q=0", gzip));
+		assertFalse(accepts("x-gzip", gzip));
+	}
+
+	private void assertRange(int idx, long start, long length) {
+		assertEquals(start, starts[idx]);
+		assertEquals(length, lengths[idx]);
+	}
+
+	private int ranges(String value, long fileSize) {
+		byte[] ring = ring(value);
+		return FileReadModuleStage.parseRanges(ring, POSITION, value.length(), MASK, fileSize, starts, lengths);
+	}
+
+	private static boolean etag(String value, byte[] etag, boolean weak) {
+		return FileReadModuleStage.matchesETag(ring(value), POSITION, value.length(), MASK, etag, weak);
+	}
+
+	private static boolean accepts(String value, byte[] coding) {
+		return FileReadModuleStage.acceptsEncoding(ring(value), POSITION, value.length(), MASK, coding);
+	}
+
+	private static byte[] ring(String value) {
+		byte[] bytes = value.getBytes();
+		assertTrue(bytes.length <= RING_SIZE);
+		byte[] ring = new byte[RING_SIZE];
+		for (int i = 0; i < bytes.length; i++) {
+			ring[MASK & (POSITION+i)] = bytes[i];
+		}
+		return ring;
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.ociweb.pronghorn.stage.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class FileRegionBenchmark {
+
+    //////////////////////////////////
+    //THIS IS NOT A UNIT TEST
+    //IT DOES NOT RUN WHEN TESTS RUN
+    //////////////////////////////////
+
+	//Sends the same file over loopback many times, once copying fragments through the heap as the
+	//pipes do and once with FileChannel.transferTo as the ServerSocketWriterStage does for file regions.
+	//Reports throughput and the CPU time of the sending thread for each.
+
+	private static final int fileSize = 64*1024*1024;
+	private static final int fragmentSize = 1<<15; //typical maxVarLen of the response pipes
+	private static final int sends = 32;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		File file = File.createTempFile("fileRegion", ".bin");
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(fileSize);
+		raf.close();
+
+		//first pass of each warms up the page cache and the JIT
+		run(file, false);
+		run(file, true);
+
+		long[] copy = run(file, false);
+		long[] transfer = run(file, true);
+
+		report("copy    ", copy);
+		report("transfer", transfer);
+	}
+
+	private static void report(String label, long[] result) {
+		long bytes = (long)fileSize*sends;
+		System.out.println(label+" "+(bytes*1000/result[0]/(1024*1024))+" MB/sec  cpu "+(result[1]/1_000_000)+" ms  cpu per MB "+(result[1]/(bytes/(1024*1024)))+" ns");
+	}
+
+	/**
+	 * @return elapsed ms and cpu ns of the sending thread
+	 */
+	private static long[] run(File file, boolean transferTo) throws IOException, InterruptedException {
+
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+		Thread drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ByteBuffer target = ByteBuffer.allocateDirect(1<<20);
+				try {
+					SocketChannel socket = server.accept();
+					while (socket.read(target)>=0) {
+						target.clear();
+					}
+					socket.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		drain.start();
+
+		SocketChannel socket = SocketChannel.open(server.getLocalAddress());
+		FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		long start = System.currentTimeMillis();
+		long cpuStart = threads.getCurrentThreadCpuTime();
+
+		ByteBuffer fragment = ByteBuffer.allocate(fragmentSize);
+		int s = sends;
+		while (--s>=0) {
+			long position = 0;
+			while (position<fileSize) {
+				if (transferTo) {
+					position += fileChannel.transferTo(position, fileSize-position, socket);
+				} else {
+					fragment.clear();
+					int len = fileChannel.read(fragment, position);
+					fragment.flip();
+					while (fragment.hasRemaining()) {
+						socket.write(fragment);
+					}
+					position += len;
+				}
+			}
+		}
+
+		long cpu = threads.getCurrentThreadCpuTime()-cpuStart;
+		long duration = Math.max(1, System.currentTimeMillis()-start);
+
+		socket.close();
+		drain.join();
+		server.close();
+		fileChannel.close();
+		return new long[] {duration, cpu};
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.FileRegions;
+import com.ociweb.pronghorn.network.ServerSocketWriterStage;
+
+public class FileRegionsTest {
+
+	@Test
+	public void closeIsDeferredWhilePinned() throws IOException {
+		FileRegions regions = new FileRegions(4);
+		FileChannel channel = openTemp(100);
+
+		int id = regions.acquire(channel);
+		assertEquals(id, regions.acquire(channel));
+		assertEquals(2, regions.pinned(id));
+
+		assertFalse(regions.close(channel));
+		assertTrue("pinned channel must stay open", channel.isOpen());
+
+		regions.release(id);
+		assertTrue(channel.isOpen());
+		regions.release(id);
+		assertFalse("last release closes the channel", channel.isOpen());
+	}
+
+	@Test
+	public void unpinnedChannelClosesAtOnce() throws IOException {
+		FileRegions regions = new FileRegions(4);
+		FileChannel channel = openTemp(10);
+
+		int id = regions.acquire(channel);
+		regions.release(id);
+		assertTrue(regions.close(channel));
+		assertFalse(channel.isOpen());
+	}
+
+	@Test
+	public void slotIsNotReusedWhilePinned() throws IOException {
+		FileRegions regions = new FileRegions(2);
+		FileChannel first = openTemp(10);
+		int firstId = regions.acquire(first);
+		assertFalse(regions.close(first));
+
+		FileChannel second = openTemp(10);
+		int secondId = regions.acquire(second);
+		assertNotEquals(firstId, secondId);
+		assertSame(first, regions.channel(firstId));
+
+		regions.release(firstId);
+		assertFalse(first.isOpen());
+
+		//slot of the closed and released channel is now free
+		FileChannel third = openTemp(10);
+		assertEquals(firstId, regions.acquire(third));
+		assertSame(third, regions.channel(firstId));
+		assertSame(second, regions.channel(secondId));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void fullWhenEverySlotIsPinned() throws IOException {
+		FileRegions regions = new FileRegions(1);
+		regions.acquire(openTemp(10));
+		regions.acquire(openTemp(10));
+	}
+
+	@Test
+	public void transferRegionResumesAfterPartialWrites() throws IOException {
+		FileChannel file = openTemp(1000);
+		LimitedChannel target = new LimitedChannel(300);
+
+		long position = 100;
+		long length = 800;
+		while (length>0) {
+			long written = ServerSocketWriterStage.transferRegion(file, position, length, target);
+			assertTrue(written > 0 && written <= 300);
+			position += written;
+			length -= written;
+		}
+		assertEquals(800, target.total);
+		assertEquals(900, position);
+		file.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void transferRegionPastTruncatedFileFails() throws IOException {
+		FileChannel file = openTemp(1000);
+		file.truncate(200);
+		ServerSocketWriterStage.transferRegion(file, 500, 500, new LimitedChannel(300));
+	}
+
+	private static FileChannel openTemp(int size) throws IOException {
+		File temp = File.createTempFile("region", ".dat");
+		temp.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		raf.setLength(size);
+		return raf.getChannel();
+	}
+
+	/**
+	 * Accepts at most limit bytes per write like a socket with a small send buffer.
+	 */
+	private static class LimitedChannel implements WritableByteChannel {
+		private final int limit;
+		long total;
+
+		LimitedChannel(int limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int len = Math.min(limit, src.remaining());
+			src.position(src.position()+len);
+			total += len;
+			return len;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
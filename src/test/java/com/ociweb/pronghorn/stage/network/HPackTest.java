@@ -0,0 +1,76 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.http.HPack;
+import com.ociweb.pronghorn.network.http.HPackDecoder;
+
+public class HPackTest {
+
+	private static byte[] hex(String value) {
+		byte[] result = new byte[value.length()/2];
+		for(int i = 0; i<result.length; i++) {
+			result[i] = (byte)Integer.parseInt(value.substring(i*2, (i*2)+2), 16);
+		}
+		return result;
+	}
+
+	private static String huffman(String value) {
+		byte[] source = hex(value);
+		byte[] target = new byte[64];
+		int len = HPack.huffmanDecode(source, 0, source.length, Integer.MAX_VALUE, target, 0);
+		assertTrue(len>=0);
+		return new String(target, 0, len);
+	}
+
+	private static String decode(HPackDecoder decoder, byte[] block) {
+		final StringBuilder builder = new StringBuilder();
+		assertTrue(decoder.decode(block, 0, block.length, Integer.MAX_VALUE, new HPackDecoder.HeaderSink() {
+			@Override
+			public void header(byte[] name, int nameLen, byte[] value, int valueLen) {
+				builder.append(new String(name, 0, nameLen)).append('=').append(new String(value, 0, valueLen)).append(';');
+			}
+		}));
+		return builder.toString();
+	}
+
+	@Test
+	public void huffmanExamples() {
+		assertEquals("www.example.com", huffman("f1e3c2e5f23a6ba0ab90f4ff"));
+		assertEquals("no-cache", huffman("a8eb10649cbf"));
+		assertEquals("custom-key", huffman("25a849e95ba97d7f"));
+		assertEquals("custom-value", huffman("25a849e95bb8e8b4bf"));
+	}
+
+	@Test
+	public void huffmanRejectsBadPadding() {
+		byte[] source = hex("f1e3c2e5f23a6ba0ab90f400");
+		assertEquals(-1, HPack.huffmanDecode(source, 0, source.length, Integer.MAX_VALUE, new byte[64], 0));
+	}
+
+	@Test
+	public void requestsShareDynamicTable() {
+		HPackDecoder decoder = new HPackDecoder(HPackDecoder.DEFAULT_TABLE_SIZE, 256);
+		assertEquals(":method=GET;:scheme=http;:path=/;:authority=www.example.com;",
+				     decode(decoder, hex("828684418cf1e3c2e5f23a6ba0ab90f4ff")));
+		assertEquals(":method=GET;:scheme=http;:path=/;:authority=www.example.com;cache-control=no-cache;",
+				     decode(decoder, hex("828684be5886a8eb10649cbf")));
+	}
+
+	@Test
+	public void responseHeadRoundTrip() {
+		byte[] head = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: keep-alive\r\nX-Custom: Value\r\n\r\n".getBytes();
+		assertEquals(head.length, HPack.headLength(head, 0, head.length, Integer.MAX_VALUE));
+
+		byte[] block = new byte[256];
+		int len = HPack.encodeHTTP1Head(head, 0, head.length, Integer.MAX_VALUE, block, 0);
+
+		HPackDecoder decoder = new HPackDecoder(HPackDecoder.DEFAULT_TABLE_SIZE, 256);
+		byte[] exact = new byte[len];
+		System.arraycopy(block, 0, exact, 0, len);
+		assertEquals(":status=404;content-length=0;x-custom=Value;", decode(decoder, exact));
+	}
+
+}
@@ -0,0 +1,191 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ociweb.json.JSONExtractor;
+import com.ociweb.json.JSONType;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.config.HTTPContentTypeDefaults;
+import com.ociweb.pronghorn.network.config.HTTPHeaderDefaults;
+import com.ociweb.pronghorn.network.config.HTTPRevisionDefaults;
+import com.ociweb.pronghorn.network.config.HTTPSpecification;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.http.HTTP1xRouterStage;
+import com.ociweb.pronghorn.network.http.HTTP1xRouterStageConfig;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.ReleaseSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class HTTPRouterStreamedBodyTest {
+
+	private static final long CHANNEL = 1;
+	private static final int IN_MAX_VAR = 256;
+
+	private Pipe<NetPayloadSchema> input;
+	private Pipe<HTTPRequestSchema> upload;
+	private Pipe<HTTPRequestSchema> json;
+	private Pipe<ServerResponseSchema> errors;
+	private HTTP1xRouterStage<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults> router;
+
+	@Before
+	public void buildRouter() {
+		HTTPSpecification<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults> spec = HTTPSpecification.defaultSpec();
+		HTTP1xRouterStageConfig<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults> config
+		        = new HTTP1xRouterStageConfig<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults>(spec);
+		config.registerRoute("/upload");
+		config.registerRoute("/json", new JSONExtractor().newPath(JSONType.TypeString).key("name").completePath("name"));
+
+		ServerCoordinator coordinator = new ServerCoordinator(null, "127.0.0.1", 8080, 4, 1, 1, 1, false);
+		ServerCoordinator.newSocketChannelHolder(coordinator);
+
+		input = new Pipe<NetPayloadSchema>(new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 16, IN_MAX_VAR));
+		PipeConfig<HTTPRequestSchema> requestConfig = new PipeConfig<HTTPRequestSchema>(HTTPRequestSchema.instance, 16, 2*IN_MAX_VAR);
+		upload = new Pipe<HTTPRequestSchema>(requestConfig);
+		json = new Pipe<HTTPRequestSchema>(requestConfig);
+		errors = ServerResponseSchema.instance.newPipe(4, 512);
+		Pipe<ReleaseSchema> release = new Pipe<ReleaseSchema>(new PipeConfig<ReleaseSchema>(ReleaseSchema.instance, 64));
+
+		router = new HTTP1xRouterStage<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults>(
+				      new GraphManager(), 0, new Pipe[]{input}, new Pipe[][]{{upload, json}}, errors, release, config, coordinator, false);
+
+		input.initBuffers();
+		upload.initBuffers();
+		json.initBuffers();
+		errors.initBuffers();
+		release.initBuffers();
+		router.startup();
+	}
+
+	@Test
+	public void chunkSizeSplitAcrossReads() {
+		send("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n1");
+		send("0\r\nabcdefghijklmnop\r\n0\r\n\r\n"); //size line is 0x10 once joined
+
+		assertEquals("abcdefghijklmnop", streamedBody(upload));
+		assertFalse(Pipe.hasContentToRead(errors));
+	}
+
+	@Test
+	public void chunkExtensionsAndTrailersAreSkipped() {
+		send("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+		    +"5;name=value\r\nhello\r\n6;last\r\n world\r\n0\r\nExpires: never\r\nX-Check: 1\r\n\r\n");
+
+		assertEquals("hello world", streamedBody(upload));
+		assertFalse(Pipe.hasContentToRead(errors));
+	}
+
+	@Test
+	public void malformedChunkSizeIsRejected() {
+		send("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\nhello\r\n");
+
+		assertTrue(isStreamedRequest(upload));
+		assertEquals(400, errorStatus());
+		assertFalse("no body may follow a bad chunk", Pipe.hasContentToRead(upload));
+	}
+
+	@Test
+	public void contentLengthLargerThanOneFragmentIsStreamed() {
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			body.append((char)('a'+(i%26)));
+		}
+		send("POST /upload HTTP/1.1\r\nContent-Length: 1000\r\n\r\n");
+		for (int i = 0; i < body.length(); i += IN_MAX_VAR) {
+			send(body.substring(i, Math.min(body.length(), i+IN_MAX_VAR)));
+		}
+
+		assertEquals(body.toString(), streamedBody(upload));
+		assertFalse(Pipe.hasContentToRead(errors));
+	}
+
+	@Test
+	public void streamedBodyOnJSONRouteIsRejected() {
+		send("POST /json HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\n{\"a\":\r\n0\r\n\r\n");
+
+		assertEquals(413, errorStatus());
+		assertFalse(Pipe.hasContentToRead(json));
+	}
+
+	private void send(String text) {
+		byte[] bytes = text.getBytes();
+		assertTrue(bytes.length <= IN_MAX_VAR);
+		int size = Pipe.addMsgIdx(input, NetPayloadSchema.MSG_PLAIN_210);
+		Pipe.addLongValue(CHANNEL, input);
+		Pipe.addLongValue(System.currentTimeMillis(), input);
+		Pipe.addLongValue(-1, input); //position is taken from the pipe
+		Pipe.addByteArray(bytes, 0, bytes.length, input);
+		Pipe.confirmLowLevelWrite(input, size);
+		Pipe.publishWrites(input);
+		router.run();
+	}
+
+	private static boolean isStreamedRequest(Pipe<HTTPRequestSchema> pipe) {
+		assertTrue(Pipe.hasContentToRead(pipe));
+		assertEquals(HTTPRequestSchema.MSG_RESTREQUEST_300, Pipe.takeMsgIdx(pipe));
+		assertEquals(CHANNEL, Pipe.takeLong(pipe));
+		Pipe.takeInt(pipe); //sequence
+		Pipe.takeInt(pipe); //verb
+		Pipe.takeRingByteMetaData(pipe);
+		Pipe.takeRingByteLen(pipe);
+		Pipe.takeInt(pipe); //revision
+		int context = Pipe.takeInt(pipe);
+		Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, HTTPRequestSchema.MSG_RESTREQUEST_300));
+		Pipe.releaseReadLock(pipe);
+		return 0 != (ServerCoordinator.STREAMED_BODY_MASK & context);
+	}
+
+	/**
+	 * Reads the request head then joins the continuation fragments up to the end of the body.
+	 */
+	private static String streamedBody(Pipe<HTTPRequestSchema> pipe) {
+		assertTrue(isStreamedRequest(pipe));
+		StringBuilder body = new StringBuilder();
+		int flags = 0;
+		while (0 == (HTTPRequestSchema.CONTINUATION_END_OF_BODY & flags)) {
+			assertTrue("body ended early, found "+body, Pipe.hasContentToRead(pipe));
+			assertEquals(HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301, Pipe.takeMsgIdx(pipe));
+			assertEquals(CHANNEL, Pipe.takeLong(pipe));
+			Pipe.takeInt(pipe); //sequence
+			flags = Pipe.takeInt(pipe);
+			body.append(takeText(pipe));
+			Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301));
+			Pipe.releaseReadLock(pipe);
+		}
+		assertFalse(Pipe.hasContentToRead(pipe));
+		return body.toString();
+	}
+
+	private int errorStatus() {
+		assertTrue(Pipe.hasContentToRead(errors));
+		assertEquals(ServerResponseSchema.MSG_TOCHANNEL_100, Pipe.takeMsgIdx(errors));
+		Pipe.takeLong(errors); //channel
+		Pipe.takeInt(errors); //sequence
+		String response = takeText(errors);
+		Pipe.takeInt(errors); //context
+		Pipe.confirmLowLevelRead(errors, Pipe.sizeOf(errors, ServerResponseSchema.MSG_TOCHANNEL_100));
+		Pipe.releaseReadLock(errors);
+		//HTTP/1.1 400 Bad Request
+		return Integer.parseInt(response.substring(response.indexOf(' ')+1, response.indexOf(' ')+4));
+	}
+
+	private static String takeText(Pipe<?> pipe) {
+		int meta = Pipe.takeRingByteMetaData(pipe);
+		int len = Pipe.takeRingByteLen(pipe);
+		byte[] backing = Pipe.byteBackingArray(meta, pipe);
+		int pos = Pipe.bytePosition(meta, pipe, len);
+		int mask = Pipe.blobMask(pipe);
+		StringBuilder text = new StringBuilder(len);
+		for (int i = 0; i < len; i++) {
+			text.append((char)backing[mask & (pos+i)]);
+		}
+		return text.toString();
+	}
+
+}
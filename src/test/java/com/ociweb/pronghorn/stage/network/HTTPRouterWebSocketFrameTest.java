@@ -0,0 +1,190 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.config.HTTPContentTypeDefaults;
+import com.ociweb.pronghorn.network.config.HTTPHeaderDefaults;
+import com.ociweb.pronghorn.network.config.HTTPRevisionDefaults;
+import com.ociweb.pronghorn.network.config.HTTPSpecification;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.http.HTTP1xRouterStage;
+import com.ociweb.pronghorn.network.http.HTTP1xRouterStageConfig;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.ReleaseSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Frame headers the router parses for upgraded channels before the payload is passed on still masked.
+ */
+public class HTTPRouterWebSocketFrameTest {
+
+	private static final long CHANNEL = 1;
+	private static final int IN_MAX_VAR = 256;
+	private static final int MASK = 0x0A1B2C3D;
+
+	private Pipe<NetPayloadSchema> input;
+	private Pipe<HTTPRequestSchema> frames;
+	private HTTP1xRouterStage<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults> router;
+
+	@Before
+	public void buildRouter() {
+		HTTPSpecification<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults> spec = HTTPSpecification.defaultSpec();
+		HTTP1xRouterStageConfig<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults> config
+		        = new HTTP1xRouterStageConfig<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults>(spec);
+		config.registerRoute("/socket");
+
+		ServerCoordinator coordinator = new ServerCoordinator(null, "127.0.0.1", 8080, 4, 1, 1, 1, false);
+		ServerCoordinator.newSocketChannelHolder(coordinator);
+		ServerCoordinator.setUpgradePipe(coordinator, CHANNEL, 0);
+
+		input = new Pipe<NetPayloadSchema>(new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 16, IN_MAX_VAR));
+		frames = new Pipe<HTTPRequestSchema>(new PipeConfig<HTTPRequestSchema>(HTTPRequestSchema.instance, 16, 2*IN_MAX_VAR));
+		Pipe<ServerResponseSchema> errors = ServerResponseSchema.instance.newPipe(4, 512);
+		Pipe<ReleaseSchema> release = new Pipe<ReleaseSchema>(new PipeConfig<ReleaseSchema>(ReleaseSchema.instance, 64));
+
+		router = new HTTP1xRouterStage<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults>(
+				      new GraphManager(), 0, new Pipe[]{input}, new Pipe[][]{{frames}}, errors, release, config, coordinator, false);
+
+		input.initBuffers();
+		frames.initBuffers();
+		errors.initBuffers();
+		release.initBuffers();
+		router.startup();
+	}
+
+	@Test
+	public void shortLengthMaskedFrame() {
+		byte[] payload = "hello".getBytes();
+		send(frame(0x81, payload, true));
+
+		assertFrame(0x81, MASK, masked(payload));
+		assertFalse(Pipe.hasContentToRead(frames));
+	}
+
+	@Test
+	public void sixteenBitLengthFrame() {
+		byte[] payload = new byte[200];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte)i;
+		}
+		send(frame(0x82, payload, true));
+
+		assertFrame(0x82, MASK, masked(payload));
+	}
+
+	@Test
+	public void unmaskedFrameCarriesZeroMask() {
+		byte[] payload = "plain".getBytes();
+		send(frame(0x81, payload, false));
+
+		assertFrame(0x81, 0, payload);
+	}
+
+	@Test
+	public void headerSplitAcrossReads() {
+		byte[] payload = new byte[130];
+		Arrays.fill(payload, (byte)'x');
+		byte[] bytes = frame(0x02, payload, true);
+
+		send(Arrays.copyOfRange(bytes, 0, 3)); //extended length is incomplete
+		assertFalse(Pipe.hasContentToRead(frames));
+		send(Arrays.copyOfRange(bytes, 3, 7)); //mask is incomplete
+		assertFalse(Pipe.hasContentToRead(frames));
+		send(Arrays.copyOfRange(bytes, 7, bytes.length));
+
+		assertFrame(0x02, MASK, masked(payload));
+	}
+
+	@Test
+	public void twoFramesInOneRead() {
+		byte[] first = frame(0x01, "Hello, ".getBytes(), true);
+		byte[] second = frame(0x80, "World".getBytes(), true);
+		byte[] both = Arrays.copyOf(first, first.length+second.length);
+		System.arraycopy(second, 0, both, first.length, second.length);
+		send(both);
+
+		assertFrame(0x01, MASK, masked("Hello, ".getBytes()));
+		assertFrame(0x80, MASK, masked("World".getBytes()));
+	}
+
+	private static byte[] frame(int finOpp, byte[] payload, boolean isMasked) {
+		int extended = payload.length<126 ? 0 : 2;
+		int maskBytes = isMasked ? 4 : 0;
+		byte[] bytes = new byte[2+extended+maskBytes+payload.length];
+		int pos = 0;
+		bytes[pos++] = (byte)finOpp;
+		int maskBit = isMasked ? 0x80 : 0;
+		if (0==extended) {
+			bytes[pos++] = (byte)(maskBit|payload.length);
+		} else {
+			bytes[pos++] = (byte)(maskBit|126);
+			bytes[pos++] = (byte)(payload.length>>8);
+			bytes[pos++] = (byte)payload.length;
+		}
+		byte[] body = payload;
+		if (isMasked) {
+			bytes[pos++] = (byte)(MASK>>24);
+			bytes[pos++] = (byte)(MASK>>16);
+			bytes[pos++] = (byte)(MASK>>8);
+			bytes[pos++] = (byte)MASK;
+			body = masked(payload);
+		}
+		System.arraycopy(body, 0, bytes, pos, body.length);
+		return bytes;
+	}
+
+	private static byte[] masked(byte[] payload) {
+		byte[] result = new byte[payload.length];
+		for (int i = 0; i < payload.length; i++) {
+			result[i] = (byte)(payload[i] ^ (MASK >>> (24-8*(i%4))));
+		}
+		return result;
+	}
+
+	private void send(byte[] bytes) {
+		assertTrue(bytes.length <= IN_MAX_VAR);
+		int size = Pipe.addMsgIdx(input, NetPayloadSchema.MSG_PLAIN_210);
+		Pipe.addLongValue(CHANNEL, input);
+		Pipe.addLongValue(System.currentTimeMillis(), input);
+		Pipe.addLongValue(-1, input); //position is taken from the pipe
+		Pipe.addByteArray(bytes, 0, bytes.length, input);
+		Pipe.confirmLowLevelWrite(input, size);
+		Pipe.publishWrites(input);
+		router.run();
+	}
+
+	/**
+	 * The payload is expected exactly as it was on the wire, the decoder does the unmasking.
+	 */
+	private void assertFrame(int finOpp, int mask, byte[] payload) {
+		assertTrue(Pipe.hasContentToRead(frames));
+		assertEquals(HTTPRequestSchema.MSG_WEBSOCKETFRAME_100, Pipe.takeMsgIdx(frames));
+		assertEquals(CHANNEL, Pipe.takeLong(frames));
+		Pipe.takeInt(frames); //sequence
+		assertEquals(finOpp, Pipe.takeInt(frames));
+		assertEquals(mask, Pipe.takeInt(frames));
+		int meta = Pipe.takeRingByteMetaData(frames);
+		int len = Pipe.takeRingByteLen(frames);
+		byte[] backing = Pipe.byteBackingArray(meta, frames);
+		int pos = Pipe.bytePosition(meta, frames, len);
+		int blobMask = Pipe.blobMask(frames);
+		byte[] actual = new byte[len];
+		for (int i = 0; i < len; i++) {
+			actual[i] = backing[blobMask & (pos+i)];
+		}
+		assertArrayEquals(payload, actual);
+		Pipe.confirmLowLevelRead(frames, Pipe.sizeOf(frames, HTTPRequestSchema.MSG_WEBSOCKETFRAME_100));
+		Pipe.releaseReadLock(frames);
+	}
+
+}
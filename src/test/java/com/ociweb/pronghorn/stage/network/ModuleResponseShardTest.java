@@ -0,0 +1,190 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.config.HTTPContentTypeDefaults;
+import com.ociweb.pronghorn.network.config.HTTPHeaderDefaults;
+import com.ociweb.pronghorn.network.config.HTTPRevisionDefaults;
+import com.ociweb.pronghorn.network.config.HTTPSpecification;
+import com.ociweb.pronghorn.network.config.HTTPVerb;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.http.HTTPUtil;
+import com.ociweb.pronghorn.network.module.AbstractAppendablePayloadResponseStage;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.util.AppendableBuilder;
+
+/**
+ * Modules given an output for each ordering shard write every response straight to the supervisor
+ * of its channel so no single stage copies the responses of the whole router group.
+ */
+public class ModuleResponseShardTest {
+
+	private static final int SHARDS = 2;
+	private static final byte[] TEXT = "text/plain".getBytes();
+
+	@Test
+	public void responsesGoToTheShardOfTheirChannel() {
+		Pipe<HTTPRequestSchema>[] inputs = requestPipes(2);
+		Pipe<ServerResponseSchema>[] outputs = Pipe.buildPipes(2*SHARDS, ServerResponseSchema.instance.newPipeConfig(8, 512));
+
+		AbstractAppendablePayloadResponseStage<?,?,?,?> module = new OkStage(new GraphManager(), inputs, outputs);
+		initBuffers(inputs, outputs);
+		module.startup();
+
+		sendRequest(inputs[0], 2);
+		sendRequest(inputs[0], 3);
+		sendRequest(inputs[1], 4);
+		sendRequest(inputs[1], 7);
+		sendRequest(inputs[1], 9);
+		module.run();
+
+		//index is input*shards+(channelId & (shards-1))
+		assertResponses(outputs[0], 2);
+		assertResponses(outputs[1], 3);
+		assertResponses(outputs[2], 4);
+		assertResponses(outputs[3], 7, 9);
+	}
+
+	@Test
+	public void oneOutputForEachInputIsUnchanged() {
+		Pipe<HTTPRequestSchema>[] inputs = requestPipes(2);
+		Pipe<ServerResponseSchema>[] outputs = Pipe.buildPipes(2, ServerResponseSchema.instance.newPipeConfig(8, 512));
+
+		AbstractAppendablePayloadResponseStage<?,?,?,?> module = new OkStage(new GraphManager(), inputs, outputs);
+		initBuffers(inputs, outputs);
+		module.startup();
+
+		sendRequest(inputs[0], 2);
+		sendRequest(inputs[0], 3);
+		sendRequest(inputs[1], 5);
+		module.run();
+
+		assertResponses(outputs[0], 2, 3);
+		assertResponses(outputs[1], 5);
+	}
+
+	@Test
+	public void streamedBodyFragmentsAreDropped() {
+		Pipe<HTTPRequestSchema>[] inputs = requestPipes(1);
+		Pipe<ServerResponseSchema>[] outputs = Pipe.buildPipes(1, ServerResponseSchema.instance.newPipeConfig(8, 512));
+
+		AbstractAppendablePayloadResponseStage<?,?,?,?> module = new OkStage(new GraphManager(), inputs, outputs);
+		initBuffers(inputs, outputs);
+		module.startup();
+
+		sendRequest(inputs[0], 2);
+		sendContinuation(inputs[0], 2);
+		sendContinuation(inputs[0], 2);
+		sendRequest(inputs[0], 3);
+		module.run();
+
+		assertResponses(outputs[0], 2, 3);
+		assertFalse(Pipe.hasContentToRead(inputs[0]));
+	}
+
+	@Test
+	public void eofGoesToEveryShardOfTheInput() {
+		Pipe<ServerResponseSchema>[] outputs = Pipe.buildPipes(2*SHARDS, ServerResponseSchema.instance.newPipeConfig(8, 512));
+		int i = outputs.length;
+		while (--i>=0) {
+			outputs[i].initBuffers();
+		}
+
+		HTTPUtil.publishEOF(outputs, 1, 2);
+
+		assertFalse(Pipe.hasContentToRead(outputs[0]));
+		assertFalse(Pipe.hasContentToRead(outputs[1]));
+		assertTrue(Pipe.hasContentToRead(outputs[2]));
+		assertTrue(Pipe.hasContentToRead(outputs[3]));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void outputsMustBeAPowerOfTwoForEachInput() {
+		HTTPUtil.validateResponsePipes(2, 6);
+	}
+
+	private static class OkStage extends AbstractAppendablePayloadResponseStage<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults> {
+
+		OkStage(GraphManager gm, Pipe<HTTPRequestSchema>[] inputs, Pipe<ServerResponseSchema>[] outputs) {
+			super(gm, inputs, outputs, HTTPSpecification.defaultSpec());
+		}
+
+		@Override
+		protected byte[] payload(AppendableBuilder payload, GraphManager gm, DataInputBlobReader<HTTPRequestSchema> params, HTTPVerbDefaults verb) {
+			payload.append("ok");
+			return null;
+		}
+
+		@Override
+		protected byte[] contentType() {
+			return TEXT;
+		}
+	}
+
+	private static Pipe<HTTPRequestSchema>[] requestPipes(int count) {
+		Pipe<HTTPRequestSchema>[] pipes = new Pipe[count];
+		int i = count;
+		while (--i>=0) {
+			pipes[i] = new Pipe<HTTPRequestSchema>(new PipeConfig<HTTPRequestSchema>(HTTPRequestSchema.instance, 8, 256));
+		}
+		return pipes;
+	}
+
+	private static void initBuffers(Pipe<?>[] inputs, Pipe<?>[] outputs) {
+		int i = inputs.length;
+		while (--i>=0) {
+			inputs[i].initBuffers();
+		}
+		i = outputs.length;
+		while (--i>=0) {
+			outputs[i].initBuffers();
+		}
+	}
+
+	private static void sendRequest(Pipe<HTTPRequestSchema> input, long channelId) {
+		int size = Pipe.addMsgIdx(input, HTTPRequestSchema.MSG_RESTREQUEST_300);
+		Pipe.addLongValue(channelId, input);
+		Pipe.addIntValue(0, input); //sequence
+		Pipe.addIntValue((0<<HTTPVerb.BITS) | HTTPVerbDefaults.GET.ordinal(), input); //route and verb
+		Pipe.addByteArray(new byte[0], 0, 0, input); //params
+		Pipe.addIntValue(HTTPRevisionDefaults.HTTP_1_1.ordinal(), input);
+		Pipe.addIntValue(ServerCoordinator.END_RESPONSE_MASK, input);
+		Pipe.confirmLowLevelWrite(input, size);
+		Pipe.publishWrites(input);
+	}
+
+	private static void sendContinuation(Pipe<HTTPRequestSchema> input, long channelId) {
+		byte[] body = "body".getBytes();
+		int size = Pipe.addMsgIdx(input, HTTPRequestSchema.MSG_RESTREQUESTCONTINUATION_301);
+		Pipe.addLongValue(channelId, input);
+		Pipe.addIntValue(0, input); //sequence
+		Pipe.addIntValue(0, input); //flags
+		Pipe.addByteArray(body, 0, body.length, input);
+		Pipe.confirmLowLevelWrite(input, size);
+		Pipe.publishWrites(input);
+	}
+
+	private static void assertResponses(Pipe<ServerResponseSchema> output, long ... channels) {
+		for (long channel : channels) {
+			assertTrue("missing response for "+channel, Pipe.hasContentToRead(output));
+			assertEquals(ServerResponseSchema.MSG_TOCHANNEL_100, Pipe.takeMsgIdx(output));
+			assertEquals(channel, Pipe.takeLong(output));
+			Pipe.takeInt(output); //sequence
+			Pipe.takeRingByteMetaData(output);
+			Pipe.takeRingByteLen(output);
+			Pipe.takeInt(output); //context
+			Pipe.confirmLowLevelRead(output, Pipe.sizeOf(output, ServerResponseSchema.MSG_TOCHANNEL_100));
+			Pipe.releaseReadLock(output);
+		}
+		assertFalse(Pipe.hasContentToRead(output));
+	}
+
+}
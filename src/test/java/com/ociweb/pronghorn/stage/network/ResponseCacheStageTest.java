@@ -0,0 +1,171 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.config.HTTPRevisionDefaults;
+import com.ociweb.pronghorn.network.config.HTTPVerb;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.module.ResponseCache;
+import com.ociweb.pronghorn.network.module.ResponseCacheModuleStage;
+import com.ociweb.pronghorn.network.module.ResponseCacheStage;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Repeated GET requests are answered by the ResponseCacheStage without reaching the module.
+ */
+public class ResponseCacheStageTest {
+
+	private static final byte[] OK = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes();
+	private static final byte[] PARAMS = "id=7".getBytes();
+
+	@Test
+	public void hitBypassesTheModule() {
+		ResponseCache cache = new ResponseCache(1<<12, 1<<10, 60_000);
+		Pipe<HTTPRequestSchema>[] fromRouter = requestPipes(1);
+		Pipe<HTTPRequestSchema>[] toModule = requestPipes(1);
+		Pipe<ServerResponseSchema>[] fromModule = Pipe.buildPipes(1, ServerResponseSchema.instance.newPipeConfig(8, 512));
+		Pipe<ServerResponseSchema>[] toSupervisor = Pipe.buildPipes(1, ServerResponseSchema.instance.newPipeConfig(8, 512));
+
+		GraphManager gm = new GraphManager();
+		ResponseCacheStage stage = new ResponseCacheStage(gm, cache, fromRouter, toModule, fromModule, toSupervisor);
+		initBuffers(fromRouter, toModule, fromModule, toSupervisor);
+		stage.startup();
+
+		//first request is a miss and goes on to the module
+		sendGet(fromRouter[0], 3, 1);
+		stage.run();
+		assertEquals(3, takeRequest(toModule[0]));
+		assertFalse(Pipe.hasContentToRead(toSupervisor[0]));
+
+		//the response of the module is passed on and kept
+		sendResponse(fromModule[0], 3, 1);
+		stage.run();
+		assertResponse(toSupervisor[0], 3, 1);
+		assertEquals(1, cache.misses());
+
+		//same request from another channel is answered from the cache
+		sendGet(fromRouter[0], 5, 0);
+		stage.run();
+		assertFalse(Pipe.hasContentToRead(toModule[0]));
+		assertResponse(toSupervisor[0], 5, 0);
+		assertEquals(1, cache.hits());
+
+		StringBuilder json = ResponseCacheModuleStage.writeJSON(gm, new StringBuilder());
+		assertEquals("[{\"stages\":["+stage.stageId+"],\"hits\":1,\"misses\":1,\"evictions\":0,\"bytes\":"+OK.length+"}]", json.toString());
+	}
+
+	@Test
+	public void hitGoesToTheShardOfItsChannel() {
+		ResponseCache cache = new ResponseCache(1<<12, 1<<10, 60_000);
+		Pipe<HTTPRequestSchema>[] fromRouter = requestPipes(1);
+		Pipe<HTTPRequestSchema>[] toModule = requestPipes(1);
+		Pipe<ServerResponseSchema>[] fromModule = Pipe.buildPipes(2, ServerResponseSchema.instance.newPipeConfig(8, 512));
+		Pipe<ServerResponseSchema>[] toSupervisor = Pipe.buildPipes(2, ServerResponseSchema.instance.newPipeConfig(8, 512));
+
+		ResponseCacheStage stage = new ResponseCacheStage(new GraphManager(), cache, fromRouter, toModule, fromModule, toSupervisor);
+		initBuffers(fromRouter, toModule, fromModule, toSupervisor);
+		stage.startup();
+
+		sendGet(fromRouter[0], 3, 0);
+		stage.run();
+		assertEquals(3, takeRequest(toModule[0]));
+		sendResponse(fromModule[1], 3, 0); //odd channels are on shard 1
+		stage.run();
+		assertResponse(toSupervisor[1], 3, 0);
+
+		sendGet(fromRouter[0], 4, 0);
+		stage.run();
+		assertFalse(Pipe.hasContentToRead(toModule[0]));
+		assertFalse(Pipe.hasContentToRead(toSupervisor[1]));
+		assertResponse(toSupervisor[0], 4, 0);
+		assertEquals(1, cache.hits());
+	}
+
+	private static Pipe<HTTPRequestSchema>[] requestPipes(int count) {
+		Pipe<HTTPRequestSchema>[] pipes = new Pipe[count];
+		int i = count;
+		while (--i>=0) {
+			pipes[i] = new Pipe<HTTPRequestSchema>(new PipeConfig<HTTPRequestSchema>(HTTPRequestSchema.instance, 8, 256));
+		}
+		return pipes;
+	}
+
+	private static void initBuffers(Pipe<?>[] ... groups) {
+		for (Pipe<?>[] pipes : groups) {
+			int i = pipes.length;
+			while (--i>=0) {
+				pipes[i].initBuffers();
+			}
+		}
+	}
+
+	private static void sendGet(Pipe<HTTPRequestSchema> input, long channelId, int sequence) {
+		int size = Pipe.addMsgIdx(input, HTTPRequestSchema.MSG_RESTREQUEST_300);
+		Pipe.addLongValue(channelId, input);
+		Pipe.addIntValue(sequence, input);
+		Pipe.addIntValue((0<<HTTPVerb.BITS) | HTTPVerbDefaults.GET.ordinal(), input); //route and verb
+		Pipe.addByteArray(PARAMS, 0, PARAMS.length, input);
+		Pipe.addIntValue(HTTPRevisionDefaults.HTTP_1_1.ordinal(), input);
+		Pipe.addIntValue(0, input); //context, connection stays open
+		Pipe.confirmLowLevelWrite(input, size);
+		Pipe.publishWrites(input);
+	}
+
+	/**
+	 * @return channel of the request passed on to the module
+	 */
+	private static long takeRequest(Pipe<HTTPRequestSchema> module) {
+		assertTrue(Pipe.hasContentToRead(module));
+		assertEquals(HTTPRequestSchema.MSG_RESTREQUEST_300, Pipe.takeMsgIdx(module));
+		long channelId = Pipe.takeLong(module);
+		Pipe.takeInt(module); //sequence
+		Pipe.takeInt(module); //route and verb
+		Pipe.takeRingByteMetaData(module);
+		Pipe.takeRingByteLen(module);
+		Pipe.takeInt(module); //revision
+		Pipe.takeInt(module); //context
+		Pipe.confirmLowLevelRead(module, Pipe.sizeOf(module, HTTPRequestSchema.MSG_RESTREQUEST_300));
+		Pipe.releaseReadLock(module);
+		assertFalse(Pipe.hasContentToRead(module));
+		return channelId;
+	}
+
+	private static void sendResponse(Pipe<ServerResponseSchema> output, long channelId, int sequence) {
+		int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNEL_100);
+		Pipe.addLongValue(channelId, output);
+		Pipe.addIntValue(sequence, output);
+		Pipe.addByteArray(OK, 0, OK.length, output);
+		Pipe.addIntValue(ServerCoordinator.END_RESPONSE_MASK, output);
+		Pipe.confirmLowLevelWrite(output, size);
+		Pipe.publishWrites(output);
+	}
+
+	private static void assertResponse(Pipe<ServerResponseSchema> output, long channelId, int sequence) {
+		assertTrue(Pipe.hasContentToRead(output));
+		assertEquals(ServerResponseSchema.MSG_TOCHANNEL_100, Pipe.takeMsgIdx(output));
+		assertEquals(channelId, Pipe.takeLong(output));
+		assertEquals(sequence, Pipe.takeInt(output));
+		int meta = Pipe.takeRingByteMetaData(output);
+		int len = Pipe.takeRingByteLen(output);
+		byte[] backing = Pipe.byteBackingArray(meta, output);
+		int pos = Pipe.bytePosition(meta, output, len);
+		int mask = Pipe.blobMask(output);
+		byte[] actual = new byte[len];
+		for (int i = 0; i < len; i++) {
+			actual[i] = backing[mask & (pos+i)];
+		}
+		assertArrayEquals(OK, actual);
+		assertTrue(0 != (ServerCoordinator.END_RESPONSE_MASK & Pipe.takeInt(output)));
+		Pipe.confirmLowLevelRead(output, Pipe.sizeOf(output, ServerResponseSchema.MSG_TOCHANNEL_100));
+		Pipe.releaseReadLock(output);
+		assertFalse(Pipe.hasContentToRead(output));
+	}
+
+}
@@ -0,0 +1,48 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.module.ResponseCache;
+
+public class ResponseCacheTest {
+
+	private static final byte[] A = "route-a".getBytes();
+	private static final byte[] B = "route-b".getBytes();
+	private static final byte[] C = "route-c".getBytes();
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		ResponseCache cache = new ResponseCache(200, 100, 1000);
+		cache.put(A, A.length, new byte[80], 0, 0);
+		cache.put(B, B.length, new byte[80], 0, 0);
+		assertNotNull(cache.get(A, A.length, 1)); //A is now the most recent
+
+		cache.put(C, C.length, new byte[80], 0, 1);
+		assertNotNull(cache.get(A, A.length, 2));
+		assertNull(cache.get(B, B.length, 2));
+		assertNotNull(cache.get(C, C.length, 2));
+		assertEquals(160, cache.totalBytes());
+		assertEquals(1, cache.evictions());
+		assertEquals(3, cache.hits());
+		assertEquals(1, cache.misses());
+	}
+
+	@Test
+	public void expiresAndMatchesWholeKey() {
+		ResponseCache cache = new ResponseCache(200, 100, 1000);
+		byte[] key = "route-a-and-more".getBytes();
+		cache.put(key, A.length, new byte[10], 7, 0); //only the first bytes are the key
+
+		ResponseCache.Entry entry = cache.get(A, A.length, 999);
+		assertNotNull(entry);
+		assertEquals(7, entry.contextFlags);
+		assertNull(cache.get(key, key.length, 999));
+
+		assertNull(cache.get(A, A.length, 1000));
+		assertEquals(0, cache.totalBytes());
+		assertEquals(1, cache.evictions());
+	}
+
+}
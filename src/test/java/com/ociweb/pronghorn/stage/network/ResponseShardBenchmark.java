@@ -0,0 +1,155 @@
+package com.ociweb.pronghorn.stage.network;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ociweb.pronghorn.network.ServerResponseShardStage;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class ResponseShardBenchmark {
+
+    //////////////////////////////////
+    //THIS IS NOT A UNIT TEST
+    //IT DOES NOT RUN WHEN TESTS RUN
+    //////////////////////////////////
+
+	//Moves responses from module threads to one consumer thread for each ordering shard, once through a
+	//single ServerResponseShardStage copying every response and once with the modules writing straight
+	//to the pipe of each shard as the built-in modules now do. Reports responses per second for each.
+
+	private static final int modules = 4;
+	private static final int responsesPerModule = 4_000_000;
+	private static final byte[] payload = new byte[200];
+
+	private static final PipeConfig<ServerResponseSchema> config = ServerResponseSchema.instance.newPipeConfig(1<<10, 256);
+
+	public static void main(String[] args) throws InterruptedException {
+
+		for (int shards = 1; shards <= 8; shards *= 2) {
+			//first pass of each warms up the JIT
+			run(shards, false);
+			run(shards, true);
+
+			long funnel = run(shards, false);
+			long direct = run(shards, true);
+
+			long total = (long)modules*responsesPerModule;
+			System.out.println("shards "+shards+"  funnel "+(total*1000/funnel)+" per sec  direct "+(total*1000/direct)+" per sec");
+		}
+	}
+
+	/**
+	 * @return elapsed ms until every shard consumer has seen all its responses
+	 */
+	private static long run(final int shards, boolean direct) throws InterruptedException {
+
+		final Pipe<ServerResponseSchema>[] shardPipes;  //read by the consumers, one for each shard
+		final Pipe<ServerResponseSchema>[][] modulePipes = new Pipe[modules][];
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread funnelThread = null;
+
+		if (direct) {
+			//each module has its own pipe for each shard
+			shardPipes = Pipe.buildPipes(modules*shards, config);
+			for (int m = 0; m < modules; m++) {
+				modulePipes[m] = new Pipe[shards];
+				System.arraycopy(shardPipes, m*shards, modulePipes[m], 0, shards);
+			}
+		} else {
+			shardPipes = Pipe.buildPipes(shards, config);
+			Pipe<ServerResponseSchema>[] funnelInputs = Pipe.buildPipes(modules, config);
+			for (int m = 0; m < modules; m++) {
+				modulePipes[m] = new Pipe[]{funnelInputs[m]};
+			}
+			initBuffers(funnelInputs);
+			final ServerResponseShardStage stage = new ServerResponseShardStage(new GraphManager(), funnelInputs, shardPipes);
+			funnelThread = new Thread() {
+				public void run() {
+					while (!done.get()) {
+						stage.run();
+					}
+				}
+			};
+		}
+		initBuffers(shardPipes);
+
+		Thread[] consumers = new Thread[shards];
+		for (int s = 0; s < shards; s++) {
+			//each consumer reads every pipe of its shard
+			final Pipe<ServerResponseSchema>[] owned = new Pipe[shardPipes.length/shards];
+			for (int i = 0; i < owned.length; i++) {
+				owned[i] = shardPipes[(i*shards)+s];
+			}
+			final long expected = (long)modules*responsesPerModule/shards;
+			consumers[s] = new Thread() {
+				public void run() {
+					long count = 0;
+					while (count < expected) {
+						for (int i = 0; i < owned.length; i++) {
+							while (Pipe.hasContentToRead(owned[i])) {
+								Pipe.skipNextFragment(owned[i], Pipe.takeMsgIdx(owned[i]));
+								count++;
+							}
+						}
+					}
+				}
+			};
+		}
+
+		Thread[] producers = new Thread[modules];
+		for (int m = 0; m < modules; m++) {
+			final Pipe<ServerResponseSchema>[] outputs = modulePipes[m];
+			final int mask = outputs.length-1;
+			producers[m] = new Thread() {
+				public void run() {
+					for (long channel = 0; channel < responsesPerModule; channel++) {
+						Pipe<ServerResponseSchema> output = outputs[(int)(channel & mask)];
+						while (!Pipe.hasRoomForWrite(output)) {
+							Thread.yield();
+						}
+						int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNEL_100);
+						Pipe.addLongValue(channel, output);
+						Pipe.addIntValue(0, output); //sequence
+						Pipe.addByteArray(payload, 0, payload.length, output);
+						Pipe.addIntValue(0, output); //context
+						Pipe.confirmLowLevelWrite(output, size);
+						Pipe.publishWrites(output);
+					}
+				}
+			};
+		}
+
+		long start = System.currentTimeMillis();
+		for (Thread t : consumers) {
+			t.start();
+		}
+		if (null != funnelThread) {
+			funnelThread.start();
+		}
+		for (Thread t : producers) {
+			t.start();
+		}
+		for (Thread t : consumers) {
+			t.join();
+		}
+		long duration = System.currentTimeMillis()-start;
+
+		done.set(true);
+		if (null != funnelThread) {
+			funnelThread.join();
+		}
+		for (Thread t : producers) {
+			t.join();
+		}
+		return Math.max(1, duration);
+	}
+
+	private static void initBuffers(Pipe<ServerResponseSchema>[] pipes) {
+		for (int i = 0; i < pipes.length; i++) {
+			pipes[i].initBuffers();
+		}
+	}
+
+}
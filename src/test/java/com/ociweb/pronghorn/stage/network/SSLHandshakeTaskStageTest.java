@@ -0,0 +1,275 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.SSLConnection;
+import com.ociweb.pronghorn.network.SSLHandshakeTaskStage;
+import com.ociweb.pronghorn.network.SSLUtil;
+import com.ociweb.pronghorn.network.ServerConnection;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.TLSCertificates;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.SSLHandshakeTaskSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.util.ServiceObjectHolder;
+
+/**
+ * Loopback handshake between an in memory client engine and the server side unwrap logic where
+ * every delegated task is run by a SSLHandshakeTaskStage.
+ */
+public class SSLHandshakeTaskStageTest {
+
+	private static final String KEY_STORE = "/certificates/testcert.jks";
+	private static final String PASSWORD = "testcert";
+	private static final int SIZE_OF_TASK = Pipe.sizeOf(SSLHandshakeTaskSchema.instance, SSLHandshakeTaskSchema.MSG_TASK_100);
+
+	private final TLSCertificates certificates = new TLSCertificates() {
+		@Override
+		public String keyStoreResourceName() {
+			return KEY_STORE;
+		}
+
+		@Override
+		public String trustStroreResourceName() {
+			return KEY_STORE;
+		}
+
+		@Override
+		public String keyStorePassword() {
+			return PASSWORD;
+		}
+
+		@Override
+		public String keyPassword() {
+			return PASSWORD;
+		}
+
+		@Override
+		public boolean trustAllCerts() {
+			return false;
+		}
+	};
+
+	private ServerCoordinator coordinator;
+	private long connectionId;
+	private SSLEngine client;
+	private Pipe<NetPayloadSchema> source;
+	private Pipe<NetPayloadSchema> handshakePipe;
+	private Pipe<SSLHandshakeTaskSchema> tasks;
+	private Pipe<SSLHandshakeTaskSchema> done;
+	private ByteBuffer rolling;
+	private ByteBuffer[] workspace;
+	private ByteBuffer secureBuffer;
+	private ByteBuffer fromServer;
+	private int tasksRun;
+
+	@Test
+	public void handshakeCompletesWithTasksOnTheTaskStage() throws Exception {
+
+		SSLContext context = newContext();
+		coordinator = new ServerCoordinator(certificates, "127.0.0.1", 8443, 4, 1, 1, 1, false);
+		ServiceObjectHolder<ServerConnection> holder = ServerCoordinator.newSocketChannelHolder(coordinator);
+
+		SSLEngine serverEngine = context.createSSLEngine();
+		serverEngine.setUseClientMode(false);
+		serverEngine.beginHandshake();
+		client = context.createSSLEngine("localhost", 8443);
+		client.setUseClientMode(true);
+		client.beginHandshake();
+
+		final long id = connectionId = holder.lookupInsertPosition();
+		SocketChannel channel = SocketChannel.open();
+		try {
+			holder.setValue(id, ServerCoordinator.newConnection(coordinator, serverEngine, channel, id));
+			final SSLConnection cc = coordinator.connectionForSessionId(id);
+
+			PipeConfig<NetPayloadSchema> netConfig = new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 16, 1<<15);
+			source = new Pipe<NetPayloadSchema>(netConfig);
+			handshakePipe = new Pipe<NetPayloadSchema>(netConfig);
+			PipeConfig<SSLHandshakeTaskSchema> taskConfig = new PipeConfig<SSLHandshakeTaskSchema>(SSLHandshakeTaskSchema.instance, 4);
+			tasks = new Pipe<SSLHandshakeTaskSchema>(taskConfig);
+			done = new Pipe<SSLHandshakeTaskSchema>(taskConfig);
+			source.initBuffers();
+			handshakePipe.initBuffers();
+			tasks.initBuffers();
+			done.initBuffers();
+
+			rolling = ByteBuffer.allocateDirect(source.maxVarLen*2);
+			workspace = new ByteBuffer[]{ByteBuffer.allocateDirect(1<<15), ByteBuffer.allocateDirect(0)};
+			secureBuffer = ByteBuffer.allocate(source.maxVarLen*2);
+			fromServer = ByteBuffer.allocate(1<<16);
+
+			SSLHandshakeTaskStage taskStage = new SSLHandshakeTaskStage(new GraphManager(), coordinator, new Pipe[]{tasks}, new Pipe[]{done});
+
+			final int maxLen = source.maxVarLen;
+			int pendingCount = 0;
+			int rounds = 0;
+			while (!(isDone(serverEngine) && isDone(client))) {
+				assertTrue("handshake did not finish", ++rounds < 100);
+
+				clientWrap();
+
+				int result = SSLUtil.handShakeUnWrapIfNeeded(maxLen, source, rolling, workspace, handshakePipe, secureBuffer,
+						                                     true, System.currentTimeMillis(), cc, tasks, 0);
+				if (SSLUtil.HANDSHAKE_TASK_PENDING == result) {
+					pendingCount++;
+					assertEquals(HandshakeStatus.NEED_TASK, serverEngine.getHandshakeStatus());
+
+					//coming back while the task is queued must not queue it again
+					assertEquals(SSLUtil.HANDSHAKE_TASK_PENDING,
+							     SSLUtil.handShakeUnWrapIfNeeded(maxLen, source, rolling, workspace, handshakePipe, secureBuffer,
+							                                     true, System.currentTimeMillis(), cc, tasks, 0));
+				}
+
+				//continuing a handshake may queue the next task
+				while (Pipe.hasContentToRead(tasks)) {
+					taskStage.run();
+					assertFalse(Pipe.hasContentToRead(tasks));
+					assertEquals("each task is queued once", 1, continueFinishedHandshakes(id));
+				}
+
+				serverToClient();
+			}
+
+			assertTrue("the server handshake must wait on the task stage", pendingCount>0);
+			assertTrue(tasksRun >= pendingCount);
+
+			//the session now carries application data
+			ByteBuffer plain = ByteBuffer.wrap("hello".getBytes());
+			ByteBuffer wire = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+			assertEquals(Status.OK, client.wrap(plain, wire).getStatus());
+			wire.flip();
+			ByteBuffer received = ByteBuffer.allocate(serverEngine.getSession().getApplicationBufferSize());
+			serverEngine.unwrap(wire, received);
+			received.flip();
+			assertEquals("hello", new String(received.array(), 0, received.limit()));
+		} finally {
+			channel.close();
+		}
+	}
+
+	private int continueFinishedHandshakes(long id) {
+		int count = 0;
+		while (Pipe.hasContentToRead(done)) {
+			int msgIdx = Pipe.takeMsgIdx(done);
+			assertEquals(SSLHandshakeTaskSchema.MSG_TASK_100, msgIdx);
+			long connectionId = Pipe.takeLong(done);
+			int pipeIdx = Pipe.takeInt(done);
+			Pipe.confirmLowLevelRead(done, SIZE_OF_TASK);
+			Pipe.releaseReadLock(done);
+			assertEquals(id, connectionId);
+			assertEquals(0, pipeIdx);
+			tasksRun++;
+			count++;
+
+			SSLUtil.continueHandshakeAfterTask(coordinator, connectionId, source, rolling, workspace,
+					                           handshakePipe, null, secureBuffer, true, tasks, pipeIdx);
+		}
+		return count;
+	}
+
+	private void clientWrap() throws Exception {
+		while (true) {
+			HandshakeStatus status = client.getHandshakeStatus();
+			if (HandshakeStatus.NEED_TASK == status) {
+				runTasks(client);
+			} else if (HandshakeStatus.NEED_WRAP == status) {
+				ByteBuffer out = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+				client.wrap(ByteBuffer.allocate(0), out);
+				out.flip();
+				if (out.hasRemaining()) {
+					byte[] bytes = new byte[out.remaining()];
+					out.get(bytes);
+					int size = Pipe.addMsgIdx(source, NetPayloadSchema.MSG_ENCRYPTED_200);
+					Pipe.addLongValue(connectionId, source);
+					Pipe.addLongValue(System.currentTimeMillis(), source);
+					Pipe.addByteArray(bytes, 0, bytes.length, source);
+					Pipe.confirmLowLevelWrite(source, size);
+					Pipe.publishWrites(source);
+				} else {
+					return;
+				}
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void serverToClient() throws Exception {
+		while (Pipe.hasContentToRead(handshakePipe)) {
+			assertEquals(NetPayloadSchema.MSG_ENCRYPTED_200, Pipe.takeMsgIdx(handshakePipe));
+			Pipe.takeLong(handshakePipe); //connection
+			Pipe.takeLong(handshakePipe); //arrival time
+			int meta = Pipe.takeRingByteMetaData(handshakePipe);
+			int len = Pipe.takeRingByteLen(handshakePipe);
+			byte[] backing = Pipe.byteBackingArray(meta, handshakePipe);
+			int pos = Pipe.bytePosition(meta, handshakePipe, len);
+			int mask = Pipe.blobMask(handshakePipe);
+			for (int i = 0; i < len; i++) {
+				fromServer.put(backing[mask & (pos+i)]);
+			}
+			Pipe.confirmLowLevelRead(handshakePipe, Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_ENCRYPTED_200));
+			Pipe.releaseReadLock(handshakePipe);
+		}
+
+		fromServer.flip();
+		ByteBuffer app = ByteBuffer.allocate(client.getSession().getApplicationBufferSize());
+		while (fromServer.hasRemaining()) {
+			SSLEngineResult result = client.unwrap(fromServer, app);
+			if (HandshakeStatus.NEED_TASK == client.getHandshakeStatus()) {
+				runTasks(client);
+			}
+			if (Status.OK != result.getStatus() || HandshakeStatus.NEED_WRAP == client.getHandshakeStatus()) {
+				break;
+			}
+		}
+		fromServer.compact();
+	}
+
+	private static void runTasks(SSLEngine engine) {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	private static boolean isDone(SSLEngine engine) {
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return HandshakeStatus.NOT_HANDSHAKING == status || HandshakeStatus.FINISHED == status;
+	}
+
+	private static SSLContext newContext() throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		InputStream in = SSLHandshakeTaskStageTest.class.getResourceAsStream(KEY_STORE);
+		try {
+			keyStore.load(in, PASSWORD.toCharArray());
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(keyStore, PASSWORD.toCharArray());
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(keyStore);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+		return context;
+	}
+
+}
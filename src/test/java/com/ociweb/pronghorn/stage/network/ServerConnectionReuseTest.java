@@ -0,0 +1,48 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerConnection;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+
+public class ServerConnectionReuseTest {
+
+	@Test
+	public void staleReferenceKeepsItsIdentity() throws IOException {
+
+		ServerCoordinator coordinator = new ServerCoordinator(null, "127.0.0.1", 8080, 4, 8, 8, 4, false);
+		ServerCoordinator.newSocketChannelHolder(coordinator);
+
+		SocketChannel firstChannel = SocketChannel.open();
+		SocketChannel secondChannel = SocketChannel.open();
+		try {
+			ServerConnection stale = ServerCoordinator.newConnection(coordinator, null, firstChannel, 3);
+
+			//same slot, next generation of the channel id
+			long reusedId = 3+coordinator.channelBitsSize;
+			ServerConnection fresh = ServerCoordinator.newConnection(coordinator, null, secondChannel, reusedId);
+
+			assertNotSame(stale, fresh);
+			assertEquals(3, stale.getId());
+			assertSame(firstChannel, stale.getSocketChannel());
+			assertEquals(reusedId, fresh.getId());
+			assertSame(secondChannel, fresh.getSocketChannel());
+
+			//the old channel was left open so taking the slot closed it
+			assertFalse(firstChannel.isOpen());
+
+			//closing through the stale reference must not touch the new connection
+			stale.close();
+			assertTrue(secondChannel.isOpen());
+		} finally {
+			firstChannel.close();
+			secondChannel.close();
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+
+public class ServerCoordinatorShardTest {
+
+	@Test
+	public void shardsOwnWholeRouterGroups() {
+
+		ServerCoordinator coordinator = new ServerCoordinator(null, "127.0.0.1", 8080, 4, 8, 8, 4, false);
+		coordinator.setReaderShards(2);
+
+		int[] first = coordinator.readerShardPipes(0);
+		int[] second = coordinator.readerShardPipes(1);
+		assertEquals(8, first.length+second.length);
+
+		boolean[] seen = new boolean[8];
+		for(int p : first) {
+			assertFalse(seen[p]);
+			seen[p] = true;
+		}
+		for(int p : second) {
+			assertFalse(seen[p]);
+			seen[p] = true;
+		}
+
+		assertEquals(0, coordinator.routerShard(0));
+		assertEquals(1, coordinator.routerShard(3));
+
+		//channels alternate between shards and reserve pipes local to their shard
+		assertEquals(0, ServerCoordinator.readerShard(coordinator, 6));
+		assertEquals(1, ServerCoordinator.readerShard(coordinator, 7));
+		int idx = coordinator.responsePipeLineIdx(7);
+		assertTrue(idx>=0 && idx<second.length);
+		assertEquals(idx, coordinator.checkForResponsePipeLineIdx(7));
+		coordinator.releaseResponsePipeLineIdx(7);
+		assertEquals(-1, coordinator.checkForResponsePipeLineIdx(7));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void moreShardsThanRoutersIsRejected() {
+		new ServerCoordinator(null, "127.0.0.1", 8080, 4, 8, 8, 2, false).setReaderShards(3);
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+
+public class ServerIdleReapTest {
+
+	private static final long TIMEOUT = 1000;
+
+	@Test
+	public void reapingIsOffByDefault() throws IOException {
+		ServerCoordinator coordinator = newCoordinator();
+		assertEquals(0, coordinator.idleTimeout());
+
+		SocketChannel channel = SocketChannel.open();
+		try {
+			ServerCoordinator.newConnection(coordinator, null, channel, 3);
+			long now = System.currentTimeMillis();
+			assertEquals(0, reapAll(coordinator, now+(100*TIMEOUT)));
+			assertTrue(channel.isOpen());
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Test
+	public void connectionWaitingOnAResponseIsNotReaped() throws IOException {
+		ServerCoordinator coordinator = newCoordinator();
+		coordinator.setIdleTimeout(TIMEOUT);
+
+		SocketChannel channel = SocketChannel.open();
+		try {
+			ServerCoordinator.newConnection(coordinator, null, channel, 3);
+			long now = System.currentTimeMillis();
+			coordinator.recordActivity(3, now);
+
+			//two pipelined requests, the module is slow to answer
+			coordinator.responseStarted(3);
+			coordinator.responseStarted(3);
+			assertEquals(0, reapAll(coordinator, now+(2*TIMEOUT)));
+
+			coordinator.responseFinished(3);
+			assertEquals(0, reapAll(coordinator, now+(4*TIMEOUT)));
+			assertTrue(channel.isOpen());
+
+			coordinator.responseFinished(3);
+			assertEquals(1, reapAll(coordinator, now+(6*TIMEOUT)));
+			assertFalse(channel.isOpen());
+			assertEquals(1, coordinator.reapedConnections());
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Test
+	public void lateResponseOfTheOldConnectionIsIgnored() throws IOException {
+		ServerCoordinator coordinator = newCoordinator();
+		coordinator.setIdleTimeout(TIMEOUT);
+
+		SocketChannel first = SocketChannel.open();
+		SocketChannel second = SocketChannel.open();
+		try {
+			ServerCoordinator.newConnection(coordinator, null, first, 3);
+			coordinator.responseStarted(3);
+
+			//slot is reused before the old response was ordered
+			long reusedId = 3+coordinator.channelBitsSize;
+			ServerCoordinator.newConnection(coordinator, null, second, reusedId);
+			assertEquals(0, coordinator.responsesPending(reusedId));
+
+			coordinator.responseFinished(3);
+			assertEquals(0, coordinator.responsesPending(reusedId));
+
+			coordinator.responseStarted(reusedId);
+			assertEquals(1, coordinator.responsesPending(reusedId));
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	private static ServerCoordinator newCoordinator() {
+		ServerCoordinator coordinator = new ServerCoordinator(null, "127.0.0.1", 8080, 4, 8, 8, 4, false);
+		ServerCoordinator.newSocketChannelHolder(coordinator);
+		return coordinator;
+	}
+
+	/**
+	 * Runs one full pass over the slots of every reader shard.
+	 */
+	private static int reapAll(ServerCoordinator coordinator, long now) {
+		int reaped = 0;
+		int shard = coordinator.readerShards();
+		while (--shard>=0) {
+			reaped += coordinator.reapIdleConnections(shard, now);
+		}
+		return reaped;
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerSocketWriterStage;
+
+public class ServerSocketWriterGatherTest {
+
+	private static final int MASK = 15;
+
+	@Test
+	public void wrappedSpanIsWrittenInOrderAcrossPartialWrites() throws IOException {
+		ByteBuffer ring = ring();
+		ByteBuffer[] segments = new ByteBuffer[] {ring.duplicate(), ring.duplicate()};
+		CapturingChannel channel = new CapturingChannel(3); //socket only takes a few bytes per call
+
+		int pos = 12; //span of 8 wraps after 4 bytes
+		int len = 8;
+		while (len>0) {
+			long written = ServerSocketWriterStage.gatherWrite(channel, segments, MASK, pos, len);
+			assertTrue(written>0);
+			pos += written;
+			len -= written;
+		}
+		assertArrayEquals(new byte[] {12,13,14,15,0,1,2,3}, channel.bytes.toByteArray());
+	}
+
+	@Test
+	public void spanWithoutWrapUsesOneSegment() throws IOException {
+		ByteBuffer ring = ring();
+		ByteBuffer[] segments = new ByteBuffer[] {ring.duplicate(), ring.duplicate()};
+		CapturingChannel channel = new CapturingChannel(Integer.MAX_VALUE);
+
+		//the unmasked position has already gone around the ring once
+		assertEquals(5, ServerSocketWriterStage.gatherWrite(channel, segments, MASK, 16+3, 5));
+		assertFalse(segments[1].hasRemaining());
+		assertArrayEquals(new byte[] {3,4,5,6,7}, channel.bytes.toByteArray());
+	}
+
+	@Test
+	public void copyFallbackMatchesGather() {
+		ByteBuffer ring = ring();
+		ByteBuffer[] segments = new ByteBuffer[] {ring.duplicate(), ring.duplicate()};
+		ByteBuffer target = ByteBuffer.allocate(MASK+1);
+
+		ServerSocketWriterStage.copySpan(target, segments, MASK, 14, 6);
+		target.flip();
+		byte[] copied = new byte[target.remaining()];
+		target.get(copied);
+		assertArrayEquals(new byte[] {14,15,0,1,2,3}, copied);
+	}
+
+	private static ByteBuffer ring() {
+		ByteBuffer ring = ByteBuffer.allocateDirect(MASK+1);
+		for (int i = 0; i <= MASK; i++) {
+			ring.put((byte)i);
+		}
+		ring.clear();
+		return ring;
+	}
+
+	private static class CapturingChannel implements GatheringByteChannel {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final int maxPerWrite;
+
+		CapturingChannel(int maxPerWrite) {
+			this.maxPerWrite = maxPerWrite;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int count = 0;
+			while (src.hasRemaining() && count < maxPerWrite) {
+				bytes.write(src.get());
+				count++;
+			}
+			return count;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			long total = 0;
+			for (int i = offset; i < offset+length; i++) {
+				int limit = srcs[i].limit();
+				srcs[i].limit((int)Math.min(limit, srcs[i].position()+(maxPerWrite-total)));
+				total += write(srcs[i]);
+				srcs[i].limit(limit);
+			}
+			return total;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs) throws IOException {
+			return write(srcs, 0, srcs.length);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.FileRegions;
+import com.ociweb.pronghorn.network.ServerConnection;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.ServerSocketWriterStage;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.ReleaseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.util.ServiceObjectHolder;
+
+/**
+ * File regions on pipes whose blob ring is written without a copy, these pipes have no working buffer.
+ */
+public class ServerSocketWriterRegionTest {
+
+	@Test
+	public void regionFirstOnGatheringPipe() throws IOException {
+		ServerCoordinator coordinator = new ServerCoordinator(null, "127.0.0.1", 8080, 4, 1, 1, 1, false);
+		ServiceObjectHolder<ServerConnection> holder = ServerCoordinator.newSocketChannelHolder(coordinator);
+		FileRegions regions = new FileRegions(4);
+		coordinator.setFileRegions(regions);
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+		SocketChannel client = SocketChannel.open(server.getLocalAddress());
+		SocketChannel accepted = server.accept();
+
+		long channelId = holder.lookupInsertPosition();
+		holder.setValue(channelId, ServerCoordinator.newConnection(coordinator, null, accepted, channelId));
+
+		byte[] content = new byte[300];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte)i;
+		}
+		FileChannel file = openTemp(content);
+		int fileId = regions.acquire(file);
+
+		Pipe<NetPayloadSchema> input = new Pipe<NetPayloadSchema>(new PipeConfig<NetPayloadSchema>(NetPayloadSchema.instance, 8, 256));
+		Pipe<ReleaseSchema> release = new Pipe<ReleaseSchema>(new PipeConfig<ReleaseSchema>(ReleaseSchema.instance, 16));
+		ServerSocketWriterStage writer = new GatheringWriter(new GraphManager(), coordinator, input, release);
+		input.initBuffers();
+		release.initBuffers();
+		writer.startup();
+
+		//the region is the first message this pipe has seen
+		int size = Pipe.addMsgIdx(input, NetPayloadSchema.MSG_FILEREGION_212);
+		Pipe.addLongValue(channelId, input);
+		Pipe.addLongValue(System.currentTimeMillis(), input);
+		Pipe.addIntValue(fileId, input);
+		Pipe.addLongValue(100, input); //position
+		Pipe.addLongValue(200, input); //length
+		Pipe.confirmLowLevelWrite(input, size);
+		Pipe.publishWrites(input);
+		writer.run();
+		writer.run();
+		assertEquals("region is released once sent", 0, regions.pinned(fileId));
+		assertTrue(Pipe.hasContentToRead(release));
+
+		//payloads that follow still go through the gathering path
+		byte[] tail = "tail".getBytes();
+		size = Pipe.addMsgIdx(input, NetPayloadSchema.MSG_PLAIN_210);
+		Pipe.addLongValue(channelId, input);
+		Pipe.addLongValue(System.currentTimeMillis(), input);
+		Pipe.addLongValue(0, input); //position
+		Pipe.addByteArray(tail, 0, tail.length, input);
+		Pipe.confirmLowLevelWrite(input, size);
+		Pipe.publishWrites(input);
+		writer.run();
+		writer.run();
+
+		ByteBuffer received = ByteBuffer.allocate(200+tail.length);
+		while (received.hasRemaining()) {
+			if (client.read(received) < 0) {
+				break;
+			}
+		}
+		byte[] expected = new byte[200+tail.length];
+		System.arraycopy(content, 100, expected, 0, 200);
+		System.arraycopy(tail, 0, expected, 200, tail.length);
+		assertArrayEquals(expected, received.array());
+
+		client.close();
+		accepted.close();
+		server.close();
+		file.close();
+	}
+
+	private static class GatheringWriter extends ServerSocketWriterStage {
+
+		GatheringWriter(GraphManager gm, ServerCoordinator coordinator, Pipe<NetPayloadSchema> input, Pipe<ReleaseSchema> release) {
+			super(gm, coordinator, 2, new Pipe[]{input}, release);
+		}
+
+		@Override
+		protected boolean isGatherable(ByteBuffer ring) {
+			return true; //as for a direct blob ring
+		}
+	}
+
+	private static FileChannel openTemp(byte[] content) throws IOException {
+		File temp = File.createTempFile("region", ".dat");
+		temp.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		raf.write(content);
+		return raf.getChannel();
+	}
+
+}
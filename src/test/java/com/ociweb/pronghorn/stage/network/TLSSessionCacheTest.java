@@ -0,0 +1,56 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.net.ssl.SSLSession;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.TLSSessionCache;
+
+public class TLSSessionCacheTest {
+
+	@Test
+	public void sessionCreatedBeforeTheHandshakeWasResumed() {
+		TLSSessionCache cache = new TLSSessionCache();
+		long start = 1_000_000;
+
+		cache.recordHandshake(session(start), true, start);
+		cache.recordHandshake(session(start+5), true, start);
+		assertEquals(2, cache.fullHandshakes());
+		assertEquals(0, cache.resumedHandshakes());
+
+		//same session id or a ticket from an earlier connection
+		cache.recordHandshake(session(start-60_000), true, start);
+		cache.recordHandshake(session(start-1), false, start);
+		assertEquals(2, cache.fullHandshakes());
+		assertEquals(2, cache.resumedHandshakes());
+		assertEquals(.5f, cache.hitRate(), .0001f);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void limitsMustBePositive() {
+		new TLSSessionCache(0, 60, false);
+	}
+
+	/**
+	 * Session with only a creation time, it has no context to configure.
+	 */
+	private static SSLSession session(final long creationTime) {
+		return (SSLSession)Proxy.newProxyInstance(SSLSession.class.getClassLoader(), new Class<?>[]{SSLSession.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getCreationTime".equals(method.getName())) {
+							return creationTime;
+						}
+						return null;
+					}
+				});
+	}
+
+}
@@ -0,0 +1,279 @@
+package com.ociweb.pronghorn.stage.network;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerConnection;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.WebSocketFrameDecoderStage;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.WebSocketSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.util.ServiceObjectHolder;
+
+public class WebSocketFrameDecoderTest {
+
+	private static final long CHANNEL = 1;
+	private static final int MAX_MESSAGE = 64;
+	private static final int MASK = 0x37FA213D;
+
+	private static final int FIN = 0x80;
+	private static final int RSV1 = 0x40;
+
+	private ServerCoordinator coordinator;
+	private ServiceObjectHolder<ServerConnection> holder;
+	private Pipe<HTTPRequestSchema> frames;
+	private Pipe<WebSocketSchema> messages;
+	private Pipe<WebSocketSchema> control;
+	private WebSocketFrameDecoderStage decoder;
+
+	@Before
+	public void buildDecoder() {
+		coordinator = new ServerCoordinator(null, "127.0.0.1", 8080, 4, 1, 1, 1, false);
+		holder = ServerCoordinator.newSocketChannelHolder(coordinator);
+
+		frames = new Pipe<HTTPRequestSchema>(new PipeConfig<HTTPRequestSchema>(HTTPRequestSchema.instance, 8, 128));
+		messages = new Pipe<WebSocketSchema>(new PipeConfig<WebSocketSchema>(WebSocketSchema.instance, 8, MAX_MESSAGE));
+		control = new Pipe<WebSocketSchema>(new PipeConfig<WebSocketSchema>(WebSocketSchema.instance, 8, MAX_MESSAGE));
+
+		decoder = new WebSocketFrameDecoderStage(new GraphManager(), coordinator,
+				                                 new Pipe[]{frames}, new Pipe[]{messages}, control, MAX_MESSAGE, 2);
+		frames.initBuffers();
+		messages.initBuffers();
+		control.initBuffers();
+		decoder.startup();
+	}
+
+	@Test
+	public void unmaskMatchesByteWiseReference() {
+		Random random = new Random(42);
+		byte[] ring = new byte[64]; //wraps so the copy out of the ring is split
+		int ringMask = ring.length-1;
+		random.nextBytes(ring);
+
+		for (int len = 0; len <= 40; len++) {
+			for (int pos = 50; pos < 58; pos++) {
+				for (int targetPos = 0; targetPos < 3; targetPos++) {
+					byte[] target = new byte[targetPos+len];
+					WebSocketFrameDecoderStage.unmaskInto(ring, pos, ringMask, len, MASK, target, ByteBuffer.wrap(target), targetPos);
+
+					byte[] expected = new byte[targetPos+len];
+					for (int i = 0; i < len; i++) {
+						expected[targetPos+i] = (byte)(ring[ringMask & (pos+i)] ^ (MASK >>> (24-8*(i%4))));
+					}
+					assertArrayEquals("len "+len+" pos "+pos+" target "+targetPos, expected, target);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void continuationFramesAreJoined() {
+		sendFrame(WebSocketSchema.OPCODE_TEXT, "Hello, ".getBytes());
+		sendFrame(0, "Web".getBytes());
+		sendFrame(FIN, "Socket".getBytes());
+
+		assertMessage(messages, WebSocketSchema.OPCODE_TEXT, "Hello, WebSocket".getBytes());
+		assertFalse(Pipe.hasContentToRead(messages));
+		assertFalse(Pipe.hasContentToRead(control));
+	}
+
+	@Test
+	public void controlFrameBetweenFragments() {
+		sendFrame(WebSocketSchema.OPCODE_BINARY, new byte[]{1, 2});
+		sendFrame(FIN|WebSocketSchema.OPCODE_PING, "ping".getBytes());
+		sendFrame(FIN, new byte[]{3});
+
+		assertMessage(control, WebSocketSchema.OPCODE_PONG, "ping".getBytes());
+		assertMessage(messages, WebSocketSchema.OPCODE_BINARY, new byte[]{1, 2, 3});
+	}
+
+	@Test
+	public void deflatedMessageIsInflated() {
+		ServerCoordinator.setWebSocketDeflate(coordinator, CHANNEL, true);
+		byte[] text = "abcabcabcabcabcabcabcabcabcabcabcabcabcabcabc".getBytes();
+		byte[] compressed = deflate(text);
+		assertTrue(compressed.length < text.length);
+
+		sendFrame(FIN|RSV1|WebSocketSchema.OPCODE_TEXT, compressed);
+
+		assertMessage(messages, WebSocketSchema.OPCODE_TEXT, text);
+		assertFalse(Pipe.hasContentToRead(control));
+	}
+
+	@Test
+	public void deflatedMessageAcrossFragments() {
+		ServerCoordinator.setWebSocketDeflate(coordinator, CHANNEL, true);
+		byte[] text = "the quick brown fox, the quick brown fox, the quick brown fox".getBytes();
+		byte[] compressed = deflate(text);
+		int half = compressed.length/2;
+
+		sendFrame(RSV1|WebSocketSchema.OPCODE_TEXT, Arrays.copyOfRange(compressed, 0, half));
+		sendFrame(FIN, Arrays.copyOfRange(compressed, half, compressed.length));
+
+		assertMessage(messages, WebSocketSchema.OPCODE_TEXT, text);
+	}
+
+	@Test
+	public void deflateNotAgreedIsProtocolError() {
+		sendFrame(FIN|RSV1|WebSocketSchema.OPCODE_TEXT, deflate("abc".getBytes()));
+
+		assertEquals(WebSocketFrameDecoderStage.CLOSE_PROTOCOL_ERROR, closeCode());
+		assertFalse(Pipe.hasContentToRead(messages));
+	}
+
+	@Test
+	public void singleFrameOverLimitIsClosedWith1009() {
+		sendFrame(FIN|WebSocketSchema.OPCODE_BINARY, new byte[MAX_MESSAGE+1]);
+
+		assertEquals(WebSocketFrameDecoderStage.CLOSE_TOO_BIG, closeCode());
+		assertFalse(Pipe.hasContentToRead(messages));
+	}
+
+	@Test
+	public void joinedFramesOverLimitAreClosedWith1009() {
+		sendFrame(WebSocketSchema.OPCODE_BINARY, new byte[MAX_MESSAGE/2]);
+		sendFrame(0, new byte[MAX_MESSAGE/2]);
+		sendFrame(FIN, new byte[1]);
+
+		assertEquals(WebSocketFrameDecoderStage.CLOSE_TOO_BIG, closeCode());
+		assertFalse(Pipe.hasContentToRead(messages));
+	}
+
+	@Test
+	public void inflatedOverLimitIsClosedWith1009() {
+		ServerCoordinator.setWebSocketDeflate(coordinator, CHANNEL, true);
+		byte[] zeros = new byte[MAX_MESSAGE*4]; //compresses to a few bytes
+		sendFrame(FIN|RSV1|WebSocketSchema.OPCODE_BINARY, deflate(zeros));
+
+		assertEquals(WebSocketFrameDecoderStage.CLOSE_TOO_BIG, closeCode());
+		assertFalse(Pipe.hasContentToRead(messages));
+	}
+
+	@Test
+	public void partialOfClosedConnectionIsReclaimed() throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+		SocketChannel[] clients = new SocketChannel[3];
+		long[] channels = new long[3];
+		for (int i = 0; i < channels.length; i++) {
+			clients[i] = SocketChannel.open(server.getLocalAddress());
+			channels[i] = upgradedConnection(server.accept());
+		}
+
+		//both slots are taken by messages which are still open
+		sendFrame(channels[0], WebSocketSchema.OPCODE_TEXT, "abandoned".getBytes());
+		sendFrame(channels[1], WebSocketSchema.OPCODE_TEXT, "Hello, ".getBytes());
+		sendFrame(channels[2], WebSocketSchema.OPCODE_TEXT, "too many".getBytes());
+		assertEquals(WebSocketFrameDecoderStage.CLOSE_TOO_BIG, closeCode(channels[2]));
+
+		//the first client goes away without finishing its message
+		holder.get(channels[0]).close();
+
+		sendFrame(channels[2], WebSocketSchema.OPCODE_BINARY, new byte[]{1, 2});
+		sendFrame(channels[2], FIN, new byte[]{3});
+		sendFrame(channels[1], FIN, "World".getBytes());
+
+		assertMessage(messages, channels[2], WebSocketSchema.OPCODE_BINARY, new byte[]{1, 2, 3});
+		assertMessage(messages, channels[1], WebSocketSchema.OPCODE_TEXT, "Hello, World".getBytes());
+		assertFalse(Pipe.hasContentToRead(control));
+
+		for (int i = 0; i < clients.length; i++) {
+			clients[i].close();
+		}
+		server.close();
+	}
+
+	private long upgradedConnection(SocketChannel accepted) {
+		long channelId = holder.lookupInsertPosition();
+		holder.setValue(channelId, ServerCoordinator.newConnection(coordinator, null, accepted, channelId));
+		ServerCoordinator.setUpgradePipe(coordinator, channelId, 0);
+		return channelId;
+	}
+
+	/**
+	 * Raw deflate with the 00 00 FF FF tail of the sync flush removed, see RFC 7692.
+	 */
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data);
+		byte[] buffer = new byte[data.length+64];
+		int len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+		deflater.end();
+		return Arrays.copyOfRange(buffer, 0, len-4);
+	}
+
+	/**
+	 * Sends the payload masked as the router would pass it on.
+	 */
+	private void sendFrame(int finOpp, byte[] payload) {
+		sendFrame(CHANNEL, finOpp, payload);
+	}
+
+	private void sendFrame(long channelId, int finOpp, byte[] payload) {
+		byte[] masked = new byte[payload.length];
+		for (int i = 0; i < payload.length; i++) {
+			masked[i] = (byte)(payload[i] ^ (MASK >>> (24-8*(i%4))));
+		}
+		int size = Pipe.addMsgIdx(frames, HTTPRequestSchema.MSG_WEBSOCKETFRAME_100);
+		Pipe.addLongValue(channelId, frames);
+		Pipe.addIntValue(0, frames); //sequence
+		Pipe.addIntValue(finOpp, frames);
+		Pipe.addIntValue(MASK, frames);
+		Pipe.addByteArray(masked, 0, masked.length, frames);
+		Pipe.confirmLowLevelWrite(frames, size);
+		Pipe.publishWrites(frames);
+		decoder.run();
+	}
+
+	private int closeCode() {
+		return closeCode(CHANNEL);
+	}
+
+	private int closeCode(long channelId) {
+		byte[] payload = takeMessage(control, channelId, WebSocketSchema.OPCODE_CLOSE);
+		assertEquals(2, payload.length);
+		return ((0xFF & payload[0])<<8) | (0xFF & payload[1]);
+	}
+
+	private static void assertMessage(Pipe<WebSocketSchema> pipe, int opcode, byte[] expected) {
+		assertMessage(pipe, CHANNEL, opcode, expected);
+	}
+
+	private static void assertMessage(Pipe<WebSocketSchema> pipe, long channelId, int opcode, byte[] expected) {
+		assertArrayEquals(expected, takeMessage(pipe, channelId, opcode));
+	}
+
+	private static byte[] takeMessage(Pipe<WebSocketSchema> pipe, long channelId, int opcode) {
+		assertTrue(Pipe.hasContentToRead(pipe));
+		assertEquals(WebSocketSchema.MSG_MESSAGE_100, Pipe.takeMsgIdx(pipe));
+		assertEquals(channelId, Pipe.takeLong(pipe));
+		assertEquals(opcode, Pipe.takeInt(pipe));
+		int meta = Pipe.takeRingByteMetaData(pipe);
+		int len = Pipe.takeRingByteLen(pipe);
+		byte[] backing = Pipe.byteBackingArray(meta, pipe);
+		int pos = Pipe.bytePosition(meta, pipe, len);
+		int mask = Pipe.blobMask(pipe);
+		byte[] payload = new byte[len];
+		for (int i = 0; i < len; i++) {
+			payload[i] = backing[mask & (pos+i)];
+		}
+		Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, WebSocketSchema.MSG_MESSAGE_100));
+		Pipe.releaseReadLock(pipe);
+		return payload;
+	}
+
+}
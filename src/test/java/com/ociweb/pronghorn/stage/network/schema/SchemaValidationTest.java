@@ -15,8 +15,10 @@ import com.ociweb.pronghorn.network.schema.MQTTServerToClientSchema;
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
 import com.ociweb.pronghorn.network.schema.NetResponseSchema;
 import com.ociweb.pronghorn.network.schema.ReleaseSchema;
+import com.ociweb.pronghorn.network.schema.SSLHandshakeTaskSchema;
 import com.ociweb.pronghorn.network.schema.TwitterEventSchema;
 import com.ociweb.pronghorn.network.schema.TwitterStreamControlSchema;
+import com.ociweb.pronghorn.network.schema.WebSocketSchema;
 import com.ociweb.pronghorn.pipe.util.build.FROMValidation;
 
 public class SchemaValidationTest {
@@ -32,6 +34,16 @@ public class SchemaValidationTest {
     public void messageNetParseAckSchemaFROMTest() {
         assertTrue(FROMValidation.checkSchema("/Release.xml", ReleaseSchema.class));
     }
+    
+    @Test
+    public void messageSSLHandshakeTaskSchemaFROMTest() {
+        assertTrue(FROMValidation.checkSchema("/SSLHandshakeTask.xml", SSLHandshakeTaskSchema.class));
+    }
+
+    @Test
+    public void messageWebSocketSchemaFROMTest() {
+        assertTrue(FROMValidation.checkSchema("/webSocket.xml", WebSocketSchema.class));
+    }
 	
     @Test
     public void messageNetResponseSchemaFROMTest() {
@@ -0,0 +1,109 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+public class AdaptiveRegroupTest {
+
+	@Test
+	public void regroupingContinuesAfterMissedSafePoint() throws InterruptedException {
+
+		GraphManager gm = new GraphManager();
+		PipeConfig<RawDataSchema> config = new PipeConfig<RawDataSchema>(RawDataSchema.instance, 16);
+
+		//each chain stalls once for longer than the safe point timeout, at different times
+		//so at least one stall is on a thread which did not start the regroup attempt
+		long start = System.currentTimeMillis();
+		StallStage first = chain(gm, config, start+200);
+		StallStage second = chain(gm, config, start+1_800);
+
+		ScriptedFixedThreadsScheduler scheduler = new ScriptedFixedThreadsScheduler(gm, 2, true);
+		scheduler.setAdaptiveRegrouping(50_000_000);
+		scheduler.startup();
+
+		while (!(first.stallDone() && second.stallDone()) && System.currentTimeMillis()-start < 10_000) {
+			Thread.sleep(50);
+		}
+		assertTrue(first.stallDone() && second.stallDone());
+		int safePoints = scheduler.regroupSafePoints();
+
+		Thread.sleep(500);
+		int after = scheduler.regroupSafePoints();
+
+		scheduler.shutdown();
+		scheduler.awaitTermination(10, TimeUnit.SECONDS);
+
+		assertTrue("regrouping must be attempted again after a missed safe point", after > safePoints);
+	}
+
+	private static StallStage chain(GraphManager gm, PipeConfig<RawDataSchema> config, long stallAt) {
+		Pipe<RawDataSchema> pipe = new Pipe<RawDataSchema>(config);
+		new FeedStage(gm, pipe);
+		return new StallStage(gm, pipe, stallAt);
+	}
+
+	private static class FeedStage extends PronghornStage {
+
+		private final Pipe<RawDataSchema> output;
+
+		protected FeedStage(GraphManager gm, Pipe<RawDataSchema> output) {
+			super(gm, NONE, output);
+			this.output = output;
+		}
+
+		@Override
+		public void run() {
+			if (Pipe.hasRoomForWrite(output)) {
+				int size = Pipe.addMsgIdx(output, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+				Pipe.addNullByteArray(output);
+				Pipe.confirmLowLevelWrite(output, size);
+				Pipe.publishWrites(output);
+			}
+		}
+	}
+
+	private static class StallStage extends PronghornStage {
+
+		private final Pipe<RawDataSchema> input;
+		private final long stallAt;
+		private volatile boolean stallDone;
+
+		protected StallStage(GraphManager gm, Pipe<RawDataSchema> input, long stallAt) {
+			super(gm, input, NONE);
+			this.input = input;
+			this.stallAt = stallAt;
+		}
+
+		boolean stallDone() {
+			return stallDone;
+		}
+
+		@Override
+		public void run() {
+			while (Pipe.hasContentToRead(input)) {
+				int msgIdx = Pipe.takeMsgIdx(input);
+				Pipe.takeRingByteMetaData(input);
+				Pipe.takeRingByteLen(input);
+				Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+				Pipe.releaseReadLock(input);
+			}
+			if (!stallDone && System.currentTimeMillis() >= stallAt) {
+				try {
+					Thread.sleep(1_500); //longer than the safe point timeout
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				stallDone = true;
+			}
+		}
+	}
+
+}
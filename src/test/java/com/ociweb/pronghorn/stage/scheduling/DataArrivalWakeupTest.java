@@ -0,0 +1,118 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+public class DataArrivalWakeupTest {
+
+	private static final long MAX_PARK_NS = 60_000_000_000L; //far longer than the test so only a wake can end the park
+
+	@Test
+	public void parkedThreadWakesOnPublishAndShutdown() throws InterruptedException {
+
+		GraphManager gm = new GraphManager();
+		Pipe<RawDataSchema> pipe = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance, 8));
+		FeedStage feed = new FeedStage(gm, pipe);
+		CountStage count = new CountStage(gm, pipe);
+
+		//scheduleId is the index+1 in the peers array
+		ScriptedNonThreadScheduler producer = new ScriptedNonThreadScheduler(1, gm, false, new PronghornStage[]{feed}, "producer");
+		final ScriptedNonThreadScheduler consumer = new ScriptedNonThreadScheduler(2, gm, false, new PronghornStage[]{count}, "consumer");
+		ScriptedNonThreadScheduler[] peers = new ScriptedNonThreadScheduler[]{producer, consumer};
+		producer.enableDataArrivalWakeups(peers, 0, 0, MAX_PARK_NS);
+		consumer.enableDataArrivalWakeups(peers, 0, 0, MAX_PARK_NS);
+		producer.startup();
+		consumer.startup();
+
+		Thread consumerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!ScriptedNonThreadScheduler.isShutdownRequested(consumer)) {
+					consumer.run();
+				}
+			}
+		}, "consumer");
+		consumerThread.start();
+
+		awaitParked(consumerThread);
+		assertEquals(0, count.received());
+
+		feed.send = true;
+		producer.run(); //publishes one message then wakes the consumer
+		long limit = System.currentTimeMillis()+5_000;
+		while (count.received() == 0 && System.currentTimeMillis() < limit) {
+			Thread.sleep(1);
+		}
+		assertEquals(1, count.received());
+
+		awaitParked(consumerThread);
+		consumer.shutdown();
+		consumerThread.join(5_000);
+		assertFalse("shutdown must wake the parked thread", consumerThread.isAlive());
+		producer.shutdown();
+	}
+
+	private static void awaitParked(Thread thread) throws InterruptedException {
+		long limit = System.currentTimeMillis()+5_000;
+		while (Thread.State.TIMED_WAITING != thread.getState() && System.currentTimeMillis() < limit) {
+			Thread.sleep(1);
+		}
+		assertEquals(Thread.State.TIMED_WAITING, thread.getState());
+	}
+
+	private static class FeedStage extends PronghornStage {
+
+		private final Pipe<RawDataSchema> output;
+		volatile boolean send;
+
+		protected FeedStage(GraphManager gm, Pipe<RawDataSchema> output) {
+			super(gm, NONE, output);
+			this.output = output;
+		}
+
+		@Override
+		public void run() {
+			if (send && Pipe.hasRoomForWrite(output)) {
+				send = false;
+				int size = Pipe.addMsgIdx(output, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+				Pipe.addNullByteArray(output);
+				Pipe.confirmLowLevelWrite(output, size);
+				Pipe.publishWrites(output);
+			}
+		}
+	}
+
+	private static class CountStage extends PronghornStage {
+
+		private final Pipe<RawDataSchema> input;
+		private volatile int received;
+
+		protected CountStage(GraphManager gm, Pipe<RawDataSchema> input) {
+			super(gm, input, NONE);
+			this.input = input;
+		}
+
+		int received() {
+			return received;
+		}
+
+		@Override
+		public void run() {
+			while (Pipe.hasContentToRead(input)) {
+				int msgIdx = Pipe.takeMsgIdx(input);
+				Pipe.takeRingByteMetaData(input);
+				Pipe.takeRingByteLen(input);
+				Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+				Pipe.releaseReadLock(input);
+				received++;
+			}
+		}
+	}
+
+}
@@ -1,5 +1,102 @@
 package com.ociweb.pronghorn.stage.scheduling;
 
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
 public class DynamicDisableTest {
 
+	@Test
+	public void disableWhenIdleAndEnableOnData() throws InterruptedException {
+
+		Pipe<RawDataSchema> input = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance));
+		input.initBuffers();
+
+		final boolean[] state = new boolean[1];
+		SubGraphDisableable disableable = new SubGraphDisableable() {
+			@Override
+			public void disable(int idx, boolean b) {
+				state[idx] = b;
+			}
+			@Override
+			public boolean disabled(int idx) {
+				return state[idx];
+			}
+		};
+
+		DynamicDisableSubGraph dds = new DynamicDisableSubGraph(1, disableable, 50_000_000);
+		dds.addSubGraph(0, disableable, new Pipe[]{input}, new Pipe[]{input});
+
+		dds.processUnit();
+		assertFalse(state[0]);
+
+		Thread.sleep(60);
+		dds.processUnit();
+		assertTrue(state[0]);
+
+		int size = Pipe.addMsgIdx(input, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+		Pipe.addNullByteArray(input);
+		Pipe.confirmLowLevelWrite(input, size);
+		Pipe.publishWrites(input);
+
+		dds.processUnit();
+		assertFalse(state[0]);
+
+		//while data is waiting it must never be disabled again
+		Thread.sleep(60);
+		dds.processUnit();
+		assertFalse(state[0]);
+
+	}
+
+	@Test
+	public void allBlocksDisabledStillWaitsForTheClock() {
+
+		GraphManager gm = new GraphManager();
+		Pipe<RawDataSchema> input = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance));
+		AtomicInteger runs = new AtomicInteger();
+		CountingStage consumer = new CountingStage(gm, input, runs);
+		GraphManager.addNota(gm, GraphManager.SCHEDULE_RATE, 2_000_000, consumer);
+
+		ScriptedNonThreadScheduler nts = new ScriptedNonThreadScheduler(1, gm, false, new PronghornStage[]{consumer}, "idle");
+		nts.enableDynamicDisable(60_000_000_000L);
+		nts.startup();
+		nts.disable(0, true); //the only block on this thread, its input stays empty
+
+		int passes = 10;
+		long start = System.nanoTime();
+		for (int i = 0; i < passes; i++) {
+			nts.run();
+		}
+		long duration = System.nanoTime()-start;
+		nts.shutdown();
+
+		assertTrue(nts.disabled(0));
+		assertEquals(0, runs.get());
+		//each pass waits out one block time rather than returning at once
+		assertTrue("passes returned after "+duration+"ns", duration >= (passes-1)*2_000_000L);
+	}
+
+	private static class CountingStage extends PronghornStage {
+
+		private final AtomicInteger runs;
+
+		protected CountingStage(GraphManager gm, Pipe<RawDataSchema> input, AtomicInteger runs) {
+			super(gm, input, NONE);
+			this.runs = runs;
+		}
+
+		@Override
+		public void run() {
+			runs.incrementAndGet();
+		}
+	}
+
 }
@@ -19,7 +19,8 @@ public class ElapsedTimeRecorderTest {
 		etr.record(etr, 32);
 		etr.record(etr, 32);
 		
-		assertEquals(20,etr.elapsedAtPercentile(etr, .5f));
+		//the median of 8,8,32,32,32,32 is 32, sub-buckets keep this exact
+		assertEquals(32,etr.elapsedAtPercentile(etr, .5f));
 				
 	}
 	
@@ -45,4 +46,93 @@ public class ElapsedTimeRecorderTest {
 				
 	}
 	
+	@Test
+	public void subBucketPrecision() {
+		
+		ElapsedTimeRecorder etr = new ElapsedTimeRecorder(5);
+		
+		int i = 1000;
+		while (--i>=0) {
+			ElapsedTimeRecorder.record(etr, 1_000_000);
+		}
+		ElapsedTimeRecorder.record(etr, 1_500_000);
+		
+		long p50 = ElapsedTimeRecorder.elapsedAtPercentile(etr, .5f);
+		assertTrue(p50+"", Math.abs(p50-1_000_000) <= 1_000_000/32);
+		assertEquals(1_500_000, ElapsedTimeRecorder.elapsedAtPercentile(etr, 1f));
+		
+	}
+	
+	@Test
+	public void rowsOnlyForRecordedMagnitudes() {
+		
+		ElapsedTimeRecorder etr = new ElapsedTimeRecorder(5);
+		assertEquals(0, etr.allocatedRows());
+		
+		ElapsedTimeRecorder.record(etr, 100);
+		ElapsedTimeRecorder.record(etr, 101);
+		ElapsedTimeRecorder.record(etr, 1_000_000_000L);
+		assertEquals(2, etr.allocatedRows());
+		assertEquals(100, ElapsedTimeRecorder.elapsedAtPercentile(etr, .3f));
+		assertEquals(1_000_000_000L, ElapsedTimeRecorder.elapsedAtPercentile(etr, 1f));
+		
+		ElapsedTimeRecorder sum = new ElapsedTimeRecorder(5);
+		sum.add(etr);
+		sum.add(etr);
+		assertEquals(2, sum.allocatedRows());
+		assertEquals(6, ElapsedTimeRecorder.totalCount(sum));
+		
+		ElapsedTimeRecorder interval = new ElapsedTimeRecorder(5);
+		interval.difference(sum, etr);
+		assertEquals(3, ElapsedTimeRecorder.totalCount(interval));
+		long top = ElapsedTimeRecorder.elapsedAtPercentile(interval, 1f);
+		assertTrue(top+"", Math.abs(top-1_000_000_000L) <= 1_000_000_000L/32);
+		
+		etr.clear();
+		assertEquals(0, ElapsedTimeRecorder.totalCount(etr));
+		assertEquals(0, ElapsedTimeRecorder.elapsedAtPercentile(etr, .5f));
+		
+	}
+	
+	@Test
+	public void threadedMergeAndInterval() throws InterruptedException {
+		
+		final ThreadedElapsedTimeRecorder recorder = new ThreadedElapsedTimeRecorder();
+		
+		Thread[] threads = new Thread[4];
+		int t = threads.length;
+		while (--t>=0) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int i = 1000;
+					while (--i>=0) {
+						ThreadedElapsedTimeRecorder.record(recorder, 3, 100);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		t = threads.length;
+		while (--t>=0) {
+			threads[t].join();
+		}
+		
+		ElapsedTimeRecorder target = new ElapsedTimeRecorder();
+		ThreadedElapsedTimeRecorder.snapshot(recorder, 3, target);
+		assertEquals(4000, ElapsedTimeRecorder.totalCount(target));
+		
+		ThreadedElapsedTimeRecorder.intervalSnapshot(recorder, 3, target);
+		assertEquals(4000, ElapsedTimeRecorder.totalCount(target));
+		
+		ThreadedElapsedTimeRecorder.record(recorder, 3, 200);
+		ThreadedElapsedTimeRecorder.intervalSnapshot(recorder, 3, target);
+		assertEquals(1, ElapsedTimeRecorder.totalCount(target));
+		assertEquals(200, ElapsedTimeRecorder.elapsedAtPercentile(target, .5f));
+		
+		ThreadedElapsedTimeRecorder.snapshot(recorder, 3, target);
+		assertEquals(4001, ElapsedTimeRecorder.totalCount(target));
+		
+	}
+	
 }
@@ -0,0 +1,138 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.concurrent.TimeUnit;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.monitor.PipeMonitorSchema;
+
+public class StageColocationBenchmark {
+
+    //////////////////////////////////
+    //THIS IS NOT A UNIT TEST
+    //IT DOES NOT RUN WHEN TESTS RUN
+    //////////////////////////////////
+
+	//Runs many short linear chains of light stages and reports the messages per second
+	//reaching the sinks with and without chain colocation.
+
+	private static final int chains = 8;
+	private static final int chainLength = 6;
+	private static final int threads = 4;
+	private static final long runMS = 20_000;
+
+	public static void main(String[] args) {
+
+		long apart = runTest(false);
+		long colocated = runTest(true);
+
+		System.out.println("apart     "+(apart*1000/runMS)+" msg/sec");
+		System.out.println("colocated "+(colocated*1000/runMS)+" msg/sec");
+
+	}
+
+	private static long runTest(boolean colocate) {
+		GraphManager gm = new GraphManager();
+		if (colocate) {
+			GraphManager.enableChainColocation(gm);
+		}
+		PipeConfig<PipeMonitorSchema> config = new PipeConfig<PipeMonitorSchema>(PipeMonitorSchema.instance, 64);
+
+		SinkStage[] sinks = new SinkStage[chains];
+		int c = chains;
+		while (--c>=0) {
+			Pipe<PipeMonitorSchema> pipe = new Pipe<PipeMonitorSchema>(config);
+			new ProducerStage(gm, pipe);
+			int r = chainLength;
+			while (--r>=0) {
+				Pipe<PipeMonitorSchema> next = new Pipe<PipeMonitorSchema>(config);
+				new RelayStage(gm, pipe, next);
+				pipe = next;
+			}
+			sinks[c] = new SinkStage(gm, pipe);
+		}
+
+		ScriptedFixedThreadsScheduler scheduler = new ScriptedFixedThreadsScheduler(gm, threads, true);
+		scheduler.startup();
+		try {
+			Thread.sleep(runMS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		scheduler.shutdown();
+		scheduler.awaitTermination(10, TimeUnit.SECONDS);
+
+		long total = 0;
+		c = chains;
+		while (--c>=0) {
+			total += sinks[c].count;
+		}
+		return total;
+	}
+
+	private static class ProducerStage extends PronghornStage {
+
+		private final Pipe<PipeMonitorSchema> output;
+
+		protected ProducerStage(GraphManager graphManager, Pipe<PipeMonitorSchema> output) {
+			super(graphManager, NONE, output);
+			this.output = output;
+		}
+
+		@Override
+		public void run() {
+			while (PipeWriter.tryWriteFragment(output, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100)) {
+				PipeWriter.writeLong(output, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100_FIELD_MS_1, System.nanoTime());
+				PipeWriter.publishWrites(output);
+			}
+		}
+	}
+
+	private static class RelayStage extends PronghornStage {
+
+		private final Pipe<PipeMonitorSchema> input;
+		private final Pipe<PipeMonitorSchema> output;
+
+		protected RelayStage(GraphManager graphManager, Pipe<PipeMonitorSchema> input, Pipe<PipeMonitorSchema> output) {
+			super(graphManager, input, output);
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		public void run() {
+			while (PipeWriter.hasRoomForWrite(output) && PipeReader.tryReadFragment(input)) {
+				long value = PipeReader.readLong(input, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100_FIELD_MS_1);
+				PipeReader.releaseReadLock(input);
+				PipeWriter.presumeWriteFragment(output, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100);
+				PipeWriter.writeLong(output, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100_FIELD_MS_1, value);
+				PipeWriter.publishWrites(output);
+			}
+		}
+	}
+
+	private static class SinkStage extends PronghornStage {
+
+		private final Pipe<PipeMonitorSchema> input;
+		private volatile long count;
+
+		protected SinkStage(GraphManager graphManager, Pipe<PipeMonitorSchema> input) {
+			super(graphManager, input, NONE);
+			this.input = input;
+		}
+
+		@Override
+		public void run() {
+			long local = count;
+			while (PipeReader.tryReadFragment(input)) {
+				PipeReader.releaseReadLock(input);
+				local++;
+			}
+			count = local;
+		}
+	}
+
+}
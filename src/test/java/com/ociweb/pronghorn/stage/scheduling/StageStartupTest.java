@@ -0,0 +1,75 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+public class StageStartupTest {
+
+	@Test
+	public void upstreamFirstAndRollbackOnFailure() {
+
+		GraphManager gm = new GraphManager();
+		StringBuilder events = new StringBuilder();
+
+		Pipe<RawDataSchema> rb1 = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance));
+		Pipe<RawDataSchema> rb2 = new Pipe<RawDataSchema>(new PipeConfig<RawDataSchema>(RawDataSchema.instance));
+
+		//built in reverse so the array order is not the data flow order
+		PronghornStage c = new RecordingStage(gm, rb2, null, "c", events, true);
+		PronghornStage b = new RecordingStage(gm, rb1, rb2, "b", events, false);
+		PronghornStage a = new RecordingStage(gm, null, rb1, "a", events, false);
+
+		ScriptedNonThreadScheduler scheduler = new ScriptedNonThreadScheduler(gm);
+		try {
+			scheduler.startup();
+			fail("startup must throw when a stage fails");
+		} catch (RuntimeException e) {
+			//expected
+		}
+
+		assertEquals("+a+b!c-c-b-a", events.toString());
+		assertTrue(GraphManager.isStageTerminated(gm, a.stageId));
+		assertTrue(GraphManager.isStageTerminated(gm, b.stageId));
+		assertTrue(GraphManager.isStageTerminated(gm, c.stageId));
+	}
+
+	private static class RecordingStage extends PronghornStage {
+
+		private final String name;
+		private final StringBuilder events;
+		private final boolean fail;
+
+		protected RecordingStage(GraphManager gm, Pipe<RawDataSchema> input, Pipe<RawDataSchema> output,
+				                 String name, StringBuilder events, boolean fail) {
+			super(gm, null==input ? NONE : new Pipe[]{input}, null==output ? NONE : new Pipe[]{output});
+			this.name = name;
+			this.events = events;
+			this.fail = fail;
+		}
+
+		@Override
+		public void startup() {
+			if (fail) {
+				events.append('!').append(name);
+				throw new RuntimeException("startup failure of "+name);
+			}
+			events.append('+').append(name);
+		}
+
+		@Override
+		public void run() {
+		}
+
+		@Override
+		public void shutdown() {
+			events.append('-').append(name);
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.concurrent.TimeUnit;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.monitor.PipeMonitorSchema;
+
+public class WorkStealingBenchmark {
+
+    //////////////////////////////////
+    //THIS IS NOT A UNIT TEST
+    //IT DOES NOT RUN WHEN TESTS RUN
+    //////////////////////////////////
+
+	//Builds a skewed graph, one producer feeds many heavy workers while the
+	//remaining producers feed light workers. The producer to sink latency histogram
+	//is printed with and without work stealing, no results are recorded here.
+
+	private static final int lightChains = 6;
+	private static final int heavyWorkers = 4;
+	private static final int threads = 4;
+	private static final long runMS = 20_000;
+
+	public static void main(String[] args) {
+
+		ElapsedTimeRecorder fixed = runTest(false);
+		ElapsedTimeRecorder stealing = runTest(true);
+
+		System.out.println("------------- fixed groups -------------");
+		System.out.println(fixed);
+		System.out.println("------------- work stealing ------------");
+		System.out.println(stealing);
+
+	}
+
+	private static ElapsedTimeRecorder runTest(boolean workStealing) {
+		GraphManager gm = new GraphManager();
+		ElapsedTimeRecorder latency = new ElapsedTimeRecorder();
+		PipeConfig<PipeMonitorSchema> config = new PipeConfig<PipeMonitorSchema>(PipeMonitorSchema.instance, 64);
+
+		//the skewed part of the graph
+		Pipe<PipeMonitorSchema>[] heavyIn = new Pipe[heavyWorkers];
+		int h = heavyWorkers;
+		while (--h>=0) {
+			heavyIn[h] = new Pipe<PipeMonitorSchema>(config);
+			Pipe<PipeMonitorSchema> out = new Pipe<PipeMonitorSchema>(config);
+			WorkerStage worker = new WorkerStage(gm, heavyIn[h], out, 200_000);
+			//different rates give the group a script with many blocks to steal from
+			GraphManager.addNota(gm, GraphManager.SCHEDULE_RATE, 100_000*(h+1), worker);
+			new SinkStage(gm, out, latency);
+		}
+		new ProducerStage(gm, heavyIn);
+
+		//the light part of the graph
+		int c = lightChains;
+		while (--c>=0) {
+			Pipe<PipeMonitorSchema> in = new Pipe<PipeMonitorSchema>(config);
+			Pipe<PipeMonitorSchema> out = new Pipe<PipeMonitorSchema>(config);
+			new ProducerStage(gm, new Pipe[]{in});
+			new WorkerStage(gm, in, out, 1_000);
+			new SinkStage(gm, out, latency);
+		}
+
+		ScriptedFixedThreadsScheduler scheduler = new ScriptedFixedThreadsScheduler(gm, threads, true);
+		scheduler.setWorkStealing(workStealing);
+		scheduler.startup();
+		try {
+			Thread.sleep(runMS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		scheduler.shutdown();
+		scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		return latency;
+	}
+
+	private static class ProducerStage extends PronghornStage {
+
+		private final Pipe<PipeMonitorSchema>[] outputs;
+
+		protected ProducerStage(GraphManager graphManager, Pipe<PipeMonitorSchema>[] outputs) {
+			super(graphManager, NONE, outputs);
+			this.outputs = outputs;
+			GraphManager.addNota(graphManager, GraphManager.SCHEDULE_RATE, 50_000, this);
+		}
+
+		@Override
+		public void run() {
+			int i = outputs.length;
+			while (--i>=0) {
+				if (PipeWriter.tryWriteFragment(outputs[i], PipeMonitorSchema.MSG_RINGSTATSAMPLE_100)) {
+					PipeWriter.writeLong(outputs[i], PipeMonitorSchema.MSG_RINGSTATSAMPLE_100_FIELD_MS_1, System.nanoTime());
+					PipeWriter.publishWrites(outputs[i]);
+				}
+			}
+		}
+	}
+
+	private static class WorkerStage extends PronghornStage {
+
+		private final Pipe<PipeMonitorSchema> input;
+		private final Pipe<PipeMonitorSchema> output;
+		private final long spinNS;
+
+		protected WorkerStage(GraphManager graphManager, Pipe<PipeMonitorSchema> input, Pipe<PipeMonitorSchema> output, long spinNS) {
+			super(graphManager, input, output);
+			this.input = input;
+			this.output = output;
+			this.spinNS = spinNS;
+		}
+
+		@Override
+		public void run() {
+			while (PipeWriter.hasRoomForWrite(output) && PipeReader.tryReadFragment(input)) {
+				long sent = PipeReader.readLong(input, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100_FIELD_MS_1);
+				PipeReader.releaseReadLock(input);
+
+				long limit = System.nanoTime()+spinNS;
+				while (System.nanoTime()<limit) {
+					//simulated work
+				}
+
+				PipeWriter.presumeWriteFragment(output, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100);
+				PipeWriter.writeLong(output, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100_FIELD_MS_1, sent);
+				PipeWriter.publishWrites(output);
+			}
+		}
+	}
+
+	private static class SinkStage extends PronghornStage {
+
+		private final Pipe<PipeMonitorSchema> input;
+		private final ElapsedTimeRecorder latency;
+
+		protected SinkStage(GraphManager graphManager, Pipe<PipeMonitorSchema> input, ElapsedTimeRecorder latency) {
+			super(graphManager, input, NONE);
+			this.input = input;
+			this.latency = latency;
+		}
+
+		@Override
+		public void run() {
+			while (PipeReader.tryReadFragment(input)) {
+				long sent = PipeReader.readLong(input, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100_FIELD_MS_1);
+				PipeReader.releaseReadLock(input);
+				synchronized(latency) {
+					ElapsedTimeRecorder.record(latency, System.nanoTime()-sent);
+				}
+			}
+		}
+	}
+
+}
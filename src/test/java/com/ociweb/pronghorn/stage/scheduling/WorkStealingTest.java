@@ -0,0 +1,194 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+
+public class WorkStealingTest {
+
+	@Test
+	public void stolenStageNeverRunsOnTwoThreads() throws InterruptedException {
+
+		GraphManager gm = new GraphManager();
+		PipeConfig<RawDataSchema> config = new PipeConfig<RawDataSchema>(RawDataSchema.instance, 64);
+		Pipe<RawDataSchema> fastIn = new Pipe<RawDataSchema>(config);
+		Pipe<RawDataSchema> slowIn = new Pipe<RawDataSchema>(config);
+
+		AtomicInteger overlaps = new AtomicInteger();
+		Set<Thread> threads = new HashSet<Thread>();
+
+		//the slow stage keeps the owner behind its clock so the idle peer steals from it,
+		//neither has a rate of its own so both may be stolen
+		GuardedStage fast = new GuardedStage(gm, fastIn, 0, overlaps, threads);
+		GuardedStage slow = new GuardedStage(gm, slowIn, 3_000_000, overlaps, threads);
+
+		FeedStage feed = new FeedStage(gm, new Pipe[]{fastIn, slowIn});
+		GraphManager.addNota(gm, GraphManager.SCHEDULE_RATE, 500_000, feed);
+
+		ScriptedNonThreadScheduler owner = new ScriptedNonThreadScheduler(1, gm, false, new PronghornStage[]{fast, slow}, "owner");
+		ScriptedNonThreadScheduler thief = new ScriptedNonThreadScheduler(2, gm, false, new PronghornStage[]{feed}, "thief");
+		ScriptedNonThreadScheduler[] peers = new ScriptedNonThreadScheduler[]{owner, thief};
+		owner.enableWorkStealing(peers);
+		thief.enableWorkStealing(peers);
+		thief.startup();
+		owner.startup();
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread ownerThread = new Thread(new Player(owner, running), "owner");
+		Thread thiefThread = new Thread(new Player(thief, running), "thief");
+		ownerThread.start();
+		thiefThread.start();
+
+		Thread.sleep(1_000);
+		running.set(false);
+		ownerThread.join(5_000);
+		thiefThread.join(5_000);
+		owner.shutdown();
+		thief.shutdown();
+
+		assertEquals(0, overlaps.get());
+		synchronized(threads) {
+			assertTrue("the idle thread must have stolen work", threads.contains(thiefThread));
+			assertTrue(threads.contains(ownerThread));
+		}
+	}
+
+	@Test
+	public void rateLimitedAndMonitorStagesAreNeverStolen() throws InterruptedException {
+
+		GraphManager gm = new GraphManager();
+		PipeConfig<RawDataSchema> config = new PipeConfig<RawDataSchema>(RawDataSchema.instance, 64);
+		Pipe<RawDataSchema> ratedIn = new Pipe<RawDataSchema>(config);
+		Pipe<RawDataSchema> monitorIn = new Pipe<RawDataSchema>(config);
+
+		AtomicInteger overlaps = new AtomicInteger();
+		Set<Thread> threads = new HashSet<Thread>();
+
+		//both keep the owner behind its clock and always have input waiting
+		GuardedStage rated = new GuardedStage(gm, ratedIn, 3_000_000, overlaps, threads);
+		GuardedStage monitor = new GuardedStage(gm, monitorIn, 3_000_000, overlaps, threads);
+		GraphManager.addNota(gm, GraphManager.SCHEDULE_RATE, 2_000_000, rated);
+		GraphManager.addNota(gm, GraphManager.MONITOR, GraphManager.MONITOR, monitor);
+
+		FeedStage feed = new FeedStage(gm, new Pipe[]{ratedIn, monitorIn});
+		GraphManager.addNota(gm, GraphManager.SCHEDULE_RATE, 500_000, feed);
+
+		ScriptedNonThreadScheduler owner = new ScriptedNonThreadScheduler(1, gm, false, new PronghornStage[]{rated, monitor}, "owner");
+		ScriptedNonThreadScheduler thief = new ScriptedNonThreadScheduler(2, gm, false, new PronghornStage[]{feed}, "thief");
+		ScriptedNonThreadScheduler[] peers = new ScriptedNonThreadScheduler[]{owner, thief};
+		owner.enableWorkStealing(peers);
+		thief.enableWorkStealing(peers);
+		thief.startup();
+		owner.startup();
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread ownerThread = new Thread(new Player(owner, running), "owner");
+		Thread thiefThread = new Thread(new Player(thief, running), "thief");
+		ownerThread.start();
+		thiefThread.start();
+
+		Thread.sleep(500);
+		running.set(false);
+		ownerThread.join(5_000);
+		thiefThread.join(5_000);
+		owner.shutdown();
+		thief.shutdown();
+
+		synchronized(threads) {
+			assertTrue(threads.contains(ownerThread));
+			assertFalse("stages on their own clock must not be stolen", threads.contains(thiefThread));
+		}
+	}
+
+	private static class Player implements Runnable {
+
+		private final ScriptedNonThreadScheduler scheduler;
+		private final AtomicBoolean running;
+
+		Player(ScriptedNonThreadScheduler scheduler, AtomicBoolean running) {
+			this.scheduler = scheduler;
+			this.running = running;
+		}
+
+		@Override
+		public void run() {
+			while (running.get()) {
+				scheduler.run();
+			}
+		}
+	}
+
+	private static class FeedStage extends PronghornStage {
+
+		private final Pipe<RawDataSchema>[] outputs;
+
+		protected FeedStage(GraphManager gm, Pipe<RawDataSchema>[] outputs) {
+			super(gm, NONE, outputs);
+			this.outputs = outputs;
+		}
+
+		@Override
+		public void run() {
+			int i = outputs.length;
+			while (--i >= 0) {
+				if (Pipe.hasRoomForWrite(outputs[i])) {
+					int size = Pipe.addMsgIdx(outputs[i], RawDataSchema.MSG_CHUNKEDSTREAM_1);
+					Pipe.addNullByteArray(outputs[i]);
+					Pipe.confirmLowLevelWrite(outputs[i], size);
+					Pipe.publishWrites(outputs[i]);
+				}
+			}
+		}
+	}
+
+	private static class GuardedStage extends PronghornStage {
+
+		private final Pipe<RawDataSchema> input;
+		private final long workNS;
+		private final AtomicInteger active = new AtomicInteger();
+		private final AtomicInteger overlaps;
+		private final Set<Thread> threads;
+
+		protected GuardedStage(GraphManager gm, Pipe<RawDataSchema> input, long workNS,
+				               AtomicInteger overlaps, Set<Thread> threads) {
+			super(gm, input, NONE);
+			this.input = input;
+			this.workNS = workNS;
+			this.overlaps = overlaps;
+			this.threads = threads;
+		}
+
+		@Override
+		public void run() {
+			if (active.incrementAndGet() != 1) {
+				overlaps.incrementAndGet();
+			}
+			synchronized(threads) {
+				threads.add(Thread.currentThread());
+			}
+			if (Pipe.hasContentToRead(input)) {
+				int msgIdx = Pipe.takeMsgIdx(input);
+				Pipe.takeRingByteMetaData(input);
+				Pipe.takeRingByteLen(input);
+				Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+				Pipe.releaseReadLock(input);
+			}
+			long limit = System.nanoTime()+workNS;
+			while (System.nanoTime() < limit) {
+				//simulated work, long enough to be caught running by the other thread
+			}
+			active.decrementAndGet();
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+package com.ociweb.pronghorn.stage.scheduling.virtual;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.ScriptedFixedThreadsScheduler;
+import com.ociweb.pronghorn.stage.scheduling.ScriptedNonThreadScheduler;
+import com.ociweb.pronghorn.stage.scheduling.StageScheduler;
+
+/**
+ * Runs each stage, or each group of stages, on its own virtual thread. Idle threads
+ * park until a stage on another thread publishes to one of their input pipes so very
+ * large graphs of mostly idle stages cost little more than their memory.
+ *
+ * Requires Java 21 or newer, this is why it is kept out of the core module.
+ */
+public class VirtualThreadScheduler extends StageScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(VirtualThreadScheduler.class);
+
+	//spin and yield are of little value since parking a virtual thread is cheap
+	private static final int IDLE_SPINS = 0;
+	private static final int IDLE_YIELDS = 2;
+	private static final long MAX_PARK_NS = 100_000_000; //100ms heartbeat for idle stages
+
+	private final ScriptedNonThreadScheduler[] ntsArray;
+	private Thread[] threads;
+	private volatile Throwable firstException;//will remain null if nothing is wrong
+	private volatile Throwable startupFailure;
+
+	public VirtualThreadScheduler(GraphManager graphManager) {
+		this(graphManager, false);
+	}
+
+	/**
+	 * @param graphManager
+	 * @param groupStages when true the topology groups of ScriptedFixedThreadsScheduler each get a virtual thread
+	 *                    otherwise every stage gets its own virtual thread.
+	 */
+	public VirtualThreadScheduler(GraphManager graphManager, boolean groupStages) {
+		super(graphManager);
+
+		PronghornStage[][] groups = groupStages
+				? ScriptedFixedThreadsScheduler.buildStageGroups(graphManager, Integer.MAX_VALUE, false)
+				: stagePerGroup(graphManager);
+
+		int count = 0;
+		int i = groups.length;
+		while (--i>=0) {
+			if (null!=groups[i]) {
+				count++;
+			}
+		}
+
+		ntsArray = new ScriptedNonThreadScheduler[count];
+		int idx = 0;
+		for(i = 0; i<groups.length; i++) {
+			if (null!=groups[i]) {
+				PronghornStage stage = groups[i][groups[i].length-1];
+				String name = stage.stageId+":"+stage.getClass().getSimpleName();
+				//scheduleId must be index+1 so wakeups can find the owner of each stage quickly
+				ntsArray[idx] = new ScriptedNonThreadScheduler(idx+1, graphManager, false, groups[i], name, true);
+				idx++;
+			}
+		}
+		i = ntsArray.length;
+		while (--i>=0) {
+			ntsArray[i].enableDataArrivalWakeups(ntsArray, IDLE_SPINS, IDLE_YIELDS, MAX_PARK_NS);
+		}
+		logger.info("virtual threads in use {}", ntsArray.length);
+	}
+
+	private static PronghornStage[][] stagePerGroup(GraphManager graphManager) {
+		PronghornStage[] all = GraphManager.allStages(graphManager);
+		PronghornStage[][] result = new PronghornStage[all.length][];
+		int i = all.length;
+		while (--i>=0) {
+			result[i] = new PronghornStage[]{all[i]};
+		}
+		return result;
+	}
+
+	@Override
+	public void startup() {
+
+		if (0 == ntsArray.length) {
+			logger.info("no stages to run, the graph is empty");
+			return;
+		}
+
+		final CountDownLatch allStagesLatch = new CountDownLatch(ntsArray.length);
+		threads = new Thread[ntsArray.length];
+		int i = ntsArray.length;
+		while (--i>=0) {
+			threads[i] = Thread.ofVirtual()
+					           .name(ntsArray[i].name())
+					           .start(buildRunnable(allStagesLatch, ntsArray[i]));
+		}
+
+		logger.trace("waiting for startup");
+		try {
+			allStagesLatch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (null != startupFailure) {
+			//as with the fixed threads scheduler the graph does not run unless every stage started
+			shutdown();
+			throw new RuntimeException("Unable to start up all stages, the others have been shut down.", startupFailure);
+		}
+		logger.trace("all stages started up");
+
+	}
+
+	private synchronized void recordFailure(Throwable t) {
+		if (null == firstException) {
+			firstException = t;
+		}
+	}
+
+	private Runnable buildRunnable(final CountDownLatch allStagesLatch, final ScriptedNonThreadScheduler nts) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					nts.startup();
+				} catch (Throwable t) {
+					synchronized(VirtualThreadScheduler.this) {
+						if (null == startupFailure) {
+							startupFailure = t;
+						}
+					}
+					recordFailure(t); //reported by startup once every thread has tried
+					return;
+				} finally {
+					allStagesLatch.countDown();
+				}
+				try {
+					while (!ScriptedNonThreadScheduler.isShutdownRequested(nts)) {
+						nts.run();
+					}
+				} catch (Throwable t) {
+					recordFailure(t);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void shutdown() {
+		int i = ntsArray.length;
+		while (--i>=0) {
+			if (!ScriptedNonThreadScheduler.isShutdownRequested(ntsArray[i])) {
+				ntsArray[i].shutdown();
+			}
+		}
+	}
+
+	@Override
+	public void awaitTermination(long timeout, TimeUnit unit, Runnable clean, Runnable dirty) {
+		if (awaitTermination(timeout, unit)) {
+			clean.run();
+		} else {
+			dirty.run();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+
+		long limit = System.nanoTime()+unit.toNanos(timeout);
+		boolean cleanExit = true;
+		if (null != threads) {
+			int i = threads.length;
+			while (--i>=0) {
+				long remainingMS = Math.max(1, TimeUnit.NANOSECONDS.toMillis(limit-System.nanoTime()));
+				try {
+					threads[i].join(remainingMS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				cleanExit &= !threads[i].isAlive();
+			}
+		}
+		int i = ntsArray.length;
+		while (--i>=0) {
+			cleanExit &= ntsArray[i].awaitTermination(Math.max(0, limit-System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		if (!cleanExit) {
+			validShutdownState();
+			return false;
+		}
+		if (null != firstException) {
+			throw new RuntimeException(firstException);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean TerminateNow() {
+		shutdown();
+		return awaitTermination(1, TimeUnit.SECONDS);
+	}
+
+}
@@ -0,0 +1,131 @@
+package com.ociweb.pronghorn.stage.scheduling.virtual;
+
+import java.util.concurrent.TimeUnit;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.monitor.PipeMonitorSchema;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.ScriptedFixedThreadsScheduler;
+import com.ociweb.pronghorn.stage.scheduling.StageScheduler;
+
+public class VirtualThreadSchedulerBenchmark {
+
+    //////////////////////////////////
+    //THIS IS NOT A UNIT TEST
+    //IT DOES NOT RUN WHEN TESTS RUN
+    //////////////////////////////////
+
+	//Compares memory footprint and startup time of a large graph of mostly idle stages.
+
+	private static final int chains = 5_000;
+	private static final int chainLength = 4;
+
+	public static void main(String[] args) {
+
+		report("ScriptedFixedThreadsScheduler", false);
+		report("VirtualThreadScheduler", true);
+
+	}
+
+	private static void report(String label, boolean virtual) {
+
+		GraphManager gm = buildGraph();
+
+		long baseHeap = usedHeap();
+		long start = System.nanoTime();
+		StageScheduler scheduler = virtual ? new VirtualThreadScheduler(gm)
+				                           : new ScriptedFixedThreadsScheduler(gm);
+		scheduler.startup();
+		long startupNS = System.nanoTime()-start;
+
+		try {
+			Thread.sleep(2_000);//let the idle behavior settle
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long heap = usedHeap()-baseHeap;
+		int platformThreads = Thread.activeCount();
+
+		scheduler.shutdown();
+		scheduler.awaitTermination(30, TimeUnit.SECONDS);
+
+		System.out.println(label+" stages "+GraphManager.countStages(gm)
+		                   +" startup "+TimeUnit.NANOSECONDS.toMillis(startupNS)+"ms"
+		                   +" heap "+(heap>>20)+"MB"
+		                   +" platform threads "+platformThreads);
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		return rt.totalMemory()-rt.freeMemory();
+	}
+
+	private static GraphManager buildGraph() {
+		GraphManager gm = new GraphManager();
+		PipeConfig<PipeMonitorSchema> config = new PipeConfig<PipeMonitorSchema>(PipeMonitorSchema.instance, 4);
+		int c = chains;
+		while (--c>=0) {
+			Pipe<PipeMonitorSchema> pipe = new Pipe<PipeMonitorSchema>(config);
+			new IdleProducerStage(gm, pipe);
+			int r = chainLength;
+			while (--r>=0) {
+				Pipe<PipeMonitorSchema> next = new Pipe<PipeMonitorSchema>(config);
+				new RelayStage(gm, pipe, next);
+				pipe = next;
+			}
+			new RelayStage(gm, pipe, null);
+		}
+		return gm;
+	}
+
+	private static class IdleProducerStage extends PronghornStage {
+
+		protected IdleProducerStage(GraphManager graphManager, Pipe<PipeMonitorSchema> output) {
+			super(graphManager, NONE, output);
+			//mostly idle, this produces one message a second
+			GraphManager.addNota(graphManager, GraphManager.SCHEDULE_RATE, 1_000_000_000L, this);
+			this.output = output;
+		}
+
+		private final Pipe<PipeMonitorSchema> output;
+
+		@Override
+		public void run() {
+			if (PipeWriter.tryWriteFragment(output, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100)) {
+				PipeWriter.writeLong(output, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100_FIELD_MS_1, System.nanoTime());
+				PipeWriter.publishWrites(output);
+			}
+		}
+	}
+
+	private static class RelayStage extends PronghornStage {
+
+		private final Pipe<PipeMonitorSchema> input;
+		private final Pipe<PipeMonitorSchema> output;
+
+		protected RelayStage(GraphManager graphManager, Pipe<PipeMonitorSchema> input, Pipe<PipeMonitorSchema> output) {
+			super(graphManager, new Pipe[]{input}, null==output ? NONE : new Pipe[]{output});
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		public void run() {
+			while ((null==output || PipeWriter.hasRoomForWrite(output)) && PipeReader.tryReadFragment(input)) {
+				long value = PipeReader.readLong(input, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100_FIELD_MS_1);
+				PipeReader.releaseReadLock(input);
+				if (null!=output) {
+					PipeWriter.presumeWriteFragment(output, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100);
+					PipeWriter.writeLong(output, PipeMonitorSchema.MSG_RINGSTATSAMPLE_100_FIELD_MS_1, value);
+					PipeWriter.publishWrites(output);
+				}
+			}
+		}
+	}
+
+}